@@ -227,6 +227,8 @@ public class MainActivity extends AppCompatActivity implements RtmpHandler.RtmpL
     protected void onPause() {
         super.onPause();
         mPublisher.pauseRecord();
+        // Give the hardware encoders kept for the next publish back to other apps
+        mPublisher.releaseEncoders();
     }
 
     @Override
@@ -234,6 +236,7 @@ public class MainActivity extends AppCompatActivity implements RtmpHandler.RtmpL
         super.onDestroy();
         mPublisher.stopPublish();
         mPublisher.stopRecord();
+        mPublisher.releaseEncoders();
     }
 
     @Override
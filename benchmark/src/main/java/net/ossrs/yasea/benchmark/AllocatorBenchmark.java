@@ -0,0 +1,57 @@
+package net.ossrs.yasea.benchmark;
+
+import net.ossrs.yasea.SrsAllocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocate and release cycle of the tag allocator, with a few allocations in flight like
+ * the send queue holds them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocatorBenchmark {
+
+    private static final int IN_FLIGHT = 8;
+
+    @Param({"4096", "65536"})
+    public int size;
+
+    private SrsAllocator allocator;
+    private final SrsAllocator.Allocation[] inFlight = new SrsAllocator.Allocation[IN_FLIGHT];
+    private int next;
+
+    @Setup
+    public void setup() {
+        allocator = new SrsAllocator(128 * 1024);
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            inFlight[i] = allocator.allocate(size);
+        }
+    }
+
+    @Benchmark
+    public SrsAllocator.Allocation allocateRelease() {
+        SrsAllocator.Allocation allocation = allocator.allocate(size);
+        allocation.appendOffset(size);
+        allocator.release(inFlight[next]);
+        inFlight[next] = allocation;
+        next = (next + 1) % IN_FLIGHT;
+        return allocation;
+    }
+}
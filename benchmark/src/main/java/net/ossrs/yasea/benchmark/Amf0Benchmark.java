@@ -0,0 +1,103 @@
+package net.ossrs.yasea.benchmark;
+
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfDecoder;
+import com.github.faucamp.simplertmp.amf.AmfMap;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AMF0 encoding and decoding of the connect arguments and the onMetaData array
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Amf0Benchmark {
+
+    private AmfObject connect;
+    private AmfMap metaData;
+    private byte[] connectBytes;
+    private byte[] metaDataBytes;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    @Setup
+    public void setup() throws IOException {
+        connect = new AmfObject();
+        connect.setProperty("app", "live");
+        connect.setProperty("flashVer", "FMLE/3.0 (compatible; Lavf57.56.101)");
+        connect.setProperty("swfUrl", "rtmp://example.com/live");
+        connect.setProperty("tcUrl", "rtmp://example.com/live");
+        connect.setProperty("fpad", false);
+        connect.setProperty("capabilities", 239);
+        connect.setProperty("audioCodecs", 3575);
+        connect.setProperty("videoCodecs", 252);
+        connect.setProperty("videoFunction", 1);
+        connect.setProperty("pageUrl", "http://example.com");
+        connect.setProperty("objectEncoding", 0);
+
+        metaData = new AmfMap();
+        metaData.setProperty("duration", 0);
+        metaData.setProperty("width", 1280);
+        metaData.setProperty("height", 720);
+        metaData.setProperty("videodatarate", 2500);
+        metaData.setProperty("framerate", 30);
+        metaData.setProperty("videocodecid", 7);
+        metaData.setProperty("audiodatarate", 128);
+        metaData.setProperty("audiosamplerate", 44100);
+        metaData.setProperty("audiosamplesize", 16);
+        metaData.setProperty("stereo", true);
+        metaData.setProperty("audiocodecid", 10);
+        metaData.setProperty("filesize", 0);
+
+        connectBytes = encode(connect);
+        metaDataBytes = encode(metaData);
+    }
+
+    private byte[] encode(AmfData data) throws IOException {
+        out.reset();
+        data.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public int encodeConnect() throws IOException {
+        out.reset();
+        connect.writeTo(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeMetaData() throws IOException {
+        out.reset();
+        metaData.writeTo(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public AmfData decodeConnect() throws IOException {
+        return AmfDecoder.readFrom(new ByteArrayInputStream(connectBytes));
+    }
+
+    @Benchmark
+    public AmfData decodeMetaData() throws IOException {
+        return AmfDecoder.readFrom(new ByteArrayInputStream(metaDataBytes));
+    }
+}
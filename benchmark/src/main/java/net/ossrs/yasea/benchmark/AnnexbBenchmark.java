@@ -0,0 +1,59 @@
+package net.ossrs.yasea.benchmark;
+
+import android.media.MediaCodec;
+
+import net.ossrs.yasea.SrsMp4Muxer;
+import net.ossrs.yasea.SrsRecordHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annex-B start code scanning of the MP4 muxer, which walks every NAL unit of an access unit.
+ * The muxer is not recording, so the frame is dropped after the scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnexbBenchmark {
+
+    @Param({"4096", "65536"})
+    public int frameSize;
+
+    @Param({"false", "true"})
+    public boolean withSpsPps;
+
+    private SrsMp4Muxer muxer;
+    private ByteBuffer frame;
+    private MediaCodec.BufferInfo bi;
+
+    @Setup
+    public void setup() {
+        muxer = new SrsMp4Muxer(new File("/dev/null"), new SrsRecordHandler(null));
+        byte[] au = BenchmarkData.accessUnit(frameSize, 5, withSpsPps);
+        frame = ByteBuffer.wrap(au);
+        bi = BenchmarkData.bufferInfo(au.length, 0, true);
+    }
+
+    @Benchmark
+    public void scan() {
+        frame.clear();
+        muxer.writeVideoSample(frame, bi);
+    }
+}
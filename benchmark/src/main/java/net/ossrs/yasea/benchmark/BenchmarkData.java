@@ -0,0 +1,108 @@
+package net.ossrs.yasea.benchmark;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Synthetic encoder output and sinks shared by the benchmarks
+ */
+final class BenchmarkData {
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Annex-B access unit with a single slice, optionally preceded by SPS and PPS
+     *
+     * @param size      Slice size in bytes
+     * @param nalType   5 for IDR, 1 for non-IDR
+     * @param withSpsPps Prefix SPS and PPS like the first IDR of MediaCodec
+     */
+    static byte[] accessUnit(int size, int nalType, boolean withSpsPps) {
+        Random random = new Random(size);
+        int length = 4 + size + (withSpsPps ? 8 + SPS.length + PPS.length : 0);
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        if (withSpsPps) {
+            bb.putInt(1).put(SPS);
+            bb.putInt(1).put(PPS);
+        }
+        bb.putInt(1);
+        bb.put((byte) (0x60 | nalType));
+        for (int i = 1; i < size; i++) {
+            // No zero bytes, so the payload never looks like a start code
+            bb.put((byte) (1 + random.nextInt(255)));
+        }
+        return bb.array();
+    }
+
+    /**
+     * Codec config buffer MediaCodec emits before the first frame
+     */
+    static byte[] codecConfig() {
+        ByteBuffer bb = ByteBuffer.allocate(8 + SPS.length + PPS.length);
+        bb.putInt(1).put(SPS);
+        bb.putInt(1).put(PPS);
+        return bb.array();
+    }
+
+    static MediaCodec.BufferInfo bufferInfo(int size, long ptsUs, boolean keyFrame) {
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.set(0, size, ptsUs, keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        return bi;
+    }
+
+    static MediaFormat videoFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 2500 * 1024);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        return format;
+    }
+
+    static MediaFormat audioFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 128 * 1024);
+        return format;
+    }
+
+    /**
+     * Stream that discards everything
+     */
+    static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Channel that discards everything
+     */
+    static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
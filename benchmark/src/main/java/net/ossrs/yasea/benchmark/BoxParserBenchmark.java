@@ -0,0 +1,178 @@
+package net.ossrs.yasea.benchmark;
+
+import android.media.MediaCodec;
+import com.coremedia.iso.AbstractBoxParser;
+import com.coremedia.iso.FourCcBoxParserImpl;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.PropertyBoxParserImpl;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.UserBox;
+import com.googlecode.mp4parser.authoring.SampleReader;
+import com.googlecode.mp4parser.boxes.UnknownBox;
+import net.ossrs.yasea.SrsMp4Muxer;
+import net.ossrs.yasea.SrsRecordHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a one hour recording of the MP4 muxer, with the compiled in box types and with the
+ * same types looked up in properties and constructed by reflection. Read from the channel,
+ * and mapped with lazily parsed containers, where a thumbnailer only parses the video track
+ * and views its middle key frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoxParserBenchmark {
+
+    // One hour at 30 fps, with 44.1 kHz AAC
+    private static final int VIDEO_FRAMES = 108000;
+    private static final long VIDEO_FRAME_US = 1000000 / 30;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / 44100;
+
+    // Types of the boxes the muxer writes, mdat is left to the default
+    private static final String[] TYPES = {
+            "ftyp", "moov", "mvhd", "trak", "tkhd", "mdia", "mdhd", "hdlr", "minf", "vmhd", "smhd",
+            "dinf", "dref", "url ", "stbl", "stsd", "avc1", "avcC", "mp4a", "esds", "stts", "stss",
+            "stsc", "stsz", "stco"
+    };
+
+    @Param({"fourcc", "properties"})
+    public String parser;
+
+    private File file;
+    private AbstractBoxParser boxParser;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("boxparser", ".mp4");
+        record(file);
+        if ("fourcc".equals(parser)) {
+            boxParser = new FourCcBoxParserImpl(null);
+        } else {
+            boxParser = new PropertyBoxParserImpl(mapping());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            IsoFile isoFile = new IsoFile(channel, boxParser);
+            return isoFile.getSize();
+        }
+    }
+
+    @Benchmark
+    public long parseMapped() throws IOException {
+        IsoFile isoFile = IsoFile.mapped(file, boxParser);
+        return isoFile.getSize();
+    }
+
+    @Benchmark
+    public int thumbnail() throws IOException {
+        IsoFile isoFile = IsoFile.mapped(file, boxParser);
+        for (TrackBox trak : isoFile.getMovieBox().getBoxes(TrackBox.class)) {
+            if ("vide".equals(trak.getMediaBox().getHandlerBox().getHandlerType())) {
+                SampleReader samples = new SampleReader(trak);
+                int keyFrame = samples.getSyncSampleBefore(samples.getSampleAt(samples.getDuration() / 2));
+                return samples.getSample(keyFrame).remaining();
+            }
+        }
+        throw new IOException("No video track in " + file);
+    }
+
+    /**
+     * The mapping of isoparser-default.properties for the types of the recording
+     */
+    private static Properties mapping() {
+        FourCcBoxParserImpl types = new FourCcBoxParserImpl(null);
+        Properties mapping = new Properties();
+        for (String type : TYPES) {
+            String name = types.getClassForFourCc(type, null, "").getName();
+            boolean sampleEntry = name.endsWith("SampleEntry");
+            mapping.setProperty(type, name + (sampleEntry ? "(type)" : "()"));
+        }
+        mapping.setProperty("uuid", UserBox.class.getName() + "(userType)");
+        mapping.setProperty("default", UnknownBox.class.getName() + "(type)");
+        return mapping;
+    }
+
+    /**
+     * Record an hour of small synthetic frames, as fast as the writer takes them
+     */
+    private static void record(File file) throws Exception {
+        SrsMp4Muxer muxer = new SrsMp4Muxer(file, new SrsRecordHandler(null));
+        muxer.addTrack(BenchmarkData.videoFormat());
+        muxer.addTrack(BenchmarkData.audioFormat());
+        if (!muxer.record()) {
+            throw new IOException("Cannot record to " + file);
+        }
+        byte[] config = BenchmarkData.codecConfig();
+        MediaCodec.BufferInfo configInfo = BenchmarkData.bufferInfo(config.length, 0, false);
+        configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        muxer.writeVideoSample(ByteBuffer.wrap(config), configInfo);
+        MediaCodec.BufferInfo ascInfo = BenchmarkData.bufferInfo(2, 0, false);
+        ascInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        muxer.writeAudioSample(ByteBuffer.wrap(new byte[]{0x12, 0x10}), ascInfo);
+
+        byte[] key = BenchmarkData.accessUnit(256, 5, false);
+        byte[] inter = BenchmarkData.accessUnit(64, 1, false);
+        byte[] aac = new byte[16];
+        int audioFrames = 0;
+        for (int i = 0; i < VIDEO_FRAMES; i++) {
+            boolean isKey = i % 60 == 0;
+            byte[] frame = isKey ? key : inter;
+            muxer.writeVideoSample(ByteBuffer.wrap(frame),
+                    BenchmarkData.bufferInfo(frame.length, i * VIDEO_FRAME_US, isKey));
+            while (audioFrames * AUDIO_FRAME_US < (i + 1) * VIDEO_FRAME_US) {
+                muxer.writeAudioSample(ByteBuffer.wrap(aac),
+                        BenchmarkData.bufferInfo(aac.length, audioFrames * AUDIO_FRAME_US, false));
+                audioFrames++;
+            }
+        }
+
+        // The writer may take 500 ms to notice new frames, stop drops what it did not write
+        long length;
+        do {
+            length = file.length();
+            Thread.sleep(600);
+        } while (file.length() != length);
+        muxer.stop();
+        // The recording index is removed once the moov was written
+        File index = new File(file.getPath() + ".idx");
+        long deadline = System.currentTimeMillis() + 30000;
+        while (index.exists() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        if (index.exists()) {
+            throw new IOException("Recording did not finish " + file);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.ossrs.yasea.benchmark;
+
+import android.media.MediaCodec;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+
+import net.ossrs.yasea.SrsFlvMuxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FLV tag building from encoder output. No sender runs, the tag cache is flushed whenever it
+ * fills up, which costs a small amortized share of each operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlvMuxerBenchmark {
+
+    @Param({"4096", "65536"})
+    public int frameSize;
+
+    private SrsFlvMuxer muxer;
+    private ByteBuffer video;
+    private MediaCodec.BufferInfo videoInfo;
+    private ByteBuffer audio;
+    private MediaCodec.BufferInfo audioInfo;
+    private long pts;
+
+    @Setup
+    public void setup() {
+        muxer = new SrsFlvMuxer(new RtmpHandler(null));
+        muxer.addTrack(BenchmarkData.videoFormat());
+        muxer.addTrack(BenchmarkData.audioFormat());
+
+        byte[] config = BenchmarkData.codecConfig();
+        MediaCodec.BufferInfo configInfo = BenchmarkData.bufferInfo(config.length, 0, false);
+        configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        muxer.writeVideoSample(ByteBuffer.wrap(config), configInfo);
+
+        byte[] au = BenchmarkData.accessUnit(frameSize, 5, false);
+        video = ByteBuffer.wrap(au);
+        videoInfo = BenchmarkData.bufferInfo(au.length, 0, true);
+
+        // Raw AAC frame as MediaCodec delivers it, no ADTS header
+        byte[] aac = new byte[372];
+        aac[0] = 0x21;
+        audio = ByteBuffer.wrap(aac);
+        audioInfo = BenchmarkData.bufferInfo(aac.length, 0, false);
+    }
+
+    @Benchmark
+    public void videoTag() {
+        pts += 33333;
+        videoInfo.presentationTimeUs = pts;
+        video.clear();
+        muxer.writeVideoSample(video, videoInfo);
+    }
+
+    @Benchmark
+    public void audioTag() {
+        pts += 23219;
+        audioInfo.presentationTimeUs = pts;
+        audio.clear();
+        muxer.writeAudioSample(audio, audioInfo);
+    }
+}
@@ -0,0 +1,94 @@
+package net.ossrs.yasea.benchmark;
+
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and writing the sample table of a video track, the bulk of the moov box the MP4
+ * muxer writes when a recording finishes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Mp4BoxBenchmark {
+
+    // One minute and one hour at 30 fps
+    @Param({"1800", "108000"})
+    public int samples;
+
+    private long[] sizes;
+    private long[] offsets;
+    private long[] syncSamples;
+
+    @Setup
+    public void setup() {
+        sizes = new long[samples];
+        offsets = new long[samples];
+        syncSamples = new long[(samples + 59) / 60];
+        long offset = 48;
+        for (int i = 0; i < samples; i++) {
+            sizes[i] = i % 60 == 0 ? 40000 : 8000 + i % 997;
+            offsets[i] = offset;
+            offset += sizes[i] + 372;
+        }
+        for (int i = 0; i < syncSamples.length; i++) {
+            syncSamples[i] = i * 60 + 1;
+        }
+    }
+
+    @Benchmark
+    public long writeSampleTable() throws IOException {
+        SampleTableBox stbl = new SampleTableBox();
+
+        TimeToSampleBox stts = new TimeToSampleBox();
+        stts.setEntries(Collections.singletonList(new TimeToSampleBox.Entry(samples, 3000)));
+        stbl.addBox(stts);
+
+        SyncSampleBox stss = new SyncSampleBox();
+        stss.setSampleNumber(syncSamples);
+        stbl.addBox(stss);
+
+        // Audio interleaved after every video sample, so each sample is its own chunk
+        SampleToChunkBox stsc = new SampleToChunkBox();
+        List<SampleToChunkBox.Entry> entries = new ArrayList<>();
+        entries.add(new SampleToChunkBox.Entry(1, 1, 1));
+        stsc.setEntries(entries);
+        stbl.addBox(stsc);
+
+        SampleSizeBox stsz = new SampleSizeBox();
+        stsz.setSampleSizes(sizes);
+        stbl.addBox(stsz);
+
+        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
+        stco.setChunkOffsets(offsets);
+        stbl.addBox(stco);
+
+        stbl.getBox(BenchmarkData.NULL_CHANNEL);
+        return stbl.getSize();
+    }
+}
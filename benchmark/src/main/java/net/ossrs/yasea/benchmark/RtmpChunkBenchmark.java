@@ -0,0 +1,59 @@
+package net.ossrs.yasea.benchmark;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunking a video packet into RtmpHeader and payload writes, as the sender does for every
+ * FLV tag
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpChunkBenchmark {
+
+    @Param({"4096", "65536"})
+    public int tagSize;
+
+    @Param({"128", "4096"})
+    public int chunkSize;
+
+    private byte[] tag;
+    private ChunkStreamInfo chunkStreamInfo;
+    private int dts;
+
+    @Setup
+    public void setup() {
+        tag = new byte[tagSize];
+        chunkStreamInfo = new RtmpSessionInfo().getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_VIDEO);
+    }
+
+    @Benchmark
+    public void writeVideo() throws IOException {
+        Video video = new Video();
+        video.setData(tag, tagSize);
+        video.getHeader().setAbsoluteTimestamp(dts += 33);
+        video.getHeader().setMessageStreamId(1);
+        chunkStreamInfo.setPrevHeaderTx(video.getHeader());
+        video.writeTo(BenchmarkData.NULL_STREAM, chunkSize, chunkStreamInfo);
+    }
+}
@@ -0,0 +1,94 @@
+package net.ossrs.yasea.benchmark;
+
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpDecoder;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing chunked packets with RtmpDecoder: a multi-chunk video packet and a _result command
+ * like the server sends during connect
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpDecoderBenchmark {
+
+    private static final int CHUNK_SIZE = 128;
+
+    private byte[] videoPacket;
+    private byte[] commandPacket;
+    private final RtmpDecoder videoDecoder = new RtmpDecoder(new RtmpSessionInfo());
+    private final RtmpDecoder commandDecoder = new RtmpDecoder(new RtmpSessionInfo());
+
+    @Setup
+    public void setup() throws IOException {
+        RtmpSessionInfo tx = new RtmpSessionInfo();
+
+        Video video = new Video();
+        video.setData(new byte[16 * 1024], 16 * 1024);
+        video.getHeader().setMessageStreamId(1);
+        videoPacket = serialize(video, tx.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_VIDEO));
+
+        Command result = new Command("_result", 1);
+        AmfObject properties = new AmfObject();
+        properties.setProperty("fmsVer", "FMS/3,5,3,888");
+        properties.setProperty("capabilities", 127);
+        properties.setProperty("mode", 1);
+        result.addData(properties);
+        AmfObject information = new AmfObject();
+        information.setProperty("level", "status");
+        information.setProperty("code", "NetConnection.Connect.Success");
+        information.setProperty("description", "Connection succeeded.");
+        information.setProperty("objectEncoding", 0);
+        result.addData(information);
+        commandPacket = serialize(result, tx.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION));
+    }
+
+    private static byte[] serialize(RtmpPacket packet, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chunkStreamInfo.setPrevHeaderTx(packet.getHeader());
+        packet.writeTo(out, CHUNK_SIZE, chunkStreamInfo);
+        return out.toByteArray();
+    }
+
+    private static void decode(RtmpDecoder decoder, byte[] bytes, Blackhole bh) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        while (in.available() > 0) {
+            bh.consume(decoder.readPacket(in));
+        }
+    }
+
+    @Benchmark
+    public void readVideo(Blackhole bh) throws IOException {
+        decode(videoDecoder, videoPacket, bh);
+    }
+
+    @Benchmark
+    public void readCommand(Blackhole bh) throws IOException {
+        decode(commandDecoder, commandPacket, bh);
+    }
+}
@@ -0,0 +1,64 @@
+package net.ossrs.yasea.benchmark;
+
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SPS parsing the muxers do on every new sequence header, through the bit at a time
+ * InputStream reader and through the ByteBuffer reader. The high profile SPS has VUI with
+ * colour description, timing and bitstream restriction, and two emulation prevention bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpsParserBenchmark {
+
+    // 1920x1080 High 4.0, 60 ticks per second
+    private static final byte[] HIGH_SPS = {
+            0x67, 0x64, 0x00, 0x28, (byte) 0xac, 0x2d, (byte) 0x94, 0x07, (byte) 0x80, 0x22, 0x7e, 0x59,
+            (byte) 0xa8, 0x08, 0x08, 0x0a, 0x00, 0x00, 0x03, 0x00, 0x02, 0x00, 0x00, 0x03, 0x00, 0x78,
+            0x1e, 0x11, 0x08, (byte) 0xb2, (byte) 0xc0
+    };
+
+    @Param({"baseline", "high"})
+    public String profile;
+
+    private byte[] sps;
+    private ByteBuffer nal;
+
+    @Setup
+    public void setup() {
+        sps = "high".equals(profile) ? HIGH_SPS : BenchmarkData.SPS;
+        nal = ByteBuffer.wrap(sps);
+    }
+
+    @Benchmark
+    public SeqParameterSet stream() throws IOException {
+        // The InputStream reader neither skips the NAL header nor drops emulation prevention
+        return SeqParameterSet.read(new ByteArrayInputStream(sps, 1, sps.length - 1));
+    }
+
+    @Benchmark
+    public SeqParameterSet buffer() throws IOException {
+        return SeqParameterSet.read(nal);
+    }
+}
@@ -0,0 +1,437 @@
+package net.ossrs.yasea.ingest;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import com.googlecode.mp4parser.h264.model.ChromaFormat;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+import com.googlecode.mp4parser.h264.model.VUIParameters;
+import com.googlecode.mp4parser.h264.write.CAVLCWriter;
+import com.googlecode.mp4parser.h265.H265NalUnitHeader;
+import net.ossrs.yasea.SrsKeyFrameSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encoder output look-alike: Annex-B access units of a given bitrate and frame rate, key
+ * frames three times the size of the others, preceded by a codec config buffer. Like an encoder,
+ * a requested key frame starts a new GOP. With B-frames, the frames come in decode order: each
+ * P-frame ahead of the B-frames presented before it, in a pyramid the middle B-frame ahead of
+ * those it is referenced by. H.265 streams start with a VPS and have
+ * two byte NAL unit headers. With temporal layers, the frames form hierarchical P-frames: the
+ * highest layer is not referenced, in H.264 it is the only one told apart, by nal_ref_idc 0.
+ * With intra refresh, the first frame is the only key frame unless one is requested. A stream
+ * may continue the presentation times of another, as after a switch of rendition.
+ */
+public final class SyntheticStream implements SrsKeyFrameSource {
+
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    // Main profile, level 3.1, one sub-layer
+    private static final byte[] HEVC_VPS = {
+            0x40, 0x01, 0x0c, 0x01, (byte) 0xff, (byte) 0xff, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00,
+            (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x5d, (byte) 0x95, (byte) 0x98, 0x09
+    };
+    private static final byte[] HEVC_PPS = {0x44, 0x01, (byte) 0xc1, 0x72, (byte) 0xb4, 0x62, 0x40};
+
+    private final int width;
+    private final int height;
+    private final int bitrate;
+    private final int fps;
+    private final int gop;
+    private final int bFrames;
+    private final boolean hevc;
+    private byte[] sps;
+    private final byte[] keyFrame;
+    private final byte[] interFrame;
+    private final int interSize;
+    // Decode order of the B-frames of a group, their offsets from the previous reference frame
+    private int[] pyramid;
+    private int temporalLayers = 1;
+    private byte[][] layerFrames;
+    private int intraRefreshPeriod;
+    private byte[] refreshFrame;
+    private long startUs;
+    private int frame;
+    private int gopStart;
+    private int nextKeyFrame;
+    private volatile boolean keyFrameRequested;
+
+    /**
+     * @param width   Width
+     * @param height  Height
+     * @param bitrate Bitrate in bits per second
+     * @param fps     Frame rate
+     * @param gop     Frames per key frame
+     */
+    public SyntheticStream(int width, int height, int bitrate, int fps, int gop) {
+        this(width, height, bitrate, fps, gop, 0);
+    }
+
+    /**
+     * @param bFrames B-frames between reference frames, 0 for none
+     */
+    public SyntheticStream(int width, int height, int bitrate, int fps, int gop, int bFrames) {
+        this(width, height, bitrate, fps, gop, bFrames, MediaFormat.MIMETYPE_VIDEO_AVC);
+    }
+
+    /**
+     * @param mime {@link MediaFormat#MIMETYPE_VIDEO_AVC} or {@link MediaFormat#MIMETYPE_VIDEO_HEVC}
+     */
+    public SyntheticStream(int width, int height, int bitrate, int fps, int gop, int bFrames, String mime) {
+        this.width = width;
+        this.height = height;
+        this.bitrate = bitrate;
+        this.fps = fps;
+        this.gop = gop;
+        this.bFrames = bFrames;
+        hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        sps = hevc ? hevcSps(width, height, bFrames) : sps(width, height, fps, bFrames, true);
+        // gop frames carry bitrate / fps * gop bytes, the key frame counts three times
+        interSize = Math.max(64, bitrate / 8 / fps * gop / (gop + 2));
+        if (hevc) {
+            keyFrame = slice(interSize * 3, H265NalUnitHeader.IDR_W_RADL << 1, 1);
+            interFrame = slice(interSize, H265NalUnitHeader.TRAIL_R << 1, 1);
+        } else {
+            keyFrame = slice(interSize * 3, 0x65);
+            interFrame = slice(interSize, 0x61);
+        }
+    }
+
+    /**
+     * Constrained baseline SPS NAL unit of the size and frame rate, the one the encoder
+     * configured with the format would emit. With B-frames it is main profile.
+     *
+     * @param reorderDepth Tell the reorder depth of the B-frames, in the bitstream restriction
+     */
+    private static byte[] sps(int width, int height, int fps, int bFrames, boolean reorderDepth) {
+        SeqParameterSet sps = new SeqParameterSet();
+        sps.profile_idc = bFrames > 0 ? 77 : 66;
+        sps.constraint_set_0_flag = bFrames == 0;
+        sps.constraint_set_1_flag = true;
+        sps.level_idc = 31;
+        sps.chroma_format_idc = ChromaFormat.YUV_420;
+        sps.pic_order_cnt_type = bFrames > 0 ? 0 : 2;
+        sps.num_ref_frames = bFrames > 0 ? 2 : 1;
+        sps.frame_mbs_only_flag = true;
+        sps.direct_8x8_inference_flag = true;
+        sps.pic_width_in_mbs_minus1 = (width + 15) / 16 - 1;
+        sps.pic_height_in_map_units_minus1 = (height + 15) / 16 - 1;
+        // Macroblocks beyond the size are cropped in units of two 4:2:0 luma samples
+        sps.frame_crop_right_offset = ((width + 15) / 16 * 16 - width) / 2;
+        sps.frame_crop_bottom_offset = ((height + 15) / 16 * 16 - height) / 2;
+        sps.frame_cropping_flag = sps.frame_crop_right_offset > 0 || sps.frame_crop_bottom_offset > 0;
+        sps.vuiParams = new VUIParameters();
+        sps.vuiParams.timing_info_present_flag = true;
+        sps.vuiParams.num_units_in_tick = 1;
+        sps.vuiParams.time_scale = 2 * fps;
+        sps.vuiParams.fixed_frame_rate_flag = true;
+        if (bFrames > 0 && reorderDepth) {
+            // A P-frame waits for the B-frames decoded after it
+            sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
+            sps.vuiParams.bitstreamRestriction.motion_vectors_over_pic_boundaries_flag = true;
+            sps.vuiParams.bitstreamRestriction.max_bytes_per_pic_denom = 2;
+            sps.vuiParams.bitstreamRestriction.max_bits_per_mb_denom = 1;
+            sps.vuiParams.bitstreamRestriction.log2_max_mv_length_horizontal = 16;
+            sps.vuiParams.bitstreamRestriction.log2_max_mv_length_vertical = 16;
+            sps.vuiParams.bitstreamRestriction.num_reorder_frames = 1;
+            sps.vuiParams.bitstreamRestriction.max_dec_frame_buffering = 2;
+        }
+
+        ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        try {
+            sps.write(rbsp);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return nal(rbsp.toByteArray(), 0x67);
+    }
+
+    /**
+     * Main profile H.265 SPS NAL unit of the size, the conformance window crops it from whole
+     * 8x8 coding blocks. With B-frames it tells the reorder depth.
+     */
+    private static byte[] hevcSps(int width, int height, int bFrames) {
+        int codedWidth = (width + 7) / 8 * 8;
+        int codedHeight = (height + 7) / 8 * 8;
+        ByteArrayOutputStream rbsp = new ByteArrayOutputStream();
+        CAVLCWriter writer = new CAVLCWriter(rbsp);
+        try {
+            writer.writeNBit(0, 4, "SPS: sps_video_parameter_set_id");
+            writer.writeNBit(0, 3, "SPS: sps_max_sub_layers_minus1");
+            writer.writeBool(true, "SPS: sps_temporal_id_nesting_flag");
+            writer.writeNBit(0, 2, "PTL: general_profile_space");
+            writer.writeBool(false, "PTL: general_tier_flag");
+            writer.writeNBit(1, 5, "PTL: general_profile_idc");
+            writer.writeNBit(0x60000000L, 32, "PTL: general_profile_compatibility_flags");
+            // Progressive, frame only
+            writer.writeNBit(0x900000000000L, 48, "PTL: general_constraint_indicator_flags");
+            writer.writeNBit(93, 8, "PTL: general_level_idc");
+            writer.writeUE(0, "SPS: sps_seq_parameter_set_id");
+            writer.writeUE(1, "SPS: chroma_format_idc");
+            writer.writeUE(codedWidth, "SPS: pic_width_in_luma_samples");
+            writer.writeUE(codedHeight, "SPS: pic_height_in_luma_samples");
+            boolean crop = codedWidth != width || codedHeight != height;
+            writer.writeBool(crop, "SPS: conformance_window_flag");
+            if (crop) {
+                // In units of two 4:2:0 luma samples
+                writer.writeUE(0, "SPS: conf_win_left_offset");
+                writer.writeUE((codedWidth - width) / 2, "SPS: conf_win_right_offset");
+                writer.writeUE(0, "SPS: conf_win_top_offset");
+                writer.writeUE((codedHeight - height) / 2, "SPS: conf_win_bottom_offset");
+            }
+            writer.writeUE(0, "SPS: bit_depth_luma_minus8");
+            writer.writeUE(0, "SPS: bit_depth_chroma_minus8");
+            writer.writeUE(4, "SPS: log2_max_pic_order_cnt_lsb_minus4");
+            writer.writeBool(true, "SPS: sps_sub_layer_ordering_info_present_flag");
+            writer.writeUE(bFrames > 0 ? 2 : 1, "SPS: sps_max_dec_pic_buffering_minus1");
+            writer.writeUE(bFrames > 0 ? 1 : 0, "SPS: sps_max_num_reorder_pics");
+            writer.writeUE(0, "SPS: sps_max_latency_increase_plus1");
+            writer.writeUE(0, "SPS: log2_min_luma_coding_block_size_minus3");
+            writer.writeUE(3, "SPS: log2_diff_max_min_luma_coding_block_size");
+            writer.writeUE(0, "SPS: log2_min_luma_transform_block_size_minus2");
+            writer.writeUE(3, "SPS: log2_diff_max_min_luma_transform_block_size");
+            writer.writeUE(1, "SPS: max_transform_hierarchy_depth_inter");
+            writer.writeUE(1, "SPS: max_transform_hierarchy_depth_intra");
+            writer.writeBool(false, "SPS: scaling_list_enabled_flag");
+            writer.writeBool(true, "SPS: amp_enabled_flag");
+            writer.writeBool(true, "SPS: sample_adaptive_offset_enabled_flag");
+            writer.writeBool(false, "SPS: pcm_enabled_flag");
+            writer.writeUE(0, "SPS: num_short_term_ref_pic_sets");
+            writer.writeBool(false, "SPS: long_term_ref_pics_present_flag");
+            writer.writeBool(true, "SPS: sps_temporal_mvp_enabled_flag");
+            writer.writeBool(true, "SPS: strong_intra_smoothing_enabled_flag");
+            writer.writeBool(false, "SPS: vui_parameters_present_flag");
+            writer.writeBool(false, "SPS: sps_extension_present_flag");
+            writer.writeTrailingBits();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return nal(rbsp.toByteArray(), H265NalUnitHeader.SPS_NUT << 1, 1);
+    }
+
+    /**
+     * @return NAL unit of the header and the RBSP, with emulation prevention bytes
+     */
+    private static byte[] nal(byte[] rbsp, int... header) {
+        ByteArrayOutputStream nal = new ByteArrayOutputStream();
+        for (int b : header) {
+            nal.write(b);
+        }
+        int zeros = 0;
+        for (byte b : rbsp) {
+            if (zeros == 2 && (b & 0xff) <= 3) {
+                nal.write(3);
+                zeros = 0;
+            }
+            nal.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return nal.toByteArray();
+    }
+
+    private static byte[] slice(int size, int... header) {
+        Random random = new Random(size);
+        byte[] au = new byte[4 + size];
+        au[3] = 1;
+        for (int i = 0; i < header.length; i++) {
+            au[4 + i] = (byte) header[i];
+        }
+        for (int i = 4 + header.length; i < au.length; i++) {
+            // No zero bytes, so the payload never looks like a start code
+            au[i] = (byte) (1 + random.nextInt(255));
+        }
+        return au;
+    }
+
+    /**
+     * Code the frames in temporal layers, each layer halving the frame rate of the one above
+     *
+     * @param layers Temporal layers, 1 for none
+     * @return This stream
+     */
+    public SyntheticStream setTemporalLayers(int layers) {
+        temporalLayers = layers;
+        layerFrames = new byte[layers][];
+        for (int layer = 0; layer < layers; layer++) {
+            boolean top = layer == layers - 1;
+            if (hevc) {
+                int type = top ? H265NalUnitHeader.TRAIL_N : H265NalUnitHeader.TRAIL_R;
+                layerFrames[layer] = slice(interSize, type << 1, layer + 1);
+            } else {
+                layerFrames[layer] = slice(interSize, top ? 0x01 : 0x61);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Code the B-frames between two reference frames as a pyramid: the middle one is decoded
+     * first and referenced by those before and after it, which are then reordered two frames
+     * deep. Like the encoders that do it, the H.264 SPS does not tell the reorder depth.
+     *
+     * @return This stream
+     */
+    public SyntheticStream setPyramidB() {
+        List<Integer> order = new ArrayList<>();
+        addPyramid(1, bFrames, order);
+        pyramid = new int[order.size()];
+        for (int i = 0; i < pyramid.length; i++) pyramid[i] = order.get(i);
+        if (!hevc) sps = sps(width, height, fps, bFrames, false);
+        return this;
+    }
+
+    private static void addPyramid(int first, int last, List<Integer> order) {
+        if (first > last) return;
+        int middle = (first + last + 1) / 2;
+        order.add(middle);
+        addPyramid(first, middle - 1, order);
+        addPyramid(middle + 1, last, order);
+    }
+
+    /**
+     * Refresh the picture in cycles instead of periodic key frames, every frame but the key
+     * frame of the same size
+     *
+     * @param period Frames of a refresh cycle, 0 for none
+     * @return This stream
+     */
+    public SyntheticStream setIntraRefresh(int period) {
+        intraRefreshPeriod = period;
+        int size = Math.max(64, bitrate / 8 / fps);
+        refreshFrame = hevc ? slice(size, H265NalUnitHeader.TRAIL_R << 1, 1) : slice(size, 0x61);
+        return this;
+    }
+
+    /**
+     * Present the frames after those of another stream, as an encoder reconfigured for another
+     * rendition goes on
+     *
+     * @param previous Stream of the frames before
+     * @return This stream
+     */
+    public SyntheticStream continueFrom(SyntheticStream previous) {
+        startUs = previous.getPresentationTimeUs(previous.getFrameCount());
+        return this;
+    }
+
+    /**
+     * @param index Frame index from the key frame
+     * @return Temporal layer of the frame
+     */
+    public int getTemporalLayer(int index) {
+        if (temporalLayers < 2) return 0;
+        int period = 1 << (temporalLayers - 1);
+        int phase = index % period;
+        return phase == 0 ? 0 : temporalLayers - 1 - Integer.numberOfTrailingZeros(phase);
+    }
+
+    public MediaFormat getFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(hevc ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC,
+                width, height);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        if (bFrames > 0) {
+            format.setInteger("max-bframes", bFrames);
+        }
+        if (temporalLayers > 1) {
+            format.setString("ts-schema", "android.generic." + temporalLayers);
+        }
+        if (intraRefreshPeriod > 0) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriod);
+        }
+        return format;
+    }
+
+    public int getFrameRate() {
+        return fps;
+    }
+
+    /**
+     * @return Frames per key frame
+     */
+    public int getGopSize() {
+        return gop;
+    }
+
+    /**
+     * @param bi Receives size and flags
+     * @return VPS, SPS and PPS as MediaCodec emits them before the first frame
+     */
+    public ByteBuffer codecConfig(MediaCodec.BufferInfo bi) {
+        byte[] pps = hevc ? HEVC_PPS : PPS;
+        ByteBuffer bb = ByteBuffer.allocate(8 + sps.length + pps.length + (hevc ? 4 + HEVC_VPS.length : 0));
+        if (hevc) {
+            bb.putInt(1).put(HEVC_VPS);
+        }
+        bb.putInt(1).put(sps);
+        bb.putInt(1).put(pps);
+        bb.flip();
+        bi.set(0, bb.remaining(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        return bb;
+    }
+
+    /**
+     * @param bi Receives size, presentation time and flags
+     * @return Next access unit
+     */
+    public ByteBuffer nextFrame(MediaCodec.BufferInfo bi) {
+        boolean key = frame >= nextKeyFrame || keyFrameRequested;
+        if (key) {
+            gopStart = frame;
+            nextKeyFrame = intraRefreshPeriod > 0 ? Integer.MAX_VALUE : frame + gop;
+            keyFrameRequested = false;
+        }
+        byte[] au = key ? keyFrame : intraRefreshPeriod > 0 ? refreshFrame
+                : temporalLayers > 1 ? layerFrames[getTemporalLayer(frame - gopStart)] : interFrame;
+        bi.set(0, au.length, getPresentationTimeUs(gopStart + displayIndex(frame - gopStart)),
+                key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        frame++;
+        return ByteBuffer.wrap(au);
+    }
+
+    /**
+     * @param decodeIndex Frame in decode order, from the key frame
+     * @return Frame in presentation order
+     */
+    private int displayIndex(int decodeIndex) {
+        if (decodeIndex == 0 || bFrames == 0) {
+            return decodeIndex;
+        }
+        int group = (decodeIndex - 1) / (bFrames + 1);
+        int position = (decodeIndex - 1) % (bFrames + 1);
+        int anchor = group * (bFrames + 1) + bFrames + 1;
+        if (anchor >= gop) {
+            // No room for the B-frames before the next key frame
+            return decodeIndex;
+        }
+        if (position == 0) {
+            return anchor;
+        }
+        return anchor - bFrames - 1 + (pyramid != null ? pyramid[position - 1] : position);
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    /**
+     * @param index Frame index
+     * @return Presentation time of the frame in microseconds
+     */
+    public long getPresentationTimeUs(int index) {
+        return startUs + index * 1000000L / fps;
+    }
+
+    /**
+     * @return Number of frames handed out
+     */
+    public int getFrameCount() {
+        return frame;
+    }
+}
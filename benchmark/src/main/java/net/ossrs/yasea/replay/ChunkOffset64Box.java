@@ -0,0 +1,51 @@
+package net.ossrs.yasea.replay;
+
+import com.coremedia.iso.IsoTypeReader;
+import com.coremedia.iso.IsoTypeWriter;
+import com.coremedia.iso.boxes.ChunkOffsetBox;
+
+import java.nio.ByteBuffer;
+
+import static com.googlecode.mp4parser.util.CastUtils.l2i;
+
+/**
+ * The 64 bit chunk offset table of files larger than 4 GB, 8.7.5 of ISO/IEC 14496-12
+ */
+final class ChunkOffset64Box extends ChunkOffsetBox {
+    static final String TYPE = "co64";
+
+    private long[] chunkOffsets = new long[0];
+
+    ChunkOffset64Box() {
+        super(TYPE);
+    }
+
+    @Override
+    public long[] getChunkOffsets() {
+        return chunkOffsets;
+    }
+
+    @Override
+    protected long getContentSize() {
+        return 8 + chunkOffsets.length * 8;
+    }
+
+    @Override
+    public void _parseDetails(ByteBuffer content) {
+        parseVersionAndFlags(content);
+        int entryCount = l2i(IsoTypeReader.readUInt32(content));
+        chunkOffsets = new long[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            chunkOffsets[i] = IsoTypeReader.readUInt64(content);
+        }
+    }
+
+    @Override
+    protected void getContent(ByteBuffer byteBuffer) {
+        writeVersionAndFlags(byteBuffer);
+        IsoTypeWriter.writeUInt32(byteBuffer, chunkOffsets.length);
+        for (long chunkOffset : chunkOffsets) {
+            IsoTypeWriter.writeUInt64(byteBuffer, chunkOffset);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package net.ossrs.yasea.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembles RTMP messages from a non-blocking byte stream, 5.3 of the RTMP spec.
+ * <p>
+ * Unlike {@link com.github.faucamp.simplertmp.io.RtmpDecoder} it never blocks on a partial
+ * chunk: a chunk is only consumed once all of it is buffered, otherwise the buffer is left
+ * as it was until more bytes arrive.
+ */
+final class ChunkReader {
+
+    interface Listener {
+        void onMessage(int type, int streamId, int timestamp, byte[] body) throws IOException;
+    }
+
+    private static final class ChunkStream {
+        int timestamp;
+        int delta;
+        int length;
+        int type;
+        int streamId;
+        boolean extended;
+        byte[] body;
+        int received;
+    }
+
+    private final Map<Integer, ChunkStream> streams = new HashMap<>();
+    private int chunkSize = 128;
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Consume all complete chunks
+     *
+     * @param in Received bytes, ready to be read. A trailing partial chunk stays in it.
+     */
+    void read(ByteBuffer in, Listener listener) throws IOException {
+        while (true) {
+            int start = in.position();
+            if (!readChunk(in, listener)) {
+                in.position(start);
+                return;
+            }
+        }
+    }
+
+    private boolean readChunk(ByteBuffer in, Listener listener) throws IOException {
+        if (!in.hasRemaining()) return false;
+        int basic = in.get() & 0xff;
+        int fmt = basic >>> 6;
+        int csid = basic & 0x3f;
+        if (csid == 0) {
+            if (in.remaining() < 1) return false;
+            csid = 64 + (in.get() & 0xff);
+        } else if (csid == 1) {
+            if (in.remaining() < 2) return false;
+            csid = 64 + (in.get() & 0xff) + (in.get() & 0xff) * 256;
+        }
+
+        int headerSize = fmt == 0 ? 11 : fmt == 1 ? 7 : fmt == 2 ? 3 : 0;
+        if (in.remaining() < headerSize) return false;
+        ChunkStream s = streams.get(csid);
+        if (s == null) {
+            if (fmt != 0) throw new IOException("Chunk stream " + csid + " starts without a full header");
+            s = new ChunkStream();
+            streams.put(csid, s);
+        }
+
+        int time = 0;
+        int length = s.length;
+        int type = s.type;
+        int streamId = s.streamId;
+        if (fmt <= 2) time = readInt24(in);
+        if (fmt <= 1) {
+            length = readInt24(in);
+            type = in.get() & 0xff;
+        }
+        if (fmt == 0) streamId = Integer.reverseBytes(in.getInt());
+        boolean extended = fmt <= 2 ? time == 0xffffff : s.extended;
+        if (extended) {
+            if (in.remaining() < 4) return false;
+            int ext = in.getInt();
+            if (fmt <= 2) time = ext;
+        }
+
+        // A type 3 chunk either continues the message or starts one just like the previous
+        boolean continuation = fmt == 3 && s.body != null && s.received < s.length;
+        int received = continuation ? s.received : 0;
+        int payload = Math.min(chunkSize, length - received);
+        if (in.remaining() < payload) return false;
+
+        // Complete chunk, update the stream state
+        if (!continuation) {
+            if (fmt == 0) {
+                s.timestamp = time;
+                s.delta = 0;
+            } else if (fmt <= 2) {
+                s.delta = time;
+                s.timestamp += time;
+            } else {
+                s.timestamp += s.delta;
+            }
+            s.length = length;
+            s.type = type;
+            s.streamId = streamId;
+            s.extended = extended;
+            s.body = new byte[length];
+            s.received = 0;
+        }
+        in.get(s.body, s.received, payload);
+        s.received += payload;
+        if (s.received == s.length) {
+            byte[] body = s.body;
+            s.body = null;
+            listener.onMessage(s.type, s.streamId, s.timestamp, body);
+        }
+        return true;
+    }
+
+    private static int readInt24(ByteBuffer in) {
+        return (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+    }
+}
@@ -0,0 +1,253 @@
+package net.ossrs.yasea.replay;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import net.ossrs.yasea.ingest.SyntheticStream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One group of pictures muxed to FLV tag bodies once, for {@link LoadGenerator} sessions to
+ * send over and over.
+ * <p>
+ * Each body is also kept pre-chunked for one chunk size: split every chunk size bytes with the
+ * one byte type 3 header of its chunk stream, 5.3.1 of the RTMP spec. A session only writes
+ * its own type 0 header in front, with the message stream id and timestamp, the chunked body
+ * is shared read-only by all sessions.
+ */
+public final class FlvGop {
+
+    // FLV tag types
+    static final int AUDIO = 8;
+    static final int VIDEO = 9;
+
+    // AAC LC, 44.1 kHz, stereo
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+
+    static final class Tag {
+        final int type;
+        // Milliseconds from the start of the group
+        final int dts;
+        final byte[] body;
+        final ByteBuffer chunked;
+
+        private Tag(int type, int dts, byte[] body, int chunkSize) {
+            this.type = type;
+            this.dts = dts;
+            this.body = body;
+            int csid = type == VIDEO ? ChunkStreamInfo.RTMP_CID_VIDEO : ChunkStreamInfo.RTMP_CID_AUDIO;
+            int chunks = Math.max(1, (body.length + chunkSize - 1) / chunkSize);
+            ByteBuffer bb = ByteBuffer.allocate(body.length + chunks - 1);
+            for (int pos = 0; pos < body.length; pos += chunkSize) {
+                if (pos > 0) bb.put((byte) (0xc0 | csid));
+                bb.put(body, pos, Math.min(chunkSize, body.length - pos));
+            }
+            bb.flip();
+            this.chunked = bb.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Collects the tag bodies of a group, in sending order
+     */
+    static final class Builder {
+        private final int chunkSize;
+        private final int width;
+        private final int height;
+        private final List<Tag> headers = new ArrayList<>();
+        private final List<Tag> tags = new ArrayList<>();
+
+        Builder(int chunkSize, int width, int height) {
+            this.chunkSize = chunkSize;
+            this.width = width;
+            this.height = height;
+        }
+
+        Builder header(int type, byte[] body) {
+            headers.add(new Tag(type, 0, body, chunkSize));
+            return this;
+        }
+
+        Builder tag(int type, int dts, byte[] body) {
+            tags.add(new Tag(type, dts, body, chunkSize));
+            return this;
+        }
+
+        /**
+         * @param duration Duration of the group in milliseconds
+         */
+        FlvGop build(int duration) {
+            return new FlvGop(this, duration);
+        }
+    }
+
+    private final int chunkSize;
+    private final int width;
+    private final int height;
+    private final int duration;
+    final Tag[] headers;
+    final Tag[] tags;
+
+    private FlvGop(Builder builder, int duration) {
+        this.chunkSize = builder.chunkSize;
+        this.width = builder.width;
+        this.height = builder.height;
+        this.duration = duration;
+        this.headers = builder.headers.toArray(new Tag[0]);
+        this.tags = builder.tags.toArray(new Tag[0]);
+    }
+
+    /**
+     * @return Chunk size the bodies are chunked for
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Duration of the group in milliseconds, the timestamp offset of the next pass
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Number of tags in the group, without the sequence headers
+     */
+    public int getTagCount() {
+        return tags.length;
+    }
+
+    /**
+     * @return Number of video tags in the group, without the sequence header
+     */
+    public int getVideoTagCount() {
+        int count = 0;
+        for (Tag tag : tags) {
+            if (tag.type == VIDEO) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Size of the tag bodies in the group
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Tag tag : tags) bytes += tag.body.length;
+        return bytes;
+    }
+
+    /**
+     * One group of pictures of a synthetic stream, muxed like {@link net.ossrs.yasea.SrsFlvMuxer}
+     * does on the phone
+     *
+     * @param stream         Video, the next gop size frames are taken from it
+     * @param audioFrameSize Size of the 44.1 kHz AAC frames sent along, 0 for no audio
+     * @param chunkSize      Chunk size to send with
+     * @return Group of pictures
+     */
+    public static FlvGop synthetic(SyntheticStream stream, int audioFrameSize, int chunkSize) {
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        List<byte[]> config = splitAnnexB(stream.codecConfig(bi));
+        byte[] sps = config.get(0);
+        byte[] pps = config.get(1);
+
+        MediaFormat format = stream.getFormat();
+        Builder builder = new Builder(chunkSize, format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT));
+        // 5.3.4.2.1 of ISO/IEC 14496-15, with the same fields as SrsFlvMuxer
+        ByteBuffer avc = ByteBuffer.allocate(5 + 5 + 3 + sps.length + 3 + pps.length);
+        avc.put((byte) 0x17).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+        avc.put((byte) 0x01).put(sps[1]).put((byte) 0x00).put(sps[3]).put((byte) 0x03);
+        avc.put((byte) 0x01).putShort((short) sps.length).put(sps);
+        avc.put((byte) 0x01).putShort((short) pps.length).put(pps);
+        builder.header(VIDEO, avc.array());
+        if (audioFrameSize > 0) {
+            byte[] aac = new byte[2 + AUDIO_SPECIFIC_CONFIG.length];
+            aac[0] = (byte) 0xaf;
+            System.arraycopy(AUDIO_SPECIFIC_CONFIG, 0, aac, 2, AUDIO_SPECIFIC_CONFIG.length);
+            builder.header(AUDIO, aac);
+        }
+
+        int gop = stream.getGopSize();
+        long startUs = -1;
+        int audioFrames = 0;
+        for (int i = 0; i < gop; i++) {
+            ByteBuffer au = stream.nextFrame(bi);
+            if (startUs < 0) startUs = bi.presentationTimeUs;
+            int dts = (int) ((bi.presentationTimeUs - startUs) / 1000);
+            // Audio frames that start before this frame
+            while (audioFrameSize > 0 && audioFrames * 1024 * 1000L / AUDIO_SAMPLE_RATE <= dts) {
+                builder.tag(AUDIO, (int) (audioFrames * 1024 * 1000L / AUDIO_SAMPLE_RATE), audioTag(audioFrameSize));
+                audioFrames++;
+            }
+
+            boolean key = (bi.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            List<byte[]> nals = splitAnnexB(au);
+            int size = 5;
+            for (byte[] nal : nals) size += 4 + nal.length;
+            ByteBuffer video = ByteBuffer.allocate(size);
+            // Frame type and codec, NALU, composition time 0
+            video.put((byte) (key ? 0x17 : 0x27)).put((byte) 1).put((byte) 0).put((byte) 0).put((byte) 0);
+            for (byte[] nal : nals) video.putInt(nal.length).put(nal);
+            builder.tag(VIDEO, dts, video.array());
+        }
+        int duration = (int) (gop * 1000L / stream.getFrameRate());
+        while (audioFrameSize > 0 && audioFrames * 1024 * 1000L / AUDIO_SAMPLE_RATE < duration) {
+            builder.tag(AUDIO, (int) (audioFrames * 1024 * 1000L / AUDIO_SAMPLE_RATE), audioTag(audioFrameSize));
+            audioFrames++;
+        }
+        return builder.build(duration);
+    }
+
+    private static byte[] audioTag(int size) {
+        byte[] aac = new byte[2 + size];
+        aac[0] = (byte) 0xaf;
+        aac[1] = 1; // AAC raw
+        return aac;
+    }
+
+    // NAL units of an Annex-B buffer, 3 and 4 byte start codes
+    private static List<byte[]> splitAnnexB(ByteBuffer bb) {
+        List<byte[]> nals = new ArrayList<>();
+        int end = bb.limit();
+        int start = -1;
+        int i = bb.position();
+        while (i + 2 < end) {
+            if (bb.get(i) == 0 && bb.get(i + 1) == 0 && bb.get(i + 2) == 1) {
+                if (start >= 0) nals.add(copy(bb, start, trimZeros(bb, start, i)));
+                i += 3;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (start >= 0) nals.add(copy(bb, start, end));
+        return nals;
+    }
+
+    // The zero before a 3 byte start code belongs to a 4 byte start code
+    private static int trimZeros(ByteBuffer bb, int start, int end) {
+        while (end > start && bb.get(end - 1) == 0) end--;
+        return end;
+    }
+
+    private static byte[] copy(ByteBuffer bb, int start, int end) {
+        byte[] nal = new byte[end - start];
+        for (int i = 0; i < nal.length; i++) nal[i] = bb.get(start + i);
+        return nal;
+    }
+}
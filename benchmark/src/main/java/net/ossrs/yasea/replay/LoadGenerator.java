@@ -0,0 +1,270 @@
+package net.ossrs.yasea.replay;
+
+import android.util.Log;
+import net.ossrs.yasea.SrsHistogram;
+import net.ossrs.yasea.ingest.SyntheticStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thousands of publishing sessions from one JVM, for load testing ingest servers.
+ * <p>
+ * {@link com.github.faucamp.simplertmp.io.RtmpConnection} needs a reader and a writer thread
+ * per connection. Here a few {@link LoadLoop} selector threads drive all sessions with
+ * non-blocking sockets instead. The sessions share one {@link FlvGop} of pre-chunked tag
+ * bodies, they only differ in the chunk header in front of each message, so memory and CPU
+ * go into the sockets, not into muxing.
+ * <pre>
+ *   ./gradlew :benchmark:load -PloadArgs='-sessions 2000 -threads 4 rtmp://host/live/load'
+ * </pre>
+ */
+public final class LoadGenerator implements Closeable {
+
+    private static final String TAG = "LoadGenerator";
+
+    private final FlvGop gop;
+    private final LoadLoop[] loops;
+    private final Thread[] threads;
+
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger publishing = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final LongAdder tagsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    // Microseconds
+    private final SrsHistogram lateness = new SrsHistogram();
+    // Milliseconds
+    private final SrsHistogram setupTime = new SrsHistogram();
+    private volatile Exception lastError;
+
+    /**
+     * @param gop     Media every session sends
+     * @param threads Number of selector threads
+     * @throws IOException No selector could be opened
+     */
+    public LoadGenerator(FlvGop gop, int threads) throws IOException {
+        this.gop = gop;
+        this.loops = new LoadLoop[threads];
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new LoadLoop(this);
+            this.threads[i] = new Thread(loops[i], TAG + "-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Start publishing a session, it connects in the background
+     *
+     * @param url RTMP URL including the stream name
+     */
+    public void publish(String url) {
+        LoadLoop loop = loops[started.getAndIncrement() % loops.length];
+        loop.add(new LoadSession(loop, gop, url));
+    }
+
+    /**
+     * @return Sessions started with {@link #publish(String)}
+     */
+    public int getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return Sessions sending media right now
+     */
+    public int getPublishing() {
+        return publishing.get();
+    }
+
+    /**
+     * @return Sessions that never got to publish
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Sessions that lost their connection while publishing
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    public long getTagsSent() {
+        return tagsSent.sum();
+    }
+
+    /**
+     * @return Bytes written to the sockets, including handshakes and commands
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return How late each message was sent compared to its timestamp, in microseconds
+     */
+    public SrsHistogram getLateness() {
+        return lateness;
+    }
+
+    /**
+     * @return Time from opening the socket to NetStream.Publish.Start, in milliseconds
+     */
+    public SrsHistogram getSetupTime() {
+        return setupTime;
+    }
+
+    /**
+     * @return Why the last session failed or dropped, null when none did
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    void onPublishing(long setupNanos) {
+        publishing.incrementAndGet();
+        setupTime.record(setupNanos / 1000000);
+    }
+
+    void onTag(long latenessNanos) {
+        tagsSent.increment();
+        lateness.record(latenessNanos / 1000);
+    }
+
+    void onSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void onClosed(boolean wasPublishing, Exception e) {
+        lastError = e;
+        if (wasPublishing) {
+            publishing.decrementAndGet();
+            dropped.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    void onLoopFailed(IOException e) {
+        Log.e(TAG, "selector failed", e);
+        lastError = e;
+    }
+
+    /**
+     * Close all sessions and stop the selector threads
+     */
+    @Override
+    public void close() {
+        for (LoadLoop loop : loops) loop.stop();
+        for (Thread thread : threads) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 1000;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int ramp = 200;
+        int duration = 60;
+        int chunkSize = 128;
+        int bitrate = 500000;
+        File mp4 = null;
+        int i = 0;
+        for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-sessions":
+                    sessions = Integer.parseInt(value);
+                    break;
+                case "-threads":
+                    threadCount = Integer.parseInt(value);
+                    break;
+                case "-ramp":
+                    ramp = Integer.parseInt(value);
+                    break;
+                case "-duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "-chunk":
+                    chunkSize = Integer.parseInt(value);
+                    break;
+                case "-bitrate":
+                    bitrate = Integer.parseInt(value);
+                    break;
+                case "-mp4":
+                    mp4 = new File(value);
+                    break;
+                default:
+                    i = args.length;
+                    break;
+            }
+        }
+        if (args.length - i != 1) {
+            System.err.println("usage: LoadGenerator [options] rtmp://host/app/prefix");
+            System.err.println("  -sessions n  sessions, published as prefix-0 to prefix-(n-1), default 1000");
+            System.err.println("  -threads n   selector threads, default one per core");
+            System.err.println("  -ramp n      sessions started per second, default 200");
+            System.err.println("  -duration s  seconds to publish once all sessions are started, default 60");
+            System.err.println("  -chunk n     chunk size, default 128 like the phone");
+            System.err.println("  -bitrate n   synthetic 360p stream bitrate, default 500000");
+            System.err.println("  -mp4 file    send the first group of pictures of a recording instead");
+            System.exit(2);
+        }
+        String prefix = args[i];
+
+        FlvGop gop;
+        if (mp4 != null) {
+            try (Mp4Replay replay = new Mp4Replay(mp4)) {
+                gop = replay.readGop(chunkSize);
+            }
+        } else {
+            gop = FlvGop.synthetic(new SyntheticStream(640, 360, bitrate, 30, 60), 200, chunkSize);
+        }
+        System.out.println(String.format(Locale.US, "%d sessions on %d threads, %d tags and %.1f kB per %d ms group",
+                sessions, threadCount, gop.getTagCount(), gop.getBytes() / 1e3, gop.getDuration()));
+
+        LoadGenerator generator = new LoadGenerator(gop, threadCount);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration) + TimeUnit.SECONDS.toNanos(sessions / Math.max(1, ramp));
+        long lastReport = start;
+        long lastBytes = 0;
+        int n = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            // Spread the connects so the server does not see them all at once
+            long due = Math.min(sessions, (now - start) * ramp / 1000000000L + 1);
+            for (; n < due; n++) generator.publish(prefix + "-" + n);
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                long bytes = generator.getBytesSent();
+                System.out.println(String.format(Locale.US,
+                        "%3ds publishing %d/%d failed %d dropped %d, %.1f Mbit/s, late p50 %.1f p99 %.1f p99.9 %.1f ms, setup p99 %d ms, %d threads",
+                        (now - start) / 1000000000L, generator.getPublishing(), n, generator.getFailed(),
+                        generator.getDropped(), (bytes - lastBytes) * 8e3 / (now - lastReport),
+                        generator.lateness.getPercentile(50) / 1e3, generator.lateness.getPercentile(99) / 1e3,
+                        generator.lateness.getPercentile(99.9) / 1e3, generator.setupTime.getPercentile(99),
+                        ManagementFactory.getThreadMXBean().getThreadCount()));
+                lastReport = now;
+                lastBytes = bytes;
+            }
+            Thread.sleep(10);
+        }
+        generator.close();
+        if (generator.getLastError() != null) System.out.println("last error: " + generator.getLastError());
+    }
+}
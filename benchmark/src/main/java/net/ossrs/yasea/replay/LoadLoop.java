@@ -0,0 +1,98 @@
+package net.ossrs.yasea.replay;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of {@link LoadGenerator}. It owns its sessions: their sockets are
+ * registered with its selector and their next message is in its timer queue, so a session is
+ * never touched by two threads and needs no locks.
+ */
+final class LoadLoop implements Runnable {
+
+    final LoadGenerator generator;
+    // Only used to serialize control messages on this thread, they always get a type 0 header
+    final ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+
+    private final Selector selector;
+    private final Queue<LoadSession> added = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<LoadSession> timers =
+            new PriorityQueue<>(64, (a, b) -> Long.compare(a.dueNanos, b.dueNanos));
+    private final List<LoadSession> sessions = new ArrayList<>();
+    private volatile boolean running = true;
+
+    LoadLoop(LoadGenerator generator) throws IOException {
+        this.generator = generator;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start a session, called from any thread
+     */
+    void add(LoadSession session) {
+        added.add(session);
+        selector.wakeup();
+    }
+
+    void schedule(LoadSession session, long dueNanos) {
+        session.dueNanos = dueNanos;
+        session.scheduled = true;
+        timers.add(session);
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                LoadSession session;
+                while ((session = added.poll()) != null) {
+                    sessions.add(session);
+                    session.open(selector);
+                }
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().dueNanos <= now) {
+                    session = timers.poll();
+                    session.scheduled = false;
+                    session.onTimer(now);
+                }
+
+                long timeout = timers.isEmpty() ? 100 : (timers.peek().dueNanos - now + 999999) / 1000000;
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) ((LoadSession) key.attachment()).onReady();
+                }
+            }
+        } catch (IOException e) {
+            generator.onLoopFailed(e);
+        } finally {
+            for (LoadSession session : sessions) session.close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
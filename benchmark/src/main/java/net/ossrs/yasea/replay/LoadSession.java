@@ -0,0 +1,425 @@
+package net.ossrs.yasea.replay;
+
+import com.github.faucamp.simplertmp.amf.AmfMap;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.Data;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One publishing connection of {@link LoadGenerator}, driven by the selector thread of its
+ * {@link LoadLoop}. It goes through the same handshake and commands as
+ * {@link com.github.faucamp.simplertmp.io.RtmpConnection}, then sends the group of pictures
+ * over and over in real time.
+ */
+final class LoadSession implements ChunkReader.Listener {
+
+    private static final Pattern URL_PATTERN = Pattern.compile("^rtmp://([^/:]+)(?::(\\d+))?/([^/]+)/(.+)$");
+    private static final int HANDSHAKE_SIZE = 1536;
+    // Same as RtmpConnection
+    private static final int ACK_WINDOW_SIZE = 2500000;
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+
+    // RTMP message types, 5.4 and 7.1 of the RTMP spec
+    private static final int SET_CHUNK_SIZE = 1;
+    private static final int USER_CONTROL = 4;
+    private static final int WINDOW_ACK_SIZE = 5;
+    private static final int SET_PEER_BANDWIDTH = 6;
+    private static final int COMMAND_AMF0 = 20;
+
+    private enum State {CONNECTING, HANDSHAKE, CONNECT, CREATE_STREAM, PUBLISH, STREAMING, CLOSED}
+
+    private final LoadLoop loop;
+    private final FlvGop gop;
+    private final String host;
+    private final int port;
+    private final String app;
+    private final String tcUrl;
+    private final String streamName;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state = State.CONNECTING;
+    private long startNanos;
+    private Handshake handshake;
+    private final ChunkReader reader = new ChunkReader();
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private long bytesReceived;
+    private long bytesAcked;
+    private int ackWindowSize;
+    private int streamId;
+
+    // Buffers waiting for the socket, written with one gathering write
+    private ByteBuffer[] pending = new ByteBuffer[4];
+    private int pendingCount;
+
+    // Next message: the sequence headers, then the tags of the group over and over
+    private final ByteBuffer header = ByteBuffer.allocate(16);
+    private final ByteBuffer[] bodies;
+    private long next;
+    private long streamStartNanos;
+    long dueNanos;
+    boolean scheduled;
+
+    /**
+     * @param loop Selector thread of the session
+     * @param gop  Media to send
+     * @param url  RTMP URL including the stream name
+     */
+    LoadSession(LoadLoop loop, FlvGop gop, String url) {
+        Matcher matcher = URL_PATTERN.matcher(url);
+        if (!matcher.matches()) throw new IllegalArgumentException("Invalid RTMP URL " + url);
+        this.loop = loop;
+        this.gop = gop;
+        this.host = matcher.group(1);
+        this.port = matcher.group(2) == null ? 1935 : Integer.parseInt(matcher.group(2));
+        this.app = matcher.group(3);
+        this.streamName = matcher.group(4);
+        this.tcUrl = url.substring(0, url.lastIndexOf('/'));
+        this.bodies = new ByteBuffer[gop.headers.length + gop.tags.length];
+    }
+
+    boolean isStreaming() {
+        return state == State.STREAMING;
+    }
+
+    void open(Selector selector) {
+        startNanos = System.nanoTime();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(host, port))) onConnected();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    void onReady() {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) onConnected();
+            if (state != State.CLOSED && key.isReadable()) onReadable();
+            if (state == State.STREAMING && !scheduled) {
+                // A message was held up by the socket, carry on with the ones that are due by now
+                sendDue(System.nanoTime());
+            } else if (state != State.CLOSED && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    void onTimer(long now) {
+        if (state != State.STREAMING) return;
+        try {
+            sendDue(now);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        state = State.HANDSHAKE;
+        handshake = new Handshake();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 + HANDSHAKE_SIZE);
+        handshake.writeC0(out);
+        handshake.writeC1(out);
+        queue(ByteBuffer.wrap(out.toByteArray()));
+        flush();
+    }
+
+    private void onReadable() throws IOException {
+        while (true) {
+            if (!in.hasRemaining()) in = grow(in);
+            int read = channel.read(in);
+            if (read < 0) throw new IOException("Connection closed by server");
+            if (read == 0) break;
+            bytesReceived += read;
+        }
+        in.flip();
+        if (state == State.HANDSHAKE) {
+            // S0, S1 and S2, the server sends them at once after C1
+            if (in.remaining() < 1 + 2 * HANDSHAKE_SIZE) {
+                in.compact();
+                return;
+            }
+            ByteArrayInputStream s0s1s2 = new ByteArrayInputStream(in.array(), in.position(), 1 + 2 * HANDSHAKE_SIZE);
+            in.position(in.position() + 1 + 2 * HANDSHAKE_SIZE);
+            handshake.readS0(s0s1s2);
+            handshake.readS1(s0s1s2);
+            ByteArrayOutputStream c2 = new ByteArrayOutputStream(HANDSHAKE_SIZE);
+            handshake.writeC2(c2);
+            handshake.readS2(s0s1s2);
+            handshake = null;
+            // Acknowledgements count the bytes after the handshake
+            bytesReceived = in.remaining();
+            queue(ByteBuffer.wrap(c2.toByteArray()));
+            connect();
+        }
+        reader.read(in, this);
+        in.compact();
+        if (ackWindowSize > 0 && bytesReceived - bytesAcked >= ackWindowSize) {
+            bytesAcked = bytesReceived;
+            send(new Acknowledgement((int) bytesReceived));
+        }
+        flush();
+    }
+
+    private static ByteBuffer grow(ByteBuffer bb) {
+        ByteBuffer bigger = ByteBuffer.allocate(bb.capacity() * 2);
+        bb.flip();
+        bigger.put(bb);
+        return bigger;
+    }
+
+    private void connect() throws IOException {
+        state = State.CONNECT;
+        if (gop.getChunkSize() != DEFAULT_CHUNK_SIZE) send(new SetChunkSize(gop.getChunkSize()));
+        Command connect = new Command("connect", 1, loop.chunkStreamInfo);
+        AmfObject args = new AmfObject();
+        args.setProperty("flashVer", "FMLE/3.0 (compatible; Lavf57.56.101)");
+        args.setProperty("swfUrl", "");
+        args.setProperty("fpad", false);
+        args.setProperty("capabilities", 239);
+        args.setProperty("audioCodecs", 3575);
+        args.setProperty("videoCodecs", 252);
+        args.setProperty("videoFunction", 1);
+        args.setProperty("pageUrl", "");
+        args.setProperty("objectEncoding", 0);
+        args.setProperty("app", app);
+        args.setProperty("tcUrl", tcUrl);
+        connect.addData(args);
+        send(connect);
+    }
+
+    @Override
+    public void onMessage(int type, int messageStreamId, int timestamp, byte[] body) throws IOException {
+        switch (type) {
+            case SET_CHUNK_SIZE:
+                reader.setChunkSize(ByteBuffer.wrap(body).getInt());
+                break;
+            case USER_CONTROL:
+                ByteBuffer event = ByteBuffer.wrap(body);
+                if (event.getShort() == UserControl.Type.PING_REQUEST.getIntValue()) {
+                    UserControl pong = new UserControl(UserControl.Type.PONG_REPLY, loop.chunkStreamInfo);
+                    pong.setEventData(event.getInt());
+                    send(pong);
+                }
+                break;
+            case WINDOW_ACK_SIZE:
+            case SET_PEER_BANDWIDTH:
+                ackWindowSize = ByteBuffer.wrap(body).getInt();
+                break;
+            case COMMAND_AMF0:
+                RtmpHeader header = new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL,
+                        ChunkStreamInfo.RTMP_CID_OVER_CONNECTION, RtmpHeader.MessageType.COMMAND_AMF0);
+                header.setPacketLength(body.length);
+                Command command = new Command(header);
+                command.readBody(new ByteArrayInputStream(body));
+                onCommand(command);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onCommand(Command command) throws IOException {
+        switch (command.getCommandName()) {
+            case "_result":
+                if (state == State.CONNECT && command.getTransactionId() == 1) {
+                    state = State.CREATE_STREAM;
+                    send(new WindowAckSize(ACK_WINDOW_SIZE, loop.chunkStreamInfo));
+                    send(streamCommand("releaseStream", 2));
+                    send(streamCommand("FCPublish", 3));
+                    Command createStream = new Command("createStream", 4, loop.chunkStreamInfo);
+                    createStream.addData(new AmfNull());
+                    send(createStream);
+                } else if (state == State.CREATE_STREAM && command.getTransactionId() == 4) {
+                    state = State.PUBLISH;
+                    streamId = (int) ((AmfNumber) command.getData().get(1)).getValue();
+                    Command publish = streamCommand("publish", 0);
+                    publish.getHeader().setMessageStreamId(streamId);
+                    publish.addData("live");
+                    send(publish);
+                }
+                break;
+            case "_error":
+                throw new IOException("Server refused " + state + ": " + command.getData());
+            case "onStatus":
+                String code = ((AmfString) ((AmfObject) command.getData().get(1)).getProperty("code")).getValue();
+                if (state == State.PUBLISH && code.equals("NetStream.Publish.Start")) {
+                    onPublishing();
+                } else if (code.contains("Rejected") || code.contains("BadName") || code.contains("Failed")) {
+                    throw new IOException(code);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Command streamCommand(String name, int transactionId) {
+        Command command = new Command(name, transactionId);
+        command.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+        command.addData(new AmfNull());
+        command.addData(streamName);
+        return command;
+    }
+
+    private void onPublishing() throws IOException {
+        Data metadata = new Data("@setDataFrame");
+        metadata.getHeader().setMessageStreamId(streamId);
+        metadata.addData("onMetaData");
+        AmfMap ecmaArray = new AmfMap();
+        ecmaArray.setProperty("duration", 0);
+        ecmaArray.setProperty("width", gop.getWidth());
+        ecmaArray.setProperty("height", gop.getHeight());
+        ecmaArray.setProperty("videodatarate", 0);
+        ecmaArray.setProperty("framerate", 0);
+        ecmaArray.setProperty("audiodatarate", 0);
+        ecmaArray.setProperty("audiosamplerate", 44100);
+        ecmaArray.setProperty("audiosamplesize", 16);
+        ecmaArray.setProperty("stereo", true);
+        ecmaArray.setProperty("filesize", 0);
+        metadata.addData(ecmaArray);
+        send(metadata);
+
+        state = State.STREAMING;
+        streamStartNanos = System.nanoTime();
+        loop.generator.onPublishing(streamStartNanos - startNanos);
+        sendDue(streamStartNanos);
+    }
+
+    // Serialize a control message with the packet classes of the library
+    private void send(RtmpPacket packet) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet.writeTo(out, gop.getChunkSize(), loop.chunkStreamInfo);
+        queue(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private void queue(ByteBuffer bb) {
+        if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+        pending[pendingCount++] = bb;
+    }
+
+    /**
+     * @return Everything is written, otherwise the session waits for the socket to be writable
+     */
+    private boolean flush() throws IOException {
+        if (pendingCount == 0) return true;
+        long written = channel.write(pending, 0, pendingCount);
+        loop.generator.onSent(written);
+        if (pending[pendingCount - 1].hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return false;
+        }
+        Arrays.fill(pending, 0, pendingCount, null);
+        pendingCount = 0;
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    // Send the messages that are due, one gathering write per message
+    private void sendDue(long now) throws IOException {
+        while (flush()) {
+            int headers = gop.headers.length;
+            long index = next - headers;
+            FlvGop.Tag tag;
+            long timestamp;
+            int body;
+            if (index < 0) {
+                body = (int) next;
+                tag = gop.headers[body];
+                timestamp = 0;
+            } else {
+                body = headers + (int) (index % gop.tags.length);
+                tag = gop.tags[body - headers];
+                timestamp = index / gop.tags.length * gop.getDuration() + tag.dts;
+            }
+            long due = streamStartNanos + timestamp * 1000000L;
+            if (due > now) {
+                loop.schedule(this, due);
+                return;
+            }
+            loop.generator.onTag(now - due);
+            next++;
+
+            header.clear();
+            int csid = tag.type == FlvGop.VIDEO ? ChunkStreamInfo.RTMP_CID_VIDEO : ChunkStreamInfo.RTMP_CID_AUDIO;
+            boolean extended = timestamp >= 0xffffff;
+            header.put((byte) csid);
+            putInt24(header, extended ? 0xffffff : (int) timestamp);
+            putInt24(header, tag.body.length);
+            header.put((byte) tag.type);
+            header.putInt(Integer.reverseBytes(streamId));
+            if (extended) header.putInt((int) timestamp);
+            header.flip();
+            queue(header);
+            if (extended) {
+                queue(chunkExtended(tag, (int) timestamp, csid));
+            } else {
+                ByteBuffer shared = bodies[body];
+                if (shared == null) bodies[body] = shared = tag.chunked.duplicate();
+                shared.clear();
+                queue(shared);
+            }
+        }
+    }
+
+    // Type 3 headers repeat an extended timestamp, 5.3.1.3 of the RTMP spec, so the shared body does not fit
+    private ByteBuffer chunkExtended(FlvGop.Tag tag, int timestamp, int csid) {
+        int chunkSize = gop.getChunkSize();
+        int chunks = Math.max(1, (tag.body.length + chunkSize - 1) / chunkSize);
+        ByteBuffer bb = ByteBuffer.allocate(tag.body.length + (chunks - 1) * 5);
+        for (int pos = 0; pos < tag.body.length; pos += chunkSize) {
+            if (pos > 0) bb.put((byte) (0xc0 | csid)).putInt(timestamp);
+            bb.put(tag.body, pos, Math.min(chunkSize, tag.body.length - pos));
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static void putInt24(ByteBuffer bb, int value) {
+        bb.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+    }
+
+    private void fail(Exception e) {
+        State previous = state;
+        close();
+        loop.generator.onClosed(previous == State.STREAMING, e);
+    }
+
+    void close() {
+        if (state == State.CLOSED) return;
+        state = State.CLOSED;
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.ossrs.yasea.replay;
+
+import com.coremedia.iso.AbstractBoxParser;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.HandlerBox;
+import com.coremedia.iso.boxes.MediaBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MediaInformationBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.UserBox;
+import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+
+/**
+ * Creates the boxes on the path to the sample tables and sample descriptions, everything else
+ * is skipped. The vendored parser ships without the isoparser-default.properties that
+ * {@link com.coremedia.iso.PropertyBoxParserImpl} maps the types with.
+ */
+final class Mp4BoxParser extends AbstractBoxParser {
+
+    @Override
+    public Class<? extends Box> getClassForFourCc(String type, byte[] userType, String parent) {
+        return createBox(type, userType, parent).getClass();
+    }
+
+    @Override
+    public Box createBox(String type, byte[] userType, String parent) {
+        switch (type) {
+            case "moov":
+                return new MovieBox();
+            case "trak":
+                return new TrackBox();
+            case "mdia":
+                return new MediaBox();
+            case "mdhd":
+                return new MediaHeaderBox();
+            case "hdlr":
+                return new HandlerBox();
+            case "minf":
+                return new MediaInformationBox();
+            case "stbl":
+                return new SampleTableBox();
+            case "stsd":
+                return new SampleDescriptionBox();
+            case "avc1":
+            case "avc3":
+                return new VisualSampleEntry(type);
+            case "avcC":
+                return new AvcConfigurationBox();
+            case "mp4a":
+                return new AudioSampleEntry(type);
+            case "esds":
+                return new ESDescriptorBox();
+            case "stts":
+                return new TimeToSampleBox();
+            case "ctts":
+                return new CompositionTimeToSample();
+            case "stss":
+                return new SyncSampleBox();
+            case "stsz":
+                return new SampleSizeBox();
+            case "stsc":
+                return new SampleToChunkBox();
+            case "stco":
+                return new StaticChunkOffsetBox();
+            case "co64":
+                return new ChunkOffset64Box();
+            case "uuid":
+                return new UserBox(userType);
+            default:
+                return new SkippedBox(type);
+        }
+    }
+}
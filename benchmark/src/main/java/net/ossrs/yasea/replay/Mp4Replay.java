@@ -0,0 +1,307 @@
+package net.ossrs.yasea.replay;
+
+import android.media.MediaFormat;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import net.ossrs.yasea.SrsRtmpPublisher;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a recorded MP4 file over RTMP without a device, for load testing ingest servers.
+ * <p>
+ * The file is mapped with {@link IsoFile#mapped}, up to 2 GB, and the samples of the first
+ * AVC and the first AAC track are read from the mapping. The avcC and esds sample
+ * descriptions become the FLV sequence headers, the samples are sent as they are stored,
+ * since MP4 and FLV both carry length prefixed NAL units and raw AAC frames. The tags go
+ * through {@link SrsRtmpPublisher}, the same connection, chunking and onMetaData code that
+ * publishes from the phone. When looping, timestamps continue where the previous pass ended.
+ * <pre>
+ *   ./gradlew :benchmark:replay -PreplayArgs='-loops 0 clip.mp4 rtmp://host/live/stream'
+ * </pre>
+ */
+public final class Mp4Replay implements Closeable {
+
+    private final IsoFile iso;
+    private final Mp4Track video;
+    private final Mp4Track audio;
+    private final byte[] tag;
+    private boolean realTime = true;
+    private int loops = 1;
+
+    private long tagsSent;
+    private long bytesSent;
+
+    /**
+     * @param file MP4 file with an AVC track, an AAC track or both
+     * @throws IOException The file can not be read or has neither track
+     */
+    public Mp4Replay(File file) throws IOException {
+        Mp4Track v = null;
+        Mp4Track a = null;
+        try {
+            iso = IsoFile.mapped(file, new Mp4BoxParser());
+            MovieBox moov = iso.getMovieBox();
+            if (moov != null) {
+                for (TrackBox trak : moov.getBoxes(TrackBox.class)) {
+                    Mp4Track track = Mp4Track.from(trak);
+                    if (track == null || track.getSampleCount() == 0) continue;
+                    if (track.type == Mp4Track.VIDEO && v == null) v = track;
+                    if (track.type == Mp4Track.AUDIO && a == null) a = track;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid MP4 file " + file, e);
+        }
+        if (v == null && a == null) {
+            throw new IOException("No AVC or AAC track in " + file);
+        }
+        video = v;
+        audio = a;
+        int max = Math.max(v == null ? 0 : v.maxSize, a == null ? 0 : a.maxSize);
+        // Room for the 5 byte FLV video header or the 2 byte audio header
+        tag = new byte[Math.max(max, Math.max(v == null ? 0 : v.config.length, a == null ? 0 : a.config.length)) + 5];
+    }
+
+    /**
+     * @param realTime Send every sample at its timestamp, otherwise as fast as the connection takes them
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * @param loops Number of passes over the file, 0 to loop until interrupted
+     */
+    public void setLoops(int loops) {
+        this.loops = loops;
+    }
+
+    /**
+     * @return Duration of one pass in milliseconds
+     */
+    public int getDuration() {
+        return Math.max(video == null ? 0 : video.duration, audio == null ? 0 : audio.duration);
+    }
+
+    public long getTagsSent() {
+        return tagsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Connect, publish the file and disconnect. Returns early when the connection is lost or
+     * the thread is interrupted.
+     *
+     * @param publisher Publisher to send with, not connected yet
+     * @param url       RTMP URL including the stream name
+     * @return Publishing started
+     * @throws IOException Reading the file failed
+     */
+    public boolean publish(SrsRtmpPublisher publisher, String url) throws IOException {
+        if (video != null) publisher.setVideoFormat(video.format);
+        if (audio != null) publisher.setAudioFormat(audio.format);
+        if (!publisher.connect(url, null, null) || !publisher.publish("live")) {
+            publisher.close();
+            return false;
+        }
+        try {
+            send(publisher);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            publisher.close();
+        }
+        return true;
+    }
+
+    private void send(SrsRtmpPublisher publisher) throws IOException, InterruptedException {
+        if (video != null) publishTag(publisher, Mp4Track.VIDEO, 0, muxSequenceHeader(video));
+        if (audio != null) publishTag(publisher, Mp4Track.AUDIO, 0, muxSequenceHeader(audio));
+
+        int firstVideo = getFirstKeyFrame();
+        long startNanos = System.nanoTime();
+        int base = 0;
+        for (int pass = 0; loops == 0 || pass < loops; pass++) {
+            int v = firstVideo;
+            int a = 0;
+            while (true) {
+                boolean hasVideo = video != null && v < video.getSampleCount();
+                boolean hasAudio = audio != null && a < audio.getSampleCount();
+                if (!hasVideo && !hasAudio) break;
+                // Interleave by decoding time
+                boolean sendVideo = hasVideo && (!hasAudio || video.dts[v] <= audio.dts[a]);
+                Mp4Track track = sendVideo ? video : audio;
+                int i = sendVideo ? v++ : a++;
+                int dts = base + track.dts[i];
+
+                if (realTime) {
+                    long wait = startNanos + dts * 1000000L - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                if (Thread.interrupted()) throw new InterruptedException();
+
+                if (!publishTag(publisher, track.type, dts, muxSample(track, i))) return;
+            }
+            base += getDuration();
+        }
+    }
+
+    /**
+     * Mux the first group of pictures once, for {@link LoadGenerator} to send from memory
+     *
+     * @param chunkSize Chunk size to send with
+     * @return From the first key frame up to the next, or the whole file without video
+     * @throws IOException Reading the file failed
+     */
+    public FlvGop readGop(int chunkSize) throws IOException {
+        int width = video == null ? 0 : video.format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = video == null ? 0 : video.format.getInteger(MediaFormat.KEY_HEIGHT);
+        FlvGop.Builder builder = new FlvGop.Builder(chunkSize, width, height);
+        if (video != null) builder.header(Mp4Track.VIDEO, Arrays.copyOf(tag, muxSequenceHeader(video)));
+        if (audio != null) builder.header(Mp4Track.AUDIO, Arrays.copyOf(tag, muxSequenceHeader(audio)));
+
+        int v = getFirstKeyFrame();
+        int start = video == null ? 0 : video.dts[v];
+        int end = getDuration();
+        if (video != null) {
+            for (int i = v + 1; i < video.getSampleCount(); i++) {
+                if (video.samples.isSyncSample(i)) {
+                    end = video.dts[i];
+                    break;
+                }
+            }
+        }
+        int a = 0;
+        while (audio != null && a < audio.getSampleCount() && audio.dts[a] < start) a++;
+        while (true) {
+            boolean hasVideo = video != null && v < video.getSampleCount() && video.dts[v] < end;
+            boolean hasAudio = audio != null && a < audio.getSampleCount() && audio.dts[a] < end;
+            if (!hasVideo && !hasAudio) break;
+            boolean sendVideo = hasVideo && (!hasAudio || video.dts[v] <= audio.dts[a]);
+            Mp4Track track = sendVideo ? video : audio;
+            int i = sendVideo ? v++ : a++;
+            builder.tag(track.type, track.dts[i] - start, Arrays.copyOf(tag, muxSample(track, i)));
+        }
+        return builder.build(end - start);
+    }
+
+    // Start with the first key frame, later passes start over with it
+    private int getFirstKeyFrame() {
+        int first = 0;
+        if (video != null) {
+            while (first < video.getSampleCount() && !video.samples.isSyncSample(first)) first++;
+        }
+        return first;
+    }
+
+    // Sequence header tag body of the track to the tag buffer, returns its size
+    private int muxSequenceHeader(Mp4Track track) {
+        if (track.type == Mp4Track.VIDEO) {
+            tag[0] = 0x17;
+            tag[1] = 0; // AVC sequence header
+            tag[2] = tag[3] = tag[4] = 0;
+            System.arraycopy(track.config, 0, tag, 5, track.config.length);
+            return track.config.length + 5;
+        }
+        // AAC, the FLV spec wants 44 kHz, 16 bit stereo flags whatever the actual format
+        tag[0] = (byte) 0xaf;
+        tag[1] = 0; // AAC sequence header
+        System.arraycopy(track.config, 0, tag, 2, track.config.length);
+        return track.config.length + 2;
+    }
+
+    // Tag body of a sample to the tag buffer, returns its size
+    private int muxSample(Mp4Track track, int i) throws IOException {
+        int size = track.samples.getSize(i);
+        if (track.type == Mp4Track.VIDEO) {
+            read(track, i, 5);
+            int cts = track.cts[i];
+            tag[0] = (byte) (track.samples.isSyncSample(i) ? 0x17 : 0x27);
+            tag[1] = 1; // NALU
+            tag[2] = (byte) (cts >> 16);
+            tag[3] = (byte) (cts >> 8);
+            tag[4] = (byte) cts;
+            return size + 5;
+        }
+        read(track, i, 2);
+        tag[0] = (byte) 0xaf;
+        tag[1] = 1; // AAC raw
+        return size + 2;
+    }
+
+    private void read(Mp4Track track, int i, int header) throws IOException {
+        try {
+            track.samples.getSample(i).get(tag, header, track.samples.getSize(i));
+        } catch (IndexOutOfBoundsException e) {
+            throw new EOFException("Sample at " + track.samples.getOffset(i) + " is beyond the end of the file");
+        }
+    }
+
+    // The tag buffer holds an audio or video tag body, E.4 of the FLV spec
+    private boolean publishTag(SrsRtmpPublisher publisher, int type, int dts, int size) {
+        if (!publisher.isPublishing()) return false;
+        if (type == Mp4Track.VIDEO) {
+            publisher.publishVideoData(tag, size, dts);
+        } else {
+            publisher.publishAudioData(tag, size, dts);
+        }
+        tagsSent++;
+        bytesSent += size;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        iso.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean realTime = true;
+        int loops = 1;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            if (args[i].equals("-fast")) {
+                realTime = false;
+            } else if (args[i].equals("-loops") && i + 1 < args.length) {
+                loops = Integer.parseInt(args[++i]);
+            } else {
+                break;
+            }
+        }
+        if (args.length - i != 2) {
+            System.err.println("usage: Mp4Replay [-fast] [-loops n] file.mp4 rtmp://host/app/stream");
+            System.err.println("  -fast     send as fast as the connection takes it, not in real time");
+            System.err.println("  -loops n  passes over the file, 0 to loop until killed, default 1");
+            System.exit(2);
+        }
+
+        try (Mp4Replay replay = new Mp4Replay(new File(args[i]))) {
+            replay.setRealTime(realTime);
+            replay.setLoops(loops);
+            SrsRtmpPublisher publisher = new SrsRtmpPublisher(new RtmpHandler(null));
+            long start = System.nanoTime();
+            if (!replay.publish(publisher, args[i + 1])) {
+                System.err.println("Could not publish to " + args[i + 1]);
+                System.exit(1);
+            }
+            long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+            RtmpMetrics metrics = publisher.getMetrics();
+            System.out.println(String.format(Locale.US, "%d tags, %.1f MB in %d ms, %.1f Mbit/s, %s",
+                    replay.getTagsSent(), replay.getBytesSent() / 1e6, elapsed,
+                    replay.getBytesSent() * 8 / 1000d / elapsed, metrics));
+        }
+    }
+}
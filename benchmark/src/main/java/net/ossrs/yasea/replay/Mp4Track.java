@@ -0,0 +1,113 @@
+package net.ossrs.yasea.replay;
+
+import android.media.MediaFormat;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.SampleEntry;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.authoring.SampleReader;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.AudioSpecificConfig;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The samples of one AVC or AAC track: their data and timing and the FLV sequence header
+ * built from the sample description
+ */
+final class Mp4Track {
+
+    // FLV tag types
+    static final int AUDIO = 8;
+    static final int VIDEO = 9;
+
+    final int type;
+    final MediaFormat format;
+    // AVCDecoderConfigurationRecord or AudioSpecificConfig
+    final byte[] config;
+    final SampleReader samples;
+    // Milliseconds
+    final int[] dts;
+    final int[] cts;
+    // End of the last sample in milliseconds
+    final int duration;
+    final int maxSize;
+
+    private Mp4Track(int type, MediaFormat format, byte[] config, SampleReader samples,
+                     int[] dts, int[] cts, int duration) {
+        this.type = type;
+        this.format = format;
+        this.config = config;
+        this.samples = samples;
+        this.dts = dts;
+        this.cts = cts;
+        this.duration = duration;
+        int max = 0;
+        for (int i = 0; i < samples.getSampleCount(); i++) max = Math.max(max, samples.getSize(i));
+        this.maxSize = max;
+    }
+
+    int getSampleCount() {
+        return samples.getSampleCount();
+    }
+
+    /**
+     * @param trak Track box
+     * @return The track, null when it is neither AVC nor AAC
+     */
+    static Mp4Track from(TrackBox trak) {
+        SampleTableBox stbl = trak.getSampleTableBox();
+        if (trak.getMediaBox() == null || stbl == null || stbl.getSampleDescriptionBox() == null) return null;
+        SampleEntry entry = stbl.getSampleDescriptionBox().getSampleEntry();
+        SampleReader samples = new SampleReader(trak);
+        long timescale = samples.getTimescale();
+
+        int count = samples.getSampleCount();
+        int[] dts = new int[count];
+        int[] cts = new int[count];
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            dts[i] = (int) (samples.getDecodingTime(i) * 1000 / timescale);
+            cts[i] = (int) (samples.getCompositionTime(i) * 1000 / timescale) - dts[i];
+            bytes += samples.getSize(i);
+        }
+        int duration = (int) (samples.getDuration() * 1000 / timescale);
+        int bitrate = duration > 0 ? (int) (bytes * 8 * 1000 / duration) : 0;
+
+        if (entry instanceof VisualSampleEntry) {
+            List<AvcConfigurationBox> avcC = ((VisualSampleEntry) entry).getBoxes(AvcConfigurationBox.class);
+            if (avcC.isEmpty()) return null;
+            ByteBuffer record = ByteBuffer.allocate((int) avcC.get(0).getContentSize());
+            avcC.get(0).getContent(record);
+
+            VisualSampleEntry visual = (VisualSampleEntry) entry;
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                    visual.getWidth(), visual.getHeight());
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, duration > 0 ? Math.round(count * 1000f / duration) : 0);
+            return new Mp4Track(VIDEO, format, record.array(), samples, dts, cts, duration);
+        }
+
+        if (entry instanceof AudioSampleEntry) {
+            List<ESDescriptorBox> esds = ((AudioSampleEntry) entry).getBoxes(ESDescriptorBox.class);
+            if (esds.isEmpty()) return null;
+            ESDescriptor descriptor = esds.get(0).getEsDescriptor();
+            DecoderConfigDescriptor decoderConfig = descriptor == null ? null : descriptor.getDecoderConfigDescriptor();
+            AudioSpecificConfig asc = decoderConfig == null ? null : decoderConfig.getAudioSpecificInfo();
+            // MPEG-4 audio only, the FLV AAC sequence header carries the AudioSpecificConfig
+            if (asc == null || decoderConfig.getObjectTypeIndication() != 0x40) return null;
+
+            AudioSampleEntry audio = (AudioSampleEntry) entry;
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                    (int) audio.getSampleRate(), audio.getChannelCount());
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            return new Mp4Track(AUDIO, format, asc.getConfigBytes(), samples, dts, cts, duration);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,49 @@
+package net.ossrs.yasea.replay;
+
+import com.coremedia.iso.BoxParser;
+import com.googlecode.mp4parser.AbstractBox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A box the replay does not need, mdat in particular. At file level its content is skipped
+ * without reading or mapping it, the samples are read from the file by offset instead.
+ */
+final class SkippedBox extends AbstractBox {
+
+    private long skipped;
+
+    SkippedBox(String type) {
+        super(type);
+    }
+
+    @Override
+    public void parse(ReadableByteChannel channel, ByteBuffer header, long contentSize, BoxParser boxParser) throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel file = (FileChannel) channel;
+            file.position(file.position() + contentSize);
+            skipped = contentSize;
+        } else {
+            // In memory or mapped already, keep a view of it as dead bytes
+            super.parse(channel, header, contentSize, boxParser);
+        }
+    }
+
+    @Override
+    protected long getContentSize() {
+        return skipped;
+    }
+
+    @Override
+    protected void getContent(ByteBuffer byteBuffer) {
+        if (skipped > 0) throw new UnsupportedOperationException("Content of " + getType() + " was skipped");
+    }
+
+    @Override
+    protected void _parseDetails(ByteBuffer content) {
+        // Nothing to parse
+    }
+}
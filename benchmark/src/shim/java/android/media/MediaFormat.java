@@ -0,0 +1,101 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM shim, a plain map of format keys
+ */
+public final class MediaFormat {
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+    public static final String KEY_INTRA_REFRESH_PERIOD = "intra-refresh-period";
+
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String MIMETYPE_AUDIO_AAC = "audio/mp4a-latm";
+
+    private final Map<String, Object> map = new HashMap<>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(String name) {
+        return map.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        Object value = map.get(name);
+        if (value == null) throw new NullPointerException(name);
+        return (Integer) value;
+    }
+
+    public int getInteger(String name, int defaultValue) {
+        Object value = map.get(name);
+        return value == null ? defaultValue : (Integer) value;
+    }
+
+    public long getLong(String name) {
+        return (Long) map.get(name);
+    }
+
+    public float getFloat(String name) {
+        return (Float) map.get(name);
+    }
+
+    public String getString(String name) {
+        return (String) map.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) map.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        map.put(name, value);
+    }
+
+    public void setLong(String name, long value) {
+        map.put(name, value);
+    }
+
+    public void setFloat(String name, float value) {
+        map.put(name, value);
+    }
+
+    public void setString(String name, String value) {
+        map.put(name, value);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        map.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+}
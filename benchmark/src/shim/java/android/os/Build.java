@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM shim, reports the newest platform the library knows about
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = VERSION_CODES.Q;
+    }
+
+    public static final class VERSION_CODES {
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int P = 28;
+        public static final int Q = 29;
+    }
+}
@@ -0,0 +1,49 @@
+package android.os;
+
+/**
+ * JVM shim, messages are handled right away on the sending thread and posted runnables are
+ * dropped, there is no main thread to run them on
+ */
+public class Handler {
+
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public final Message obtainMessage(int what) {
+        return obtainMessage(what, null);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        Message msg = new Message();
+        msg.what = what;
+        msg.obj = obj;
+        msg.target = this;
+        return msg;
+    }
+
+    public final boolean sendMessage(Message msg) {
+        handleMessage(msg);
+        return true;
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessage(obtainMessage(what));
+    }
+
+    public final boolean post(Runnable r) {
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM shim
+ */
+public final class Message {
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+    Handler target;
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM shim, sections are ignored
+ */
+public final class Trace {
+
+    private Trace() {
+    }
+
+    public static void beginSection(String sectionName) {
+    }
+
+    public static void endSection() {
+    }
+
+    public static void beginAsyncSection(String methodName, int cookie) {
+    }
+
+    public static void endAsyncSection(String methodName, int cookie) {
+    }
+}
@@ -0,0 +1,233 @@
+package net.ossrs.yasea.benchmark;
+
+import android.media.MediaCodec;
+import com.github.faucamp.simplertmp.RtmpHandler;
+import net.ossrs.yasea.SrsFlvMuxer;
+import net.ossrs.yasea.SrsMp4Muxer;
+import net.ossrs.yasea.SrsRecordHandler;
+import net.ossrs.yasea.SrsRtmpPublisher;
+import net.ossrs.yasea.SrsStats;
+import net.ossrs.yasea.ingest.RtmpIngestServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation budgets of the per-frame paths, so a path that allocates nothing per frame keeps
+ * it that way.
+ * <p>
+ * Each path gets 10,000 synthetic frames to warm up and then 10,000 measured ones. The bytes
+ * the calling thread allocated while measuring, from {@link com.sun.management.ThreadMXBean},
+ * are divided by the frame count and compared with the budget of the path. Work handed to
+ * the FLV sender is not counted, the MP4 writer thread has a budget of its own. Runs with
+ * {@code check}.
+ * <pre>
+ *   ./gradlew :benchmark:test --tests '*AllocationBudgetTest'
+ * </pre>
+ */
+public class AllocationBudgetTest {
+
+    private static final int FRAMES = 10000;
+    private static final int VIDEO_SIZE = 4096;
+    private static final int AUDIO_SIZE = 372;
+    // MediaCodec hands out a few output buffers in turn, queued samples keep theirs
+    private static final int BUFFERS = 1024;
+
+    // Bytes per frame. The ingest server runs on other threads, nothing it does is counted.
+    private static final int FLV_VIDEO_BUDGET = 192;
+    private static final int FLV_AUDIO_BUDGET = 64;
+    private static final int RTMP_CHUNK_BUDGET = 256;
+    private static final int MP4_VIDEO_BUDGET = 192;
+    private static final int MP4_AUDIO_BUDGET = 128;
+    // Sample table entries of the recording, not a buffer per sample
+    private static final int MP4_WRITER_BUDGET = 128;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface FramePath {
+        void frame(int index) throws Exception;
+    }
+
+    private static RtmpIngestServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        assumeTrue("This JVM does not count allocated bytes per thread", THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        server = new RtmpIngestServer();
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        if (server != null) server.close();
+    }
+
+    private static void measure(String name, int budget, FramePath path) throws Exception {
+        measure(name, budget, null, 0, path);
+    }
+
+    /**
+     * @param writer       Thread the path hands the frames to, null for none
+     * @param writerBudget Bytes per frame on the writer thread
+     */
+    private static void measure(String name, int budget, Thread writer, int writerBudget, FramePath path) throws Exception {
+        for (int i = 0; i < FRAMES; i++) path.frame(i);
+        long thread = Thread.currentThread().getId();
+        // Let the writer catch up, its backlog is then about the same at both ends
+        if (writer != null) Thread.sleep(200);
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        long writerBefore = writer != null ? THREADS.getThreadAllocatedBytes(writer.getId()) : 0;
+        for (int i = FRAMES; i < 2 * FRAMES; i++) path.frame(i);
+        long bytes = THREADS.getThreadAllocatedBytes(thread) - before;
+        if (writer != null) Thread.sleep(200);
+        long writerBytes = writer != null ? THREADS.getThreadAllocatedBytes(writer.getId()) - writerBefore : 0;
+
+        double perFrame = bytes / (double) FRAMES;
+        assertTrue(String.format(Locale.US, "%s allocates %.1f bytes per frame, budget %d", name, perFrame, budget),
+                perFrame <= budget);
+        if (writer != null) {
+            double writerPerFrame = writerBytes / (double) FRAMES;
+            assertTrue(String.format(Locale.US, "%s writer allocates %.1f bytes per frame, budget %d",
+                    name, writerPerFrame, writerBudget), writerPerFrame <= writerBudget);
+        }
+    }
+
+    /**
+     * SrsFlvMuxer.writeVideoSample and writeAudioSample, the sender drains the tags to the server
+     */
+    @Test
+    public void flvMuxer() throws Exception {
+        SrsFlvMuxer muxer = new SrsFlvMuxer(new RtmpHandler(null));
+        muxer.setDestination(server.getUrl("live", "allocations"), null, null);
+        muxer.addTrack(BenchmarkData.videoFormat());
+        muxer.addTrack(BenchmarkData.audioFormat());
+        muxer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!muxer.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue("connected", muxer.isConnected());
+
+        byte[] config = BenchmarkData.codecConfig();
+        MediaCodec.BufferInfo configInfo = BenchmarkData.bufferInfo(config.length, 0, false);
+        configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        muxer.writeVideoSample(ByteBuffer.wrap(config), configInfo);
+
+        byte[] key = BenchmarkData.accessUnit(VIDEO_SIZE, 5, false);
+        byte[] inter = BenchmarkData.accessUnit(VIDEO_SIZE, 1, false);
+        ByteBuffer keyFrame = ByteBuffer.wrap(key);
+        ByteBuffer interFrame = ByteBuffer.wrap(inter);
+        MediaCodec.BufferInfo video = new MediaCodec.BufferInfo();
+        measure("writeVideoSample", FLV_VIDEO_BUDGET, i -> {
+            // Let the sender keep up, a full queue drops frames and takes another path
+            while (muxer.getVideoFrameCacheNumber().get() > 16) Thread.sleep(1);
+            boolean isKey = i % 30 == 0;
+            ByteBuffer frame = isKey ? keyFrame : interFrame;
+            frame.clear();
+            video.set(0, frame.remaining(), i * 33333L, isKey ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeVideoSample(frame, video);
+        });
+
+        // Raw AAC frame as MediaCodec delivers it, no ADTS header
+        byte[] aac = new byte[AUDIO_SIZE];
+        aac[0] = 0x21;
+        ByteBuffer audioFrame = ByteBuffer.wrap(aac);
+        MediaCodec.BufferInfo audio = new MediaCodec.BufferInfo();
+        measure("writeAudioSample", FLV_AUDIO_BUDGET, i -> {
+            // Keep the queue short, tags beyond what the pool ever held are allocated fresh
+            while (muxer.getStats().get(SrsStats.Gauge.SEND_QUEUE_DEPTH) > 16) Thread.sleep(1);
+            audioFrame.clear();
+            audio.set(0, AUDIO_SIZE, 2 * FRAMES * 33333L + i * 23219L, 0);
+            muxer.writeAudioSample(audioFrame, audio);
+        });
+        muxer.stop();
+    }
+
+    /**
+     * RtmpConnection.publishVideoData: the Video packet, its chunking and the socket writes
+     */
+    @Test
+    public void rtmpChunkWriter() throws Exception {
+        SrsRtmpPublisher publisher = new SrsRtmpPublisher(new RtmpHandler(null));
+        publisher.setVideoFormat(BenchmarkData.videoFormat());
+        assertTrue("connected", publisher.connect(server.getUrl("live", "chunks"), null, null) && publisher.publish("live"));
+        byte[] tag = new byte[VIDEO_SIZE + 5];
+        tag[0] = 0x27;
+        tag[1] = 1;
+        measure("publishVideoData", RTMP_CHUNK_BUDGET, i -> publisher.publishVideoData(tag, tag.length, i * 33));
+        publisher.close();
+    }
+
+    /**
+     * SrsMp4Muxer.writeVideoSample and writeAudioSample, the writer thread records to a file
+     */
+    @Test
+    public void mp4Muxer() throws Exception {
+        File file = File.createTempFile("allocations", ".mp4");
+        SrsRecordHandler handler = new SrsRecordHandler(null);
+        SrsMp4Muxer muxer = new SrsMp4Muxer(file, handler);
+        muxer.addTrack(BenchmarkData.videoFormat());
+        muxer.addTrack(BenchmarkData.audioFormat());
+        try {
+            Set<Thread> threads = new HashSet<>(Thread.getAllStackTraces().keySet());
+            assertTrue("recording", muxer.record());
+            // The thread record() started
+            Thread writer = null;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (!threads.contains(thread)) writer = thread;
+            }
+            assertTrue("writer started", writer != null);
+            byte[] config = BenchmarkData.codecConfig();
+            MediaCodec.BufferInfo configInfo = BenchmarkData.bufferInfo(config.length, 0, false);
+            configInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            muxer.writeVideoSample(ByteBuffer.wrap(config), configInfo);
+            MediaCodec.BufferInfo ascInfo = BenchmarkData.bufferInfo(2, 0, false);
+            ascInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            muxer.writeAudioSample(ByteBuffer.wrap(new byte[]{0x12, 0x10}), ascInfo);
+
+            // The muxer queues the buffer and its info, the writer reads them later
+            byte[] key = BenchmarkData.accessUnit(VIDEO_SIZE, 5, false);
+            byte[] inter = BenchmarkData.accessUnit(VIDEO_SIZE, 1, false);
+            ByteBuffer[] videoFrames = new ByteBuffer[BUFFERS];
+            MediaCodec.BufferInfo[] videoInfos = new MediaCodec.BufferInfo[BUFFERS];
+            ByteBuffer[] audioFrames = new ByteBuffer[BUFFERS];
+            MediaCodec.BufferInfo[] audioInfos = new MediaCodec.BufferInfo[BUFFERS];
+            for (int i = 0; i < BUFFERS; i++) {
+                videoFrames[i] = ByteBuffer.wrap(i % 30 == 0 ? key : inter);
+                videoInfos[i] = new MediaCodec.BufferInfo();
+                audioFrames[i] = ByteBuffer.wrap(new byte[AUDIO_SIZE]);
+                audioInfos[i] = new MediaCodec.BufferInfo();
+            }
+            measure("writeVideoSample", MP4_VIDEO_BUDGET, writer, MP4_WRITER_BUDGET, i -> {
+                if (i % 16 == 0) Thread.sleep(1);
+                int b = i % BUFFERS;
+                ByteBuffer frame = videoFrames[b];
+                frame.clear();
+                videoInfos[b].set(0, frame.remaining(), i * 33333L, b % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeVideoSample(frame, videoInfos[b]);
+            });
+            measure("writeAudioSample", MP4_AUDIO_BUDGET, writer, MP4_WRITER_BUDGET, i -> {
+                if (i % 16 == 0) Thread.sleep(1);
+                int b = i % BUFFERS;
+                audioFrames[b].clear();
+                audioInfos[b].set(0, AUDIO_SIZE, i * 23219L, 0);
+                muxer.writeAudioSample(audioFrames[b], audioInfos[b]);
+            });
+        } finally {
+            muxer.stop();
+            file.delete();
+            // The recording index, the JVM may exit before the writer removes it
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+}
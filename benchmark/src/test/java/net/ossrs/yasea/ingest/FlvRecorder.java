@@ -0,0 +1,68 @@
+package net.ossrs.yasea.ingest;
+
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.packets.Data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes the received RTMP messages as a FLV file, E.4 of the FLV spec
+ */
+final class FlvRecorder implements Closeable {
+
+    static final int TAG_AUDIO = 8;
+    static final int TAG_VIDEO = 9;
+    static final int TAG_SCRIPT = 18;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[11];
+
+    FlvRecorder(OutputStream out) throws IOException {
+        this.out = out;
+        // Signature, version 1, audio and video present, header size
+        out.write(new byte[]{'F', 'L', 'V', 1, 0x05, 0, 0, 0, 9});
+        // PreviousTagSize0
+        out.write(new byte[4]);
+    }
+
+    /**
+     * Record the onMetaData of a @setDataFrame as script tag
+     */
+    void writeMetaData(Data data) throws IOException {
+        List<AmfData> items = data.getData();
+        if (items == null || items.isEmpty()) return;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (AmfData item : items) {
+            item.writeTo(body);
+        }
+        writeTag(TAG_SCRIPT, 0, body.toByteArray(), body.size());
+    }
+
+    void writeTag(int type, int timestamp, byte[] data, int size) throws IOException {
+        header[0] = (byte) type;
+        header[1] = (byte) (size >> 16);
+        header[2] = (byte) (size >> 8);
+        header[3] = (byte) size;
+        header[4] = (byte) (timestamp >> 16);
+        header[5] = (byte) (timestamp >> 8);
+        header[6] = (byte) timestamp;
+        header[7] = (byte) (timestamp >> 24);
+        // StreamID is always 0
+        out.write(header);
+        out.write(data, 0, size);
+        int tagSize = header.length + size;
+        out.write(tagSize >> 24);
+        out.write(tagSize >> 16);
+        out.write(tagSize >> 8);
+        out.write(tagSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
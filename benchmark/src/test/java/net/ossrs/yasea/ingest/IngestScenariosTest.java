@@ -0,0 +1,1263 @@
+package net.ossrs.yasea.ingest;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.CompositionShiftLeastGreatestAtom;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.h265.HevcConfigurationBox;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.googlecode.mp4parser.authoring.SampleReader;
+import net.ossrs.yasea.SrsBandwidthProbe;
+import net.ossrs.yasea.SrsFlvMuxer;
+import net.ossrs.yasea.SrsHistogram;
+import net.ossrs.yasea.SrsMp4Muxer;
+import net.ossrs.yasea.SrsRecordHandler;
+import net.ossrs.yasea.SrsRendition;
+import net.ossrs.yasea.SrsRtmpPublisher;
+import net.ossrs.yasea.SrsStats;
+import net.ossrs.yasea.replay.FlvGop;
+import net.ossrs.yasea.replay.LoadGenerator;
+import net.ossrs.yasea.replay.Mp4Replay;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end publishing scenarios against {@link RtmpIngestServer}.
+ * <p>
+ * Each scenario drives a real {@link SrsFlvMuxer} and its RTMP connection with synthetic
+ * encoder output over loopback, replays a recording with {@link Mp4Replay} or publishes many
+ * streams at once with {@link LoadGenerator}, then checks what the server received. Runs with
+ * {@code check}.
+ * <pre>
+ *   ./gradlew :benchmark:test --tests '*IngestScenariosTest'
+ *   ./gradlew :benchmark:test --tests '*IngestScenariosTest.throttled'
+ * </pre>
+ */
+public class IngestScenariosTest {
+
+    private SrsRecordHandler.SrsRecordListener recordListener;
+
+    /**
+     * One publisher feeding one server session
+     */
+    private static final class Publish implements RtmpIngestServer.Listener {
+        final RtmpIngestServer server;
+        final SyntheticStream stream;
+        final SrsFlvMuxer muxer = new SrsFlvMuxer(new RtmpHandler(null));
+        final Map<Integer, Long> feedNanos = new ConcurrentHashMap<>();
+        final SrsHistogram latency = new SrsHistogram();
+        RtmpIngestServer.Session session;
+        long peakQueueDepth;
+        long firstFeedNanos;
+        RtmpMetrics metrics;
+
+        Publish(RtmpIngestServer server, SyntheticStream stream) {
+            this.server = server;
+            this.stream = stream;
+            server.setListener(this);
+        }
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            // Video NALU, not the sequence header
+            if (type != FlvRecorder.TAG_VIDEO || size < 2 || data[1] != 1) return;
+            Long fed = feedNanos.get(timestamp);
+            if (fed != null) latency.record((arrivalNanos - fed) / 1000);
+        }
+
+        boolean connect(String streamName) throws InterruptedException {
+            muxer.setDestination(server.getUrl("live", streamName), null, null);
+            muxer.addTrack(stream.getFormat());
+            muxer.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!muxer.isConnected() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (!muxer.isConnected()) return false;
+            List<RtmpIngestServer.Session> sessions = server.getSessions();
+            session = sessions.get(sessions.size() - 1);
+
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            muxer.writeVideoSample(stream.codecConfig(bi), bi);
+            return true;
+        }
+
+        /**
+         * @param frames   Number of frames
+         * @param realTime Feed at the frame rate, otherwise as fast as the queue drains
+         */
+        void feed(int frames, boolean realTime) throws InterruptedException {
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            long interval = 1000000000L / stream.getFrameRate();
+            firstFeedNanos = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                if (realTime) {
+                    long wait = firstFeedNanos + i * interval - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                } else {
+                    while (muxer.getVideoFrameCacheNumber().get() > 16) Thread.sleep(1);
+                }
+                ByteBuffer frame = stream.nextFrame(bi);
+                feedNanos.put((int) (bi.presentationTimeUs / 1000), System.nanoTime());
+                muxer.writeVideoSample(frame, bi);
+                peakQueueDepth = Math.max(peakQueueDepth, muxer.getStats().get(SrsStats.Gauge.VIDEO_QUEUE_DEPTH));
+            }
+        }
+
+        /**
+         * Wait until the last fed frame arrived
+         */
+        boolean awaitLastFrame(long timeoutMillis) throws InterruptedException {
+            int last = (int) (stream.getPresentationTimeUs(stream.getFrameCount() - 1) / 1000);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (session.getLastVideoTimestamp() < last && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            return session.getLastVideoTimestamp() >= last;
+        }
+
+        void stop() throws InterruptedException {
+            metrics = muxer.getMetrics();
+            muxer.stop();
+            session.awaitClose(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Unshaped loopback, frames as fast as the sender takes them. Everything must arrive in
+     * order and end up in the recording.
+     */
+    @Test
+    public void throughput() throws Exception {
+        File directory = Files.createTempDirectory("ingest").toFile();
+        int frames = 900;
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.setRecordDirectory(directory);
+            server.start();
+            Publish publish = new Publish(server, new SyntheticStream(1920, 1080, 20000000, 30, 30));
+            assertTrue("connected", publish.connect("throughput"));
+            publish.feed(frames, false);
+            boolean complete = publish.awaitLastFrame(10000);
+            long elapsed = System.nanoTime() - publish.firstFeedNanos;
+            publish.stop();
+
+            RtmpIngestServer.Session session = publish.session;
+            double mbps = session.getMediaBytes() * 8 * 1000d / elapsed;
+            assertTrue("last frame arrived", complete);
+            // Plus the sequence header
+            assertEquals("video messages received", frames + 1, session.getVideoFrames());
+            assertTrue("stream starts with a key frame", session.startedWithKeyFrame());
+            assertEquals("key frames received", frames / 30 + 1, session.getKeyFrames());
+            assertEquals("frames dropped", 0, publish.muxer.getStats().snapshot().getDroppedFrames());
+            assertTrue(String.format(Locale.US, "%.1f MB in %d ms, %.1f Mbit/s, expected above 20 Mbit/s",
+                    session.getMediaBytes() / 1e6, elapsed / 1000000, mbps), mbps > 20);
+
+            int tags = countFlvTags(new File(directory, "throughput.flv"));
+            // Plus onMetaData
+            assertEquals("FLV tags recorded", frames + 2, tags);
+        } finally {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Publishing twice the bandwidth of the uplink. The socket blocks, the send queue grows and
+     * the server sees no more than the bandwidth.
+     */
+    @Test
+    public void throttled() throws Exception {
+        int bandwidth = 1000000;
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.setBandwidth(bandwidth);
+            server.start();
+            Publish publish = new Publish(server, new SyntheticStream(1280, 720, 2 * bandwidth, 30, 30));
+            assertTrue("connected", publish.connect("throttled"));
+            publish.feed(30 * 6, true);
+            double throughput = publish.session.getMediaThroughput();
+            publish.stop();
+
+            assertTrue(String.format(Locale.US, "send queue grew to %d frames", publish.peakQueueDepth),
+                    publish.peakQueueDepth >= 30);
+            assertTrue("writes stalled, " + publish.metrics, publish.metrics.getWriteStallCount() > 0);
+            assertTrue(String.format(Locale.US, "received %.0f kbit/s within the %d kbit/s uplink",
+                    throughput / 1000, bandwidth / 1000), throughput <= bandwidth * 1.1);
+            assertTrue(String.format(Locale.US, "received %.0f kbit/s uses the uplink", throughput / 1000),
+                    throughput >= bandwidth * 0.6);
+            assertTrue("stream starts with a key frame", publish.session.startedWithKeyFrame());
+        }
+    }
+
+    /**
+     * Real-time publishing over a path with latency and some loss. Frames arrive no sooner
+     * than the latency, retransmissions show up in the tail only, and the ping round trip
+     * sees the latency.
+     */
+    @Test
+    public void latency() throws Exception {
+        int latency = 50;
+        int retransmit = 200;
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.setLatency(latency);
+            server.setLoss(0.01, retransmit);
+            server.start();
+            Publish publish = new Publish(server, new SyntheticStream(1280, 720, 1000000, 30, 30));
+            assertTrue("connected", publish.connect("latency"));
+            publish.feed(30 * 6, true);
+            boolean complete = publish.awaitLastFrame(5000);
+            publish.stop();
+
+            SrsHistogram h = publish.latency;
+            // Histogram buckets are about 3% wide
+            long p50 = h.getPercentile(50) / 1000;
+            long p99 = h.getPercentile(99) / 1000;
+            long max = h.getPercentile(100) / 1000;
+            assertTrue("last frame arrived", complete);
+            assertEquals("frames measured", 30 * 6, h.getCount());
+            assertTrue(String.format(Locale.US, "median %d ms close to the %d ms latency", p50, latency),
+                    p50 >= latency * 0.97 && p50 < latency + 30);
+            assertTrue(String.format(Locale.US, "retransmissions delay the tail, max %d ms", max),
+                    max >= (latency + retransmit) * 0.97);
+            assertTrue(String.format(Locale.US, "p99 %d ms bounded by one retransmission", p99),
+                    p99 < latency + retransmit + 100);
+            assertTrue("round trip includes the latency, " + publish.metrics,
+                    publish.metrics.getSmoothedRtt() >= latency);
+        }
+    }
+
+    /**
+     * Record a clip with {@link SrsMp4Muxer} and publish it with {@link Mp4Replay}: first
+     * twice as fast as possible, then once in real time. Every sample must arrive once per
+     * pass, with timestamps that keep increasing from one pass to the next.
+     */
+    @Test
+    public void replay() throws Exception {
+        File directory = Files.createTempDirectory("replay").toFile();
+        File clip = new File(directory, "clip.mp4");
+        int frames = 90;
+        int fps = 30;
+        try {
+            int audioFrames = recordClip(clip, new SyntheticStream(1280, 720, 2000000, fps, fps), frames, true, null);
+            assertTrue("recorded " + clip, audioFrames >= 0);
+
+            try (Mp4Replay replay = new Mp4Replay(clip);
+                 RtmpIngestServer server = new RtmpIngestServer()) {
+                server.start();
+                ReplayCheck fast = new ReplayCheck();
+                server.setListener(fast);
+                replay.setRealTime(false);
+                replay.setLoops(2);
+                boolean published = replay.publish(new SrsRtmpPublisher(new RtmpHandler(null)), server.getUrl("live", "fast"));
+                RtmpIngestServer.Session session = server.getSessions().get(0);
+                session.awaitClose(5, TimeUnit.SECONDS);
+
+                assertTrue("published", published);
+                // Plus the sequence headers
+                assertEquals("video messages received", 2 * frames + 1, session.getVideoFrames());
+                assertEquals("audio messages received", 2 * audioFrames + 1, session.getAudioFrames());
+                assertTrue("stream starts with a key frame", session.startedWithKeyFrame());
+                assertEquals("key frames received", 2 * frames / fps + 1, session.getKeyFrames());
+                assertTrue("avcC and esds sent as sequence headers", fast.avcConfig && fast.aacConfig);
+                assertEquals("timestamps went backwards", 0, fast.backwards);
+                int last = replay.getDuration() + (frames - 1) * 1000 / fps;
+                assertEquals("second pass ends", last, session.getLastVideoTimestamp(), 2);
+
+                ReplayCheck realTime = new ReplayCheck();
+                server.setListener(realTime);
+                replay.setRealTime(true);
+                replay.setLoops(1);
+                long start = System.nanoTime();
+                replay.publish(new SrsRtmpPublisher(new RtmpHandler(null)), server.getUrl("live", "realtime"));
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                int lastSample = (frames - 1) * 1000 / fps;
+                assertTrue(String.format(Locale.US, "real time pass took %d ms for %d ms of samples",
+                        elapsed, lastSample), elapsed >= lastSample && elapsed < replay.getDuration() + 500);
+                assertEquals("timestamps went backwards", 0, realTime.backwards);
+            }
+        } finally {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Tracks the sequence headers and timestamp order of a replayed stream
+     */
+    private static final class ReplayCheck implements RtmpIngestServer.Listener {
+        volatile boolean avcConfig;
+        volatile boolean aacConfig;
+        volatile int backwards;
+        private final int[] last = {-1, -1};
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            if (size < 2) return;
+            boolean video = type == FlvRecorder.TAG_VIDEO;
+            if (data[1] == 0) {
+                // AVCDecoderConfigurationRecord version 1, AudioSpecificConfig of AAC LC
+                if (video) avcConfig = size > 5 && data[5] == 1;
+                else aacConfig = size >= 4 && (data[2] & 0xff) >> 3 == 2;
+                return;
+            }
+            int track = video ? 0 : 1;
+            if (timestamp < last[track]) backwards++;
+            last[track] = timestamp;
+        }
+    }
+
+    /**
+     * Hundreds of sessions on two selector threads. Every session must get to publish and
+     * receive the shared group of pictures in real time, with continuous timestamps.
+     */
+    @Test
+    public void load() throws Exception {
+        int sessions = 500;
+        int threads = 2;
+        int seconds = 3;
+        int fps = 30;
+        FlvGop gop = FlvGop.synthetic(new SyntheticStream(640, 360, 300000, fps, fps), 200, 128);
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.start();
+            LoadGenerator generator = new LoadGenerator(gop, threads);
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                generator.publish(server.getUrl("live", "load-" + i));
+                // The server accepts with the default backlog of 50
+                if (i % 25 == 24) Thread.sleep(50);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (generator.getPublishing() + generator.getFailed() < sessions && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            long setup = (System.nanoTime() - start) / 1000000;
+            Thread.sleep(seconds * 1000);
+            int generatorThreads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("LoadGenerator")) generatorThreads++;
+            }
+            int publishing = generator.getPublishing();
+            generator.close();
+
+            long minFrames = Long.MAX_VALUE;
+            int keyFirst = 0;
+            for (RtmpIngestServer.Session session : server.getSessions()) {
+                session.awaitClose(5, TimeUnit.SECONDS);
+                minFrames = Math.min(minFrames, session.getVideoFrames());
+                if (session.startedWithKeyFrame()) keyFirst++;
+            }
+            assertEquals("sessions publishing after " + setup + " ms", sessions, publishing);
+            assertTrue(String.format(Locale.US, "%d failed, %d dropped, last error %s",
+                    generator.getFailed(), generator.getDropped(), generator.getLastError()),
+                    generator.getFailed() == 0 && generator.getDropped() == 0);
+            assertEquals("sessions accepted", sessions, server.getSessions().size());
+            assertEquals("streams starting with a key frame", sessions, keyFirst);
+            // Sequence header plus at least the frames of the run, the group repeats
+            assertTrue(String.format(Locale.US, "every session received at least %d video messages", minFrames),
+                    minFrames > seconds * fps);
+            // The server runs a thread per session on the same machine, so the bound is loose
+            long p99 = generator.getLateness().getPercentile(99) / 1000;
+            assertTrue(String.format(Locale.US, "99%% of the messages sent within %d ms of their timestamp", p99),
+                    p99 < gop.getDuration());
+            assertEquals("generator threads", threads, generatorThreads);
+        }
+    }
+
+    /**
+     * Probing the uplink before going live. Over a throttled uplink the probe must measure
+     * about its bandwidth and pick a rendition that fits, over plain loopback the top of the
+     * ladder. Either way the stream then starts with a key frame.
+     */
+    @Test
+    public void probe() throws Exception {
+        int bandwidth = 1000000;
+        for (int limit : new int[]{bandwidth, 0}) {
+            try (RtmpIngestServer server = new RtmpIngestServer()) {
+                if (limit > 0) server.setBandwidth(limit);
+                server.start();
+                SrsBandwidthProbe probe = new SrsBandwidthProbe();
+                Publish publish = new Publish(server, new SyntheticStream(640, 360, 300000, 30, 30));
+                CountDownLatch probed = new CountDownLatch(1);
+                publish.muxer.setBandwidthProbe(probe, (rendition, throughput) -> probed.countDown());
+                assertTrue("connected", publish.connect(limit > 0 ? "probe-throttled" : "probe"));
+                boolean done = probed.await(10, TimeUnit.SECONDS);
+                publish.feed(60, true);
+                boolean complete = publish.awaitLastFrame(5000);
+                publish.stop();
+
+                double throughput = probe.getThroughput();
+                SrsRendition selected = probe.getSelected();
+                List<SrsRendition> ladder = probe.getLadder();
+                assertTrue("probe selected a rendition", done && selected != null);
+                if (limit > 0) {
+                    assertTrue(String.format(Locale.US, "measured %.0f kbit/s close to the %d kbit/s uplink",
+                            throughput / 1000, limit / 1000), throughput >= limit * 0.6 && throughput <= limit * 1.2);
+                    assertTrue(selected + " fits the uplink", selected.getBitrate() + 64 * 1024 <= limit);
+                } else {
+                    assertSame(selected + " is the top of the ladder", ladder.get(ladder.size() - 1), selected);
+                }
+                assertTrue("last frame arrived", complete);
+                assertTrue("stream starts with a key frame", publish.session.startedWithKeyFrame());
+            }
+        }
+    }
+
+    /**
+     * Connecting in the middle of a long GOP. Without a key frame source the muxer drops video
+     * until the next GOP, with one the stream asks for a key frame and the server gets video
+     * within a frame or two.
+     */
+    @Test
+    public void keyFrame() throws Exception {
+        int gop = 300;
+        int frames = 60;
+        for (boolean source : new boolean[]{false, true}) {
+            try (RtmpIngestServer server = new RtmpIngestServer()) {
+                server.start();
+                SyntheticStream stream = new SyntheticStream(640, 360, 800000, 30, gop);
+                // The encoder has been running for a while, its last key frame was sent elsewhere
+                MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+                for (int i = 0; i < 10; i++) stream.nextFrame(bi);
+                Publish publish = new Publish(server, stream);
+                if (source) publish.muxer.setKeyFrameSource(stream);
+                assertTrue("connected", publish.connect(source ? "keyframe-requested" : "keyframe"));
+                publish.feed(frames, true);
+                boolean complete = publish.awaitLastFrame(source ? 5000 : 500);
+                SrsStats.Snapshot stats = publish.muxer.getStats().snapshot();
+                publish.stop();
+
+                long dropped = stats.get(SrsStats.Counter.DROPPED_MUX);
+                long requests = stats.get(SrsStats.Counter.KEY_FRAME_REQUESTS);
+                if (source) {
+                    assertTrue("last frame arrived", complete);
+                    assertTrue(dropped + " frames dropped waiting for the key frame", dropped <= 1);
+                    assertTrue("key frame requested", requests >= 1);
+                    assertTrue("stream starts with a key frame", publish.session.startedWithKeyFrame());
+                } else {
+                    // The sequence header only
+                    assertEquals("video messages before the next GOP", 1, publish.session.getVideoFrames());
+                    assertEquals("frames dropped waiting for the key frame", frames, dropped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ten minutes recorded, copied as they were on disk before the recording stopped, like
+     * after a crash. The copy is recovered from its sidecar index and replayed: with audio it
+     * may lose the samples after the last indexed key frame, video only recovers every frame.
+     * A recording switched to another rendition halfway recovers with a sample entry for each.
+     */
+    @Test
+    public void recovery() throws Exception {
+        File directory = Files.createTempDirectory("recovery").toFile();
+        int fps = 30;
+        int gop = 2 * fps;
+        int frames = 10 * 60 * fps;
+        try {
+            for (boolean audio : new boolean[]{true, false}) {
+                String name = audio ? "av" : "video";
+                File clip = new File(directory, name + ".mp4");
+                File crashed = new File(directory, name + "-crashed.mp4");
+                int audioFrames = recordClip(clip, new SyntheticStream(640, 360, 200000, fps, gop), frames, audio, crashed);
+                assertTrue("recorded " + clip, audioFrames >= 0);
+                assertTrue(name + ": index removed once stopped", !new File(clip.getPath() + ".idx").exists());
+
+                int recovered = SrsMp4Muxer.recover(crashed);
+                assertTrue(name + ": index removed once recovered", !new File(crashed.getPath() + ".idx").exists());
+                if (audio) {
+                    // One GOP of video and the audio along with it
+                    int lost = gop + gop * 44100 / 1024 / fps + 2;
+                    assertTrue(String.format(Locale.US, "%s: lost %d samples, at most %d",
+                            name, frames + audioFrames - recovered, lost), recovered >= frames + audioFrames - lost);
+                } else {
+                    assertEquals(name + ": frames recovered", frames, recovered);
+                }
+
+                try (Mp4Replay replay = new Mp4Replay(crashed);
+                     RtmpIngestServer server = new RtmpIngestServer()) {
+                    server.start();
+                    ReplayCheck replayCheck = new ReplayCheck();
+                    server.setListener(replayCheck);
+                    replay.setRealTime(false);
+                    boolean published = replay.publish(new SrsRtmpPublisher(new RtmpHandler(null)), server.getUrl("live", name));
+                    RtmpIngestServer.Session session = server.getSessions().get(0);
+                    session.awaitClose(5, TimeUnit.SECONDS);
+                    // Less the sequence headers
+                    long samples = session.getVideoFrames() - 1 + (audio ? session.getAudioFrames() - 1 : 0);
+                    assertTrue(name + ": published", published);
+                    assertEquals(name + ": samples replayed", recovered, samples);
+                    assertTrue(name + ": stream starts with a key frame", session.startedWithKeyFrame());
+                    assertEquals(name + ": timestamps went backwards", 0, replayCheck.backwards);
+                }
+            }
+
+            File clip = new File(directory, "switch.mp4");
+            File crashed = new File(directory, "switch-crashed.mp4");
+            assertTrue("recorded " + clip, recordClip(clip, new SyntheticStream(1280, 720, 500000, fps, gop),
+                    new SyntheticStream(640, 360, 200000, fps, gop), frames, false, crashed) >= 0);
+            assertEquals("switch: frames recovered", frames, SrsMp4Muxer.recover(crashed));
+            IsoFile isoFile = IsoFile.mapped(crashed);
+            SampleTableBox stbl = isoFile.getMovieBox().getBoxes(TrackBox.class).get(0).getSampleTableBox();
+            List<VisualSampleEntry> entries = stbl.getSampleDescriptionBox().getBoxes(VisualSampleEntry.class);
+            assertEquals("switch: sample entries", 2, entries.size());
+            assertEquals("switch: width before", 1280, entries.get(0).getWidth());
+            assertEquals("switch: width after", 640, entries.get(1).getWidth());
+            assertEquals("switch: height after", 360, entries.get(1).getHeight());
+            int[] described = sampleDescriptionIndices(stbl);
+            int misdescribed = 0;
+            for (int i = 0; i < described.length; i++) {
+                if (described[i] != (i < frames / 2 ? 1 : 2)) misdescribed++;
+            }
+            assertEquals("switch: samples", frames, described.length);
+            assertEquals("switch: samples with the wrong sample entry", 0, misdescribed);
+            isoFile.close();
+        } finally {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Two B-frames between reference frames, in decode order, then three in a pyramid whose
+     * SPS does not tell the reorder depth, so a frame is decoded after it is presented.
+     * Published, the tag timestamps must never go back and timestamp plus composition time must
+     * give every presentation time once. Recorded, the MP4 must have the same, its decoding times
+     * in stts and the rest in ctts, signed in version 1 with cslg once an offset is negative.
+     */
+    @Test
+    public void bFrames() throws Exception {
+        int fps = 30;
+        int frames = 300;
+        for (boolean pyramid : new boolean[]{false, true}) {
+            String name = pyramid ? "pyramid" : "bframes";
+            try (RtmpIngestServer server = new RtmpIngestServer()) {
+                server.start();
+                SyntheticStream stream = bFrameStream(fps, pyramid);
+                Publish publish = new Publish(server, stream);
+                CompositionCheck compositionCheck = new CompositionCheck();
+                server.setListener(compositionCheck);
+                assertTrue(name + ": connected", publish.connect(name));
+                publish.feed(frames, false);
+                long deadline = System.currentTimeMillis() + 5000;
+                while (publish.session.getVideoFrames() < frames + 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                publish.stop();
+
+                List<Integer> presented = compositionCheck.getPresentationTimes();
+                assertEquals(name + ": frames received", frames, presented.size());
+                assertEquals(name + ": timestamps went backwards", 0, compositionCheck.backwards);
+                assertTrue(name + ": composition times sent", compositionCheck.reordered > 0);
+                for (int i = 0; i < presented.size(); i++) {
+                    int expected = (int) (stream.getPresentationTimeUs(i) / 1000);
+                    assertEquals(name + ": frame " + i + " presented", expected, (int) presented.get(i));
+                }
+            }
+
+            File directory = Files.createTempDirectory("bframes").toFile();
+            File clip = new File(directory, "clip.mp4");
+            try {
+                SyntheticStream stream = bFrameStream(fps, pyramid);
+                assertTrue(name + ": recorded " + clip, recordClip(clip, stream, frames, false, null) >= 0);
+                IsoFile isoFile = IsoFile.mapped(clip);
+                TrackBox trak = isoFile.getMovieBox().getBoxes(TrackBox.class).get(0);
+                SampleTableBox stbl = trak.getSampleTableBox();
+                CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+                assertNotNull(name + ": ctts written", ctts);
+                SampleReader samples = new SampleReader(trak);
+                long frameDuration = samples.getTimescale() / fps;
+                long[] presented = new long[samples.getSampleCount()];
+                int backwards = 0;
+                int negative = 0;
+                for (int i = 0; i < presented.length; i++) {
+                    presented[i] = samples.getCompositionTime(i);
+                    if (i > 0 && samples.getDecodingTime(i) < samples.getDecodingTime(i - 1)) backwards++;
+                    if (presented[i] < samples.getDecodingTime(i)) negative++;
+                }
+                Arrays.sort(presented);
+                int gaps = 0;
+                for (int i = 1; i < presented.length; i++) {
+                    if (presented[i] - presented[i - 1] != frameDuration) gaps++;
+                }
+                assertEquals(name + ": frames recorded", frames, presented.length);
+                assertEquals(name + ": decoding times went backwards", 0, backwards);
+                assertEquals(name + ": presentation times off the frame rate", 0, gaps);
+                List<CompositionShiftLeastGreatestAtom> cslg = stbl.getBoxes(CompositionShiftLeastGreatestAtom.class);
+                if (pyramid) {
+                    assertTrue(name + ": frames decoded after they are presented", negative > 0);
+                    assertEquals(name + ": ctts version", 1, ctts.getVersion());
+                    assertEquals(name + ": cslg boxes", 1, cslg.size());
+                    assertTrue(name + ": least composition offset negative", cslg.get(0).getLeastDisplayOffset() < 0);
+                    assertEquals(name + ": composition to decoding shift", -cslg.get(0).getLeastDisplayOffset(),
+                            cslg.get(0).getCompositionOffsetToDisplayOffsetShift());
+                } else {
+                    assertEquals(name + ": frames decoded after they are presented", 0, negative);
+                    assertEquals(name + ": ctts version", 0, ctts.getVersion());
+                    assertTrue(name + ": no cslg", cslg.isEmpty());
+                }
+                isoFile.close();
+            } finally {
+                for (File file : directory.listFiles()) file.delete();
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * @param pyramid Three B-frames in a pyramid, else two
+     */
+    private static SyntheticStream bFrameStream(int fps, boolean pyramid) {
+        return pyramid ? new SyntheticStream(640, 360, 800000, fps, 2 * fps, 3).setPyramidB()
+                : new SyntheticStream(640, 360, 800000, fps, 2 * fps, 2);
+    }
+
+    /**
+     * H.265 with B-frames: published in enhanced RTMP tags with the presentation times the
+     * encoder gave, recorded as hvc1 with the hvcC built from the VPS, SPS and PPS, and
+     * recovered from a recording that was not stopped.
+     */
+    @Test
+    public void hevc() throws Exception {
+        int fps = 30;
+        int gop = 2 * fps;
+        int frames = 300;
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.start();
+            SyntheticStream stream = new SyntheticStream(640, 360, 800000, fps, gop, 2, MediaFormat.MIMETYPE_VIDEO_HEVC);
+            Publish publish = new Publish(server, stream);
+            HevcCheck hevcCheck = new HevcCheck();
+            server.setListener(hevcCheck);
+            assertTrue("connected", publish.connect("hevc"));
+            publish.feed(frames, false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (publish.session.getVideoFrames() < frames + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            publish.stop();
+
+            List<Integer> presented = hevcCheck.getPresentationTimes();
+            assertEquals("sequence starts", 1, hevcCheck.sequenceStarts);
+            assertEquals("video tags without the hvc1 FourCC", 0, hevcCheck.invalid);
+            assertEquals("frames received", frames, presented.size());
+            assertTrue("stream starts with a key frame", publish.session.startedWithKeyFrame());
+            assertEquals("key frames", frames / gop, publish.session.getKeyFrames() - 1);
+            assertEquals("timestamps went backwards", 0, hevcCheck.backwards);
+            assertTrue("composition times sent", hevcCheck.reordered > 0);
+            for (int i = 0; i < presented.size(); i++) {
+                int expected = (int) (stream.getPresentationTimeUs(i) / 1000);
+                assertEquals("frame " + i + " presented", expected, (int) presented.get(i));
+            }
+        }
+
+        File directory = Files.createTempDirectory("hevc").toFile();
+        File clip = new File(directory, "clip.mp4");
+        File crashed = new File(directory, "crashed.mp4");
+        try {
+            SyntheticStream stream = new SyntheticStream(640, 360, 800000, fps, gop, 2, MediaFormat.MIMETYPE_VIDEO_HEVC);
+            assertTrue("recorded " + clip, recordClip(clip, stream, frames, false, crashed) >= 0);
+            for (File file : new File[]{clip, crashed}) {
+                if (file == crashed) {
+                    int recovered = SrsMp4Muxer.recover(crashed);
+                    assertEquals("frames recovered", frames, recovered);
+                }
+                IsoFile isoFile = IsoFile.mapped(file);
+                TrackBox trak = isoFile.getMovieBox().getBoxes(TrackBox.class).get(0);
+                VisualSampleEntry entry = (VisualSampleEntry) trak.getSampleTableBox().getSampleDescriptionBox().getSampleEntry();
+                List<HevcConfigurationBox> hvcC = entry.getBoxes(HevcConfigurationBox.class);
+                assertEquals(file.getName() + ": sample entry", "hvc1", entry.getType());
+                assertTrue(String.format(Locale.US, "%s: %dx%d, expected 640x360",
+                        file.getName(), entry.getWidth(), entry.getHeight()), entry.getWidth() == 640 && entry.getHeight() == 360);
+                assertTrue(file.getName() + ": hvcC with VPS, SPS and PPS",
+                        hvcC.size() == 1 && hvcC.get(0).getHevcDecoderConfigurationRecord().arrays.size() == 3);
+                int syncSamples = trak.getSampleTableBox().getSyncSampleBox().getSampleNumber().length;
+                SampleReader samples = new SampleReader(trak);
+                assertEquals(file.getName() + ": frames", frames, samples.getSampleCount());
+                assertEquals(file.getName() + ": sync samples", frames / gop, syncSamples);
+                // Length prefixed slices, without the parameter sets
+                ByteBuffer sample = samples.getSample(0);
+                assertTrue(file.getName() + ": first sample is an IDR slice",
+                        sample.getInt(0) == sample.remaining() - 4 && (sample.get(4) & 0x7e) >> 1 == 19);
+                isoFile.close();
+            }
+        } finally {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Real-time publishing of temporal layers over an uplink slower than the stream: the sender
+     * sheds the highest layers instead of flushing the queue, every base layer frame arrives
+     * and the stream goes on without a key frame request.
+     */
+    @Test
+    public void layers() throws Exception {
+        int bandwidth = 1000000;
+        int fps = 30;
+        int frames = fps * 6;
+        for (String mime : new String[]{MediaFormat.MIMETYPE_VIDEO_AVC, MediaFormat.MIMETYPE_VIDEO_HEVC}) {
+            boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+            int layers = hevc ? 3 : 2;
+            String name = hevc ? "hevc" : "avc";
+            try (RtmpIngestServer server = new RtmpIngestServer()) {
+                server.setBandwidth(bandwidth);
+                server.start();
+                SyntheticStream stream = new SyntheticStream(1280, 720, bandwidth * 8 / 5, fps, fps, 0, mime)
+                        .setTemporalLayers(layers);
+                Publish publish = new Publish(server, stream);
+                LayerCheck layerCheck = new LayerCheck(hevc);
+                server.setListener(layerCheck);
+                assertTrue(name + ": connected", publish.connect("layers-" + name));
+                publish.feed(frames, true);
+
+                int[] fed = new int[layers];
+                int lastBase = 0;
+                for (int i = 0; i < frames; i++) {
+                    int layer = stream.getTemporalLayer(i % fps);
+                    fed[layer]++;
+                    if (layer == 0) lastBase = i;
+                }
+                // The last frame may be one that was shed, wait for the last base layer frame
+                int last = (int) (stream.getPresentationTimeUs(lastBase) / 1000);
+                long deadline = System.currentTimeMillis() + 10000;
+                while (publish.session.getLastVideoTimestamp() < last && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                SrsStats.Snapshot stats = publish.muxer.getStats().snapshot();
+                publish.stop();
+                int[] received = Arrays.copyOf(layerCheck.received, layers);
+                assertTrue(name + ": temporal layers shed", stats.get(SrsStats.Counter.DROPPED_LAYER) > 0);
+                assertEquals(name + ": base layer frames received", fed[0], received[0]);
+                assertTrue(String.format(Locale.US, "%s: fed %s, received %s, highest layer not shed",
+                        name, Arrays.toString(fed), Arrays.toString(received)), received[layers - 1] < fed[layers - 1]);
+                assertEquals(name + ": frames flushed from the send queue", 0,
+                        stats.get(SrsStats.Counter.DROPPED_SEND));
+                assertEquals(name + ": frames waiting for a key frame", 0, stats.get(SrsStats.Counter.DROPPED_MUX));
+                assertTrue(name + ": stream starts with a key frame", publish.session.startedWithKeyFrame());
+                assertEquals(name + ": timestamps went backwards", 0, layerCheck.backwards);
+            }
+        }
+    }
+
+    /**
+     * Intra refresh instead of periodic key frames. Published faster than the uplink until the
+     * send queue overflows, the sender resumes at the start of a refresh cycle without asking
+     * the encoder for a key frame, and every cycle start is tagged seekable. Recorded, every
+     * cycle start is a sync sample, in the recording index too.
+     */
+    @Test
+    public void refresh() throws Exception {
+        int fps = 30;
+        int period = fps;
+        // Past what the send queue holds
+        int frames = 1024 + 3 * period;
+        try (RtmpIngestServer server = new RtmpIngestServer()) {
+            server.setBandwidth(8000000);
+            server.start();
+            SyntheticStream stream = new SyntheticStream(1280, 720, 4000000, fps, 2 * fps).setIntraRefresh(period);
+            Publish publish = new Publish(server, stream);
+            publish.muxer.setKeyFrameSource(stream);
+            RefreshCheck refreshCheck = new RefreshCheck(fps, period);
+            server.setListener(refreshCheck);
+            assertTrue("connected", publish.connect("refresh"));
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            for (int i = 0; i < frames; i++) {
+                publish.muxer.writeVideoSample(stream.nextFrame(bi), bi);
+            }
+            boolean complete = publish.awaitLastFrame(10000);
+            SrsStats.Snapshot stats = publish.muxer.getStats().snapshot();
+            publish.stop();
+
+            assertTrue("last frame arrived", complete);
+            assertTrue("send queue flushed", stats.get(SrsStats.Counter.DROPPED_SEND) > 0);
+            assertEquals("key frames requested", 0, stats.get(SrsStats.Counter.KEY_FRAME_REQUESTS));
+            assertTrue("resumed at a refresh cycle", refreshCheck.resumed > 0);
+            assertEquals("seekable frames not at a cycle start", 0, refreshCheck.misplaced);
+            assertEquals("times resumed at an inter frame", 0, refreshCheck.broken);
+            assertTrue("stream starts with a key frame", publish.session.startedWithKeyFrame());
+        }
+
+        File directory = Files.createTempDirectory("refresh").toFile();
+        File clip = new File(directory, "clip.mp4");
+        File crashed = new File(directory, "crashed.mp4");
+        frames = 10 * fps;
+        try {
+            SyntheticStream stream = new SyntheticStream(640, 360, 200000, fps, 2 * fps).setIntraRefresh(period);
+            assertTrue("recorded " + clip, recordClip(clip, stream, frames, false, crashed) >= 0);
+            SrsMp4Muxer.recover(crashed);
+            for (File file : new File[]{clip, crashed}) {
+                IsoFile isoFile = IsoFile.mapped(file);
+                TrackBox trak = isoFile.getMovieBox().getBoxes(TrackBox.class).get(0);
+                long[] syncSamples = trak.getSampleTableBox().getSyncSampleBox().getSampleNumber();
+                boolean cycles = syncSamples.length == frames / period;
+                for (int i = 0; cycles && i < syncSamples.length; i++) {
+                    cycles = syncSamples[i] == 1 + i * period;
+                }
+                assertTrue(String.format(Locale.US, "%s: sync samples %s, expected every %d frames", file.getName(),
+                        Arrays.toString(syncSamples), period), cycles);
+                isoFile.close();
+            }
+        } finally {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * A switch from 1280x720 at 30 fps with B-frames to 640x360 at 15 fps mid-stream. Published,
+     * the same session gets a second sequence header with the new parameter sets and metadata
+     * with the new size and frame rate, the first frame after it is a key frame, and the
+     * timestamps go on. Recorded, a second sample entry describes the frames after the switch.
+     */
+    @Test
+    public void rendition() throws Exception {
+        int before = 60 + 1 + 27;
+        int after = 60;
+        for (String mime : new String[]{MediaFormat.MIMETYPE_VIDEO_AVC, MediaFormat.MIMETYPE_VIDEO_HEVC}) {
+            boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+            String name = hevc ? "hevc" : "avc";
+            try (RtmpIngestServer server = new RtmpIngestServer()) {
+                server.start();
+                SyntheticStream first = new SyntheticStream(1280, 720, 2000000, 30, 60, hevc ? 0 : 2, mime);
+                SyntheticStream second = new SyntheticStream(640, 360, 500000, 15, 30, 0, mime);
+                Publish publish = new Publish(server, first);
+                RenditionCheck renditionCheck = new RenditionCheck(hevc);
+                server.setListener(renditionCheck);
+                assertTrue(name + ": connected", publish.connect("rendition-" + name));
+                publish.feed(before, false);
+                second.continueFrom(first);
+                publish.muxer.updateVideoTrack(second.getFormat());
+                MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+                publish.muxer.writeVideoSample(second.codecConfig(bi), bi);
+                for (int i = 0; i < after; i++) {
+                    while (publish.muxer.getVideoFrameCacheNumber().get() > 16) Thread.sleep(1);
+                    publish.muxer.writeVideoSample(second.nextFrame(bi), bi);
+                }
+                int last = (int) (second.getPresentationTimeUs(after - 1) / 1000);
+                long deadline = System.currentTimeMillis() + 5000;
+                while (publish.session.getLastVideoTimestamp() < last && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                publish.stop();
+
+                List<AmfObject> metaData = publish.session.getMetaData();
+                AmfObject latest = metaData.isEmpty() ? null : metaData.get(metaData.size() - 1);
+                double width = latest != null ? ((AmfNumber) latest.getProperty("width")).getValue() : 0;
+                double height = latest != null ? ((AmfNumber) latest.getProperty("height")).getValue() : 0;
+                double fps = latest != null ? ((AmfNumber) latest.getProperty("framerate")).getValue() : 0;
+                assertEquals(name + ": sessions", 1, server.getSessions().size());
+                assertEquals(name + ": frames received", before + after, renditionCheck.frames);
+                assertEquals(name + ": sequence headers", 2, renditionCheck.sequenceHeaders);
+                assertEquals(name + ": sequence headers followed by a key frame", 2, renditionCheck.keyAfterHeader);
+                assertTrue(name + ": metadata sent again", metaData.size() >= 2);
+                assertTrue(String.format(Locale.US, "%s: metadata %.0fx%.0f at %.0f fps, expected 640x360 at 15 fps",
+                        name, width, height, fps), width == 640 && height == 360 && fps == 15);
+                assertEquals(name + ": timestamps went backwards", 0, renditionCheck.backwards);
+            }
+
+            File directory = Files.createTempDirectory("rendition").toFile();
+            File clip = new File(directory, "clip.mp4");
+            try {
+                SyntheticStream first = new SyntheticStream(1280, 720, 2000000, 30, 60, hevc ? 0 : 2, mime);
+                SyntheticStream second = new SyntheticStream(640, 360, 500000, 15, 30, 0, mime);
+                RecordFinished finished = new RecordFinished();
+                recordListener = finished;
+                SrsMp4Muxer muxer = new SrsMp4Muxer(clip, new SrsRecordHandler(finished));
+                muxer.addTrack(first.getFormat());
+                assertTrue(name + ": recorded " + clip, muxer.record());
+                MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+                muxer.writeVideoSample(first.codecConfig(bi), bi);
+                for (int i = 0; i < before; i++) {
+                    muxer.writeVideoSample(first.nextFrame(bi), bi);
+                }
+                second.continueFrom(first);
+                muxer.addTrack(second.getFormat());
+                muxer.writeVideoSample(second.codecConfig(bi), bi);
+                for (int i = 0; i < after; i++) {
+                    muxer.writeVideoSample(second.nextFrame(bi), bi);
+                }
+                // Let the writer catch up before it is stopped
+                long length;
+                do {
+                    length = clip.length();
+                    Thread.sleep(600);
+                } while (clip.length() != length);
+                muxer.stop();
+                assertTrue(name + ": recording finished", finished.latch.await(5, TimeUnit.SECONDS));
+
+                IsoFile isoFile = IsoFile.mapped(clip);
+                TrackBox trak = isoFile.getMovieBox().getBoxes(TrackBox.class).get(0);
+                SampleTableBox stbl = trak.getSampleTableBox();
+                List<VisualSampleEntry> entries = stbl.getSampleDescriptionBox().getBoxes(VisualSampleEntry.class);
+                assertEquals(name + ": sample entries", 2, entries.size());
+                assertTrue(String.format(Locale.US, "%s: sample entries %dx%d and %dx%d", name,
+                        entries.get(0).getWidth(), entries.get(0).getHeight(), entries.get(1).getWidth(),
+                        entries.get(1).getHeight()),
+                        entries.get(0).getWidth() == 1280 && entries.get(1).getWidth() == 640
+                                && entries.get(1).getHeight() == 360);
+                int[] described = sampleDescriptionIndices(stbl);
+                int misdescribed = 0;
+                for (int i = 0; i < described.length; i++) {
+                    if (described[i] != (i < before ? 1 : 2)) misdescribed++;
+                }
+                SampleReader samples = new SampleReader(trak);
+                int backwards = 0;
+                for (int i = 1; i < samples.getSampleCount(); i++) {
+                    if (samples.getDecodingTime(i) < samples.getDecodingTime(i - 1)) backwards++;
+                }
+                long[] syncSamples = stbl.getSyncSampleBox().getSampleNumber();
+                assertEquals(name + ": frames", before + after, samples.getSampleCount());
+                assertEquals(name + ": samples", before + after, described.length);
+                assertEquals(name + ": samples with the wrong sample entry", 0, misdescribed);
+                assertTrue(name + ": first frame after the switch is a sync sample",
+                        Arrays.binarySearch(syncSamples, before + 1) >= 0);
+                assertEquals(name + ": decoding times went backwards", 0, backwards);
+                isoFile.close();
+            } finally {
+                for (File file : directory.listFiles()) file.delete();
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Sample description index of every sample, from stsc and the number of chunks
+     */
+    private static int[] sampleDescriptionIndices(SampleTableBox stbl) {
+        List<SampleToChunkBox.Entry> entries = stbl.getSampleToChunkBox().getEntries();
+        long chunks = stbl.getChunkOffsetBox().getChunkOffsets().length;
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            SampleToChunkBox.Entry entry = entries.get(i);
+            long end = i + 1 < entries.size() ? entries.get(i + 1).getFirstChunk() : chunks + 1;
+            for (long chunk = entry.getFirstChunk(); chunk < end; chunk++) {
+                for (long sample = 0; sample < entry.getSamplesPerChunk(); sample++) {
+                    indices.add((int) entry.getSampleDescriptionIndex());
+                }
+            }
+        }
+        int[] result = new int[indices.size()];
+        for (int i = 0; i < result.length; i++) result[i] = indices.get(i);
+        return result;
+    }
+
+    /**
+     * Video frames tagged seekable, and where the stream resumed after a gap
+     */
+    private static final class RefreshCheck implements RtmpIngestServer.Listener {
+        private final int fps;
+        private final int period;
+        private int last = -1;
+        volatile int resumed;
+        volatile int misplaced;
+        volatile int broken;
+
+        RefreshCheck(int fps, int period) {
+            this.fps = fps;
+            this.period = period;
+        }
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            // Video NALU, not the sequence header
+            if (type != FlvRecorder.TAG_VIDEO || size < 2 || data[1] != 1) return;
+            int index = (int) Math.round(timestamp * fps / 1000.0);
+            boolean key = (data[0] >> 4 & 0x07) == 1;
+            if (key && index % period != 0) misplaced++;
+            if (last >= 0 && index != last + 1) {
+                if (key) resumed++;
+                else broken++;
+            }
+            last = index;
+        }
+    }
+
+    /**
+     * Video sequence headers and frames, and whether a key frame follows each sequence header
+     */
+    private static final class RenditionCheck implements RtmpIngestServer.Listener {
+        private final boolean hevc;
+        private boolean header;
+        private int last = -1;
+        volatile int sequenceHeaders;
+        volatile int keyAfterHeader;
+        volatile int frames;
+        volatile int backwards;
+
+        RenditionCheck(boolean hevc) {
+            this.hevc = hevc;
+        }
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            if (type != FlvRecorder.TAG_VIDEO || size < 2) return;
+            // Enhanced RTMP sequence start, or AVC sequence header
+            if (hevc ? (data[0] & 0x0f) == 0 : data[1] == 0) {
+                sequenceHeaders++;
+                header = true;
+                return;
+            }
+            if (header && (data[0] >> 4 & 0x07) == 1) keyAfterHeader++;
+            header = false;
+            if (timestamp < last) backwards++;
+            last = timestamp;
+            frames++;
+        }
+    }
+
+    /**
+     * Video frames received per temporal layer, from the NAL unit header of the first slice
+     */
+    private static final class LayerCheck implements RtmpIngestServer.Listener {
+        final int[] received = new int[8];
+        private final boolean hevc;
+        volatile int backwards;
+        private int last = -1;
+
+        LayerCheck(boolean hevc) {
+            this.hevc = hevc;
+        }
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            if (type != FlvRecorder.TAG_VIDEO || size < 11) return;
+            int layer;
+            if (hevc) {
+                // Coded frames without composition time, then the length of the first NAL unit
+                if ((data[0] & 0x0f) != 3) return;
+                layer = (data[10] & 0x07) - 1;
+            } else {
+                if (data[1] != 1) return;
+                // Non-reference slices are the highest of two layers
+                layer = (data[9] & 0x60) == 0 ? 1 : 0;
+            }
+            if (timestamp < last) backwards++;
+            last = timestamp;
+            received[layer]++;
+        }
+    }
+
+    /**
+     * Enhanced RTMP video tags of H.265: the sequence start and the frames, with their
+     * presentation times
+     */
+    private static final class HevcCheck implements RtmpIngestServer.Listener {
+        private final List<Integer> presented = new ArrayList<>();
+        volatile int sequenceStarts;
+        volatile int invalid;
+        volatile int backwards;
+        volatile int reordered;
+        private int last = -1;
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            if (type != FlvRecorder.TAG_VIDEO) return;
+            int fourCc = size < 5 ? 0 : (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8 | data[4] & 0xff;
+            if ((data[0] & 0x80) == 0 || fourCc != 0x68766331) {
+                invalid++;
+                return;
+            }
+            int packetType = data[0] & 0x0f;
+            if (packetType == 0) {
+                sequenceStarts++;
+                return;
+            }
+            // Coded frames with a composition time, or without
+            int cts = packetType == 1 ? data[5] << 16 | (data[6] & 0xff) << 8 | data[7] & 0xff : 0;
+            if (timestamp < last) backwards++;
+            if (cts != 0) reordered++;
+            last = timestamp;
+            synchronized (presented) {
+                presented.add(timestamp + cts);
+            }
+        }
+
+        /**
+         * @return Presentation times received, sorted
+         */
+        List<Integer> getPresentationTimes() {
+            synchronized (presented) {
+                List<Integer> sorted = new ArrayList<>(presented);
+                sorted.sort(null);
+                return sorted;
+            }
+        }
+    }
+
+    /**
+     * Presentation times of the video tags, timestamp plus composition time
+     */
+    private static final class CompositionCheck implements RtmpIngestServer.Listener {
+        private final List<Integer> presented = new ArrayList<>();
+        volatile int backwards;
+        volatile int reordered;
+        private int last = -1;
+
+        @Override
+        public void onMedia(RtmpIngestServer.Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos) {
+            // Video NALU, not the sequence header
+            if (type != FlvRecorder.TAG_VIDEO || size < 5 || data[1] != 1) return;
+            int cts = (data[2] << 16 | (data[3] & 0xff) << 8 | data[4] & 0xff);
+            if (timestamp < last) backwards++;
+            if (cts != 0) reordered++;
+            last = timestamp;
+            synchronized (presented) {
+                presented.add(timestamp + cts);
+            }
+        }
+
+        /**
+         * @return Presentation times received, sorted
+         */
+        List<Integer> getPresentationTimes() {
+            synchronized (presented) {
+                List<Integer> sorted = new ArrayList<>(presented);
+                sorted.sort(null);
+                return sorted;
+            }
+        }
+    }
+
+    /**
+     * Record synthetic video and 44.1 kHz AAC sized audio frames to a MP4 file
+     *
+     * @param audio     Record audio along with the video
+     * @param crashCopy Where to copy the recording and its index before it is stopped, or null
+     * @return Number of audio frames recorded, -1 when recording failed
+     */
+    private int recordClip(File file, SyntheticStream stream, int frames, boolean audio, File crashCopy)
+            throws InterruptedException, IOException {
+        return recordClip(file, stream, null, frames, audio, crashCopy);
+    }
+
+    /**
+     * @param next Stream switched to halfway, like a new rendition, null to keep the first
+     */
+    private int recordClip(File file, SyntheticStream stream, SyntheticStream next, int frames, boolean audio,
+                           File crashCopy) throws InterruptedException, IOException {
+        RecordFinished finished = new RecordFinished();
+        // The handler only keeps a weak reference
+        recordListener = finished;
+        SrsRecordHandler handler = new SrsRecordHandler(finished);
+        SrsMp4Muxer muxer = new SrsMp4Muxer(file, handler);
+        MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 64000);
+        muxer.addTrack(stream.getFormat());
+        if (audio) muxer.addTrack(audioFormat);
+        if (!muxer.record()) return -1;
+
+        MediaCodec.BufferInfo config = new MediaCodec.BufferInfo();
+        muxer.writeVideoSample(stream.codecConfig(config), config);
+        MediaCodec.BufferInfo audioConfig = new MediaCodec.BufferInfo();
+        audioConfig.set(0, 2, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        muxer.writeAudioSample(ByteBuffer.wrap(new byte[]{0x12, 0x10}), audioConfig);
+
+        // 1024 samples per AAC frame
+        long audioFrameUs = 1024 * 1000000L / 44100;
+        long endUs = stream.getPresentationTimeUs(frames);
+        int audioFrames = 0;
+        for (int i = 0; i < frames; i++) {
+            if (next != null && i == frames / 2) {
+                next.continueFrom(stream);
+                stream = next;
+                muxer.addTrack(stream.getFormat());
+                MediaCodec.BufferInfo nextConfig = new MediaCodec.BufferInfo();
+                muxer.writeVideoSample(stream.codecConfig(nextConfig), nextConfig);
+            }
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            muxer.writeVideoSample(stream.nextFrame(bi), bi);
+            long nextVideoUs = stream.getPresentationTimeUs(stream.getFrameCount());
+            while (audio && audioFrames * audioFrameUs < nextVideoUs && audioFrames * audioFrameUs < endUs) {
+                MediaCodec.BufferInfo ai = new MediaCodec.BufferInfo();
+                ai.set(0, 200, audioFrames * audioFrameUs, 0);
+                muxer.writeAudioSample(ByteBuffer.wrap(new byte[200]), ai);
+                audioFrames++;
+            }
+        }
+        // Let the writer catch up before it is stopped, it may take 500 ms to notice new frames
+        long length;
+        do {
+            length = file.length();
+            Thread.sleep(600);
+        } while (file.length() != length);
+        if (crashCopy != null) {
+            Files.copy(file.toPath(), crashCopy.toPath());
+            Files.copy(new File(file.getPath() + ".idx").toPath(), new File(crashCopy.getPath() + ".idx").toPath());
+        }
+        muxer.stop();
+        return finished.latch.await(5, TimeUnit.SECONDS) ? audioFrames : -1;
+    }
+
+    private static final class RecordFinished implements SrsRecordHandler.SrsRecordListener {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onRecordPause() {
+        }
+
+        @Override
+        public void onRecordResume() {
+        }
+
+        @Override
+        public void onRecordStarted(String msg) {
+        }
+
+        @Override
+        public void onRecordFinished(String msg) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onRecordIllegalArgumentException(IllegalArgumentException e) {
+        }
+
+        @Override
+        public void onRecordIOException(IOException e) {
+        }
+    }
+
+    private static int countFlvTags(File file) throws IOException {
+        int tags = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.skipBytes(9 + 4);
+            while (true) {
+                in.readUnsignedByte();
+                int size = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                in.skipBytes(7 + size + 4);
+                tags++;
+            }
+        } catch (EOFException e) {
+            return tags;
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package net.ossrs.yasea.ingest;
+
+import android.util.Log;
+import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpDecoder;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Data;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal RTMP ingest server to publish against in end-to-end tests.
+ * <p>
+ * Accepts publishers on the loopback interface and speaks enough of the protocol for
+ * {@link com.github.faucamp.simplertmp.io.RtmpConnection}: the simple handshake, connect,
+ * releaseStream, FCPublish, createStream, publish and deleteStream, chunk size changes,
+ * acknowledgement windows and ping requests. Received audio, video and meta data can be
+ * recorded as FLV and are reported to a {@link Listener} with their arrival time.
+ * <p>
+ * The path from the publisher to the server can be shaped with a bandwidth limit, added
+ * latency and segment loss, see {@link ShapedInputStream}. Shaping applies to connections
+ * accepted after it was set.
+ */
+public final class RtmpIngestServer implements Closeable {
+
+    private static final String TAG = "RtmpIngestServer";
+    private static final int HANDSHAKE_SIZE = 1536;
+    // Same as SRS
+    private static final int DEFAULT_CHUNK_SIZE = 60000;
+    private static final int DEFAULT_ACK_WINDOW_SIZE = 2500000;
+    private static final int STREAM_ID = 1;
+
+    /**
+     * Receives the media of all sessions, called on the session thread
+     */
+    public interface Listener {
+
+        /**
+         * @param session      Session
+         * @param type         FLV tag type, 8 for audio and 9 for video
+         * @param timestamp    RTMP timestamp in milliseconds
+         * @param data         FLV tag body
+         * @param size         Size of the body
+         * @param arrivalNanos When the message was complete, in System.nanoTime() units
+         */
+        void onMedia(Session session, int type, int timestamp, byte[] data, int size, long arrivalNanos);
+    }
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private volatile Listener listener;
+    private volatile File recordDirectory;
+    private volatile long bandwidth;
+    private volatile int latency;
+    private volatile double loss;
+    private volatile int retransmitTimeout = 200;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile int receiveBufferSize = 64 * 1024;
+
+    /**
+     * Limit the bandwidth from the publisher to the server
+     *
+     * @param bitsPerSecond Bandwidth, 0 for unlimited
+     */
+    public void setBandwidth(long bitsPerSecond) {
+        bandwidth = bitsPerSecond;
+    }
+
+    /**
+     * Delay everything the publisher sends, which adds to the round trip time as well
+     *
+     * @param millis Latency in milliseconds
+     */
+    public void setLatency(int millis) {
+        latency = millis;
+    }
+
+    /**
+     * Lose segments on the way to the server, each loss stalls the stream for the
+     * retransmission timeout
+     *
+     * @param probability   Loss probability per segment between 0 and 1
+     * @param timeoutMillis Retransmission timeout in milliseconds
+     */
+    public void setLoss(double probability, int timeoutMillis) {
+        loss = probability;
+        retransmitTimeout = timeoutMillis;
+    }
+
+    /**
+     * Set the chunk size announced to publishers
+     *
+     * @param size Chunk size in bytes
+     */
+    public void setChunkSize(int size) {
+        chunkSize = size;
+    }
+
+    /**
+     * Set the socket receive buffer, smaller buffers make the publisher feel throttling sooner
+     *
+     * @param size Buffer size in bytes
+     */
+    public void setReceiveBufferSize(int size) {
+        receiveBufferSize = size;
+    }
+
+    /**
+     * Record every published stream to {@code <directory>/<stream>.flv}
+     *
+     * @param directory Directory, null to stop recording
+     */
+    public void setRecordDirectory(File directory) {
+        recordDirectory = directory;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start accepting connections on an ephemeral loopback port
+     *
+     * @return Port
+     */
+    public synchronized int start() throws IOException {
+        if (serverSocket != null) throw new IllegalStateException("Server is already running");
+        serverSocket = new ServerSocket();
+        // Accepted sockets inherit the receive buffer, it has to be set before binding
+        serverSocket.setReceiveBufferSize(receiveBufferSize);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        ServerSocket listening = serverSocket;
+        acceptor = new Thread(() -> acceptLoop(listening), TAG);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param app    Application name
+     * @param stream Stream name
+     * @return URL to publish to
+     */
+    public String getUrl(String app, String stream) {
+        return "rtmp://127.0.0.1:" + serverSocket.getLocalPort() + "/" + app + "/" + stream;
+    }
+
+    /**
+     * @return Sessions accepted so far, including closed ones
+     */
+    public List<Session> getSessions() {
+        return sessions;
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Session session = new Session(socket);
+                sessions.add(session);
+                session.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) Log.e(TAG, "accept failed", e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        acceptor.interrupt();
+        for (Session session : sessions) {
+            session.close();
+        }
+        serverSocket = null;
+    }
+
+    /**
+     * Counts the bytes delivered to the decoder, they are what gets acknowledged
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    /**
+     * One publisher connection
+     */
+    public final class Session {
+
+        private final Socket socket;
+        private final Thread thread;
+        private final CountDownLatch published = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final RtmpSessionInfo sessionInfo = new RtmpSessionInfo();
+        private CountingInputStream counter;
+        private OutputStream out;
+        private FlvRecorder recorder;
+        private long lastAcknowledged;
+
+        private volatile String app;
+        private volatile String streamName;
+        private volatile long bytesReceived;
+        private volatile long videoFrames;
+        private volatile long keyFrames;
+        private volatile long audioFrames;
+        private volatile long mediaBytes;
+        private volatile long firstMediaNanos;
+        private volatile long lastMediaNanos;
+        private volatile int lastVideoTimestamp = -1;
+        private volatile boolean startedWithKeyFrame;
+        private final List<AmfObject> metaData = new CopyOnWriteArrayList<>();
+
+        Session(Socket socket) {
+            this.socket = socket;
+            thread = new Thread(this::run, TAG + "-session");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        private void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                if (bandwidth > 0 || latency > 0 || loss > 0) {
+                    in = new ShapedInputStream(in, bandwidth, latency, loss, retransmitTimeout);
+                }
+                in = new BufferedInputStream(in);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                handshake(in);
+
+                counter = new CountingInputStream(in);
+                RtmpDecoder decoder = new RtmpDecoder(sessionInfo);
+                while (!Thread.currentThread().isInterrupted()) {
+                    RtmpPacket packet = decoder.readPacket(counter);
+                    bytesReceived = counter.count;
+                    if (packet != null) handle(packet);
+                    acknowledge();
+                }
+            } catch (EOFException | SocketException e) {
+                // publisher went away
+            } catch (IOException e) {
+                Log.e(TAG, "session failed", e);
+            } finally {
+                closeRecorder();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                closed.countDown();
+            }
+        }
+
+        private void handshake(InputStream in) throws IOException {
+            byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+            Util.readBytesUntilFull(in, c0c1);
+            if (c0c1[0] != 0x03) throw new IOException("Unsupported RTMP version " + c0c1[0]);
+
+            byte[] s1 = new byte[HANDSHAKE_SIZE];
+            new Random().nextBytes(s1);
+            // Time and zero version, the publisher does not validate the digest
+            for (int i = 0; i < 8; i++) s1[i] = 0;
+            out.write(0x03);
+            out.write(s1);
+            // S2 echoes C1
+            out.write(c0c1, 1, HANDSHAKE_SIZE);
+            out.flush();
+
+            byte[] c2 = new byte[HANDSHAKE_SIZE];
+            Util.readBytesUntilFull(in, c2);
+        }
+
+        private void handle(RtmpPacket packet) throws IOException {
+            switch (packet.getHeader().getMessageType()) {
+                case COMMAND_AMF0:
+                    handleCommand((Command) packet);
+                    break;
+                case DATA_AMF0:
+                    Data data = (Data) packet;
+                    if ("@setDataFrame".equals(data.getType()) && data.getData() != null) {
+                        for (AmfData item : data.getData()) {
+                            if (item instanceof AmfObject) metaData.add((AmfObject) item);
+                        }
+                        if (recorder != null) recorder.writeMetaData(data);
+                    }
+                    break;
+                case VIDEO:
+                case AUDIO:
+                    onMedia((ContentData) packet);
+                    break;
+                case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                    sessionInfo.setAcknowledgmentWindowSize(((WindowAckSize) packet).getAcknowledgementWindowSize());
+                    break;
+                case USER_CONTROL_MESSAGE:
+                    UserControl ping = (UserControl) packet;
+                    if (ping.getType() == UserControl.Type.PING_REQUEST) {
+                        send(new UserControl(ping, sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void handleCommand(Command command) throws IOException {
+            String name = command.getCommandName();
+            switch (name) {
+                case "connect": {
+                    AmfObject args = (AmfObject) command.getData().get(0);
+                    AmfString appName = (AmfString) args.getProperty("app");
+                    app = appName == null ? "" : appName.getValue();
+
+                    send(new WindowAckSize(DEFAULT_ACK_WINDOW_SIZE, sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                    send(new SetPeerBandwidth(DEFAULT_ACK_WINDOW_SIZE, SetPeerBandwidth.LimitType.DYNAMIC,
+                            sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                    send(new SetChunkSize(chunkSize));
+                    sessionInfo.setTxChunkSize(chunkSize);
+
+                    AmfObject properties = new AmfObject();
+                    properties.setProperty("fmsVer", "FMS/3,5,3,888");
+                    properties.setProperty("capabilities", 127);
+                    properties.setProperty("mode", 1);
+                    AmfObject info = status("status", "NetConnection.Connect.Success", "Connection succeeded");
+                    info.setProperty("objectEncoding", 0);
+                    sendResult(command, properties, info);
+                    break;
+                }
+                case "releaseStream":
+                case "FCPublish":
+                    sendResult(command, new AmfNull(), new AmfNull());
+                    break;
+                case "createStream":
+                    sendResult(command, new AmfNull(), new AmfNumber(STREAM_ID));
+                    break;
+                case "publish": {
+                    streamName = ((AmfString) command.getData().get(1)).getValue();
+                    File directory = recordDirectory;
+                    if (directory != null) {
+                        recorder = new FlvRecorder(new BufferedOutputStream(
+                                new FileOutputStream(new File(directory, streamName + ".flv"))));
+                    }
+                    UserControl begin = new UserControl(UserControl.Type.STREAM_BEGIN,
+                            sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL));
+                    begin.setEventData(STREAM_ID);
+                    send(begin);
+                    sendStatus(status("status", "NetStream.Publish.Start", "Start publishing"));
+                    published.countDown();
+                    break;
+                }
+                case "FCUnpublish":
+                case "closeStream":
+                case "deleteStream":
+                    closeRecorder();
+                    break;
+                default:
+                    Log.w(TAG, "Ignoring command " + name);
+                    break;
+            }
+        }
+
+        private void onMedia(ContentData packet) throws IOException {
+            long arrival = System.nanoTime();
+            int type = packet.getHeader().getMessageType() == RtmpHeader.MessageType.VIDEO
+                    ? FlvRecorder.TAG_VIDEO : FlvRecorder.TAG_AUDIO;
+            int timestamp = packet.getHeader().getAbsoluteTimestamp();
+            byte[] data = packet.getData();
+            int size = data.length;
+
+            if (firstMediaNanos == 0) firstMediaNanos = arrival;
+            lastMediaNanos = arrival;
+            mediaBytes += size;
+            if (type == FlvRecorder.TAG_VIDEO) {
+                // Frame type in the high nibble, 1 is a key frame. The enhanced RTMP header
+                // flag takes the top bit.
+                boolean keyFrame = size > 0 && (data[0] >> 4 & 0x07) == 1;
+                if (videoFrames == 0) startedWithKeyFrame = keyFrame;
+                videoFrames++;
+                if (keyFrame) keyFrames++;
+                lastVideoTimestamp = timestamp;
+            } else {
+                audioFrames++;
+            }
+
+            if (recorder != null) recorder.writeTag(type, timestamp, data, size);
+            Listener l = listener;
+            if (l != null) l.onMedia(this, type, timestamp, data, size, arrival);
+        }
+
+        private void acknowledge() throws IOException {
+            long received = counter.count;
+            if (received - lastAcknowledged >= sessionInfo.getAcknowledgementWindowSize()) {
+                lastAcknowledged = received;
+                // Sequence number is the byte count modulo 2^32
+                send(new Acknowledgement((int) received));
+            }
+        }
+
+        private AmfObject status(String level, String code, String description) {
+            AmfObject info = new AmfObject();
+            info.setProperty("level", level);
+            info.setProperty("code", code);
+            info.setProperty("description", description);
+            return info;
+        }
+
+        private void sendResult(Command request, AmfData properties,
+                                AmfData info) throws IOException {
+            Command result = new Command("_result", request.getTransactionId());
+            result.getHeader().setMessageStreamId(request.getHeader().getMessageStreamId());
+            result.addData(properties);
+            result.addData(info);
+            send(result);
+        }
+
+        private void sendStatus(AmfObject info) throws IOException {
+            Command status = new Command("onStatus", 0);
+            status.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+            status.getHeader().setMessageStreamId(STREAM_ID);
+            status.addData(new AmfNull());
+            status.addData(info);
+            send(status);
+        }
+
+        private void send(RtmpPacket packet) throws IOException {
+            ChunkStreamInfo chunkStreamInfo = sessionInfo.getChunkStreamInfo(packet.getHeader().getChunkStreamId());
+            chunkStreamInfo.setPrevHeaderTx(packet.getHeader());
+            packet.writeTo(out, sessionInfo.getTxChunkSize(), chunkStreamInfo);
+            out.flush();
+        }
+
+        private void closeRecorder() {
+            if (recorder == null) return;
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closing recording failed", e);
+            }
+            recorder = null;
+        }
+
+        void close() {
+            thread.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        /**
+         * Wait until the publisher received NetStream.Publish.Start
+         *
+         * @return Publishing started in time
+         */
+        public boolean awaitPublish(long timeout, TimeUnit unit) throws InterruptedException {
+            return published.await(timeout, unit);
+        }
+
+        /**
+         * Wait until the publisher disconnected
+         *
+         * @return Session closed in time
+         */
+        public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+            return closed.await(timeout, unit);
+        }
+
+        public String getApp() {
+            return app;
+        }
+
+        public String getStreamName() {
+            return streamName;
+        }
+
+        /**
+         * @return Bytes received after the handshake
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getVideoFrames() {
+            return videoFrames;
+        }
+
+        public long getKeyFrames() {
+            return keyFrames;
+        }
+
+        public long getAudioFrames() {
+            return audioFrames;
+        }
+
+        /**
+         * @return Size of the received audio and video message bodies
+         */
+        public long getMediaBytes() {
+            return mediaBytes;
+        }
+
+        /**
+         * @return Timestamp of the last video message, -1 when none arrived yet
+         */
+        public int getLastVideoTimestamp() {
+            return lastVideoTimestamp;
+        }
+
+        /**
+         * @return Properties of every onMetaData received, in order
+         */
+        public List<AmfObject> getMetaData() {
+            return metaData;
+        }
+
+        /**
+         * @return The first video message was a key frame, which includes the sequence header
+         */
+        public boolean startedWithKeyFrame() {
+            return startedWithKeyFrame;
+        }
+
+        /**
+         * @return Media throughput between the first and last media message in bits per second
+         */
+        public double getMediaThroughput() {
+            long elapsed = lastMediaNanos - firstMediaNanos;
+            return elapsed <= 0 ? 0 : mediaBytes * 8 * 1e9 / elapsed;
+        }
+
+        public boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.ossrs.yasea.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Delivers what arrives on a socket with limited bandwidth, added latency and loss.
+ * <p>
+ * A pump thread reads the socket one segment at a time no faster than the bandwidth allows,
+ * so TCP flow control pushes back on the sender just like a slow uplink would. Each segment
+ * is then held back for the latency before it can be read. TCP does not lose data, a lost
+ * segment shows up as a retransmission instead: it and everything behind it is delayed by
+ * the retransmission timeout.
+ */
+final class ShapedInputStream extends InputStream {
+
+    // Typical MSS on Ethernet
+    private static final int SEGMENT_SIZE = 1460;
+
+    private static final class Segment {
+        final byte[] data;
+        final int length;
+        final long releaseNanos;
+
+        Segment(byte[] data, int length, long releaseNanos) {
+            this.data = data;
+            this.length = length;
+            this.releaseNanos = releaseNanos;
+        }
+    }
+
+    // End of stream marker
+    private static final Segment EOF = new Segment(new byte[0], -1, 0);
+
+    private final InputStream in;
+    private final long bitsPerSecond;
+    private final long latencyNanos;
+    private final double loss;
+    private final long retransmitNanos;
+    private final Random random = new Random(1);
+    private final LinkedBlockingQueue<Segment> queue = new LinkedBlockingQueue<>();
+    private final Thread pump;
+    private volatile IOException error;
+
+    private Segment current;
+    private int position;
+
+    /**
+     * @param in              Socket input
+     * @param bitsPerSecond   Bandwidth, 0 for unlimited
+     * @param latencyMillis   Latency added to every segment
+     * @param loss            Probability that a segment is lost and has to be retransmitted
+     * @param retransmitMillis Delay of a retransmission
+     */
+    ShapedInputStream(InputStream in, long bitsPerSecond, int latencyMillis, double loss, int retransmitMillis) {
+        this.in = in;
+        this.bitsPerSecond = bitsPerSecond;
+        this.latencyNanos = latencyMillis * 1000000L;
+        this.loss = loss;
+        this.retransmitNanos = retransmitMillis * 1000000L;
+        pump = new Thread(this::pump, "ShapedInputStream");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    private void pump() {
+        long nextSend = System.nanoTime();
+        long lastRelease = 0;
+        try {
+            while (true) {
+                byte[] data = new byte[SEGMENT_SIZE];
+                int n = in.read(data);
+                if (n < 0) break;
+
+                if (bitsPerSecond > 0) {
+                    // Pace the reads, the socket buffer fills up while we sleep
+                    long now = System.nanoTime();
+                    if (nextSend > now) sleepNanos(nextSend - now);
+                    nextSend = Math.max(nextSend, now) + n * 8 * 1000000000L / bitsPerSecond;
+                }
+
+                long release = System.nanoTime() + latencyNanos;
+                if (loss > 0 && random.nextDouble() < loss) {
+                    release += retransmitNanos;
+                }
+                // In order delivery, a retransmission holds up the segments behind it
+                release = Math.max(release, lastRelease);
+                lastRelease = release;
+                queue.put(new Segment(data, n, release));
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closed
+        }
+        queue.offer(EOF);
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+    }
+
+    // Wait for the next segment that is due
+    private boolean next() throws IOException {
+        if (current != null && position < current.length) return true;
+        if (current == EOF) return false;
+        try {
+            current = queue.take();
+            position = 0;
+            if (current == EOF) {
+                if (error != null) throw error;
+                return false;
+            }
+            long wait = current.releaseNanos - System.nanoTime();
+            if (wait > 0) sleepNanos(wait);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) return -1;
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!next()) return -1;
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current != null && current != EOF && current.releaseNanos <= System.nanoTime()
+                ? current.length - position : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pump.interrupt();
+        in.close();
+    }
+}
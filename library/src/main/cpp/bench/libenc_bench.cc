@@ -0,0 +1,177 @@
+// Host benchmark of the libenc colour conversion pipeline.
+//
+// Includes libenc.cc so the very same conversion code is measured, and calls the helpers
+// behind the JNI entry points directly, without a JVM. Reports ns/frame and MB/s of source
+// data for 360p, 720p and 1080p output.
+//
+//   libenc_bench [-t seconds] [filter]
+
+#include "../libenc/libenc.cc"
+
+#include <stdlib.h>
+#include <time.h>
+#include <vector>
+
+struct Resolution {
+    const char *name;
+    int width;
+    int height;
+};
+
+static const Resolution RESOLUTIONS[] = {
+        {"360p",  640,  360},
+        {"720p",  1280, 720},
+        {"1080p", 1920, 1080},
+};
+
+// Camera frames are captured at 1080p and scaled to the output resolution
+static const Resolution CAMERA = {"1080p", 1920, 1080};
+
+struct Case {
+    const char *name;
+    // Prepare the source for the output resolution, returns the source size in bytes
+    size_t (*setup)(const Resolution &out);
+    bool (*run)(const Resolution &out);
+};
+
+static std::vector<uint8_t> src_a;
+static std::vector<uint8_t> src_b;
+static std::vector<uint8_t> src_c;
+
+static void fill(std::vector<uint8_t> &buffer, size_t size) {
+    buffer.resize(size);
+    uint32_t seed = 0x2545f491;
+    for (size_t i = 0; i < size; i++) {
+        seed = seed * 1664525 + 1013904223;
+        buffer[i] = (uint8_t) (seed >> 24);
+    }
+}
+
+static int64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+// RGBAToI420, GL read back at output size
+static size_t rgba_setup(const Resolution &out) {
+    fill(src_a, (size_t) out.width * out.height * 4);
+    return src_a.size();
+}
+
+static bool rgba_run(const Resolution &out) {
+    return convert_to_i420(src_a.data(), out.width, out.height, 0, 0, out.width, out.height,
+                           false, 0, FOURCC_RGBA);
+}
+
+// NV21ToNV12 with scaling, camera preview to encoder input
+static size_t nv21_setup(const Resolution &out) {
+    fill(src_a, (size_t) CAMERA.width * CAMERA.height * 3 / 2);
+    return src_a.size();
+}
+
+static bool nv21_run(const Resolution &out) {
+    return convert_to_i420(src_a.data(), CAMERA.width, CAMERA.height,
+                           0, 0, CAMERA.width, CAMERA.height, false, 0, FOURCC_NV21)
+           && convert_scaled_to_nv12(FOURCC_NV12);
+}
+
+// ARGBToI420 with scaling, Bitmap.getPixels()
+static size_t argb_setup(const Resolution &out) {
+    fill(src_a, (size_t) CAMERA.width * CAMERA.height * 4);
+    return src_a.size();
+}
+
+static bool argb_run(const Resolution &out) {
+    return convert_to_i420(src_a.data(), CAMERA.width, CAMERA.height,
+                           0, 0, CAMERA.width, CAMERA.height, false, 0, FOURCC_ARGB);
+}
+
+// YUV420_888toI420, ImageReader planes with a chroma pixel stride of 2
+static size_t yuv420_888_setup(const Resolution &out) {
+    size_t y_size = (size_t) out.width * out.height;
+    fill(src_a, y_size);
+    fill(src_b, y_size / 2);
+    fill(src_c, y_size / 2);
+    return y_size * 2;
+}
+
+static bool yuv420_888_run(const Resolution &out) {
+    return YUV420_888toI420(src_a.data(), out.width, src_b.data(), out.width,
+                            src_c.data(), out.width, 2, out.width, out.height,
+                            0, 0, out.width, out.height, false, 0);
+}
+
+// The same with an overlay, the difference is the I420Blend
+static size_t blend_setup(const Resolution &out) {
+    size_t size = yuv420_888_setup(out);
+    std::vector<uint8_t> argb;
+    fill(argb, (size_t) out.width * out.height * 4);
+    set_overlay((const uint32_t *) argb.data(), out.width, out.height, false, 0);
+    return size;
+}
+
+// Converting the overlay bitmap, done once per overlay change
+static size_t overlay_setup(const Resolution &out) {
+    fill(src_a, (size_t) out.width * out.height * 4);
+    return src_a.size();
+}
+
+static bool overlay_run(const Resolution &out) {
+    return set_overlay((const uint32_t *) src_a.data(), out.width, out.height, false, 0);
+}
+
+static const Case CASES[] = {
+        {"RGBAToI420",            rgba_setup,       rgba_run},
+        {"NV21ToNV12Scaled",      nv21_setup,       nv21_run},
+        {"ARGBToI420Scaled",      argb_setup,       argb_run},
+        {"YUV420_888toI420",      yuv420_888_setup, yuv420_888_run},
+        {"YUV420_888toI420Blend", blend_setup,      yuv420_888_run},
+        {"ARGBToOverlay",         overlay_setup,    overlay_run},
+};
+
+int main(int argc, char **argv) {
+    double seconds = 1.0;
+    const char *filter = NULL;
+    for (int i = 1; i < argc; i++) {
+        if (strcmp(argv[i], "-t") == 0 && i + 1 < argc) {
+            seconds = atof(argv[++i]);
+        } else {
+            filter = argv[i];
+        }
+    }
+
+    printf("%-22s %-6s %12s %10s %8s\n", "case", "output", "ns/frame", "MB/s", "frames");
+    for (const Case &c : CASES) {
+        if (filter != NULL && strstr(c.name, filter) == NULL) continue;
+
+        for (const Resolution &out : RESOLUTIONS) {
+            overlay = NULL;
+            libenc_setEncoderResolution(NULL, NULL, out.width, out.height);
+            size_t bytes = c.setup(out);
+
+            // Warm up caches and allocate the intermediate frames
+            for (int i = 0; i < 3; i++) {
+                if (!c.run(out)) {
+                    fprintf(stderr, "%s failed at %s\n", c.name, out.name);
+                    return 1;
+                }
+            }
+
+            int64_t budget = (int64_t) (seconds * 1e9);
+            int64_t start = now_ns();
+            int64_t elapsed = 0;
+            long frames = 0;
+            while (elapsed < budget || frames < 10) {
+                c.run(out);
+                frames++;
+                elapsed = now_ns() - start;
+            }
+
+            double ns_per_frame = (double) elapsed / frames;
+            double mb_per_s = bytes / ns_per_frame * 1e9 / (1024 * 1024);
+            printf("%-22s %-6s %12.0f %10.1f %8ld\n", c.name, out.name, ns_per_frame, mb_per_s, frames);
+        }
+    }
+    return 0;
+}
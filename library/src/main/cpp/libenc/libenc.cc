@@ -1,14 +1,25 @@
 #include <jni.h>
 
-#include <android/log.h>
 #include <libyuv.h>
 //#include <x264.h>
 #include <string.h>
 
+#ifdef __ANDROID__
+#include <android/log.h>
+
 #define LIBENC_LOGD(...) ((void)__android_log_print(ANDROID_LOG_DEBUG, "libenc", __VA_ARGS__))
 #define LIBENC_LOGI(...) ((void)__android_log_print(ANDROID_LOG_INFO , "libenc", __VA_ARGS__))
 #define LIBENC_LOGW(...) ((void)__android_log_print(ANDROID_LOG_WARN , "libenc", __VA_ARGS__))
 #define LIBENC_LOGE(...) ((void)__android_log_print(ANDROID_LOG_ERROR, "libenc", __VA_ARGS__))
+#else
+// Host builds, e.g. the benchmark in ../bench
+#include <stdio.h>
+
+#define LIBENC_LOGD(...) ((void)0)
+#define LIBENC_LOGI(...) ((void)0)
+#define LIBENC_LOGW(...) ((void)(fprintf(stderr, "libenc: " __VA_ARGS__), fputc('\n', stderr)))
+#define LIBENC_LOGE(...) ((void)(fprintf(stderr, "libenc: " __VA_ARGS__), fputc('\n', stderr)))
+#endif
 
 #define LIBENC_ARRAY_ELEMS(a)  (sizeof(a) / sizeof(a[0]))
 
@@ -37,6 +48,8 @@ typedef struct x264_context {
     int fps;
     int gop;
     char preset[16];
+    // next picture is forced to IDR
+    bool force_key_frame;
     // output
     int64_t pts;
     int dts;
@@ -302,6 +315,66 @@ YUV420_888toI420(uint8_t *src_y, jint y_stride,
     return true;
 }
 
+/**
+ * Convert an ARGB overlay to I420 plus alpha plane and make it the current overlay
+ * @param argb_frame
+ * @param src_width
+ * @param src_height
+ * @param need_flip
+ * @param rotate_degree
+ * @return
+ */
+static bool set_overlay(const uint32_t *argb_frame, jint src_width, jint src_height,
+                        jboolean need_flip, jint rotate_degree) {
+    const uint8_t *data = (const uint8_t *) argb_frame;
+    int y_size = src_width * src_height;
+    struct YuvFrame *new_overlay;
+
+    if (overlay == &i420_overlay_frame_a) new_overlay = &i420_overlay_frame_b;
+    else new_overlay = &i420_overlay_frame_a;
+
+    jint ret = ConvertToI420(data, y_size,
+                             new_overlay->y, src_width,
+                             new_overlay->u, src_width / 2,
+                             new_overlay->v, src_width / 2,
+                             0, 0,
+                             src_width, need_flip ? -src_height : src_height,
+                             src_width, src_height,
+                             (RotationMode) rotate_degree, FOURCC_ARGB);
+
+    // Copy alpha
+    for (int i = 0; i < y_size; i++) {
+        new_overlay->alpha[i] = argb_frame[i] >> 24;
+    }
+
+    if (ret < 0) {
+        LIBENC_LOGE("ConvertOverlayToI420 failure");
+        return false;
+    }
+
+    overlay = new_overlay;
+    return true;
+}
+
+/**
+ * Convert the scaled I420 frame to the semi-planar layout in nv12_frame
+ * @param format FOURCC_NV12 or FOURCC_NV21
+ * @return
+ */
+static bool convert_scaled_to_nv12(int format) {
+    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
+                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
+                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
+                              nv12_frame.data, nv12_frame.width,
+                              nv12_frame.width, nv12_frame.height,
+                              format);
+    if (ret < 0) {
+        LIBENC_LOGE("ConvertFromI420 failure");
+        return false;
+    }
+    return true;
+}
+
 static void libenc_setEncoderBitrate(JNIEnv *env, jobject thiz, jint bitrate) {
     x264_ctx.bitrate = bitrate / 1000;  // kbps
 }
@@ -412,14 +485,7 @@ libenc_NV21ToNV12(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
         return NULL;
     }
 
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              FOURCC_NV12);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
+    if (!convert_scaled_to_nv12(FOURCC_NV12)) {
         return NULL;
     }
 
@@ -530,33 +596,7 @@ libenc_ARGBToOverlay(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
     }
 
     jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-    uint8_t *data = (uint8_t *) argb_frame;
-    int y_size = src_width * src_height;
-    struct YuvFrame *new_overlay;
-
-    if (overlay == &i420_overlay_frame_a) new_overlay = &i420_overlay_frame_b;
-    else new_overlay = &i420_overlay_frame_a;
-
-    jint ret = ConvertToI420(data, y_size,
-                             new_overlay->y, src_width,
-                             new_overlay->u, src_width / 2,
-                             new_overlay->v, src_width / 2,
-                             0, 0,
-                             src_width, need_flip ? -src_height : src_height,
-                             src_width, src_height,
-                             (RotationMode) rotate_degree, FOURCC_ARGB);
-
-    // Copy alpha
-    for (int i = 0; i < y_size; i++) {
-        new_overlay->alpha[i] = argb_frame[i] >> 24;
-    }
-
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertOverlayToI420 failure");
-    } else {
-        overlay = new_overlay;
-    }
-
+    set_overlay((const uint32_t *) argb_frame, src_width, src_height, need_flip, rotate_degree);
     env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
 }
 
@@ -573,14 +613,7 @@ static jbyteArray libenc_RGBAToNV12(JNIEnv *env, jobject thiz, jbyteArray frame,
         return NULL;
     }
 
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
+    if (!convert_scaled_to_nv12(DST_COLOR_FMT)) {
         return NULL;
     }
 
@@ -605,14 +638,7 @@ libenc_ARGBToNV12(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
         return NULL;
     }
 
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
+    if (!convert_scaled_to_nv12(DST_COLOR_FMT)) {
         return NULL;
     }
 
@@ -660,7 +686,8 @@ libenc_ARGBToNV12(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
 //    x264_ctx.picture.img.plane[2] = i420_frame->v;
 //    x264_ctx.picture.img.i_stride[2] = i420_frame->width / 2;
 //    x264_ctx.picture.i_pts = pts;
-//    x264_ctx.picture.i_type = X264_TYPE_AUTO;
+//    x264_ctx.picture.i_type = x264_ctx.force_key_frame ? X264_TYPE_IDR : X264_TYPE_AUTO;
+//    x264_ctx.force_key_frame = false;
 //
 //    if (x264_encoder_encode(x264_ctx.encoder, &nal, &nnal, &x264_ctx.picture, &pic_out) < 0) {
 //        LIBENC_LOGE("Fail to encode in x264");
@@ -704,6 +731,10 @@ static jint libenc_RGBASoftEncode(JNIEnv *env, jobject thiz, jbyteArray frame, j
     return JNI_OK;
 }
 
+static void libenc_forceKeyFrame(JNIEnv *env, jobject thiz) {
+    x264_ctx.force_key_frame = true;
+}
+
 static void libenc_closeSoftEncoder(JNIEnv *env, jobject thiz) {
 //    int nnal;
 //    x264_nal_t *nal;
@@ -771,6 +802,7 @@ static JNINativeMethod libenc_methods[] = {
         {"openSoftEncoder",      "()Z",                    (void *) libenc_openSoftEncoder},
         {"closeSoftEncoder",     "()V",                    (void *) libenc_closeSoftEncoder},
         {"RGBASoftEncode",       "([BIIZIJ)I",             (void *) libenc_RGBASoftEncode},
+        {"forceKeyFrame",        "()V",                    (void *) libenc_forceKeyFrame},
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
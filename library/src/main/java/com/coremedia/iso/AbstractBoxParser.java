@@ -18,6 +18,7 @@ package com.coremedia.iso;
 import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.ContainerBox;
 import com.coremedia.iso.boxes.UserBox;
+import com.googlecode.mp4parser.util.ByteBufferByteChannel;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -70,6 +71,8 @@ public abstract class AbstractBoxParser implements BoxParser {
         } else if (size == 0) {
             if (byteChannel instanceof FileChannel) {
                 size = ((FileChannel) byteChannel).size() - ((FileChannel) byteChannel).position() - 8;
+            } else if (byteChannel instanceof ByteBufferByteChannel) {
+                size = ((ByteBufferByteChannel) byteChannel).remaining() + 8;
             } else {
                 throw new RuntimeException("Only FileChannel inputs may use size == 0 (box reaches to the end of file)");
             }
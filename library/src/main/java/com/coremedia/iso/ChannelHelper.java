@@ -15,6 +15,8 @@
  */
 package com.coremedia.iso;
 
+import com.googlecode.mp4parser.util.ByteBufferByteChannel;
+
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -29,7 +31,10 @@ import static com.googlecode.mp4parser.util.CastUtils.l2i;
 public class ChannelHelper {
     public static ByteBuffer readFully(final ReadableByteChannel channel, long size) throws IOException {
 
-        if (channel instanceof FileChannel && size > 1024 * 1024) {
+        if (channel instanceof ByteBufferByteChannel) {
+            // Already in memory or mapped, no need to copy
+            return ((ByteBufferByteChannel) channel).readSlice(l2i(size));
+        } else if (channel instanceof FileChannel && size > 1024 * 1024) {
             ByteBuffer bb = ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, ((FileChannel) channel).position(), size);
             ((FileChannel) channel).position(((FileChannel) channel).position() + size);
             return bb;
@@ -0,0 +1,191 @@
+package com.coremedia.iso;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.CompositionShiftLeastGreatestAtom;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.DataEntryUrlBox;
+import com.coremedia.iso.boxes.DataInformationBox;
+import com.coremedia.iso.boxes.DataReferenceBox;
+import com.coremedia.iso.boxes.FileTypeBox;
+import com.coremedia.iso.boxes.HandlerBox;
+import com.coremedia.iso.boxes.MediaBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MediaInformationBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.MovieHeaderBox;
+import com.coremedia.iso.boxes.SampleDependencyTypeBox;
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.SoundMediaHeaderBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.TrackHeaderBox;
+import com.coremedia.iso.boxes.UserBox;
+import com.coremedia.iso.boxes.VideoMediaHeaderBox;
+import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
+import com.coremedia.iso.boxes.h265.HevcConfigurationBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.boxes.UnknownBox;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.ObjectDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.samplegrouping.SampleGroupDescriptionBox;
+import com.googlecode.mp4parser.boxes.mp4.samplegrouping.SampleToGroupBox;
+
+/**
+ * Box factory with the types of all bundled boxes compiled in, the default of {@link IsoFile}.
+ * <p>
+ * The type is turned into an int and switched on, each case calls the constructor of its box
+ * directly. {@link PropertyBoxParserImpl} looks up a property, matches it with a regex and
+ * constructs the box by reflection for every box of the file instead. Types not listed here
+ * are handed to the fallback parser when there is one, or kept as {@link UnknownBox}.
+ */
+public class FourCcBoxParserImpl extends AbstractBoxParser {
+
+    private static final String DEFAULT_PROPERTIES = "/isoparser-default.properties";
+
+    private AbstractBoxParser fallback;
+    private boolean fallbackResolved;
+
+    /**
+     * Falls back to a {@link PropertyBoxParserImpl} for unlisted types, if the default
+     * properties are on the class path
+     */
+    public FourCcBoxParserImpl() {
+    }
+
+    /**
+     * @param fallback Parser for the types not listed here, null to keep them as {@link UnknownBox}
+     */
+    public FourCcBoxParserImpl(AbstractBoxParser fallback) {
+        this.fallback = fallback;
+        this.fallbackResolved = true;
+    }
+
+    @Override
+    public Class<? extends Box> getClassForFourCc(String type, byte[] userType, String parent) {
+        return createBox(type, userType, parent).getClass();
+    }
+
+    @Override
+    public Box createBox(String type, byte[] userType, String parent) {
+        Box box = createKnownBox(fourCc(type), type, userType);
+        if (box != null) {
+            return box;
+        }
+        AbstractBoxParser fallback = getFallback();
+        return fallback != null ? fallback.createBox(type, userType, parent) : new UnknownBox(type);
+    }
+
+    private static int fourCc(String type) {
+        if (type.length() != 4) {
+            return 0;
+        }
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    // Generated from the TYPE constants of the bundled boxes, keep sorted by type
+    private static Box createKnownBox(int fourCc, String type, byte[] userType) {
+        switch (fourCc) {
+            case 0x61766343: // avcC
+                return new AvcConfigurationBox();
+            case 0x63736c67: // cslg
+                return new CompositionShiftLeastGreatestAtom();
+            case 0x63747473: // ctts
+                return new CompositionTimeToSample();
+            case 0x64696e66: // dinf
+                return new DataInformationBox();
+            case 0x64726566: // dref
+                return new DataReferenceBox();
+            case 0x65736473: // esds
+                return new ESDescriptorBox();
+            case 0x66747970: // ftyp
+                return new FileTypeBox();
+            case 0x68646c72: // hdlr
+                return new HandlerBox();
+            case 0x68766343: // hvcC
+                return new HevcConfigurationBox();
+            case 0x696f6473: // iods
+                return new ObjectDescriptorBox();
+            case 0x6d646864: // mdhd
+                return new MediaHeaderBox();
+            case 0x6d646961: // mdia
+                return new MediaBox();
+            case 0x6d696e66: // minf
+                return new MediaInformationBox();
+            case 0x6d6f6f76: // moov
+                return new MovieBox();
+            case 0x6d766864: // mvhd
+                return new MovieHeaderBox();
+            case 0x73626770: // sbgp
+                return new SampleToGroupBox();
+            case 0x73647470: // sdtp
+                return new SampleDependencyTypeBox();
+            case 0x73677064: // sgpd
+                return new SampleGroupDescriptionBox();
+            case 0x736d6864: // smhd
+                return new SoundMediaHeaderBox();
+            case 0x7374626c: // stbl
+                return new SampleTableBox();
+            case 0x7374636f: // stco
+                return new StaticChunkOffsetBox();
+            case 0x73747363: // stsc
+                return new SampleToChunkBox();
+            case 0x73747364: // stsd
+                return new SampleDescriptionBox();
+            case 0x73747373: // stss
+                return new SyncSampleBox();
+            case 0x7374737a: // stsz
+                return new SampleSizeBox();
+            case 0x73747473: // stts
+                return new TimeToSampleBox();
+            case 0x746b6864: // tkhd
+                return new TrackHeaderBox();
+            case 0x7472616b: // trak
+                return new TrackBox();
+            case 0x75726c20: // url 
+                return new DataEntryUrlBox();
+            case 0x766d6864: // vmhd
+                return new VideoMediaHeaderBox();
+            case 0x61632d33: // ac-3
+            case 0x616c6163: // alac
+            case 0x64726d73: // drms
+            case 0x64747365: // dtse
+            case 0x64747368: // dtsh
+            case 0x6474736c: // dtsl
+            case 0x65632d33: // ec-3
+            case 0x656e6361: // enca
+            case 0x6d6c7061: // mlpa
+            case 0x6d703461: // mp4a
+            case 0x6f776d61: // owma
+            case 0x73616d72: // samr
+            case 0x73617762: // sawb
+                return new AudioSampleEntry(type);
+            case 0x61766331: // avc1
+            case 0x656e6376: // encv
+            case 0x68657631: // hev1
+            case 0x68766331: // hvc1
+            case 0x6d703476: // mp4v
+            case 0x73323633: // s263
+                return new VisualSampleEntry(type);
+            case 0x75756964: // uuid
+                return new UserBox(userType);
+            default:
+                return null;
+        }
+    }
+
+    private synchronized AbstractBoxParser getFallback() {
+        if (!fallbackResolved) {
+            fallbackResolved = true;
+            if (getClass().getResource(DEFAULT_PROPERTIES) != null) {
+                fallback = new PropertyBoxParserImpl();
+            }
+        }
+        return fallback;
+    }
+}
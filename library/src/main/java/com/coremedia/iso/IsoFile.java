@@ -20,6 +20,7 @@ import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.MovieBox;
 import com.googlecode.mp4parser.AbstractContainerBox;
 import com.googlecode.mp4parser.annotations.DoNotParseDetail;
+import com.googlecode.mp4parser.util.ByteBufferByteChannel;
 
 import java.io.Closeable;
 import java.io.EOFException;
@@ -38,8 +39,10 @@ import java.nio.channels.WritableByteChannel;
  */
 @DoNotParseDetail
 public class IsoFile extends AbstractContainerBox implements Closeable {
-    protected BoxParser boxParser = new PropertyBoxParserImpl();
+    protected BoxParser boxParser;
     ReadableByteChannel byteChannel;
+    private ByteBuffer mappedFile;
+    private boolean lazy;
 
     public IsoFile() {
         super("");
@@ -68,8 +71,61 @@ public class IsoFile extends AbstractContainerBox implements Closeable {
 
     }
 
+    /**
+     * Map the file once and parse it lazily. Every box is a slice of the mapping, nothing is
+     * copied to the heap, and container boxes only parse their children when they are first
+     * accessed. The file is closed once mapped, truncating it afterwards leads to errors on
+     * access.
+     *
+     * @param f the file, at most 2 GB
+     * @return the file with its top level boxes
+     * @throws IOException if the file cannot be read or is too large to map
+     */
+    public static IsoFile mapped(File f) throws IOException {
+        return mapped(f, new FourCcBoxParserImpl());
+    }
+
+    /**
+     * Map the file once and parse it lazily with the given parser
+     *
+     * @see #mapped(File)
+     */
+    public static IsoFile mapped(File f, BoxParser boxParser) throws IOException {
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            FileChannel fc = fis.getChannel();
+            if (fc.size() > Integer.MAX_VALUE) {
+                throw new IOException("Too large to map " + f + ", use new IsoFile(File)");
+            }
+            IsoFile isoFile = new IsoFile();
+            isoFile.mappedFile = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            isoFile.byteChannel = new ByteBufferByteChannel(isoFile.mappedFile.duplicate());
+            isoFile.boxParser = boxParser;
+            isoFile.lazy = true;
+            isoFile.parse();
+            return isoFile;
+        } finally {
+            // The mapping stays valid
+            fis.close();
+        }
+    }
+
+    /**
+     * @return whether container boxes parse their children on first access
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * @return the mapping of the whole file, <code>null</code> unless opened with {@link #mapped}
+     */
+    public ByteBuffer getMappedFile() {
+        return mappedFile == null ? null : mappedFile.duplicate();
+    }
+
     protected BoxParser createBoxParser() {
-        return new PropertyBoxParserImpl();
+        return new FourCcBoxParserImpl();
     }
 
 
@@ -0,0 +1,99 @@
+package com.coremedia.iso.boxes;
+
+import com.googlecode.mp4parser.AbstractFullBox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * class CompositionToDecodeBox extends FullBox(‘cslg’, version=0, 0) {
+ *  signed int(32) compositionToDTSShift;
+ *  signed int(32) leastDecodeToDisplayDelta;
+ *  signed int(32) greatestDecodeToDisplayDelta;
+ *  signed int(32) compositionStartTime;
+ *  signed int(32) compositionEndTime;
+ * }
+ * </pre>
+ * <p/>
+ * When signed composition offsets are used ({@link CompositionTimeToSample} version 1), this box
+ * relates the composition and decoding timelines: adding compositionToDTSShift to every
+ * composition time makes it no less than the decoding time of its sample.
+ */
+public class CompositionShiftLeastGreatestAtom extends AbstractFullBox {
+    public static final String TYPE = "cslg";
+
+    int compositionOffsetToDisplayOffsetShift;
+    int leastDisplayOffset;
+    int greatestDisplayOffset;
+    int displayStartTime;
+    int displayEndTime;
+
+    public CompositionShiftLeastGreatestAtom() {
+        super(TYPE);
+    }
+
+    @Override
+    protected long getContentSize() {
+        return 24;
+    }
+
+    @Override
+    public void _parseDetails(ByteBuffer content) {
+        parseVersionAndFlags(content);
+        compositionOffsetToDisplayOffsetShift = content.getInt();
+        leastDisplayOffset = content.getInt();
+        greatestDisplayOffset = content.getInt();
+        displayStartTime = content.getInt();
+        displayEndTime = content.getInt();
+    }
+
+    @Override
+    protected void getContent(ByteBuffer byteBuffer) {
+        writeVersionAndFlags(byteBuffer);
+        byteBuffer.putInt(compositionOffsetToDisplayOffsetShift);
+        byteBuffer.putInt(leastDisplayOffset);
+        byteBuffer.putInt(greatestDisplayOffset);
+        byteBuffer.putInt(displayStartTime);
+        byteBuffer.putInt(displayEndTime);
+    }
+
+    public int getCompositionOffsetToDisplayOffsetShift() {
+        return compositionOffsetToDisplayOffsetShift;
+    }
+
+    public void setCompositionOffsetToDisplayOffsetShift(int compositionOffsetToDisplayOffsetShift) {
+        this.compositionOffsetToDisplayOffsetShift = compositionOffsetToDisplayOffsetShift;
+    }
+
+    public int getLeastDisplayOffset() {
+        return leastDisplayOffset;
+    }
+
+    public void setLeastDisplayOffset(int leastDisplayOffset) {
+        this.leastDisplayOffset = leastDisplayOffset;
+    }
+
+    public int getGreatestDisplayOffset() {
+        return greatestDisplayOffset;
+    }
+
+    public void setGreatestDisplayOffset(int greatestDisplayOffset) {
+        this.greatestDisplayOffset = greatestDisplayOffset;
+    }
+
+    public int getDisplayStartTime() {
+        return displayStartTime;
+    }
+
+    public void setDisplayStartTime(int displayStartTime) {
+        this.displayStartTime = displayStartTime;
+    }
+
+    public int getDisplayEndTime() {
+        return displayEndTime;
+    }
+
+    public void setDisplayEndTime(int displayEndTime) {
+        this.displayEndTime = displayEndTime;
+    }
+}
@@ -25,8 +25,8 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.BitWriterBuffer;
 import com.googlecode.mp4parser.h264.model.PictureParameterSet;
 import com.googlecode.mp4parser.h264.model.SeqParameterSet;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -325,9 +325,11 @@ public final class AvcConfigurationBox extends AbstractBox {
             for (byte[] pictureParameterSet : pictureParameterSets) {
                 String details = "not parsable";
                 try {
-                    details = PictureParameterSet.read(pictureParameterSet).toString();
+                    details = PictureParameterSet.read(ByteBuffer.wrap(pictureParameterSet)).toString();
                 } catch (IOException e) {
                     throw new RuntimeException(e);
+                } catch (BufferUnderflowException e) {
+
                 }
 
                 l.add(details);
@@ -340,9 +342,11 @@ public final class AvcConfigurationBox extends AbstractBox {
             for (byte[] sequenceParameterSet : sequenceParameterSets) {
                 String detail = "not parsable";
                 try {
-                    detail = SeqParameterSet.read(new ByteArrayInputStream(sequenceParameterSet)).toString();
+                    detail = SeqParameterSet.read(ByteBuffer.wrap(sequenceParameterSet)).toString();
                 } catch (IOException e) {
 
+                } catch (BufferUnderflowException e) {
+
                 }
                 l.add(detail);
             }
@@ -0,0 +1,41 @@
+package com.coremedia.iso.boxes.h265;
+
+import com.googlecode.mp4parser.AbstractBox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Defined in ISO/IEC 14496-15, the decoder configuration of a hvc1 or hev1 sample entry.
+ */
+public final class HevcConfigurationBox extends AbstractBox {
+    public static final String TYPE = "hvcC";
+
+    private HevcDecoderConfigurationRecord hevcDecoderConfigurationRecord = new HevcDecoderConfigurationRecord();
+
+    public HevcConfigurationBox() {
+        super(TYPE);
+    }
+
+    public HevcDecoderConfigurationRecord getHevcDecoderConfigurationRecord() {
+        return hevcDecoderConfigurationRecord;
+    }
+
+    public void setHevcDecoderConfigurationRecord(HevcDecoderConfigurationRecord hevcDecoderConfigurationRecord) {
+        this.hevcDecoderConfigurationRecord = hevcDecoderConfigurationRecord;
+    }
+
+    @Override
+    public void _parseDetails(ByteBuffer content) {
+        hevcDecoderConfigurationRecord = new HevcDecoderConfigurationRecord(content);
+    }
+
+    @Override
+    protected long getContentSize() {
+        return hevcDecoderConfigurationRecord.getContentSize();
+    }
+
+    @Override
+    protected void getContent(ByteBuffer byteBuffer) {
+        hevcDecoderConfigurationRecord.getContent(byteBuffer);
+    }
+}
@@ -0,0 +1,169 @@
+package com.coremedia.iso.boxes.h265;
+
+import com.coremedia.iso.IsoTypeReader;
+import com.coremedia.iso.IsoTypeWriter;
+import com.googlecode.mp4parser.h265.H265NalUnitHeader;
+import com.googlecode.mp4parser.h265.H265SeqParameterSet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HEVCDecoderConfigurationRecord, 8.3.3.1 of ISO/IEC 14496-15. The content of the hvcC box
+ * and of the sequence start of a HEVC stream in enhanced RTMP.
+ */
+public class HevcDecoderConfigurationRecord {
+    public int configurationVersion = 1;
+    public int generalProfileSpace;
+    public boolean generalTierFlag;
+    public int generalProfileIdc;
+    public long generalProfileCompatibilityFlags;
+    public long generalConstraintIndicatorFlags;
+    public int generalLevelIdc;
+    public int minSpatialSegmentationIdc;
+    public int parallelismType;
+    public int chromaFormat = 1;
+    public int bitDepthLumaMinus8;
+    public int bitDepthChromaMinus8;
+    public int avgFrameRate;
+    public int constantFrameRate;
+    public int numTemporalLayers = 1;
+    public boolean temporalIdNested;
+    public int lengthSizeMinusOne = 3;
+    public List<Array> arrays = new ArrayList<>();
+
+    /**
+     * The NAL units of one type
+     */
+    public static class Array {
+        public boolean arrayCompleteness;
+        public int nalUnitType;
+        public List<byte[]> nalUnits = new ArrayList<>();
+
+        public Array() {
+        }
+
+        public Array(int nalUnitType, byte[] nalUnit) {
+            this.arrayCompleteness = true;
+            this.nalUnitType = nalUnitType;
+            this.nalUnits.add(nalUnit);
+        }
+    }
+
+    public HevcDecoderConfigurationRecord() {
+    }
+
+    /**
+     * Describe a stream with one VPS, SPS and PPS, taking profile, tier, level, chroma format,
+     * bit depths and temporal layers from the SPS
+     *
+     * @param vps    VPS NAL unit without start code
+     * @param parsed The SPS, parsed
+     * @param sps    SPS NAL unit without start code
+     * @param pps    PPS NAL unit without start code
+     */
+    public HevcDecoderConfigurationRecord(byte[] vps, H265SeqParameterSet parsed, byte[] sps, byte[] pps) {
+        generalProfileSpace = parsed.general_profile_space;
+        generalTierFlag = parsed.general_tier_flag;
+        generalProfileIdc = parsed.general_profile_idc;
+        generalProfileCompatibilityFlags = parsed.general_profile_compatibility_flags & 0xffffffffL;
+        generalConstraintIndicatorFlags = parsed.general_constraint_indicator_flags;
+        generalLevelIdc = parsed.general_level_idc;
+        chromaFormat = parsed.chroma_format_idc;
+        bitDepthLumaMinus8 = parsed.bit_depth_luma_minus8;
+        bitDepthChromaMinus8 = parsed.bit_depth_chroma_minus8;
+        numTemporalLayers = parsed.sps_max_sub_layers_minus1 + 1;
+        temporalIdNested = parsed.sps_temporal_id_nesting_flag;
+        arrays.add(new Array(H265NalUnitHeader.VPS_NUT, vps));
+        arrays.add(new Array(H265NalUnitHeader.SPS_NUT, sps));
+        arrays.add(new Array(H265NalUnitHeader.PPS_NUT, pps));
+    }
+
+    public HevcDecoderConfigurationRecord(ByteBuffer content) {
+        configurationVersion = IsoTypeReader.readUInt8(content);
+        int b = IsoTypeReader.readUInt8(content);
+        generalProfileSpace = b >> 6;
+        generalTierFlag = (b & 0x20) != 0;
+        generalProfileIdc = b & 0x1f;
+        generalProfileCompatibilityFlags = IsoTypeReader.readUInt32(content);
+        generalConstraintIndicatorFlags = IsoTypeReader.readUInt32(content) << 16 | IsoTypeReader.readUInt16(content);
+        generalLevelIdc = IsoTypeReader.readUInt8(content);
+        minSpatialSegmentationIdc = IsoTypeReader.readUInt16(content) & 0x0fff;
+        parallelismType = IsoTypeReader.readUInt8(content) & 0x03;
+        chromaFormat = IsoTypeReader.readUInt8(content) & 0x03;
+        bitDepthLumaMinus8 = IsoTypeReader.readUInt8(content) & 0x07;
+        bitDepthChromaMinus8 = IsoTypeReader.readUInt8(content) & 0x07;
+        avgFrameRate = IsoTypeReader.readUInt16(content);
+        b = IsoTypeReader.readUInt8(content);
+        constantFrameRate = b >> 6;
+        numTemporalLayers = (b >> 3) & 0x07;
+        temporalIdNested = (b & 0x04) != 0;
+        lengthSizeMinusOne = b & 0x03;
+        int numOfArrays = IsoTypeReader.readUInt8(content);
+        for (int i = 0; i < numOfArrays; i++) {
+            Array array = new Array();
+            b = IsoTypeReader.readUInt8(content);
+            array.arrayCompleteness = (b & 0x80) != 0;
+            array.nalUnitType = b & 0x3f;
+            int numNalus = IsoTypeReader.readUInt16(content);
+            for (int j = 0; j < numNalus; j++) {
+                byte[] nalUnit = new byte[IsoTypeReader.readUInt16(content)];
+                content.get(nalUnit);
+                array.nalUnits.add(nalUnit);
+            }
+            arrays.add(array);
+        }
+    }
+
+    public void getContent(ByteBuffer byteBuffer) {
+        IsoTypeWriter.writeUInt8(byteBuffer, configurationVersion);
+        IsoTypeWriter.writeUInt8(byteBuffer, generalProfileSpace << 6 | (generalTierFlag ? 0x20 : 0) | generalProfileIdc);
+        IsoTypeWriter.writeUInt32(byteBuffer, generalProfileCompatibilityFlags);
+        IsoTypeWriter.writeUInt32(byteBuffer, generalConstraintIndicatorFlags >>> 16);
+        IsoTypeWriter.writeUInt16(byteBuffer, (int) (generalConstraintIndicatorFlags & 0xffff));
+        IsoTypeWriter.writeUInt8(byteBuffer, generalLevelIdc);
+        // Reserved bits are all ones
+        IsoTypeWriter.writeUInt16(byteBuffer, 0xf000 | minSpatialSegmentationIdc);
+        IsoTypeWriter.writeUInt8(byteBuffer, 0xfc | parallelismType);
+        IsoTypeWriter.writeUInt8(byteBuffer, 0xfc | chromaFormat);
+        IsoTypeWriter.writeUInt8(byteBuffer, 0xf8 | bitDepthLumaMinus8);
+        IsoTypeWriter.writeUInt8(byteBuffer, 0xf8 | bitDepthChromaMinus8);
+        IsoTypeWriter.writeUInt16(byteBuffer, avgFrameRate);
+        IsoTypeWriter.writeUInt8(byteBuffer, constantFrameRate << 6 | numTemporalLayers << 3
+                | (temporalIdNested ? 0x04 : 0) | lengthSizeMinusOne);
+        IsoTypeWriter.writeUInt8(byteBuffer, arrays.size());
+        for (Array array : arrays) {
+            IsoTypeWriter.writeUInt8(byteBuffer, (array.arrayCompleteness ? 0x80 : 0) | array.nalUnitType);
+            IsoTypeWriter.writeUInt16(byteBuffer, array.nalUnits.size());
+            for (byte[] nalUnit : array.nalUnits) {
+                IsoTypeWriter.writeUInt16(byteBuffer, nalUnit.length);
+                byteBuffer.put(nalUnit);
+            }
+        }
+    }
+
+    public int getContentSize() {
+        int size = 23;
+        for (Array array : arrays) {
+            size += 3;
+            for (byte[] nalUnit : array.nalUnits) {
+                size += 2 + nalUnit.length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The NAL units of the type, in the order of the record
+     */
+    public List<byte[]> getNalUnits(int nalUnitType) {
+        for (Array array : arrays) {
+            if (array.nalUnitType == nalUnitType) {
+                return Collections.unmodifiableList(array.nalUnits);
+            }
+        }
+        return Collections.emptyList();
+    }
+}
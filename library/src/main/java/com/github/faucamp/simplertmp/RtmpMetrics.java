@@ -0,0 +1,102 @@
+package com.github.faucamp.simplertmp;
+
+/**
+ * Snapshot of the uplink measurements of a RTMP connection.
+ * <p>
+ * The round trip time comes from the ping requests sent by the client, the acknowledged
+ * throughput and bytes in flight from the Acknowledgement packets the server sends for
+ * the window size announced by the client.
+ */
+public class RtmpMetrics {
+
+    private final int rtt;
+    private final int smoothedRtt;
+    private final long bytesSent;
+    private final long bytesAcked;
+    private final double ackedThroughput;
+    private final int writeStallCount;
+    private final long writeStallTime;
+    private final long maxWriteStall;
+
+    public RtmpMetrics(int rtt, int smoothedRtt, long bytesSent, long bytesAcked, double ackedThroughput,
+                       int writeStallCount, long writeStallTime, long maxWriteStall) {
+        this.rtt = rtt;
+        this.smoothedRtt = smoothedRtt;
+        this.bytesSent = bytesSent;
+        this.bytesAcked = bytesAcked;
+        this.ackedThroughput = ackedThroughput;
+        this.writeStallCount = writeStallCount;
+        this.writeStallTime = writeStallTime;
+        this.maxWriteStall = maxWriteStall;
+    }
+
+    /**
+     * @return Last measured round trip time in milliseconds, 0 when not measured yet
+     */
+    public int getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return Smoothed round trip time in milliseconds, 0 when not measured yet
+     */
+    public int getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return Bytes written to the socket since the handshake
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return Bytes the server acknowledged receiving
+     */
+    public long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    /**
+     * @return Bytes sent but not acknowledged yet
+     */
+    public long getBytesInFlight() {
+        return Math.max(0, bytesSent - bytesAcked);
+    }
+
+    /**
+     * @return Throughput acknowledged by the server in bits per second
+     */
+    public double getAckedThroughput() {
+        return ackedThroughput;
+    }
+
+    /**
+     * @return Number of packet writes that blocked for a while
+     */
+    public int getWriteStallCount() {
+        return writeStallCount;
+    }
+
+    /**
+     * @return Total time spent in stalled packet writes in milliseconds
+     */
+    public long getWriteStallTime() {
+        return writeStallTime;
+    }
+
+    /**
+     * @return Longest stalled packet write in milliseconds
+     */
+    public long getMaxWriteStall() {
+        return maxWriteStall;
+    }
+
+    @Override
+    public String toString() {
+        return "RtmpMetrics{rtt=" + rtt + "ms, srtt=" + smoothedRtt + "ms, sent=" + bytesSent
+                + ", acked=" + bytesAcked + ", inFlight=" + getBytesInFlight()
+                + ", ackedThroughput=" + (int) ackedThroughput + "bps, stalls=" + writeStallCount + "}";
+    }
+}
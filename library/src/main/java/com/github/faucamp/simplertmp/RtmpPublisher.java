@@ -19,6 +19,17 @@ public interface RtmpPublisher {
      */
     boolean connect(String url, String user, String password);
 
+    /**
+     * Resolve the host, open the socket, do the handshake and issue the RTMP "connect" command
+     * in the background, so a later {@link #connect(String, String, String)} with the same
+     * arguments returns immediately.
+     *
+     * @param url      specify the RTMP url
+     * @param user     Username (optional)
+     * @param password Password (optional)
+     */
+    void prepare(String url, String user, String password);
+
     /**
      * Issues an RTMP "publish" command and write the media content stream packets (audio and video).
      *
@@ -65,6 +76,11 @@ public interface RtmpPublisher {
      */
     int getServerId();
 
+    /**
+     * obtain the round trip time, throughput and write stall measurements of the connection
+     */
+    RtmpMetrics getMetrics();
+
     /**
      * set video resolution
      *
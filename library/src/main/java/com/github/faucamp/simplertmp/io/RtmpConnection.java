@@ -2,18 +2,17 @@ package com.github.faucamp.simplertmp.io;
 
 import android.util.Log;
 import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpMetrics;
 import com.github.faucamp.simplertmp.RtmpPublisher;
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.amf.*;
 import com.github.faucamp.simplertmp.packets.*;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,6 +27,19 @@ public class RtmpConnection implements RtmpPublisher {
     protected static final String TAG = "RtmpConnection";
     private static final Pattern rtmpUrlPattern =
             Pattern.compile("^rtmps?://(.+:.+[@])?([^/:]+)(?::(\\d+))*/([^/]+)/?([^*]*)$");
+    // Writes blocking longer than this are counted as stalls
+    private static final long WRITE_STALL_THRESHOLD_NANOS = 20 * 1000 * 1000;
+    // Default interval between ping requests in milliseconds
+    private static final int DEFAULT_PING_INTERVAL = 2000;
+    // Default number of bytes the server may receive before it has to acknowledge them
+    private static final int DEFAULT_ACK_WINDOW_SIZE = 64 * 1024;
+    // Stream ID handed out by SRS, nginx-rtmp and most ingest servers for the first createStream
+    private static final int PIPELINED_STREAM_ID = 1;
+    // Bytes of padding per bandwidth probe message and the pacing interval in milliseconds
+    private static final int PROBE_PACKET_SIZE = 4000;
+    private static final int PROBE_INTERVAL = 10;
+    // Room for the packets of a batch, so they go out in one socket write
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
 
     protected RtmpHandler mHandler;
     private int port;
@@ -51,6 +63,8 @@ public class RtmpConnection implements RtmpPublisher {
     private volatile boolean publishPermitted = false;
     private final Object connectingLock = new Object();
     private final Object publishLock = new Object();
+    // Packets are written by the publishing thread and by the rx thread answering the server
+    private final Object writeLock = new Object();
     private int currentStreamId = 0;
     private int transactionIdCounter = 0;
     private AmfString serverIpAddr;
@@ -70,11 +84,216 @@ public class RtmpConnection implements RtmpPublisher {
     private String challenge = null;
     private String opaque = null;
     private boolean onAuth = false;
+    private boolean pipelinedPublish = true;
+    private int pipelinedStreamId = 0;
+    private volatile Thread prepareThread;
+    private volatile boolean prepared = false;
+    private String preparedUrl;
+    private String preparedUser;
+    private String preparedPassword;
+    private RtmpSocketFactory socketFactory = new RtmpSocketFactory();
+    private volatile int writeStallCount;
+    private volatile long writeStallNanos;
+    private volatile long maxWriteStallNanos;
+    private CountingOutputStream countingStream;
+    private int pingInterval = DEFAULT_PING_INTERVAL;
+    private int ackWindowSize = DEFAULT_ACK_WINDOW_SIZE;
+    private long lastPingMillis;
+    private volatile int rtt;
+    private volatile int smoothedRtt;
+    private volatile long bytesAcked;
+    private volatile double ackedThroughput;
+    private volatile long lastAckNanos;
+    private volatile boolean streamingNotifications = true;
+    private volatile boolean batching;
 
     public RtmpConnection(RtmpHandler handler) {
         mHandler = handler;
     }
 
+    /**
+     * Replace the factory used to create and configure sockets
+     *
+     * @param factory Socket factory
+     */
+    public void setSocketFactory(RtmpSocketFactory factory) {
+        socketFactory = factory;
+    }
+
+    /**
+     * @return Factory used to create and configure sockets
+     */
+    public RtmpSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Set the bitrate that will be published, used to size the socket send buffer
+     *
+     * @param bitrate Bitrate in bits per second
+     */
+    public void setTargetBitrate(int bitrate) {
+        socketFactory.setTargetBitrate(bitrate);
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.setSendBufferSize(socketFactory.getSendBufferSize());
+            } catch (SocketException e) {
+                Log.w(TAG, "setTargetBitrate(): failed to resize send buffer", e);
+            }
+        }
+    }
+
+    /**
+     * Enable or disable the Handler message for every published audio and video packet. Apps
+     * that poll or subscribe to statistics can turn these off to keep the main thread quiet.
+     *
+     * @param enabled Send streaming notifications
+     */
+    public void setStreamingNotifications(boolean enabled) {
+        streamingNotifications = enabled;
+    }
+
+    /**
+     * Set the interval between ping requests used to measure the round trip time
+     *
+     * @param interval Interval in milliseconds, 0 to disable
+     */
+    public void setPingInterval(int interval) {
+        pingInterval = interval;
+    }
+
+    /**
+     * Set the window size announced to the server, it acknowledges every time it received this
+     * many bytes. Smaller windows give finer throughput measurements.
+     *
+     * @param size Window size in bytes
+     */
+    public void setAckWindowSize(int size) {
+        ackWindowSize = size;
+    }
+
+    @Override
+    public RtmpMetrics getMetrics() {
+        CountingOutputStream counter = countingStream;
+        return new RtmpMetrics(rtt, smoothedRtt, counter == null ? 0 : counter.getCount(), bytesAcked,
+                ackedThroughput, writeStallCount, getWriteStallTime(), getMaxWriteStall());
+    }
+
+    /**
+     * @return Number of packet writes that blocked longer than 20ms
+     */
+    public int getWriteStallCount() {
+        return writeStallCount;
+    }
+
+    /**
+     * @return Total time spent in stalled packet writes in milliseconds
+     */
+    public long getWriteStallTime() {
+        return writeStallNanos / 1000000;
+    }
+
+    /**
+     * @return Longest stalled packet write in milliseconds
+     */
+    public long getMaxWriteStall() {
+        return maxWriteStallNanos / 1000000;
+    }
+
+    /**
+     * @return Connected and the server accepted the publish command
+     */
+    public boolean isPublishing() {
+        return connected && publishPermitted;
+    }
+
+    /**
+     * Send padding at a paced bitrate and measure how much of it gets through, to pick the
+     * bitrate to start publishing at. Call it after {@link #publish(String)} and before any
+     * media, it blocks for at least the duration.
+     * <p>
+     * The padding goes out as "onBandwidthProbe" data messages on the connection, not on the
+     * published stream, so servers don't relay it. The result is the rate the server
+     * acknowledged the padding at, after waiting for the acknowledgements of what is still in
+     * flight. Servers that don't acknowledge within the probe get the rate the socket took the
+     * padding at, which is no more than the paced bitrate.
+     *
+     * @param bitrate  Bitrate to send the padding at in bits per second, the highest it can measure
+     * @param duration Duration to send for in milliseconds
+     * @return Measured throughput in bits per second, 0 when not publishing
+     */
+    public double probeBandwidth(int bitrate, int duration) {
+        CountingOutputStream counter = countingStream;
+        if (!isPublishing() || counter == null || bitrate <= 0) return 0;
+
+        char[] chars = new char[PROBE_PACKET_SIZE];
+        Arrays.fill(chars, ' ');
+        AmfString padding = new AmfString(new String(chars));
+        long startSent = counter.getCount();
+        long startAcked = bytesAcked;
+        long start = System.nanoTime();
+        long end = start + duration * 1000000L;
+        long now = start;
+        while (now < end && isPublishing()) {
+            long due = (now - start) * bitrate / 8000000000L;
+            while (counter.getCount() - startSent < due && isPublishing()) {
+                Data probe = new Data("onBandwidthProbe");
+                probe.getHeader().setMessageStreamId(0);
+                probe.addData(padding);
+                sendRtmpPacket(probe);
+            }
+            try {
+                Thread.sleep(PROBE_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            now = System.nanoTime();
+        }
+        long sent = counter.getCount() - startSent;
+        long sendNanos = System.nanoTime() - start;
+
+        // Whatever is left in the socket buffer delays the first frame anyway, wait for it
+        long drainDeadline = System.nanoTime() + Math.max(1000, 2 * duration + 4 * smoothedRtt) * 1000000L;
+        while (isPublishing() && counter.getCount() - bytesAcked > ackWindowSize
+                && System.nanoTime() < drainDeadline) {
+            try {
+                Thread.sleep(PROBE_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        if (!isPublishing()) return 0;
+
+        double writeRate = sent * 8 * 1e9 / sendNanos;
+        long acked = bytesAcked - startAcked;
+        long ackNanos = lastAckNanos - start;
+        double throughput = acked > 0 && ackNanos > 0 ? Math.min(writeRate, acked * 8 * 1e9 / ackNanos) : writeRate;
+        Log.i(TAG, String.format("probeBandwidth(): sent %d bytes in %d ms, %d acknowledged, %d kbps",
+                sent, sendNanos / 1000000, acked, (int) (throughput / 1000)));
+        return throughput;
+    }
+
+    /**
+     * Send onMetaData again, when the media formats changed after publishing started
+     */
+    public void sendMetaData() {
+        if (isPublishing()) onMetaData(currentStreamId);
+    }
+
+    /**
+     * Enable or disable pipelined publishing. When enabled the "publish" command is sent right
+     * after "createStream" on the stream ID most servers hand out, instead of waiting for the
+     * createStream result first. This saves one round trip when going live.
+     *
+     * @param enabled Enable pipelining
+     */
+    public void setPipelinedPublish(boolean enabled) {
+        pipelinedPublish = enabled;
+    }
+
     private void handshake(InputStream in, OutputStream out) throws IOException {
         Handshake handshake = new Handshake();
         handshake.writeC0(out);
@@ -87,8 +306,63 @@ public class RtmpConnection implements RtmpPublisher {
         handshake.readS2(in);
     }
 
+    @Override
+    public void prepare(final String url, final String user, final String password) {
+        cancelPrepare();
+        preparedUrl = url;
+        preparedUser = user;
+        preparedPassword = password;
+        prepared = false;
+        Thread thread = new Thread(() -> {
+            Log.d(TAG, "prepare(): warming up connection to " + url);
+            prepared = doConnect(url, user, password);
+        }, "RtmpPrepare");
+        thread.setDaemon(true);
+        prepareThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Wait for a pending warm-up to finish and drop it.
+     *
+     * @return Warm-up succeeded and the connection is still usable
+     */
+    private boolean awaitPrepare() {
+        Thread thread = prepareThread;
+        if (thread == null) return false;
+        prepareThread = null;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return prepared && connected && socket != null && !socket.isClosed();
+    }
+
+    private void cancelPrepare() {
+        if (prepareThread != null) {
+            awaitPrepare();
+            if (socket != null) shutdown();
+        }
+    }
+
     @Override
     public boolean connect(String url, String user, String password) {
+        if (prepareThread != null) {
+            boolean sameTarget = Objects.equals(url, preparedUrl)
+                    && Objects.equals(user, preparedUser)
+                    && Objects.equals(password, preparedPassword);
+            if (awaitPrepare() && sameTarget) {
+                Log.d(TAG, "connect(): using prepared connection");
+                return true;
+            }
+            if (socket != null) shutdown();
+        }
+        return doConnect(url, user, password);
+    }
+
+    private boolean doConnect(String url, String user, String password) {
         reset();
         Matcher matcher = rtmpUrlPattern.matcher(url);
         if (matcher.matches()) {
@@ -128,28 +402,19 @@ public class RtmpConnection implements RtmpPublisher {
         rtmpSessionInfo = new RtmpSessionInfo();
         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
         try {
-            if (!tlsEnabled) {
-                socket = new Socket();
-                SocketAddress socketAddress = new InetSocketAddress(host, port);
-                socket.connect(socketAddress, 5000);
-            } else {
-                TLSSocketFactory socketFactory = new TLSSocketFactory();
-                socket = socketFactory.createSocket(host, port);
-                if (socket == null) throw new IOException("Socket creation failed");
-            }
-            socket.setSoLinger(false, 0);
+            socket = socketFactory.createSocket(host, port, tlsEnabled, RtmpSocketFactory.CONNECT_TIMEOUT);
 
             inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            countingStream = new CountingOutputStream(socket.getOutputStream());
+            outputStream = new BufferedOutputStream(countingStream, SEND_BUFFER_SIZE);
             Log.d(TAG, "connect(): socket connection established, doing handhake...");
             handshake(inputStream, outputStream);
+            // Acknowledgements count the bytes after the handshake
+            countingStream.resetCount();
             Log.d(TAG, "connect(): handshake done");
         } catch (IOException e) {
             mHandler.notifyRtmpIOException(e);
             return false;
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            mHandler.notifyRtmpIOException(new IOException(e));
-            return false;
         }
 
         // Start the "main" handling thread
@@ -185,17 +450,68 @@ public class RtmpConnection implements RtmpPublisher {
         mHandler.notifyRtmpConnecting("Connecting");
         synchronized (connectingLock) {
             try {
-                connectingLock.wait(5000);
+                // The result may already be in when the server answers faster than we get here
+                if (!connected) connectingLock.wait(5000);
             } catch (InterruptedException ex) {
                 // do nothing
             }
         }
         if (!connected) {
             shutdown();
+        } else {
+            sendAckWindowSize();
         }
         return connected;
     }
 
+    /**
+     * Tell the server how often to acknowledge the bytes it received
+     */
+    private void sendAckWindowSize() {
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+        Log.d(TAG, "sendAckWindowSize(): Send acknowledgement window size: " + ackWindowSize);
+        sendRtmpPacket(new WindowAckSize(ackWindowSize, chunkStreamInfo));
+    }
+
+    /**
+     * Send a ping request when the ping interval passed, the server echoes the timestamp back
+     */
+    private void sendPingIfDue() {
+        if (pingInterval <= 0) return;
+        long now = System.nanoTime() / 1000000;
+        if (now - lastPingMillis < pingInterval) return;
+        lastPingMillis = now;
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+        UserControl ping = new UserControl(UserControl.Type.PING_REQUEST, chunkStreamInfo);
+        ping.setEventData((int) now);
+        sendRtmpPacket(ping);
+    }
+
+    private void onPongReply(UserControl pong) {
+        int sample = (int) (System.nanoTime() / 1000000) - pong.getFirstEventData();
+        if (sample < 0) return;
+        rtt = sample;
+        // Same smoothing as TCP (RFC 6298)
+        smoothedRtt = smoothedRtt == 0 ? sample : (7 * smoothedRtt + sample) / 8;
+        socketFactory.setRttEstimate(smoothedRtt);
+    }
+
+    private void onAcknowledgement(Acknowledgement ack) {
+        CountingOutputStream counter = countingStream;
+        if (counter == null) return;
+        long sent = counter.getCount();
+        // The sequence number is the low 32 bits of the byte count, it wraps after 4GB. The
+        // server may acknowledge bytes before the write that counts them returned here.
+        long acked = Math.min(sent, sent - (int) (sent - (ack.getSequenceNumber() & 0xffffffffL)));
+        long now = System.nanoTime();
+        if (lastAckNanos != 0 && acked > bytesAcked) {
+            double throughput = (acked - bytesAcked) * 8 * 1e9 / (now - lastAckNanos);
+            ackedThroughput = ackedThroughput == 0 ? throughput : 0.8 * ackedThroughput + 0.2 * throughput;
+        }
+        bytesAcked = acked;
+        lastAckNanos = now;
+    }
+
     /**
      * Get AMF info
      *
@@ -285,10 +601,16 @@ public class RtmpConnection implements RtmpPublisher {
         createStream.addData(new AmfNull());  // command object: null for "createStream"
         sendRtmpPacket(createStream);
 
+        if (pipelinedPublish) {
+            // Don't wait for the createStream result, publish on the expected stream ID right away
+            pipelinedStreamId = PIPELINED_STREAM_ID;
+            sendPublish(pipelinedStreamId);
+        }
+
         // Waiting for "NetStream.Publish.Start" response.
         synchronized (publishLock) {
             try {
-                publishLock.wait(5000);
+                if (!publishPermitted) publishLock.wait(5000);
             } catch (InterruptedException ex) {
                 // do nothing
             }
@@ -311,10 +633,18 @@ public class RtmpConnection implements RtmpPublisher {
             return;
         }
 
-        Log.d(TAG, "fmlePublish(): Sending publish command...");
+        if (pipelinedStreamId == currentStreamId) {
+            Log.d(TAG, "fmlePublish(): publish already sent on stream " + currentStreamId);
+            return;
+        }
+        sendPublish(currentStreamId);
+    }
+
+    private void sendPublish(int streamId) {
+        Log.d(TAG, "sendPublish(): Sending publish command on stream " + streamId + "...");
         Command publish = new Command("publish", 0);
         publish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
-        publish.getHeader().setMessageStreamId(currentStreamId);
+        publish.getHeader().setMessageStreamId(streamId);
         publish.addData(new AmfNull());  // command object: null for "publish"
         publish.addData(streamName);
         publish.addData(publishType);
@@ -348,6 +678,9 @@ public class RtmpConnection implements RtmpPublisher {
 
     @Override
     public void close() {
+        if (prepareThread != null) {
+            awaitPrepare();
+        }
         if (socket != null) {
             closeStream();
             shutdown();
@@ -422,6 +755,7 @@ public class RtmpConnection implements RtmpPublisher {
         streamName = null;
         publishType = null;
         currentStreamId = 0;
+        pipelinedStreamId = 0;
         transactionIdCounter = 0;
         socketExceptionCause = "";
         serverIpAddr = null;
@@ -439,6 +773,16 @@ public class RtmpConnection implements RtmpPublisher {
         videoDataLength = 0;
         audioFrameCount = 0;
         audioDataLength = 0;
+        writeStallCount = 0;
+        writeStallNanos = 0;
+        maxWriteStallNanos = 0;
+        countingStream = null;
+        lastPingMillis = 0;
+        rtt = 0;
+        smoothedRtt = 0;
+        bytesAcked = 0;
+        ackedThroughput = 0;
+        lastAckNanos = 0;
     }
 
     @Override
@@ -464,8 +808,9 @@ public class RtmpConnection implements RtmpPublisher {
         audio.getHeader().setAbsoluteTimestamp(dts);
         audio.getHeader().setMessageStreamId(currentStreamId);
         sendRtmpPacket(audio);
+        sendPingIfDue();
         calcAudioBitrate(audio.getHeader().getPacketLength(), dts);
-        mHandler.notifyRtmpAudioStreaming();
+        if (streamingNotifications) mHandler.notifyRtmpAudioStreaming();
     }
 
     @Override
@@ -491,8 +836,9 @@ public class RtmpConnection implements RtmpPublisher {
         video.getHeader().setAbsoluteTimestamp(dts);
         video.getHeader().setMessageStreamId(currentStreamId);
         sendRtmpPacket(video);
+        sendPingIfDue();
         calcVideoFpsAndBitrate(video.getHeader().getPacketLength(), dts);
-        mHandler.notifyRtmpVideoStreaming();
+        if (streamingNotifications) mHandler.notifyRtmpVideoStreaming();
     }
 
     private void calcVideoFpsAndBitrate(int length, int pts) {
@@ -527,32 +873,77 @@ public class RtmpConnection implements RtmpPublisher {
     }
 
     protected void sendRtmpPacket(RtmpPacket rtmpPacket) {
-        try {
-            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-            chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-            if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
-                rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+        synchronized (writeLock) {
+            try {
+                ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+                chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
+                if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
+                    rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+                }
+                long writeStart = System.nanoTime();
+                rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+//                Log.v(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
+                if (rtmpPacket instanceof Command) {
+                    rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+                }
+                // Audio and video of a batch wait for endBatch(). Any other message is flushed
+                // at once, along with the part of the batch written before it.
+                if (!batching || !(rtmpPacket instanceof ContentData)) outputStream.flush();
+                trackWriteStall(System.nanoTime() - writeStart);
+            } catch (IOException e) {
+                onWriteException(e);
             }
-            rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
-//            Log.v(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
-            if (rtmpPacket instanceof Command) {
-                rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+        }
+    }
+
+    /**
+     * Keep the audio and video packets published from now on in the send buffer, until
+     * {@link #endBatch()} writes them to the socket at once
+     */
+    public void beginBatch() {
+        batching = true;
+    }
+
+    /**
+     * Write the packets published since {@link #beginBatch()} to the socket
+     */
+    public void endBatch() {
+        batching = false;
+        synchronized (writeLock) {
+            if (outputStream == null) return;
+            try {
+                long writeStart = System.nanoTime();
+                outputStream.flush();
+                trackWriteStall(System.nanoTime() - writeStart);
+            } catch (IOException e) {
+                onWriteException(e);
             }
-            outputStream.flush();
-        } catch (SocketException se) {
+        }
+    }
+
+    private void onWriteException(IOException e) {
+        if (e instanceof SocketException) {
             // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
             // socket exception only issue one time.
-            if (!socketExceptionCause.contentEquals(se.getMessage())) {
-                socketExceptionCause = se.getMessage();
-                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+            if (!socketExceptionCause.contentEquals(e.getMessage())) {
+                socketExceptionCause = e.getMessage();
+                Log.e(TAG, "Caught SocketException during write loop, shutting down: " + e.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) e);
             }
-        } catch (IOException ioe) {
-            Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
-            mHandler.notifyRtmpIOException(ioe);
+        } else {
+            Log.e(TAG, "Caught IOException during write loop, shutting down: " + e.getMessage());
+            mHandler.notifyRtmpIOException(e);
         }
     }
 
+    private void trackWriteStall(long nanos) {
+        if (nanos < WRITE_STALL_THRESHOLD_NANOS) return;
+        writeStallCount++;
+        writeStallNanos += nanos;
+        if (nanos > maxWriteStallNanos) maxWriteStallNanos = nanos;
+        Log.w(TAG, "sendRtmpPacket(): write stalled for " + nanos / 1000000 + "ms");
+    }
+
     private void handleRxPacketLoop() {
         // Handle all queued received RTMP packets
         while (!Thread.interrupted()) {
@@ -579,6 +970,9 @@ public class RtmpConnection implements RtmpPublisher {
                                     UserControl pong = new UserControl(user, channelInfo);
                                     sendRtmpPacket(pong);
                                     break;
+                                case PONG_REPLY:
+                                    onPongReply(user);
+                                    break;
                                 case STREAM_EOF:
                                     Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
                                     break;
@@ -596,12 +990,11 @@ public class RtmpConnection implements RtmpPublisher {
                         case SET_PEER_BANDWIDTH:
                             SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
                             rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
-                            int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
-                            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                            Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: " + acknowledgementWindowsize);
-                            sendRtmpPacket(new WindowAckSize(acknowledgementWindowsize, chunkStreamInfo));
-                            // Set socket option
-                            socket.setSendBufferSize(acknowledgementWindowsize);
+                            // Answer with our own window, so the server acknowledges often enough to measure throughput
+                            sendAckWindowSize();
+                            break;
+                        case ACKNOWLEDGEMENT:
+                            onAcknowledgement((Acknowledgement) rtmpPacket);
                             break;
                         case COMMAND_AMF0:
                             handleRxInvoke((Command) rtmpPacket);
@@ -642,20 +1035,16 @@ public class RtmpConnection implements RtmpPublisher {
                         shutdown();
                         rtmpSessionInfo = new RtmpSessionInfo();
                         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-                        if (!tlsEnabled) {
-                            socket = new Socket(host, port);
-                        } else {
-                            TLSSocketFactory socketFactory = new TLSSocketFactory();
-                            socket = socketFactory.createSocket(host, port);
-                            if (socket == null) throw new IOException("Socket creation failed");
-                        }
+                        socket = socketFactory.createSocket(host, port, tlsEnabled, RtmpSocketFactory.CONNECT_TIMEOUT);
                         inputStream = new BufferedInputStream(socket.getInputStream());
-                        outputStream = new BufferedOutputStream(socket.getOutputStream());
+                        countingStream = new CountingOutputStream(socket.getOutputStream());
+                        outputStream = new BufferedOutputStream(countingStream, SEND_BUFFER_SIZE);
                         Log.d(TAG, "connect(): socket connection established, doing handshake...");
                         salt = Util.getSalt(description);
                         challenge = Util.getChallenge(description);
                         opaque = Util.getOpaque(description);
                         handshake(inputStream, outputStream);
+                        countingStream.resetCount();
                         rxPacketHandler = new Thread(() -> handleRxPacketLoop());
                         rxPacketHandler.start();
                         sendConnectAuthPacketFinal(user, password, salt, challenge, opaque);
@@ -748,6 +1137,38 @@ public class RtmpConnection implements RtmpPublisher {
         }
     }
 
+    /**
+     * Counts the bytes that go out to the socket
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private volatile long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        void resetCount() {
+            count = 0;
+        }
+    }
+
     private String onSrsServerInfo(Command invoke) {
         // SRS server special information
         AmfObject objData = (AmfObject) invoke.getData().get(1);
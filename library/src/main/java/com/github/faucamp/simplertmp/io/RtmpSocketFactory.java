@@ -0,0 +1,160 @@
+package com.github.faucamp.simplertmp.io;
+
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Creates and configures the sockets used by {@link RtmpConnection}.
+ * <p>
+ * The TLS socket factory is shared by all connections, so the client session cache of its
+ * SSLContext survives reconnects and RTMPS handshakes can resume the previous session.
+ * Plain and TLS sockets both get TCP_NODELAY and a send buffer sized to the bandwidth-delay
+ * product of the target bitrate and the measured RTT.
+ * <p>
+ * Override {@link #configure(Socket)} to apply other socket options.
+ */
+public class RtmpSocketFactory {
+
+    /**
+     * Default connect timeout in milliseconds
+     */
+    public static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Bounds of the send buffer size in bytes
+     */
+    public static final int MIN_SEND_BUFFER_SIZE = 32 * 1024;
+    public static final int MAX_SEND_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Number of TLS sessions kept for resumption and how long they are kept in seconds
+     */
+    private static final int TLS_SESSION_CACHE_SIZE = 16;
+    private static final int TLS_SESSION_TIMEOUT = 60 * 60;
+
+    private static TLSSocketFactory sTlsSocketFactory;
+
+    private boolean tcpNoDelay = true;
+    private volatile int targetBitrate = 0;
+    private volatile int rttEstimate = 0;
+
+    /**
+     * Get the TLS socket factory shared by all connections
+     *
+     * @return TLS socket factory
+     */
+    private static synchronized TLSSocketFactory getTlsSocketFactory() throws IOException {
+        if (sTlsSocketFactory == null) {
+            try {
+                sTlsSocketFactory = new TLSSocketFactory();
+            } catch (NoSuchAlgorithmException | KeyManagementException e) {
+                throw new IOException(e);
+            }
+            SSLSessionContext sessionContext = sTlsSocketFactory.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT);
+            }
+        }
+        return sTlsSocketFactory;
+    }
+
+    /**
+     * Open a configured socket to the given endpoint
+     *
+     * @param host    Host name
+     * @param port    Port
+     * @param tls     Use TLS
+     * @param timeout Connect timeout in milliseconds
+     * @return Connected socket
+     */
+    public Socket createSocket(String host, int port, boolean tls, int timeout) throws IOException {
+        Socket socket = new Socket();
+        configure(socket);
+
+        long start = System.nanoTime();
+        socket.connect(new InetSocketAddress(host, port), timeout);
+        if (rttEstimate == 0) {
+            // The TCP handshake takes one round trip, good enough until we measure it
+            setRttEstimate((int) ((System.nanoTime() - start) / 1000000));
+        }
+
+        if (tls) {
+            // Layer TLS over the connected socket, host and port are the key for session resumption
+            Socket tlsSocket = getTlsSocketFactory().createSocket(socket, host, port, true);
+            if (tlsSocket == null) throw new IOException("Socket creation failed");
+            configure(tlsSocket);
+            socket = tlsSocket;
+        }
+        return socket;
+    }
+
+    /**
+     * Apply socket options, can be called again when the bitrate or RTT changes
+     *
+     * @param socket Socket
+     */
+    public void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setSoLinger(false, 0);
+        socket.setSendBufferSize(getSendBufferSize());
+    }
+
+    /**
+     * Compute the send buffer size from the bandwidth-delay product
+     *
+     * @return Send buffer size in bytes
+     */
+    public int getSendBufferSize() {
+        long size = (long) targetBitrate / 8 * Math.max(rttEstimate, 1) / 1000;
+        // Leave room for a key frame burst on top of the steady state
+        size *= 2;
+        return (int) Math.max(MIN_SEND_BUFFER_SIZE, Math.min(MAX_SEND_BUFFER_SIZE, size));
+    }
+
+    /**
+     * Enable or disable TCP_NODELAY
+     *
+     * @param enabled Disable Nagle's algorithm
+     */
+    public void setTcpNoDelay(boolean enabled) {
+        tcpNoDelay = enabled;
+    }
+
+    /**
+     * Set the bitrate that will be pushed through the socket
+     *
+     * @param bitrate Bitrate in bits per second
+     */
+    public void setTargetBitrate(int bitrate) {
+        targetBitrate = bitrate;
+    }
+
+    /**
+     * @return Bitrate in bits per second
+     */
+    public int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    /**
+     * Set the round trip time estimate
+     *
+     * @param rtt Round trip time in milliseconds
+     */
+    public void setRttEstimate(int rtt) {
+        rttEstimate = rtt;
+    }
+
+    /**
+     * @return Round trip time in milliseconds
+     */
+    public int getRttEstimate() {
+        return rttEstimate;
+    }
+}
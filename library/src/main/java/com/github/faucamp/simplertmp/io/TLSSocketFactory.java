@@ -7,6 +7,7 @@
 package com.github.faucamp.simplertmp.io;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
@@ -21,14 +22,22 @@ import java.security.NoSuchAlgorithmException;
  */
 public class TLSSocketFactory extends SSLSocketFactory {
 
+    private SSLContext context;
     private SSLSocketFactory internalSSLSocketFactory;
 
     public TLSSocketFactory() throws KeyManagementException, NoSuchAlgorithmException {
-        SSLContext context = SSLContext.getInstance("TLS");
+        context = SSLContext.getInstance("TLS");
         context.init(null, null, null);
         internalSSLSocketFactory = context.getSocketFactory();
     }
 
+    /**
+     * @return Client session cache, used to resume TLS sessions
+     */
+    public SSLSessionContext getClientSessionContext() {
+        return context.getClientSessionContext();
+    }
+
     @Override
     public String[] getDefaultCipherSuites() {
         return internalSSLSocketFactory.getDefaultCipherSuites();
@@ -112,29 +112,44 @@ public abstract class AbstractBox implements Box {
             assert contentSize < Integer.MAX_VALUE;
             content = ChannelHelper.readFully(readableByteChannel, contentSize);
         }
-        if (isParsed() == false) {
+        if (isParsed() == false && !isParsedLazily()) {
             parseDetails();
         }
 
     }
 
+    /**
+     * Whether the content is kept unparsed after {@link #parse}, until it is first needed.
+     *
+     * @return <code>false</code>, the content is parsed right away
+     */
+    protected boolean isParsedLazily() {
+        return false;
+    }
+
     public void getBox(WritableByteChannel os) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(l2i(getSize()));
-        getHeader(bb);
-        if (content == null) {
-            getContent(bb);
-            if (deadBytes != null) {
-                deadBytes.rewind();
-                while (deadBytes.remaining() > 0) {
-                    bb.put(deadBytes);
-                }
-            }
-        } else {
-            content.rewind();
-            bb.put(content);
+        if (content != null) {
+            // Not parsed, the content is written as it was read or mapped
+            ByteBuffer header = ByteBuffer.allocate(getHeaderSize());
+            getHeader(header);
+            header.rewind();
+            ChannelHelper.writeFully(os, header);
+            ByteBuffer bb = content.duplicate();
+            bb.rewind();
+            ChannelHelper.writeFully(os, bb);
+            return;
         }
+        // Dead bytes can be as large as a mapped mdat, they are written without copying
+        ByteBuffer bb = ByteBuffer.allocate(l2i(getSize() - (deadBytes == null ? 0 : deadBytes.limit())));
+        getHeader(bb);
+        getContent(bb);
         bb.rewind();
         os.write(bb);
+        if (deadBytes != null) {
+            ByteBuffer dead = deadBytes.duplicate();
+            dead.rewind();
+            ChannelHelper.writeFully(os, dead);
+        }
     }
 
 
@@ -261,6 +276,10 @@ public abstract class AbstractBox implements Box {
         return (content == null ? (getContentSize() + (deadBytes != null ? deadBytes.limit() : 0) + 8) : content.limit()) < 1L << 32;
     }
 
+    private int getHeaderSize() {
+        return (isSmallBox() ? 8 : 16) + (UserBox.TYPE.equals(getType()) ? 16 : 0);
+    }
+
     private void getHeader(ByteBuffer byteBuffer) {
         if (isSmallBox()) {
             IsoTypeWriter.writeUInt32(byteBuffer, this.getSize());
@@ -17,6 +17,7 @@
 package com.googlecode.mp4parser;
 
 import com.coremedia.iso.BoxParser;
+import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.ContainerBox;
 import com.googlecode.mp4parser.util.ByteBufferByteChannel;
@@ -25,6 +26,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -38,7 +40,7 @@ import java.util.logging.Logger;
 public abstract class AbstractContainerBox extends AbstractBox implements ContainerBox {
     private static Logger LOG = Logger.getLogger(AbstractContainerBox.class.getName());
 
-    protected List<Box> boxes = new LinkedList<Box>();
+    protected List<Box> boxes = new ChildBoxes();
     protected BoxParser boxParser;
 
     @Override
@@ -59,6 +61,8 @@ public abstract class AbstractContainerBox extends AbstractBox implements Contai
     }
 
     public void setBoxes(List<Box> boxes) {
+        // Otherwise the unparsed content would still be written
+        parseDetails();
         this.boxes = new LinkedList<Box>(boxes);
     }
 
@@ -111,6 +115,19 @@ public abstract class AbstractContainerBox extends AbstractBox implements Contai
         parseChildBoxes(content);
     }
 
+    /**
+     * Child boxes are parsed on first access when the file was opened with {@link IsoFile#mapped}
+     */
+    @Override
+    protected boolean isParsedLazily() {
+        for (ContainerBox parent = getParent(); parent != null; parent = parent.getParent()) {
+            if (parent instanceof IsoFile) {
+                return ((IsoFile) parent).isLazy();
+            }
+        }
+        return false;
+    }
+
 
     public String toString() {
         StringBuilder buffer = new StringBuilder();
@@ -168,4 +185,43 @@ public abstract class AbstractContainerBox extends AbstractBox implements Contai
         }
     }
 
+    /**
+     * The child boxes, which parses the content of the container on first use if that was
+     * deferred. Subclasses work on {@link #boxes} directly.
+     */
+    private final class ChildBoxes extends AbstractList<Box> {
+        private final ArrayList<Box> list = new ArrayList<Box>();
+
+        private ArrayList<Box> parsed() {
+            if (!isParsed()) {
+                parseDetails();
+            }
+            return list;
+        }
+
+        @Override
+        public Box get(int index) {
+            return parsed().get(index);
+        }
+
+        @Override
+        public int size() {
+            return parsed().size();
+        }
+
+        @Override
+        public Box set(int index, Box box) {
+            return parsed().set(index, box);
+        }
+
+        @Override
+        public void add(int index, Box box) {
+            parsed().add(index, box);
+        }
+
+        @Override
+        public Box remove(int index) {
+            return parsed().remove(index);
+        }
+    }
 }
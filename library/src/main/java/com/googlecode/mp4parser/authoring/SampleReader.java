@@ -0,0 +1,212 @@
+package com.googlecode.mp4parser.authoring;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.CompositionTimeToSample;
+import com.coremedia.iso.boxes.MediaBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SyncSampleBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.googlecode.mp4parser.util.CastUtils.l2i;
+
+/**
+ * Random access to the samples of a track in a file opened with {@link IsoFile#mapped}.
+ * <p>
+ * The sample size, chunk offset, sample to chunk, time to sample, composition offset and
+ * sync sample tables are resolved once into arrays by sample number, so position, size and
+ * times of any sample are a lookup. Sample data is a view of the mapping, nothing is copied.
+ */
+public class SampleReader {
+    private final ByteBuffer file;
+    private final long timescale;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] decodingTimes;
+    private final int[] compositionOffsets;
+    private final boolean[] sync;
+    // Sample numbers of the sync samples in order, null when every sample is one
+    private final int[] syncSamples;
+    private final long duration;
+
+    /**
+     * Resolve the sample tables of the track
+     *
+     * @param trak a track of a mapped file
+     * @throws IllegalArgumentException if the file is not mapped or the track has no sample table
+     */
+    public SampleReader(TrackBox trak) {
+        ByteBuffer mapping = trak.getIsoFile().getMappedFile();
+        if (mapping == null) {
+            throw new IllegalArgumentException("Samples can only be read from files opened with IsoFile.mapped");
+        }
+        MediaBox mdia = trak.getMediaBox();
+        SampleTableBox stbl = trak.getSampleTableBox();
+        if (mdia == null || stbl == null || stbl.getSampleSizeBox() == null || stbl.getChunkOffsetBox() == null
+                || stbl.getSampleToChunkBox() == null || stbl.getTimeToSampleBox() == null) {
+            throw new IllegalArgumentException("Track without sample table");
+        }
+        file = mapping;
+        timescale = mdia.getMediaHeaderBox().getTimescale();
+
+        // Chunk by chunk, the samples of a chunk follow each other
+        SampleSizeBox stsz = stbl.getSampleSizeBox();
+        int count = l2i(stsz.getSampleCount());
+        long[] chunkOffsets = stbl.getChunkOffsetBox().getChunkOffsets();
+        long[] samplesPerChunk = chunkOffsets.length == 0 ? new long[0] : stbl.getSampleToChunkBox().blowup(chunkOffsets.length);
+        offsets = new int[count];
+        sizes = new int[count];
+        int sample = 0;
+        for (int chunk = 0; chunk < chunkOffsets.length && sample < count; chunk++) {
+            long offset = chunkOffsets[chunk];
+            for (long i = 0; i < samplesPerChunk[chunk] && sample < count; i++, sample++) {
+                sizes[sample] = l2i(stsz.getSampleSizeAtIndex(sample));
+                offsets[sample] = l2i(offset);
+                offset += sizes[sample];
+            }
+        }
+
+        decodingTimes = new long[count];
+        long time = 0;
+        sample = 0;
+        for (TimeToSampleBox.Entry entry : stbl.getTimeToSampleBox().getEntries()) {
+            for (long i = 0; i < entry.getCount() && sample < count; i++, sample++) {
+                decodingTimes[sample] = time;
+                time += entry.getDelta();
+            }
+        }
+        for (; sample < count; sample++) {
+            decodingTimes[sample] = time;
+        }
+        duration = time;
+
+        CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+        if (ctts != null) {
+            compositionOffsets = new int[count];
+            sample = 0;
+            for (CompositionTimeToSample.Entry entry : ctts.getEntries()) {
+                for (int i = 0; i < entry.getCount() && sample < count; i++, sample++) {
+                    compositionOffsets[sample] = entry.getOffset();
+                }
+            }
+        } else {
+            compositionOffsets = null;
+        }
+
+        sync = new boolean[count];
+        SyncSampleBox stss = stbl.getSyncSampleBox();
+        if (stss == null) {
+            Arrays.fill(sync, true);
+            syncSamples = null;
+        } else {
+            long[] numbers = stss.getSampleNumber();
+            int[] samples = new int[numbers.length];
+            int n = 0;
+            for (long number : numbers) {
+                if (number >= 1 && number <= count && !sync[(int) number - 1]) {
+                    sync[(int) number - 1] = true;
+                    samples[n++] = (int) number - 1;
+                }
+            }
+            syncSamples = Arrays.copyOf(samples, n);
+            Arrays.sort(syncSamples);
+        }
+    }
+
+    public int getSampleCount() {
+        return sizes.length;
+    }
+
+    /**
+     * @return units per second of the sample times
+     */
+    public long getTimescale() {
+        return timescale;
+    }
+
+    /**
+     * @return end of the last sample, in timescale units
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @param sample sample number, from 0
+     * @return position of the sample in the file
+     */
+    public long getOffset(int sample) {
+        return offsets[sample];
+    }
+
+    public int getSize(int sample) {
+        return sizes[sample];
+    }
+
+    public long getDecodingTime(int sample) {
+        return decodingTimes[sample];
+    }
+
+    public long getCompositionTime(int sample) {
+        return decodingTimes[sample] + (compositionOffsets == null ? 0 : compositionOffsets[sample]);
+    }
+
+    public boolean isSyncSample(int sample) {
+        return sync[sample];
+    }
+
+    /**
+     * The sample data as a view of the mapped file, valid as long as the mapping is
+     *
+     * @param sample sample number, from 0
+     * @return read only buffer from position 0 to the size of the sample
+     * @throws IndexOutOfBoundsException if the sample lies beyond the end of the file
+     */
+    public ByteBuffer getSample(int sample) {
+        int offset = offsets[sample];
+        int size = sizes[sample];
+        if (offset + size > file.limit() || offset + size < 0) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " lies beyond the end of the file");
+        }
+        ByteBuffer view = file.duplicate();
+        view.position(offset);
+        view.limit(offset + size);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @param time decoding time in timescale units
+     * @return the last sample decoded at or before the time, 0 when the time is before the first sample
+     */
+    public int getSampleAt(long time) {
+        int i = Arrays.binarySearch(decodingTimes, time);
+        if (i < 0) {
+            i = -i - 2;
+        } else {
+            // Samples without duration share their time, take the last of them
+            while (i + 1 < decodingTimes.length && decodingTimes[i + 1] == time) i++;
+        }
+        return Math.max(i, 0);
+    }
+
+    /**
+     * @param sample sample number, from 0
+     * @return the last sync sample at or before the sample, the sample to start decoding from,
+     * -1 when there is none
+     */
+    public int getSyncSampleBefore(int sample) {
+        if (syncSamples == null) {
+            return sample;
+        }
+        int i = Arrays.binarySearch(syncSamples, sample);
+        if (i >= 0) {
+            return syncSamples[i];
+        }
+        i = -i - 2;
+        return i < 0 ? -1 : syncSamples[i];
+    }
+}
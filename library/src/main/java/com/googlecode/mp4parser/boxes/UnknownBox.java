@@ -0,0 +1,32 @@
+package com.googlecode.mp4parser.boxes;
+
+import com.googlecode.mp4parser.AbstractBox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A box of a type without a class, mdat and fragments among them. Its content is kept as is,
+ * mapped instead of read when it is large, and written back unchanged.
+ */
+public class UnknownBox extends AbstractBox {
+
+    public UnknownBox(String type) {
+        super(type);
+    }
+
+    @Override
+    protected long getContentSize() {
+        // The content is kept as dead bytes
+        return 0;
+    }
+
+    @Override
+    protected void getContent(ByteBuffer byteBuffer) {
+        // Written with the dead bytes
+    }
+
+    @Override
+    protected void _parseDetails(ByteBuffer content) {
+        // Nothing to parse
+    }
+}
@@ -21,12 +21,14 @@ OR OTHER DEALINGS IN THE SOFTWARE.
 package com.googlecode.mp4parser.h264.model;
 
 import com.googlecode.mp4parser.h264.read.CAVLCReader;
+import com.googlecode.mp4parser.h264.read.RbspReader;
 import com.googlecode.mp4parser.h264.write.CAVLCWriter;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -84,7 +86,23 @@ public class PictureParameterSet extends BitstreamElement {
     }
 
     public static PictureParameterSet read(InputStream is) throws IOException {
-        CAVLCReader reader = new CAVLCReader(is);
+        return read(new CAVLCReader(is));
+    }
+
+    /**
+     * Read the PPS NAL unit as the encoder emits it, from the NAL header on and with its
+     * emulation prevention bytes
+     *
+     * @param nal NAL unit from the position to the limit, the buffer is not moved
+     * @throws java.nio.BufferUnderflowException the NAL unit is cut short
+     */
+    public static PictureParameterSet read(ByteBuffer nal) throws IOException {
+        RbspReader reader = new RbspReader(nal);
+        reader.readNBit(8, "NAL: header");
+        return read(reader);
+    }
+
+    private static PictureParameterSet read(CAVLCReader reader) throws IOException {
         PictureParameterSet pps = new PictureParameterSet();
 
         pps.pic_parameter_set_id = reader.readUE("PPS: pic_parameter_set_id");
@@ -160,13 +178,13 @@ public class PictureParameterSet extends BitstreamElement {
             boolean pic_scaling_matrix_present_flag = reader
                     .readBool("PPS: pic_scaling_matrix_present_flag");
             if (pic_scaling_matrix_present_flag) {
+                pps.extended.scalindMatrix.ScalingList4x4 = new ScalingList[8];
+                pps.extended.scalindMatrix.ScalingList8x8 = new ScalingList[8];
                 for (int i = 0; i < 6 + 2 * (pps.extended.transform_8x8_mode_flag ? 1
                         : 0); i++) {
                     boolean pic_scaling_list_present_flag = reader
                             .readBool("PPS: pic_scaling_list_present_flag");
                     if (pic_scaling_list_present_flag) {
-                        pps.extended.scalindMatrix.ScalingList4x4 = new ScalingList[8];
-                        pps.extended.scalindMatrix.ScalingList8x8 = new ScalingList[8];
                         if (i < 6) {
                             pps.extended.scalindMatrix.ScalingList4x4[i] = ScalingList
                                     .read(reader, 16);
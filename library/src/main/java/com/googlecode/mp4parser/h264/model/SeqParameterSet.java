@@ -21,11 +21,13 @@ OR OTHER DEALINGS IN THE SOFTWARE.
 package com.googlecode.mp4parser.h264.model;
 
 import com.googlecode.mp4parser.h264.read.CAVLCReader;
+import com.googlecode.mp4parser.h264.read.RbspReader;
 import com.googlecode.mp4parser.h264.write.CAVLCWriter;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Sequence Parameter Set structure of h264 bitstream
@@ -75,7 +77,23 @@ public class SeqParameterSet extends BitstreamElement {
     public int num_ref_frames_in_pic_order_cnt_cycle;
 
     public static SeqParameterSet read(InputStream is) throws IOException {
-        CAVLCReader reader = new CAVLCReader(is);
+        return read(new CAVLCReader(is));
+    }
+
+    /**
+     * Read the SPS NAL unit as the encoder emits it, from the NAL header on and with its
+     * emulation prevention bytes
+     *
+     * @param nal NAL unit from the position to the limit, the buffer is not moved
+     * @throws java.nio.BufferUnderflowException the NAL unit is cut short
+     */
+    public static SeqParameterSet read(ByteBuffer nal) throws IOException {
+        RbspReader reader = new RbspReader(nal);
+        reader.readNBit(8, "NAL: header");
+        return read(reader);
+    }
+
+    private static SeqParameterSet read(CAVLCReader reader) throws IOException {
         SeqParameterSet sps = new SeqParameterSet();
 
         sps.profile_idc = (int) reader.readNBit(8, "SPS: profile_idc");
@@ -91,8 +109,7 @@ public class SeqParameterSet extends BitstreamElement {
         sps.level_idc = (int) reader.readNBit(8, "SPS: level_idc");
         sps.seq_parameter_set_id = reader.readUE("SPS: seq_parameter_set_id");
 
-        if (sps.profile_idc == 100 || sps.profile_idc == 110
-                || sps.profile_idc == 122 || sps.profile_idc == 144) {
+        if (hasChromaFormat(sps.profile_idc)) {
             sps.chroma_format_idc = ChromaFormat.fromId(reader
                     .readUE("SPS: chroma_format_idc"));
             if (sps.chroma_format_idc == ChromaFormat.YUV_444) {
@@ -169,15 +186,30 @@ public class SeqParameterSet extends BitstreamElement {
         return sps;
     }
 
+    /**
+     * High profiles, and the scalable and multiview ones built on them, carry chroma format,
+     * bit depths and scaling matrix
+     */
+    public static boolean hasChromaFormat(int profile_idc) {
+        switch (profile_idc) {
+            case 100: case 110: case 122: case 244: case 44: case 83: case 86:
+            case 118: case 128: case 138: case 139: case 134: case 135: case 144:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private static void readScalingListMatrix(CAVLCReader reader,
                                               SeqParameterSet sps) throws IOException {
         sps.scalingMatrix = new ScalingMatrix();
-        for (int i = 0; i < 8; i++) {
+        sps.scalingMatrix.ScalingList4x4 = new ScalingList[6];
+        // 4:4:4 has 8x8 lists for Cb and Cr as well
+        sps.scalingMatrix.ScalingList8x8 = new ScalingList[sps.chroma_format_idc == ChromaFormat.YUV_444 ? 6 : 2];
+        for (int i = 0; i < 6 + sps.scalingMatrix.ScalingList8x8.length; i++) {
             boolean seqScalingListPresentFlag = reader
                     .readBool("SPS: seqScalingListPresentFlag");
             if (seqScalingListPresentFlag) {
-                sps.scalingMatrix.ScalingList4x4 = new ScalingList[8];
-                sps.scalingMatrix.ScalingList8x8 = new ScalingList[8];
                 if (i < 6) {
                     sps.scalingMatrix.ScalingList4x4[i] = ScalingList.read(
                             reader, 16);
@@ -307,6 +339,38 @@ public class SeqParameterSet extends BitstreamElement {
         return hrd;
     }
 
+    /**
+     * @return width of the decoded pictures in pixels, without the cropped columns
+     */
+    public int getWidth() {
+        int cropUnitX = chroma_format_idc == ChromaFormat.MONOCHROME || chroma_format_idc == null
+                ? 1 : chroma_format_idc.getSubWidth();
+        return (pic_width_in_mbs_minus1 + 1) * 16
+                - cropUnitX * (frame_crop_left_offset + frame_crop_right_offset);
+    }
+
+    /**
+     * @return height of the decoded frames in pixels, without the cropped rows
+     */
+    public int getHeight() {
+        int fields = frame_mbs_only_flag ? 1 : 2;
+        int cropUnitY = (chroma_format_idc == ChromaFormat.MONOCHROME || chroma_format_idc == null
+                ? 1 : chroma_format_idc.getSubHeight()) * fields;
+        return (pic_height_in_map_units_minus1 + 1) * 16 * fields
+                - cropUnitY * (frame_crop_top_offset + frame_crop_bottom_offset);
+    }
+
+    /**
+     * @return frames per second from the VUI timing info, 0 when there is none
+     */
+    public double getFrameRate() {
+        if (vuiParams == null || !vuiParams.timing_info_present_flag || vuiParams.num_units_in_tick == 0) {
+            return 0;
+        }
+        // A tick is a field, two of them make a frame
+        return (vuiParams.time_scale & 0xffffffffL) / (2.0 * (vuiParams.num_units_in_tick & 0xffffffffL));
+    }
+
     public void write(OutputStream out) throws IOException {
         CAVLCWriter writer = new CAVLCWriter(out);
 
@@ -319,8 +383,7 @@ public class SeqParameterSet extends BitstreamElement {
         writer.writeNBit(level_idc, 8, "SPS: level_idc");
         writer.writeUE(seq_parameter_set_id, "SPS: seq_parameter_set_id");
 
-        if (profile_idc == 100 || profile_idc == 110 || profile_idc == 122
-                || profile_idc == 144) {
+        if (hasChromaFormat(profile_idc)) {
             writer.writeUE(chroma_format_idc.getId(), "SPS: chroma_format_idc");
             if (chroma_format_idc == ChromaFormat.YUV_444) {
                 writer.writeBool(residual_color_transform_flag,
@@ -332,7 +395,7 @@ public class SeqParameterSet extends BitstreamElement {
                     "SPS: qpprime_y_zero_transform_bypass_flag");
             writer.writeBool(scalingMatrix != null, "SPS: ");
             if (scalingMatrix != null) {
-                for (int i = 0; i < 8; i++) {
+                for (int i = 0; i < 6 + scalingMatrix.ScalingList8x8.length; i++) {
                     if (i < 6) {
                         writer.writeBool(
                                 scalingMatrix.ScalingList4x4[i] != null,
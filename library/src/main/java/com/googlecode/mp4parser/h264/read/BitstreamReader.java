@@ -39,6 +39,12 @@ public class BitstreamReader {
 
     protected CharCache debugBits = new CharCache(50);
 
+    /**
+     * For readers that bring their own source
+     */
+    protected BitstreamReader() {
+    }
+
     public BitstreamReader(InputStream is) throws IOException {
         this.is = is;
         curByte = is.read();
@@ -31,6 +31,9 @@ import static com.googlecode.mp4parser.h264.Debug.println;
 
 public class CAVLCReader extends BitstreamReader {
 
+    protected CAVLCReader() {
+    }
+
     public CAVLCReader(InputStream is) throws IOException {
         super(is);
     }
@@ -0,0 +1,211 @@
+package com.googlecode.mp4parser.h264.read;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * H264 RBSP reading straight from a NAL unit in a ByteBuffer
+ * <p>
+ * Bits are taken from a 64 bit word that is refilled a byte at a time, with the emulation
+ * prevention bytes of the NAL unit dropped on the way in. Exp-Golomb codes are decoded with a
+ * single leading zero count. Nothing is traced.
+ */
+public class RbspReader extends CAVLCReader {
+    private final ByteBuffer nal;
+    private final int limit;
+    // Next byte of the NAL unit to load
+    private int next;
+    // Zero bytes loaded in a row, a 0x03 after two of them is emulation prevention
+    private int zeros;
+    // Bits not read yet, left aligned
+    private long cache;
+    private int cached;
+    private long position;
+
+    /**
+     * @param nal RBSP from the position to the limit of the buffer, with emulation prevention
+     *            bytes. The buffer itself is not moved.
+     */
+    public RbspReader(ByteBuffer nal) {
+        this.nal = nal;
+        this.next = nal.position();
+        this.limit = nal.limit();
+    }
+
+    private void refill() {
+        while (cached <= 56 && next < limit) {
+            int b = nal.get(next++) & 0xff;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            cache |= (long) b << (56 - cached);
+            cached += 8;
+        }
+    }
+
+    private void skip(int n) {
+        cache = n == 64 ? 0 : cache << n;
+        cached -= n;
+        position += n;
+    }
+
+    @Override
+    public int read1Bit() {
+        if (cached == 0) {
+            refill();
+            if (cached == 0) {
+                return -1;
+            }
+        }
+        int bit = (int) (cache >>> 63);
+        skip(1);
+        return bit;
+    }
+
+    /**
+     * @throws BufferUnderflowException past the end of the NAL unit
+     */
+    @Override
+    public long readNBit(int n) {
+        if (n > 56) {
+            long high = readNBit(n - 32);
+            return high << 32 | readNBit(32);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        if (cached < n) {
+            refill();
+            if (cached < n) {
+                throw new BufferUnderflowException();
+            }
+        }
+        long val = cache >>> (64 - n);
+        skip(n);
+        return val;
+    }
+
+    @Override
+    public long readNBit(int n, String message) {
+        return readNBit(n);
+    }
+
+    @Override
+    public int readU(int i, String string) {
+        return (int) readNBit(i);
+    }
+
+    @Override
+    public boolean readBool(String message) {
+        return readNBit(1) != 0;
+    }
+
+    private int readUE() throws IOException {
+        if (cached < 33) {
+            refill();
+        }
+        int zeros = Long.numberOfLeadingZeros(cache);
+        if (zeros >= cached) {
+            throw new BufferUnderflowException();
+        }
+        if (zeros > 31) {
+            throw new IOException("Exp-Golomb code longer than 32 bit");
+        }
+        skip(zeros + 1);
+        return (int) ((1L << zeros) - 1 + readNBit(zeros));
+    }
+
+    @Override
+    public int readUE(String message) throws IOException {
+        return readUE();
+    }
+
+    @Override
+    public int readSE(String message) throws IOException {
+        int val = readUE();
+        return (val & 1) != 0 ? (val >>> 1) + 1 : -(val >>> 1);
+    }
+
+    @Override
+    public int readTE(int max) throws IOException {
+        if (max > 1)
+            return readUE();
+        return ~read1Bit() & 0x1;
+    }
+
+    @Override
+    public int readME(String string) throws IOException {
+        return readUE();
+    }
+
+    @Override
+    public int readByte() {
+        if (!isByteAligned()) {
+            readRemainingByte();
+        }
+        return (int) readNBit(8);
+    }
+
+    /**
+     * Skip to the next byte boundary
+     */
+    @Override
+    public long readRemainingByte() {
+        return readNBit((int) (-position & 7));
+    }
+
+    @Override
+    public int peakNextBits(int n) {
+        if (n > 8)
+            throw new IllegalArgumentException("N should be less then 8");
+        if (cached < n) {
+            refill();
+            if (cached < n) {
+                return -1;
+            }
+        }
+        return (int) (cache >>> (64 - n));
+    }
+
+    /**
+     * @return whether anything but the rbsp_trailing_bits is left
+     */
+    @Override
+    public boolean moreRBSPData() {
+        refill();
+        if (cached == 0) {
+            return false;
+        }
+        // The stop bit is the last one set, beyond what was loaded when any byte is not zero
+        for (int i = next; i < limit; i++) {
+            if (nal.get(i) != 0) {
+                return true;
+            }
+        }
+        return cache != 0 && cache != Long.MIN_VALUE;
+    }
+
+    @Override
+    public void readTrailingBits() {
+        read1Bit();
+        readRemainingByte();
+    }
+
+    @Override
+    public long getBitPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean isByteAligned() {
+        return (position & 7) == 0;
+    }
+
+    @Override
+    public int getCurBit() {
+        return (int) (position & 7);
+    }
+}
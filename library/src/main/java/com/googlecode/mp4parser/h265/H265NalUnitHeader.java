@@ -0,0 +1,91 @@
+package com.googlecode.mp4parser.h265;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The two byte header of a H.265 NAL unit, 7.3.1.2 of ITU-T H.265:
+ * forbidden_zero_bit, nal_unit_type (6 bits), nuh_layer_id (6 bits) and
+ * nuh_temporal_id_plus1 (3 bits). Read in place, nothing is allocated.
+ */
+public final class H265NalUnitHeader {
+    // Table 7-1, the coded slice segments
+    public static final int TRAIL_N = 0;
+    public static final int TRAIL_R = 1;
+    public static final int TSA_N = 2;
+    public static final int TSA_R = 3;
+    public static final int STSA_N = 4;
+    public static final int STSA_R = 5;
+    public static final int RADL_N = 6;
+    public static final int RADL_R = 7;
+    public static final int RASL_N = 8;
+    public static final int RASL_R = 9;
+    public static final int RSV_VCL_N14 = 14;
+    public static final int BLA_W_LP = 16;
+    public static final int BLA_W_RADL = 17;
+    public static final int BLA_N_LP = 18;
+    public static final int IDR_W_RADL = 19;
+    public static final int IDR_N_LP = 20;
+    public static final int CRA_NUT = 21;
+    public static final int RSV_IRAP_VCL23 = 23;
+    // The non-VCL ones
+    public static final int VPS_NUT = 32;
+    public static final int SPS_NUT = 33;
+    public static final int PPS_NUT = 34;
+    public static final int AUD_NUT = 35;
+    public static final int EOS_NUT = 36;
+    public static final int EOB_NUT = 37;
+    public static final int FD_NUT = 38;
+    public static final int PREFIX_SEI_NUT = 39;
+    public static final int SUFFIX_SEI_NUT = 40;
+
+    public static final int SIZE = 2;
+
+    private H265NalUnitHeader() {
+    }
+
+    /**
+     * @param nal    Buffer holding the NAL unit
+     * @param offset Position of its first header byte
+     * @return nal_unit_type
+     */
+    public static int getType(ByteBuffer nal, int offset) {
+        return (nal.get(offset) >> 1) & 0x3f;
+    }
+
+    public static int getLayerId(ByteBuffer nal, int offset) {
+        return (nal.get(offset) & 0x01) << 5 | (nal.get(offset + 1) >> 3) & 0x1f;
+    }
+
+    /**
+     * @return TemporalId, 0 for the base layer
+     */
+    public static int getTemporalId(ByteBuffer nal, int offset) {
+        return (nal.get(offset + 1) & 0x07) - 1;
+    }
+
+    /**
+     * @return Whether the type is a coded slice segment
+     */
+    public static boolean isVcl(int type) {
+        return type < VPS_NUT;
+    }
+
+    /**
+     * @return Whether the type starts an intra random access point, decoding can start there
+     */
+    public static boolean isIrap(int type) {
+        return type >= BLA_W_LP && type <= RSV_IRAP_VCL23;
+    }
+
+    /**
+     * @return Whether the type is a sub-layer non-reference picture, which no other picture of
+     * its temporal layer refers to
+     */
+    public static boolean isSubLayerNonReference(int type) {
+        return type <= RSV_VCL_N14 && (type & 1) == 0;
+    }
+
+    public static boolean isParameterSet(int type) {
+        return type >= VPS_NUT && type <= PPS_NUT;
+    }
+}
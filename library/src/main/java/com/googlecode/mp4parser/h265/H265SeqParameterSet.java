@@ -0,0 +1,127 @@
+package com.googlecode.mp4parser.h265;
+
+import com.googlecode.mp4parser.h264.read.CAVLCReader;
+import com.googlecode.mp4parser.h264.read.RbspReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The start of a H.265 sequence parameter set, 7.3.2.2 of ITU-T H.265, up to the sub-layer
+ * ordering info: what the HEVCDecoderConfigurationRecord, the metadata and the decoding
+ * times need. The rest of the SPS is not read.
+ */
+public class H265SeqParameterSet {
+    public int sps_video_parameter_set_id;
+    public int sps_max_sub_layers_minus1;
+    public boolean sps_temporal_id_nesting_flag;
+    public int general_profile_space;
+    public boolean general_tier_flag;
+    public int general_profile_idc;
+    public int general_profile_compatibility_flags;
+    // progressive, interlaced, non-packed and frame-only source flags and the 44 bits after them
+    public long general_constraint_indicator_flags;
+    public int general_level_idc;
+    public int sps_seq_parameter_set_id;
+    public int chroma_format_idc;
+    public boolean separate_colour_plane_flag;
+    public int pic_width_in_luma_samples;
+    public int pic_height_in_luma_samples;
+    public int conf_win_left_offset;
+    public int conf_win_right_offset;
+    public int conf_win_top_offset;
+    public int conf_win_bottom_offset;
+    public int bit_depth_luma_minus8;
+    public int bit_depth_chroma_minus8;
+    public int log2_max_pic_order_cnt_lsb_minus4;
+    // Of the highest sub-layer
+    public int sps_max_dec_pic_buffering_minus1;
+    public int sps_max_num_reorder_pics;
+    public int sps_max_latency_increase_plus1;
+
+    /**
+     * @param nal SPS NAL unit from the position to the limit, with its two byte header and
+     *            emulation prevention bytes. The buffer itself is not moved.
+     */
+    public static H265SeqParameterSet read(ByteBuffer nal) throws IOException {
+        RbspReader reader = new RbspReader(nal);
+        reader.readNBit(16, "NAL: header");
+        return read(reader);
+    }
+
+    private static H265SeqParameterSet read(CAVLCReader reader) throws IOException {
+        H265SeqParameterSet sps = new H265SeqParameterSet();
+        sps.sps_video_parameter_set_id = (int) reader.readNBit(4, "SPS: sps_video_parameter_set_id");
+        sps.sps_max_sub_layers_minus1 = (int) reader.readNBit(3, "SPS: sps_max_sub_layers_minus1");
+        sps.sps_temporal_id_nesting_flag = reader.readBool("SPS: sps_temporal_id_nesting_flag");
+
+        // profile_tier_level(1, sps_max_sub_layers_minus1)
+        sps.general_profile_space = (int) reader.readNBit(2, "PTL: general_profile_space");
+        sps.general_tier_flag = reader.readBool("PTL: general_tier_flag");
+        sps.general_profile_idc = (int) reader.readNBit(5, "PTL: general_profile_idc");
+        sps.general_profile_compatibility_flags = (int) reader.readNBit(32, "PTL: general_profile_compatibility_flags");
+        sps.general_constraint_indicator_flags = reader.readNBit(48, "PTL: general_constraint_indicator_flags");
+        sps.general_level_idc = (int) reader.readNBit(8, "PTL: general_level_idc");
+        int subLayers = sps.sps_max_sub_layers_minus1;
+        boolean[] profilePresent = new boolean[subLayers];
+        boolean[] levelPresent = new boolean[subLayers];
+        for (int i = 0; i < subLayers; i++) {
+            profilePresent[i] = reader.readBool("PTL: sub_layer_profile_present_flag");
+            levelPresent[i] = reader.readBool("PTL: sub_layer_level_present_flag");
+        }
+        if (subLayers > 0) {
+            reader.readNBit(2 * (8 - subLayers), "PTL: reserved_zero_2bits");
+        }
+        for (int i = 0; i < subLayers; i++) {
+            if (profilePresent[i]) {
+                // Space, tier, profile, compatibility and constraint flags
+                reader.readNBit(8 + 32, "PTL: sub_layer_profile");
+                reader.readNBit(48, "PTL: sub_layer_constraint_indicator_flags");
+            }
+            if (levelPresent[i]) {
+                reader.readNBit(8, "PTL: sub_layer_level_idc");
+            }
+        }
+
+        sps.sps_seq_parameter_set_id = reader.readUE("SPS: sps_seq_parameter_set_id");
+        sps.chroma_format_idc = reader.readUE("SPS: chroma_format_idc");
+        if (sps.chroma_format_idc == 3) {
+            sps.separate_colour_plane_flag = reader.readBool("SPS: separate_colour_plane_flag");
+        }
+        sps.pic_width_in_luma_samples = reader.readUE("SPS: pic_width_in_luma_samples");
+        sps.pic_height_in_luma_samples = reader.readUE("SPS: pic_height_in_luma_samples");
+        if (reader.readBool("SPS: conformance_window_flag")) {
+            sps.conf_win_left_offset = reader.readUE("SPS: conf_win_left_offset");
+            sps.conf_win_right_offset = reader.readUE("SPS: conf_win_right_offset");
+            sps.conf_win_top_offset = reader.readUE("SPS: conf_win_top_offset");
+            sps.conf_win_bottom_offset = reader.readUE("SPS: conf_win_bottom_offset");
+        }
+        sps.bit_depth_luma_minus8 = reader.readUE("SPS: bit_depth_luma_minus8");
+        sps.bit_depth_chroma_minus8 = reader.readUE("SPS: bit_depth_chroma_minus8");
+        sps.log2_max_pic_order_cnt_lsb_minus4 = reader.readUE("SPS: log2_max_pic_order_cnt_lsb_minus4");
+        boolean orderingInfo = reader.readBool("SPS: sps_sub_layer_ordering_info_present_flag");
+        for (int i = orderingInfo ? 0 : subLayers; i <= subLayers; i++) {
+            sps.sps_max_dec_pic_buffering_minus1 = reader.readUE("SPS: sps_max_dec_pic_buffering_minus1");
+            sps.sps_max_num_reorder_pics = reader.readUE("SPS: sps_max_num_reorder_pics");
+            sps.sps_max_latency_increase_plus1 = reader.readUE("SPS: sps_max_latency_increase_plus1");
+        }
+        return sps;
+    }
+
+    /**
+     * @return width of the decoded pictures in pixels, without the conformance window
+     */
+    public int getWidth() {
+        int subWidthC = separate_colour_plane_flag || chroma_format_idc == 0 || chroma_format_idc == 3 ? 1 : 2;
+        return pic_width_in_luma_samples - subWidthC * (conf_win_left_offset + conf_win_right_offset);
+    }
+
+    /**
+     * @return height of the decoded pictures in pixels, without the conformance window
+     */
+    public int getHeight() {
+        int subHeightC = !separate_colour_plane_flag && chroma_format_idc == 1 ? 2 : 1;
+        return pic_height_in_luma_samples - subHeightC * (conf_win_top_offset + conf_win_bottom_offset);
+    }
+
+}
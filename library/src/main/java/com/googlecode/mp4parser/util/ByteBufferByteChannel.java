@@ -41,6 +41,30 @@ public class ByteBufferByteChannel implements ByteChannel {
         }
     }
 
+    /**
+     * Take the next bytes as a view of the backing buffer, without copying them
+     *
+     * @param length number of bytes
+     * @return a buffer sharing the content of the backing buffer
+     * @throws EOFException if there are less than <code>length</code> bytes left
+     */
+    public ByteBuffer readSlice(int length) throws EOFException {
+        if (byteBuffer.remaining() < length) {
+            throw new EOFException("Reading beyond end of stream");
+        }
+        ByteBuffer slice = byteBuffer.slice();
+        slice.limit(length);
+        byteBuffer.position(byteBuffer.position() + length);
+        return slice;
+    }
+
+    /**
+     * @return number of bytes left to read
+     */
+    public int remaining() {
+        return byteBuffer.remaining();
+    }
+
     public boolean isOpen() {
         return true;
     }
@@ -86,11 +86,19 @@ public final class SrsAllocator {
         }
     }
 
+    /**
+     * Takes an available {@link Allocation} of at least {@code size} bytes, or creates one.
+     *
+     * @param size Bytes the caller is going to put.
+     * @return An empty allocation, to hand back with {@link #release(Allocation)}.
+     */
     public synchronized Allocation allocate(int size) {
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() >= size) {
-                Allocation ret = availableAllocations[i];
-                availableAllocations[i] = null;
+        // The most recently released allocation first, it is the most likely to be cached
+        for (int i = availableSentinel - 1; i >= 0; i--) {
+            Allocation ret = availableAllocations[i];
+            if (ret.array().length >= size) {
+                availableAllocations[i] = availableAllocations[--availableSentinel];
+                availableAllocations[availableSentinel] = null;
                 return ret;
             }
         }
@@ -98,18 +106,16 @@ public final class SrsAllocator {
         return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
     }
 
+    /**
+     * Hands an {@link Allocation} back for {@link #allocate(int)} to reuse.
+     *
+     * @param allocation An allocation that is no longer used.
+     */
     public synchronized void release(Allocation allocation) {
         allocation.clear();
 
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() == 0) {
-                availableAllocations[i] = allocation;
-                return;
-            }
-        }
-
         if (availableSentinel + 1 > availableAllocations.length) {
-            availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
+            availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2 + 1);
         }
         availableAllocations[availableSentinel++] = allocation;
     }
@@ -0,0 +1,98 @@
+package net.ossrs.yasea;
+
+import com.googlecode.mp4parser.h265.H265NalUnitHeader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the NAL units of an Annex B buffer in place, as MediaCodec emits them: where each one
+ * starts and its size, without start codes and trailing zero bytes. Nothing is allocated, an
+ * instance is reused for every buffer of a stream by one thread.
+ */
+final class SrsAnnexbReader {
+    private ByteBuffer bb;
+    private int limit;
+    // Position after the next start code, -1 past the last one
+    private int next;
+    private int start;
+    private int size;
+
+    /**
+     * @param bb     Buffer, not moved
+     * @param offset Position of the first start code
+     * @param limit  End of the last NAL unit
+     */
+    SrsAnnexbReader reset(ByteBuffer bb, int offset, int limit) {
+        this.bb = bb;
+        this.limit = limit;
+        this.next = findStartCode(offset);
+        this.start = 0;
+        this.size = 0;
+        return this;
+    }
+
+    /**
+     * Move to the next NAL unit
+     *
+     * @return False past the last one
+     */
+    boolean next() {
+        if (next < 0) {
+            return false;
+        }
+        start = next;
+        next = findStartCode(start);
+        int end = next < 0 ? limit : next - 3;
+        // The zero byte of a four byte start code
+        while (end > start && bb.get(end - 1) == 0) end--;
+        size = end - start;
+        return true;
+    }
+
+    /**
+     * @return Position of the NAL unit header
+     */
+    int start() {
+        return start;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return nal_unit_type of a H.264 NAL unit
+     */
+    int avcType() {
+        return size > 0 ? bb.get(start) & 0x1f : -1;
+    }
+
+    /**
+     * @return nal_unit_type of a H.265 NAL unit
+     */
+    int hevcType() {
+        return size >= H265NalUnitHeader.SIZE ? H265NalUnitHeader.getType(bb, start) : -1;
+    }
+
+    /**
+     * @return The NAL unit as a new array, for parameter sets
+     */
+    byte[] copy() {
+        byte[] nal = new byte[size];
+        for (int i = 0; i < size; i++) nal[i] = bb.get(start + i);
+        return nal;
+    }
+
+    private int findStartCode(int from) {
+        for (int i = from; i + 2 < limit; i++) {
+            int b = bb.get(i + 2) & 0xff;
+            if (b > 1) {
+                // No start code begins at i, i + 1 or i + 2
+                i += 2;
+            } else if (b == 1 && bb.get(i) == 0 && bb.get(i + 1) == 0) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+}
@@ -13,8 +13,8 @@ import android.graphics.Rect;
 import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
@@ -25,7 +25,7 @@ import java.nio.ByteBuffer;
 /**
  * Implements an Advanced Video Codec encoder (H264)
  */
-public class SrsAvcEncoder {
+public class SrsAvcEncoder implements SrsKeyFrameSource {
     private static final String TAG = "SrsAvcEncoder";
 
     /**
@@ -95,6 +95,22 @@ public class SrsAvcEncoder {
      * @param handler   Codec handler
      */
     public SrsAvcEncoder(int inWidth, int inHeight, int outWidth, int outHeight, int fps, int bitrate, MediaCodec.Callback handler) {
+        this(CODEC, inWidth, inHeight, outWidth, outHeight, fps, bitrate, handler);
+    }
+
+    /**
+     * Implements an AVC or HEVC encoder
+     *
+     * @param codec     Video MIME type, {@link MediaFormat#MIMETYPE_VIDEO_AVC} or {@link MediaFormat#MIMETYPE_VIDEO_HEVC}
+     * @param inWidth   Input width
+     * @param inHeight  Input height
+     * @param outWidth  Output width
+     * @param outHeight Output height
+     * @param fps       Output framerate
+     * @param bitrate   Output bitrate
+     * @param handler   Codec handler
+     */
+    public SrsAvcEncoder(String codec, int inWidth, int inHeight, int outWidth, int outHeight, int fps, int bitrate, MediaCodec.Callback handler) {
         this.handler = handler;
 
         // Prepare input
@@ -126,9 +142,8 @@ public class SrsAvcEncoder {
 //        setEncoderBitrate(vBitrate);
 //        setEncoderPreset("veryfast");
 
-        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-        mediaFormat = getMediaFormat(outWidth, outHeight, vFps, vBitrate);
-        codecName = list.findEncoderForFormat(mediaFormat);
+        mediaFormat = getMediaFormat(codec, outWidth, outHeight, vFps, vBitrate);
+        codecName = SrsCodecPool.findEncoderForFormat(mediaFormat);
     }
 
     /**
@@ -141,7 +156,21 @@ public class SrsAvcEncoder {
      * @return Mediaformat for video streaming
      */
     public static MediaFormat getMediaFormat(int width, int height, int fps, int bitrate) {
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(CODEC, width, height);
+        return getMediaFormat(CODEC, width, height, fps, bitrate);
+    }
+
+    /**
+     * Return media format for video streaming
+     *
+     * @param codec   Video MIME type
+     * @param width   Width in pixels
+     * @param height  Height in pixels
+     * @param fps     Frames Per Second
+     * @param bitrate Bitrate in kbps
+     * @return Mediaformat for video streaming
+     */
+    public static MediaFormat getMediaFormat(String codec, int width, int height, int fps, int bitrate) {
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(codec, width, height);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, DEFAULT_COLOR_FORMAT);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate * 1000);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
@@ -156,7 +185,7 @@ public class SrsAvcEncoder {
      */
     public void start() throws IOException {
         try {
-            vencoder = MediaCodec.createByCodecName(codecName);
+            vencoder = SrsCodecPool.create(codecName);
             vencoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             if (handler != null) {
                 videoThread = new HandlerThread("Video");
@@ -178,12 +207,28 @@ public class SrsAvcEncoder {
 
         if (vencoder != null) {
             Log.i(TAG, "Stop encoder");
-            vencoder.stop();
-            vencoder.release();
+            // Kept stopped, the next session sets its own callback
+            SrsCodecPool.recycle(vencoder, codecName, null, null);
             vencoder = null;
         }
     }
 
+    /**
+     * Ask the encoder for a sync frame, see {@link MediaCodec#PARAMETER_KEY_REQUEST_SYNC_FRAME}
+     */
+    @Override
+    public void requestKeyFrame() {
+        MediaCodec codec = vencoder;
+        if (codec == null) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            // Stopped meanwhile
+        }
+    }
+
     public void setCameraOrientation(int degrees) {
         if (degrees < 0) {
             rotate = 360 + degrees;
@@ -343,6 +388,8 @@ public class SrsAvcEncoder {
 
     private native void closeSoftEncoder();
 
+    private native void forceKeyFrame();
+
     static {
         System.loadLibrary("yuv");
         System.loadLibrary("enc");
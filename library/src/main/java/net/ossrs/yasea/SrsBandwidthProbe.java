@@ -0,0 +1,146 @@
+package net.ossrs.yasea;
+
+import android.util.Log;
+import com.github.faucamp.simplertmp.io.RtmpConnection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the rendition to start publishing with from a ladder, by probing the uplink after the
+ * server accepted the publish and before the encoder is configured.
+ * <p>
+ * The probe sends padding at the rate the top of the ladder needs, see
+ * {@link RtmpConnection#probeBandwidth(int, int)}, and selects the highest rendition whose
+ * video and audio bitrate fit in the headroom of the measured throughput.
+ */
+public final class SrsBandwidthProbe {
+
+    private static final String TAG = "SrsBandwidthProbe";
+
+    /**
+     * Receives the outcome of a probe on the muxer thread, before any media is sent
+     */
+    public interface Listener {
+        /**
+         * @param rendition  Rendition to start with, null when the probe failed
+         * @param throughput Measured throughput in bits per second, 0 when the probe failed
+         */
+        void onBandwidthProbed(SrsRendition rendition, double throughput);
+    }
+
+    private static final List<SrsRendition> DEFAULT_LADDER = Arrays.asList(
+            new SrsRendition(320, 180, 15, 200 * 1024),
+            new SrsRendition(480, 272, 15, 400 * 1024),
+            new SrsRendition(640, 360, 24, 800 * 1024),
+            new SrsRendition(960, 540, 24, 1500 * 1024),
+            new SrsRendition(1280, 720, 24, 2500 * 1024));
+
+    private final List<SrsRendition> ladder = new ArrayList<>(DEFAULT_LADDER);
+    private int duration = 1000;
+    private double headroom = 0.8;
+    private int audioBitrate = 64 * 1024;
+    private volatile double throughput;
+    private volatile SrsRendition selected;
+
+    /**
+     * Replace the ladder, 320x180 at 15 fps up to 720p by default
+     *
+     * @param renditions Renditions in any order
+     */
+    public void setLadder(List<SrsRendition> renditions) {
+        if (renditions.isEmpty()) throw new IllegalArgumentException("Empty ladder");
+        ladder.clear();
+        ladder.addAll(renditions);
+        Collections.sort(ladder, new Comparator<SrsRendition>() {
+            @Override
+            public int compare(SrsRendition a, SrsRendition b) {
+                return Integer.compare(a.getBitrate(), b.getBitrate());
+            }
+        });
+    }
+
+    /**
+     * @return Renditions from the lowest to the highest bitrate
+     */
+    public List<SrsRendition> getLadder() {
+        return Collections.unmodifiableList(ladder);
+    }
+
+    /**
+     * Set how long to send padding, longer probes see past the initial burst the socket buffer
+     * absorbs but delay going live
+     *
+     * @param duration Duration in milliseconds, 1000 by default
+     */
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Set the fraction of the measured throughput the stream may use, the rest absorbs key
+     * frame bursts and the varying uplink
+     *
+     * @param headroom Fraction between 0 and 1, 0.8 by default
+     */
+    public void setHeadroom(double headroom) {
+        this.headroom = headroom;
+    }
+
+    /**
+     * Set the audio bitrate sent along with every rendition
+     *
+     * @param bitrate Bitrate in bits per second, 64 kbps like {@link SrsEncoder#ABITRATE} by default
+     */
+    public void setAudioBitrate(int bitrate) {
+        audioBitrate = bitrate;
+    }
+
+    /**
+     * @return Throughput measured by the last probe in bits per second
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return Rendition selected by the last probe, null when it failed or did not run
+     */
+    public SrsRendition getSelected() {
+        return selected;
+    }
+
+    /**
+     * Select the highest rendition that fits a throughput
+     *
+     * @param throughput Throughput in bits per second
+     * @return Rendition, the lowest one when none fits, null for no throughput
+     */
+    public SrsRendition select(double throughput) {
+        if (throughput <= 0) return null;
+        for (int i = ladder.size() - 1; i > 0; i--) {
+            SrsRendition rendition = ladder.get(i);
+            if (rendition.getBitrate() + audioBitrate <= throughput * headroom) return rendition;
+        }
+        return ladder.get(0);
+    }
+
+    /**
+     * Probe the uplink of a publishing connection and select a rendition
+     *
+     * @param connection Connection the server accepted the publish on
+     * @return Rendition to start with, null when the probe failed
+     */
+    public SrsRendition probe(RtmpConnection connection) {
+        SrsRendition top = ladder.get(ladder.size() - 1);
+        // A little above what the top needs, pacing and timing round the measurement down
+        int bitrate = (int) ((top.getBitrate() + audioBitrate) / headroom * 1.1);
+        throughput = connection.probeBandwidth(bitrate, duration);
+        selected = select(throughput);
+        Log.i(TAG, String.format("probe(): %d kbps measured, starting with %s", (int) (throughput / 1000), selected));
+        return selected;
+    }
+}
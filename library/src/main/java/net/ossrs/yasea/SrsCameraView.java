@@ -52,8 +52,11 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
 
     private Thread worker;
     private final Object writeLock = new Object();
-    private ConcurrentLinkedQueue<IntBuffer> mGLIntBufferCache = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<GLFrame> mGLIntBufferCache = new ConcurrentLinkedQueue<>();
+    // Frames the encoder is done with, to take the next pictures
+    private ConcurrentLinkedQueue<GLFrame> mGLFramePool = new ConcurrentLinkedQueue<>();
     private PreviewCallback mPrevCb;
+    private SrsLatencyTracer mTracer;
 
     public SrsCameraView(Context context) {
         this(context, null);
@@ -116,7 +119,11 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
+        long drawStart = System.nanoTime();
         surfaceTexture.updateTexImage();
+        // Same monotonic clock as System.nanoTime(), but not every camera HAL fills it in
+        long captureNanos = surfaceTexture.getTimestamp();
+        if (captureNanos <= 0 || captureNanos > drawStart) captureNanos = drawStart;
 
         surfaceTexture.getTransformMatrix(mSurfaceMatrix);
         Matrix.multiplyMM(mTransformMatrix, 0, mSurfaceMatrix, 0, mProjectionMatrix, 0);
@@ -124,7 +131,20 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         magicFilter.onDrawFrame(mOESTextureId);
 
         if (mIsEncoding) {
-            mGLIntBufferCache.add(magicFilter.getGLFboBuffer());
+            if (mTracer != null) mTracer.beginSection(SrsLatencyTracer.Stage.FILTER);
+            IntBuffer picture = magicFilter.getGLFboBuffer();
+            if (mTracer != null) {
+                mTracer.endSection();
+                mTracer.record(SrsLatencyTracer.Stage.CAPTURE, captureNanos, drawStart);
+                mTracer.record(SrsLatencyTracer.Stage.FILTER, drawStart, System.nanoTime());
+            }
+            GLFrame frame = mGLFramePool.poll();
+            if (frame == null) {
+                frame = new GLFrame();
+            }
+            frame.picture = picture;
+            frame.captureNanos = captureNanos;
+            mGLIntBufferCache.add(frame);
             synchronized (writeLock) {
                 writeLock.notifyAll();
             }
@@ -135,6 +155,10 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         mPrevCb = cb;
     }
 
+    public void setLatencyTracer(SrsLatencyTracer tracer) {
+        mTracer = tracer;
+    }
+
     public int[] setPreviewResolution(int width, int height) {
         getHolder().setFixedSize(width, height);
 
@@ -227,8 +251,11 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
             public void run() {
                 while (!Thread.interrupted()) {
                     while (!mGLIntBufferCache.isEmpty()) {
-                        IntBuffer picture = mGLIntBufferCache.poll();
-                        mGLPreviewBuffer.asIntBuffer().put(picture.array());
+                        GLFrame frame = mGLIntBufferCache.poll();
+                        if (mTracer != null) mTracer.setCurrentCapture(frame.captureNanos);
+                        mGLPreviewBuffer.asIntBuffer().put(frame.picture.array());
+                        frame.picture = null;
+                        mGLFramePool.add(frame);
                         mPrevCb.onGetRgbaFrame(mGLPreviewBuffer.array(), mPreviewWidth, mPreviewHeight);
                     }
                     // Waiting for next frame
@@ -413,6 +440,15 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         }
     }
 
+    /**
+     * Filtered picture waiting for the encoder, with its capture time. Taken from the pool again
+     * once the picture is copied.
+     */
+    private static class GLFrame {
+        IntBuffer picture;
+        long captureNanos;
+    }
+
     public interface PreviewCallback {
 
         void onGetRgbaFrame(byte[] data, int width, int height);
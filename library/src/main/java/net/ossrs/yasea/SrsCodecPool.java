@@ -0,0 +1,296 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hardware encoders of the process: what they can do, and the instances kept between sessions.
+ * <p>
+ * Enumerating the codec list and creating, configuring and starting an encoder take hundreds of
+ * milliseconds on some devices, on every publish. The capabilities are probed once per MIME
+ * type. A stopped encoder is flushed and kept running instead of released, so the next session
+ * that asks for the same format takes it as it is. One asking for another format reconfigures
+ * the instance rather than allocating a new one. Hardware has few encoder instances, so only a
+ * couple are kept, and none for longer than {@link #IDLE_TIMEOUT_MS}.
+ */
+final class SrsCodecPool {
+    private static final String TAG = "SrsCodecPool";
+
+    // Encoders kept between sessions
+    private static final int MAX_IDLE = 2;
+    static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+    // Format keys an encoder is configured with, equal values make a warm encoder reusable
+    private static final String[] INTEGER_KEYS = {
+            MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_COLOR_FORMAT,
+            MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_PROFILE, MediaFormat.KEY_LEVEL, MediaFormat.KEY_BITRATE_MODE,
+            MediaFormat.KEY_INTRA_REFRESH_PERIOD, MediaFormat.KEY_LATENCY, MediaFormat.KEY_PRIORITY,
+            SrsDtsGenerator.KEY_MAX_B_FRAMES
+    };
+    private static final String[] STRING_KEYS = {MediaFormat.KEY_MIME, SrsFlvMuxer.KEY_TEMPORAL_LAYERING};
+
+    private static final HashMap<String, Capabilities> capabilities = new HashMap<>();
+    private static final HashMap<String, String> encoderNames = new HashMap<>();
+    private static final ArrayList<Idle> idle = new ArrayList<>();
+    private static ScheduledExecutorService evictor;
+
+    /**
+     * What an encoder of a MIME type can do, probed once
+     */
+    static final class Capabilities {
+        final MediaCodecInfo info;
+        // Largest YUV 4:2:0 color format, planar or semi-planar, 0 for none
+        final int colorFormat;
+        final MediaCodecInfo.CodecProfileLevel[] profileLevels;
+        final boolean intraRefresh;
+        final boolean cbr;
+
+        private Capabilities(MediaCodecInfo info, String mime) {
+            this.info = info;
+            MediaCodecInfo.CodecCapabilities cc = info.getCapabilitiesForType(mime);
+            int matchedColorFormat = 0;
+            for (int cf : cc.colorFormats) {
+                Log.i(TAG, String.format("vencoder %s supports color fomart 0x%x(%d)", info.getName(), cf, cf));
+                // corresponding to the color space transform in onPreviewFrame
+                if (cf >= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                        && cf <= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar && cf > matchedColorFormat) {
+                    matchedColorFormat = cf;
+                }
+            }
+            colorFormat = matchedColorFormat;
+            profileLevels = cc.profileLevels;
+            for (MediaCodecInfo.CodecProfileLevel pl : profileLevels) {
+                Log.i(TAG, String.format("vencoder %s support profile %d, level %d", info.getName(), pl.profile, pl.level));
+            }
+            intraRefresh = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    && cc.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+            MediaCodecInfo.EncoderCapabilities encoderCaps = cc.getEncoderCapabilities();
+            cbr = encoderCaps != null
+                    && encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        }
+
+        String getName() {
+            return info.getName();
+        }
+    }
+
+    /**
+     * Encoder kept between sessions
+     */
+    static final class Idle {
+        final MediaCodec codec;
+        final String name;
+        // Format the encoder runs with, null when it is stopped. It may differ from the one
+        // asked for, as when the encoder rejected the low latency mode.
+        final MediaFormat format;
+        // Format asked for when it was configured, the next session asks the same to take it
+        private final String key;
+
+        private Idle(MediaCodec codec, String name, MediaFormat requested, MediaFormat format) {
+            this.codec = codec;
+            this.name = name;
+            this.format = format;
+            this.key = format != null ? describe(requested) : null;
+        }
+    }
+
+    private SrsCodecPool() {
+    }
+
+    /**
+     * @param mime Video MIME type
+     * @return Capabilities of the first encoder of the type, null when there is none
+     */
+    static synchronized Capabilities getEncoder(String mime) {
+        if (capabilities.containsKey(mime)) {
+            return capabilities.get(mime);
+        }
+        Capabilities caps = null;
+        int nbCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < nbCodecs && caps == null; i++) {
+            MediaCodecInfo mci = MediaCodecList.getCodecInfoAt(i);
+            if (!mci.isEncoder()) {
+                continue;
+            }
+            for (String type : mci.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    Log.i(TAG, String.format("vencoder %s types: %s", mci.getName(), type));
+                    caps = new Capabilities(mci, mime);
+                    break;
+                }
+            }
+        }
+        capabilities.put(mime, caps);
+        return caps;
+    }
+
+    /**
+     * {@link MediaCodecList#findEncoderForFormat(MediaFormat)}, remembered per format
+     *
+     * @return Name of the encoder, null when there is none
+     */
+    static synchronized String findEncoderForFormat(MediaFormat format) {
+        String key = describe(format);
+        if (!encoderNames.containsKey(key)) {
+            encoderNames.put(key, new MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(format));
+        }
+        return encoderNames.get(key);
+    }
+
+    /**
+     * Take an encoder that is still running, configured when an equal format was asked for. It
+     * was flushed, and emits no codec config again: the caller takes the parameter sets from its
+     * output format.
+     *
+     * @param requested Format the caller would configure the encoder with
+     * @return Running encoder and the format it was actually configured with, null when none
+     * is kept
+     */
+    static synchronized Idle takeRunning(String name, MediaFormat requested) {
+        String key = describe(requested);
+        for (int i = 0; i < idle.size(); i++) {
+            Idle entry = idle.get(i);
+            if (entry.name.equals(name) && key.equals(entry.key)) {
+                idle.remove(i);
+                Log.i(TAG, String.format("vencoder %s taken warm", name));
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take a stopped encoder to configure, one that is kept or a new one
+     *
+     * @throws IOException when the encoder can not be created
+     */
+    static MediaCodec create(String name) throws IOException {
+        Idle entry = null;
+        synchronized (SrsCodecPool.class) {
+            for (int i = 0; i < idle.size(); i++) {
+                if (idle.get(i).name.equals(name)) {
+                    entry = idle.remove(i);
+                    break;
+                }
+            }
+        }
+        if (entry == null) {
+            return MediaCodec.createByCodecName(name);
+        }
+        try {
+            if (entry.format != null) {
+                entry.codec.stop();
+            }
+            return entry.codec;
+        } catch (IllegalStateException e) {
+            entry.codec.release();
+            return MediaCodec.createByCodecName(name);
+        }
+    }
+
+    /**
+     * Keep an encoder of a session that ended, instead of releasing it
+     *
+     * @param requested Format asked for when the encoder was configured
+     * @param format    Format the encoder runs with to keep it running, flushed. Null to stop it,
+     *                  as for an encoder in asynchronous mode whose callback goes away.
+     */
+    static void recycle(MediaCodec codec, String name, MediaFormat requested, MediaFormat format) {
+        try {
+            if (format != null) {
+                codec.flush();
+            } else {
+                codec.stop();
+                // Whoever takes it next may encode synchronously
+                codec.setCallback(null);
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, String.format("vencoder %s not kept", name), e);
+            codec.release();
+            return;
+        }
+
+        final Idle entry = new Idle(codec, name, requested, format);
+        Idle evicted = null;
+        synchronized (SrsCodecPool.class) {
+            idle.add(entry);
+            if (idle.size() > MAX_IDLE) {
+                evicted = idle.remove(0);
+            }
+            if (evictor == null) {
+                evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            evictor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    release(entry);
+                }
+            }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        if (evicted != null) {
+            release(evicted);
+        }
+    }
+
+    /**
+     * Release every encoder kept, e.g. when the app goes to the background
+     */
+    static void clear() {
+        ArrayList<Idle> entries;
+        synchronized (SrsCodecPool.class) {
+            entries = new ArrayList<>(idle);
+        }
+        for (Idle entry : entries) {
+            release(entry);
+        }
+    }
+
+    private static void release(Idle entry) {
+        synchronized (SrsCodecPool.class) {
+            // Taken meanwhile
+            if (!idle.remove(entry)) {
+                return;
+            }
+        }
+        Log.i(TAG, String.format("vencoder %s released", entry.name));
+        try {
+            if (entry.format != null) {
+                entry.codec.stop();
+            }
+        } catch (IllegalStateException e) {
+            // Released anyway
+        }
+        entry.codec.release();
+    }
+
+    private static String describe(MediaFormat format) {
+        StringBuilder key = new StringBuilder();
+        for (String name : STRING_KEYS) {
+            key.append(format.containsKey(name) ? format.getString(name) : "").append(',');
+        }
+        for (String name : INTEGER_KEYS) {
+            key.append(format.containsKey(name) ? String.valueOf(format.getInteger(name)) : "").append(',');
+        }
+        return key.toString();
+    }
+}
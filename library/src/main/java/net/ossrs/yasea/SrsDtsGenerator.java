@@ -0,0 +1,158 @@
+package net.ossrs.yasea;
+
+import android.media.MediaFormat;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+import com.googlecode.mp4parser.h265.H265SeqParameterSet;
+
+/**
+ * Decoding times of video frames that arrive in decode order with reordered presentation
+ * times, as an encoder with B-frames emits them.
+ * <p>
+ * With a reorder depth of N, the frame presented as the i-th is decoded no later than the
+ * (i + N)-th. So once N + 1 frames are pending, the earliest presentation time among them is
+ * the next decoding time. The first N frames have none yet, they are decoded a frame duration
+ * apart before the first presentation time. Decoding times never decrease and, but for a frame
+ * reordered deeper than the depth, never exceed the presentation time of the frame.
+ * <p>
+ * When the SPS does not tell the depth and a frame turns out to be presented before the last
+ * decoding time, the depth grows to the frames known to be presented after it, and the decoding
+ * time holds until the window is full.
+ * That frame is decoded after its presentation time: its composition offset is negative, sent
+ * as is in the signed composition time of FLV and written to a version 1 ctts in MP4.
+ */
+final class SrsDtsGenerator {
+
+    /**
+     * MediaFormat.KEY_MAX_B_FRAMES, from API 29 on. Encoders of earlier versions ignore it.
+     */
+    static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    // MaxDpbFrames, the deepest reordering H.264 and H.265 allow
+    private static final int MAX_REORDER_DEPTH = 16;
+
+    private final long[] window = new long[MAX_REORDER_DEPTH + 1];
+    private final long frameDurationUs;
+    private final int configuredDepth;
+    private int depth;
+    private int pending;
+    private int frames;
+    private long firstPtsUs;
+    private long lastDtsUs;
+
+    /**
+     * @param format Format the encoder was configured with: the frame rate spaces the decoding
+     *               times of the first frames, B-frames make a reorder depth of one until the
+     *               SPS tells otherwise. Null for 30 fps without B-frames.
+     */
+    SrsDtsGenerator(MediaFormat format) {
+        int fps = format != null && format.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : 30;
+        frameDurationUs = 1000000L / (fps > 0 ? fps : 30);
+        configuredDepth = format != null && format.containsKey(KEY_MAX_B_FRAMES)
+                && format.getInteger(KEY_MAX_B_FRAMES) > 0 ? 1 : 0;
+        depth = configuredDepth;
+    }
+
+    /**
+     * Take the reorder depth from the SPS, from the next frame on: the num_reorder_frames of
+     * the VUI, none for baseline, else what the encoder was configured with
+     *
+     * @param sps Sequence parameter set of the stream, null when it could not be parsed
+     */
+    void setSequenceParameterSet(SeqParameterSet sps) {
+        if (sps == null) {
+            depth = configuredDepth;
+        } else if (sps.vuiParams != null && sps.vuiParams.bitstreamRestriction != null) {
+            depth = Math.min(sps.vuiParams.bitstreamRestriction.num_reorder_frames, MAX_REORDER_DEPTH);
+        } else {
+            // Baseline has no B slices
+            depth = sps.profile_idc == 66 ? 0 : configuredDepth;
+        }
+    }
+
+    /**
+     * Take the reorder depth from a H.265 SPS, which always tells it
+     *
+     * @param sps Sequence parameter set of the stream, null when it could not be parsed
+     */
+    void setSequenceParameterSet(H265SeqParameterSet sps) {
+        depth = sps == null ? configuredDepth : Math.min(sps.sps_max_num_reorder_pics, MAX_REORDER_DEPTH);
+    }
+
+    /**
+     * @return Frames a decoder holds before output
+     */
+    int getReorderDepth() {
+        return depth;
+    }
+
+    /**
+     * Start over, for a new stream
+     */
+    void reset() {
+        pending = 0;
+        frames = 0;
+    }
+
+    /**
+     * Carry on from the decoding times of another generator, for a new format mid-stream. The
+     * encoder was drained before it was reconfigured, no frame of the previous one is pending.
+     *
+     * @param previous Generator of the frames before
+     */
+    void continueFrom(SrsDtsGenerator previous) {
+        pending = 0;
+        frames = previous.frames;
+        firstPtsUs = previous.firstPtsUs;
+        lastDtsUs = previous.lastDtsUs;
+    }
+
+    /**
+     * @param ptsUs Presentation time of the next frame in decode order
+     * @return Decoding time of the frame, at most its presentation time
+     */
+    long next(long ptsUs) {
+        if (frames > 0 && ptsUs < lastDtsUs) {
+            // Reordered deeper than expected: the frames pending and at least the one decoded
+            // last are presented after this one
+            int later = 1;
+            for (int i = 0; i < pending; i++) {
+                if (window[i] > ptsUs) later++;
+            }
+            depth = Math.max(depth, Math.min(later, MAX_REORDER_DEPTH));
+        }
+        if (frames == 0) {
+            firstPtsUs = ptsUs;
+        }
+
+        // Insert in presentation order
+        int i = pending++;
+        while (i > 0 && window[i - 1] > ptsUs) {
+            window[i] = window[i - 1];
+            i--;
+        }
+        window[i] = ptsUs;
+
+        long dtsUs;
+        if (pending > depth) {
+            // A depth that shrank drops the earliest pending presentation times
+            int take = pending - depth - 1;
+            dtsUs = window[take];
+            pending -= take + 1;
+            System.arraycopy(window, take + 1, window, 0, pending);
+        } else if (frames < depth) {
+            dtsUs = firstPtsUs - (depth - frames) * frameDurationUs;
+        } else {
+            dtsUs = lastDtsUs;
+        }
+
+        // Decoding never goes back in time, even for a frame reordered deeper than expected
+        dtsUs = Math.min(dtsUs, ptsUs);
+        if (frames > 0) {
+            dtsUs = Math.max(dtsUs, lastDtsUs);
+        }
+        frames++;
+        lastDtsUs = dtsUs;
+        return dtsUs;
+    }
+}
@@ -3,6 +3,7 @@ package net.ossrs.yasea;
 import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.media.*;
+import android.os.Bundle;
 import android.util.Log;
 
 import java.io.IOException;
@@ -12,7 +13,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Created by Leo Ma on 4/1/2016.
  */
-public class SrsEncoder {
+public class SrsEncoder implements SrsKeyFrameSource {
     private static final String TAG = "SrsEncoder";
 
     public static final String VCODEC = "video/avc";
@@ -28,7 +29,12 @@ public class SrsEncoder {
     public static int vOutHeight = 640;  // Since Y component is quadruple size as U and V component, the stride must be set as 32x
     public static int vBitrate = 1200 * 1024;  // 1200 kbps
     public static final int VFPS = 24;
+    public static int vFps = VFPS;  // Output frame rate, camera frames above it are skipped
     public static final int VGOP = 48;
+    // Seconds between IDR frames with intra refresh, in practice only the requested ones
+    private static final int INTRA_REFRESH_IFRAME_INTERVAL = 3600;
+    // Longest wait for the hardware encoder while draining it for another rendition
+    private static final long DRAIN_TIMEOUT_US = 100 * 1000;
     public static final int ASAMPLERATE = 44100;
     public static int aChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
     public static final int ABITRATE = 64 * 1024;  // 64 kbps
@@ -37,9 +43,13 @@ public class SrsEncoder {
 
     private SrsFlvMuxer flvMuxer;
     private SrsMp4Muxer mp4Muxer;
+    private SrsLatencyTracer tracer;
 
-    private MediaCodecInfo vmci;
+    private SrsCodecPool.Capabilities vcaps;
     private MediaCodec vencoder;
+    // Format the video encoder is configured with, and the one asked for before any fallback
+    private MediaFormat mVideoFormat;
+    private MediaFormat mRequestedVideoFormat;
     private MediaCodec aencoder;
     private MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
     private MediaCodec.BufferInfo aebi = new MediaCodec.BufferInfo();
@@ -50,8 +60,15 @@ public class SrsEncoder {
     private boolean canSoftEncode = false;
 
     private long mPresentTimeUs;
+    private long mNextFramePtsUs;
 
+    private String vCodec = VCODEC;
     private int mVideoColorFormat;
+    private int mMaxBFrames = 0;
+    private int mTemporalLayers = 1;
+    private boolean mLowLatency = false;
+    // Rendition to switch to at the next frame
+    private volatile SrsRendition mPendingRendition;
 
     private int videoFlvTrack;
     private int videoMp4Track;
@@ -82,6 +99,10 @@ public class SrsEncoder {
         this.mp4Muxer = mp4Muxer;
     }
 
+    public void setLatencyTracer(SrsLatencyTracer tracer) {
+        this.tracer = tracer;
+    }
+
     public boolean start() {
         if (flvMuxer == null || mp4Muxer == null) {
             return false;
@@ -89,17 +110,18 @@ public class SrsEncoder {
 
         // the referent PTS for video and audio encoder.
         mPresentTimeUs = System.nanoTime() / 1000;
+        mNextFramePtsUs = 0;
 
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
         if (!useSoftEncoder && (vOutWidth % 32 != 0 || vOutHeight % 32 != 0)) {
-            if (vmci.getName().contains("MTK")) {
+            if (vcaps.getName().contains("MTK")) {
                 //throw new AssertionError("MTK encoding revolution stride must be 32x");
             }
         }
 
         setEncoderResolution(vOutWidth, vOutHeight);
-        setEncoderFps(VFPS);
+        setEncoderFps(vFps);
         setEncoderGop(VGOP);
         // Unfortunately for some android phone, the output fps is less than 10 limited by the
         // capacity of poor cheap chips even with x264. So for the sake of quick appearance of
@@ -109,6 +131,11 @@ public class SrsEncoder {
         setEncoderBitrate(vBitrate);
         setEncoderPreset(x264Preset);
 
+        if (useSoftEncoder && !VCODEC.equals(vCodec)) {
+            Log.e(TAG, String.format("x264 can not encode %s", vCodec));
+            return false;
+        }
+
         if (useSoftEncoder) {
             canSoftEncode = openSoftEncoder();
             if (!canSoftEncode) {
@@ -138,33 +165,100 @@ public class SrsEncoder {
         audioFlvTrack = flvMuxer.addTrack(audioFormat);
         audioMp4Track = mp4Muxer.addTrack(audioFormat);
 
-        // vencoder yuv to 264 es stream.
-        // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
+        // vencoder yuv to 264 es stream, still running from the last session with the same format.
+        mRequestedVideoFormat = createVideoFormat(mLowLatency);
+        SrsCodecPool.Idle running = SrsCodecPool.takeRunning(vcaps.getName(), mRequestedVideoFormat);
+        boolean warm = running != null;
+        if (warm) {
+            vencoder = running.codec;
+            mVideoFormat = running.format;
+        } else {
+            // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
+            try {
+                vencoder = SrsCodecPool.create(vcaps.getName());
+            } catch (IOException e) {
+                Log.e(TAG, "create vencoder failed.");
+                e.printStackTrace();
+                return false;
+            }
+
+            // setup the vencoder.
+            mVideoFormat = configureVideoEncoder();
+        }
+        // add the video tracker to muxer.
+        videoFlvTrack = flvMuxer.addTrack(mVideoFormat);
+        videoMp4Track = mp4Muxer.addTrack(mVideoFormat);
+
+        SrsStats stats = flvMuxer.getStats();
+        stats.set(SrsStats.Gauge.VIDEO_TARGET_BITRATE, vBitrate);
+        stats.set(SrsStats.Gauge.AUDIO_TARGET_BITRATE, ABITRATE);
+
+        // start device and encoder.
+        if (warm) {
+            writeCodecConfig(vencoder.getOutputFormat());
+            requestKeyFrame();
+        } else {
+            vencoder.start();
+        }
+        aencoder.start();
+        return true;
+    }
+
+    /**
+     * Mux the parameter sets of a flushed encoder, which does not emit them again
+     *
+     * @param outputFormat Output format of the encoder, with the parameter sets in Annex B
+     */
+    private void writeCodecConfig(MediaFormat outputFormat) {
+        ByteBuffer csd0 = outputFormat.getByteBuffer("csd-0");
+        ByteBuffer csd1 = outputFormat.getByteBuffer("csd-1");
+        if (csd0 == null) {
+            return;
+        }
+        // SPS and PPS in a buffer, as the encoder emits them
+        ByteBuffer config = ByteBuffer.allocate(csd0.remaining() + (csd1 != null ? csd1.remaining() : 0));
+        config.put(csd0.duplicate());
+        if (csd1 != null) {
+            config.put(csd1.duplicate());
+        }
+        config.flip();
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.set(0, config.remaining(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        onEncodedAnnexbFrame(config, bi);
+    }
+
+    private MediaFormat configureVideoEncoder() {
+        MediaFormat videoFormat = createVideoFormat(mLowLatency);
+        mRequestedVideoFormat = videoFormat;
         try {
-            vencoder = MediaCodec.createByCodecName(vmci.getName());
-        } catch (IOException e) {
-            Log.e(TAG, "create vencoder failed.");
-            e.printStackTrace();
-            return false;
+            vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            if (!mLowLatency) {
+                throw e;
+            }
+            // Some encoders claim features they reject, fall back to periodic IDR frames
+            Log.w(TAG, "vencoder rejected the low latency mode", e);
+            vencoder.reset();
+            videoFormat = createVideoFormat(false);
+            vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         }
+        return videoFormat;
+    }
 
-        // setup the vencoder.
+    private MediaFormat createVideoFormat(boolean lowLatency) {
         // Note: landscape to portrait, 90 degree rotation, so we need to switch width and height in configuration
-        MediaFormat videoFormat = MediaFormat.createVideoFormat(VCODEC, vOutWidth, vOutHeight);
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(vCodec, vOutWidth, vOutHeight);
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mVideoColorFormat);
         videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
-        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, vFps);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, VGOP / VFPS);
-        vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        // add the video tracker to muxer.
-        videoFlvTrack = flvMuxer.addTrack(videoFormat);
-        videoMp4Track = mp4Muxer.addTrack(videoFormat);
-
-        // start device and encoder.
-        vencoder.start();
-        aencoder.start();
-        return true;
+        setBFrames(videoFormat);
+        setTemporalLayers(videoFormat);
+        if (lowLatency) {
+            setLowLatency(videoFormat);
+        }
+        return videoFormat;
     }
 
     public void stop() {
@@ -180,14 +274,35 @@ public class SrsEncoder {
             aencoder = null;
         }
 
+        mPendingRendition = null;
         if (vencoder != null) {
             Log.i(TAG, "stop vencoder");
-            vencoder.stop();
-            vencoder.release();
+            // Flushed and kept running for the next session
+            SrsCodecPool.recycle(vencoder, vcaps.getName(), mRequestedVideoFormat, mVideoFormat);
             vencoder = null;
         }
     }
 
+    /**
+     * Force the next frame to IDR, with x264 or as a sync frame request to the hardware encoder
+     */
+    @Override
+    public void requestKeyFrame() {
+        if (useSoftEncoder) {
+            if (canSoftEncode) forceKeyFrame();
+            return;
+        }
+        MediaCodec codec = vencoder;
+        if (codec == null) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            // Stopped meanwhile
+        }
+    }
+
     public void setCameraFrontFace() {
         mCameraFaceFront = true;
     }
@@ -248,6 +363,221 @@ public class SrsEncoder {
         x264Preset = "veryfast";
     }
 
+    /**
+     * Use the resolution, frame rate and bitrate of a rendition, before {@link #start()}
+     *
+     * @param rendition Rendition, in the current orientation
+     */
+    public void setRendition(SrsRendition rendition) {
+        if (vOutWidth <= vOutHeight) {
+            setPortraitResolution(rendition.getHeight(), rendition.getWidth());
+        } else {
+            setLandscapeResolution(rendition.getWidth(), rendition.getHeight());
+        }
+        vFps = Math.min(rendition.getFps(), VFPS);
+        vBitrate = rendition.getBitrate();
+    }
+
+    /**
+     * Switch to another rendition while encoding, without restarting the stream. A change of
+     * bitrate alone is applied on the fly. Otherwise the next frame is scaled to the new size,
+     * and the hardware encoder is drained and reconfigured in between: the muxers publish the
+     * new parameter sets in a sequence header with new metadata over the same RTMP session,
+     * and the recording describes the frames after them with a new sample entry.
+     *
+     * @param rendition Rendition, in the current orientation
+     * @return False with the soft encoder or while not encoding, the rendition is not used
+     */
+    public boolean switchRendition(SrsRendition rendition) {
+        if (useSoftEncoder || vencoder == null) {
+            return false;
+        }
+        mPendingRendition = rendition;
+        return true;
+    }
+
+    /**
+     * Apply the rendition asked for by {@link #switchRendition(SrsRendition)}, on the thread
+     * feeding the frames so the next one is scaled to its size
+     */
+    private void switchPendingRendition() {
+        SrsRendition rendition = mPendingRendition;
+        if (rendition == null) {
+            return;
+        }
+        mPendingRendition = null;
+        int width = vOutWidth;
+        int height = vOutHeight;
+        int fps = vFps;
+        setRendition(rendition);
+        flvMuxer.getStats().set(SrsStats.Gauge.VIDEO_TARGET_BITRATE, vBitrate);
+        if (vOutWidth == width && vOutHeight == height && vFps == fps) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, vBitrate);
+            vencoder.setParameters(params);
+            // The encoder is kept with these formats, their bitrate is now this one
+            mRequestedVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
+            mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
+            return;
+        }
+
+        Log.i(TAG, String.format("vencoder switching to %s", rendition));
+        drainVideoEncoder();
+        vencoder.stop();
+        mVideoFormat = configureVideoEncoder();
+        setEncoderResolution(vOutWidth, vOutHeight);
+        setEncoderFps(vFps);
+        flvMuxer.updateVideoTrack(mVideoFormat);
+        mp4Muxer.addTrack(mVideoFormat);
+        vencoder.start();
+    }
+
+    /**
+     * Encode the frames queued so far, they are muxed before the encoder is reconfigured
+     */
+    private void drainVideoEncoder() {
+        int inBufferIndex = vencoder.dequeueInputBuffer(DRAIN_TIMEOUT_US);
+        if (inBufferIndex >= 0) {
+            vencoder.queueInputBuffer(inBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+        ByteBuffer[] outBuffers = vencoder.getOutputBuffers();
+        for (; ; ) {
+            int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, DRAIN_TIMEOUT_US);
+            if (outBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outBuffers = vencoder.getOutputBuffers();
+            } else if (outBufferIndex >= 0) {
+                boolean eos = (vebi.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (vebi.size > 0) {
+                    onEncodedAnnexbFrame(outBuffers[outBufferIndex], vebi);
+                }
+                vencoder.releaseOutputBuffer(outBufferIndex, false);
+                if (eos) {
+                    break;
+                }
+            } else if (outBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                Log.w(TAG, "vencoder drain timed out");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Let the hardware encoder use B-frames, before {@link #start()}. They need the high profile
+     * and add a frame or more of latency, so they are off by default. Encoders of API levels
+     * before 29 may ignore the request, the muxers follow whatever the stream turns out to be.
+     *
+     * @param count Most B-frames between reference frames, 0 for none
+     */
+    public void setVideoBFrames(int count) {
+        mMaxBFrames = Math.max(count, 0);
+    }
+
+    /**
+     * Let the hardware encoder code the video in temporal layers, before {@link #start()}.
+     * Each layer only refers to the layers below it, so the sender can drop the highest one
+     * under congestion and the stream keeps decoding at a lower frame rate. Encoders of API
+     * levels before 29 may ignore the request, the stream then has a single layer. B-frames
+     * are not used along with temporal layers.
+     *
+     * @param layers Temporal layers, 2 for half the frame rate in the base layer, 1 for none
+     */
+    public void setVideoTemporalLayers(int layers) {
+        mTemporalLayers = Math.max(layers, 1);
+    }
+
+    private void setTemporalLayers(MediaFormat videoFormat) {
+        if (mTemporalLayers < 2) {
+            return;
+        }
+        if (videoFormat.containsKey(SrsDtsGenerator.KEY_MAX_B_FRAMES)) {
+            Log.w(TAG, "vencoder B-frames disabled, temporal layers requested");
+            videoFormat.setInteger(SrsDtsGenerator.KEY_MAX_B_FRAMES, 0);
+        }
+        // Hierarchical P-frames, without B-frames
+        videoFormat.setString(SrsFlvMuxer.KEY_TEMPORAL_LAYERING, "android.generic." + mTemporalLayers);
+    }
+
+    /**
+     * Tune the hardware encoder for latency, before {@link #start()}. Intra refresh spreads the
+     * intra coded macroblocks over a second of frames instead of periodic IDR frames that spike
+     * the send queue, the bitrate is held constant, and the encoder neither buffers frames nor
+     * yields to other codecs. Whatever the encoder does not support is left out, and an encoder
+     * that rejects the format is configured without the mode.
+     *
+     * @param enabled Low latency mode, off by default
+     */
+    public void setVideoLowLatencyMode(boolean enabled) {
+        mLowLatency = enabled;
+    }
+
+    private void setLowLatency(MediaFormat videoFormat) {
+        if (vcaps.intraRefresh) {
+            // A refresh cycle a second, IDR frames only when asked for
+            videoFormat.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, vFps);
+            videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, INTRA_REFRESH_IFRAME_INTERVAL);
+            if (videoFormat.containsKey(SrsDtsGenerator.KEY_MAX_B_FRAMES)) {
+                Log.w(TAG, "vencoder B-frames disabled, intra refresh requested");
+                videoFormat.setInteger(SrsDtsGenerator.KEY_MAX_B_FRAMES, 0);
+            }
+        } else {
+            Log.w(TAG, String.format("vencoder %s has no intra refresh, IDR every %d frames", vcaps.getName(), VGOP));
+        }
+        if (vcaps.cbr) {
+            videoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        } else {
+            Log.w(TAG, String.format("vencoder %s has no constant bitrate mode", vcaps.getName()));
+        }
+        // A frame out for every frame in, at real time priority
+        videoFormat.setInteger(MediaFormat.KEY_LATENCY, 1);
+        videoFormat.setInteger(MediaFormat.KEY_PRIORITY, 0);
+    }
+
+    /**
+     * Encode video with the hardware encoder of another codec, before {@link #start()}.
+     * H.265/hevc is published over enhanced RTMP and recorded as hvc1, the soft encoder only
+     * does H.264/avc.
+     *
+     * @param mime {@link MediaFormat#MIMETYPE_VIDEO_AVC} or {@link MediaFormat#MIMETYPE_VIDEO_HEVC}
+     * @return False when no encoder supports it, the codec is left as it was
+     */
+    public boolean setVideoCodec(String mime) {
+        if (SrsCodecPool.getEncoder(mime) == null) {
+            Log.w(TAG, String.format("no vencoder for %s", mime));
+            return false;
+        }
+        vCodec = mime;
+        mVideoColorFormat = chooseVideoEncoder();
+        return true;
+    }
+
+    public String getVideoCodec() {
+        return vCodec;
+    }
+
+    private void setBFrames(MediaFormat videoFormat) {
+        if (mMaxBFrames == 0) {
+            return;
+        }
+        if (!VCODEC.equals(vCodec)) {
+            // H.265 main profile has B-frames already
+            videoFormat.setInteger(SrsDtsGenerator.KEY_MAX_B_FRAMES, mMaxBFrames);
+            return;
+        }
+        MediaCodecInfo.CodecProfileLevel high = null;
+        for (MediaCodecInfo.CodecProfileLevel pl : vcaps.profileLevels) {
+            if (pl.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh && (high == null || pl.level > high.level)) {
+                high = pl;
+            }
+        }
+        if (high == null) {
+            Log.w(TAG, String.format("vencoder %s has no high profile, B-frames disabled", vcaps.getName()));
+            return;
+        }
+        videoFormat.setInteger(MediaFormat.KEY_PROFILE, high.profile);
+        videoFormat.setInteger(MediaFormat.KEY_LEVEL, high.level);
+        videoFormat.setInteger(SrsDtsGenerator.KEY_MAX_B_FRAMES, mMaxBFrames);
+    }
+
     public void setVideoSmoothMode() {
         vBitrate = 500 * 1024;  // 500 kbps
         x264Preset = "superfast";
@@ -281,7 +611,7 @@ public class SrsEncoder {
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
         if (!useSoftEncoder && (vOutWidth % 32 != 0 || vOutHeight % 32 != 0)) {
-            if (vmci.getName().contains("MTK")) {
+            if (vcaps.getName().contains("MTK")) {
                 //throw new AssertionError("MTK encoding revolution stride must be 32x");
             }
         }
@@ -298,7 +628,10 @@ public class SrsEncoder {
             ByteBuffer bb = inBuffers[inBufferIndex];
             bb.clear();
             bb.put(yuvFrame, 0, yuvFrame.length);
+            if (tracer != null) tracer.onEncoderInput(pts, tracer.getCurrentCapture());
             vencoder.queueInputBuffer(inBufferIndex, 0, yuvFrame.length, pts, 0);
+        } else {
+            flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_ENCODE);
         }
 
         for (; ; ) {
@@ -324,17 +657,25 @@ public class SrsEncoder {
 
     // when got encoded h264 es stream.
     private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
+        SrsStats stats = flvMuxer.getStats();
+        stats.increment(SrsStats.Counter.VIDEO_FRAMES_ENCODED);
+        stats.add(SrsStats.Counter.VIDEO_BYTES_ENCODED, bi.size);
+        if (tracer != null) tracer.onEncoderOutput(bi.presentationTimeUs);
         mp4Muxer.writeVideoSample(es.duplicate(), bi);
         flvMuxer.writeVideoSample(es, bi);
     }
 
     // when got encoded aac raw stream.
     private void onEncodedAacFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
+        SrsStats stats = flvMuxer.getStats();
+        stats.increment(SrsStats.Counter.AUDIO_FRAMES_ENCODED);
+        stats.add(SrsStats.Counter.AUDIO_BYTES_ENCODED, bi.size);
         mp4Muxer.writeAudioSample(es.duplicate(), bi);
         flvMuxer.writeAudioSample(es, bi);
     }
 
     public void onGetPcmFrame(byte[] data, int size) {
+        flvMuxer.getStats().increment(SrsStats.Counter.AUDIO_FRAMES_IN);
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -365,18 +706,32 @@ public class SrsEncoder {
     }
 
     public void onGetRgbaFrame(byte[] data, int width, int height) {
+        flvMuxer.getStats().increment(SrsStats.Counter.VIDEO_FRAMES_IN);
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
         if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
             long pts = System.nanoTime() / 1000 - mPresentTimeUs;
+            if (vFps < VFPS) {
+                // The camera runs at VFPS, keep one frame per output frame interval
+                if (pts < mNextFramePtsUs) return;
+                mNextFramePtsUs = Math.max(mNextFramePtsUs + 1000000 / vFps, pts);
+            }
             if (useSoftEncoder) {
                 swRgbaFrame(data, width, height, pts);
             } else {
+                switchPendingRendition();
+                long convertStart = System.nanoTime();
+                if (tracer != null) tracer.beginSection(SrsLatencyTracer.Stage.CONVERT);
                 byte[] processedData = hwRgbaFrame(data, width, height);
+                if (tracer != null) {
+                    tracer.endSection();
+                    tracer.record(SrsLatencyTracer.Stage.CONVERT, convertStart, System.nanoTime());
+                }
                 if (processedData != null) {
                     onProcessedYuvFrame(processedData, pts);
                 } else {
+                    flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CONVERT);
                     mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
                 }
             }
@@ -386,12 +741,14 @@ public class SrsEncoder {
                 mHandler.notifyNetworkResume();
             }
         } else {
+            flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CAPTURE);
             mHandler.notifyNetworkWeak();
             networkWeakTriggered = true;
         }
     }
 
     public void onGetYuvNV21Frame(byte[] data, int width, int height, Rect boundingBox) {
+        flvMuxer.getStats().increment(SrsStats.Counter.VIDEO_FRAMES_IN);
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -401,10 +758,12 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swRgbaFrame(data, width, height, pts);
             } else {
+                switchPendingRendition();
                 byte[] processedData = hwYUVNV21FrameScaled(data, width, height, boundingBox);
                 if (processedData != null) {
                     onProcessedYuvFrame(processedData, pts);
                 } else {
+                    flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CONVERT);
                     mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
                 }
     }
@@ -414,12 +773,14 @@ public class SrsEncoder {
                 mHandler.notifyNetworkResume();
             }
         } else {
+            flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CAPTURE);
             mHandler.notifyNetworkWeak();
             networkWeakTriggered = true;
         }
     }
 
     public void onGetArgbFrame(int[] data, int width, int height, Rect boundingBox) {
+        flvMuxer.getStats().increment(SrsStats.Counter.VIDEO_FRAMES_IN);
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -429,10 +790,12 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
+                switchPendingRendition();
                 byte[] processedData = hwArgbFrameScaled(data, width, height, boundingBox);
                 if (processedData != null) {
                     onProcessedYuvFrame(processedData, pts);
                 } else {
+                    flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CONVERT);
                     mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
                 }
     }
@@ -442,12 +805,14 @@ public class SrsEncoder {
                 mHandler.notifyNetworkResume();
             }
         } else {
+            flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CAPTURE);
             mHandler.notifyNetworkWeak();
             networkWeakTriggered = true;
         }
     }
 
     public void onGetArgbFrame(int[] data, int width, int height) {
+        flvMuxer.getStats().increment(SrsStats.Counter.VIDEO_FRAMES_IN);
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
         AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
@@ -457,10 +822,12 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
+                switchPendingRendition();
                 byte[] processedData = hwArgbFrame(data, width, height);
                 if (processedData != null) {
                     onProcessedYuvFrame(processedData, pts);
                 } else {
+                    flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CONVERT);
                     mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
                 }
             }
@@ -470,6 +837,7 @@ public class SrsEncoder {
                 mHandler.notifyNetworkResume();
             }
         } else {
+            flvMuxer.getStats().increment(SrsStats.Counter.DROPPED_CAPTURE);
             mHandler.notifyNetworkWeak();
             networkWeakTriggered = true;
         }
@@ -547,64 +915,18 @@ public class SrsEncoder {
         return pcmBufSize - (pcmBufSize % 8192);
     }
 
-    // choose the video encoder by name.
-    private MediaCodecInfo chooseVideoEncoder(String name) {
-        int nbCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < nbCodecs; i++) {
-            MediaCodecInfo mci = MediaCodecList.getCodecInfoAt(i);
-            if (!mci.isEncoder()) {
-                continue;
-            }
-
-            String[] types = mci.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(VCODEC)) {
-                    Log.i(TAG, String.format("vencoder %s types: %s", mci.getName(), types[j]));
-                    if (name == null) {
-                        return mci;
-                    }
-
-                    if (mci.getName().contains(name)) {
-                        return mci;
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
     // choose the right supported color format. @see below:
     private int chooseVideoEncoder() {
         // choose the encoder "video/avc":
         //      1. select default one when type matched.
         //      2. google avc is unusable.
         //      3. choose qcom avc.
-        vmci = chooseVideoEncoder(null);
-        //vmci = chooseVideoEncoder("google");
-        //vmci = chooseVideoEncoder("qcom");
-
-        int matchedColorFormat = 0;
-        MediaCodecInfo.CodecCapabilities cc = vmci.getCapabilitiesForType(VCODEC);
-        for (int i = 0; i < cc.colorFormats.length; i++) {
-            int cf = cc.colorFormats[i];
-            Log.i(TAG, String.format("vencoder %s supports color fomart 0x%x(%d)", vmci.getName(), cf, cf));
-
-            // choose YUV for h.264, prefer the bigger one.
-            // corresponding to the color space transform in onPreviewFrame
-            if (cf >= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar && cf <= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
-                if (cf > matchedColorFormat) {
-                    matchedColorFormat = cf;
-                }
-            }
-        }
+        // The encoders are enumerated once per process, see SrsCodecPool.
+        vcaps = SrsCodecPool.getEncoder(vCodec);
 
-        for (int i = 0; i < cc.profileLevels.length; i++) {
-            MediaCodecInfo.CodecProfileLevel pl = cc.profileLevels[i];
-            Log.i(TAG, String.format("vencoder %s support profile %d, level %d", vmci.getName(), pl.profile, pl.level));
-        }
-
-        Log.i(TAG, String.format("vencoder %s choose color format 0x%x(%d)", vmci.getName(), matchedColorFormat, matchedColorFormat));
+        // choose YUV for h.264, prefer the bigger one.
+        int matchedColorFormat = vcaps.colorFormat;
+        Log.i(TAG, String.format("vencoder %s choose color format 0x%x(%d)", vcaps.getName(), matchedColorFormat, matchedColorFormat));
         return matchedColorFormat;
     }
 
@@ -639,6 +961,8 @@ public class SrsEncoder {
 
     private native void closeSoftEncoder();
 
+    private native void forceKeyFrame();
+
     static {
         System.loadLibrary("yuv");
         System.loadLibrary("enc");
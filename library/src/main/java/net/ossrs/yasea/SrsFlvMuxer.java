@@ -3,17 +3,28 @@ package net.ossrs.yasea;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
+import com.coremedia.iso.boxes.h265.HevcDecoderConfigurationRecord;
 import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+import com.googlecode.mp4parser.h265.H265NalUnitHeader;
+import com.googlecode.mp4parser.h265.H265SeqParameterSet;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by winlin on 5/2/15.
  * Updated by leoma on 4/1/16.
  * to POST the h.264/avc annexb frame over RTMP.
+ * H.265/hevc is sent in the FourCC video tags of enhanced RTMP.
  *
  * @see android.media.MediaMuxer https://developer.android.com/reference/android/media/MediaMuxer.html
  */
@@ -22,6 +33,27 @@ public class SrsFlvMuxer {
     private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
     private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
     private static final int CACHE_SIZE = 1024;
+    // Batches smaller than about one TCP segment wait for more frames
+    private static final int BATCH_MIN_SIZE = 1400;
+    private static final int DEFAULT_MAX_BATCH_DELAY = 5;
+    // Video queued for longer than this sheds the highest temporal layer left
+    private static final int SHED_BACKLOG_MS = 500;
+    // Shed layers come back at a key frame once the video queued is shorter than this
+    private static final int RESTORE_BACKLOG_MS = 100;
+    // temporal_id is 3 bits in H.264 and H.265
+    private static final int MAX_TEMPORAL_LAYERS = 8;
+
+    /**
+     * MediaFormat.KEY_TEMPORAL_LAYERING, from API 29 on, like "android.generic.2" for two
+     * layers. Encoders that do not support it ignore it.
+     */
+    static final String KEY_TEMPORAL_LAYERING = "ts-schema";
+    private static final Comparator<SrsFlvFrame> DTS_ORDER = new Comparator<SrsFlvFrame>() {
+        @Override
+        public int compare(SrsFlvFrame a, SrsFlvFrame b) {
+            return Integer.compare(a.dts, b.dts);
+        }
+    };
 
     private volatile boolean connected = false;
     private SrsRtmpPublisher publisher;
@@ -31,9 +63,31 @@ public class SrsFlvMuxer {
     public boolean needToFindKeyFrame = true;
     private SrsFlvFrame mVideoSequenceHeader;
     private SrsFlvFrame mAudioSequenceHeader;
+    // Parsed SPS of the latest video sequence header
+    private volatile SeqParameterSet mSequenceParameterSet;
+    // Set when the encoder switched to another video format, until the metadata was sent again
+    private volatile boolean mVideoFormatChanged;
     private final SrsAllocator mVideoAllocator = new SrsAllocator(VIDEO_ALLOC_SIZE);
     private final SrsAllocator mAudioAllocator = new SrsAllocator(AUDIO_ALLOC_SIZE);
     private final ArrayBlockingQueue<SrsFlvFrame> mFlvTagCache = new ArrayBlockingQueue<>(CACHE_SIZE);
+    private final AtomicInteger mVideoFrameCacheNumber = new AtomicInteger(0);
+    // Frames the worker sends in one socket write
+    private final ArrayList<SrsFlvFrame> mBatch = new ArrayList<>();
+    private volatile int mMaxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+    private final SrsStats mStats = new SrsStats();
+    private SrsLatencyTracer mTracer;
+    private SrsSeiProbe mSeiProbe;
+    private SrsBandwidthProbe mBandwidthProbe;
+    private SrsBandwidthProbe.Listener mBandwidthProbeListener;
+    private volatile SrsKeyFrameSource mKeyFrameSource;
+    // Set once a key frame was requested while dropping video, until the key frame arrives
+    private boolean mKeyFrameRequested;
+    // Video of temporal layers from this one up is not sent, shed while the uplink is congested
+    private int mTemporalLayerLimit = MAX_TEMPORAL_LAYERS;
+    // Temporal layers seen in the stream
+    private int mTemporalLayers = 1;
+    // Time span of the video in the batch being sent
+    private int mVideoBacklog;
 
     public static final int VIDEO_TRACK = 100;
     public static final int AUDIO_TRACK = 101;
@@ -55,8 +109,92 @@ public class SrsFlvMuxer {
      * get cached video frame number in publisher
      */
     public AtomicInteger getVideoFrameCacheNumber() {
-        // Not used anymore
-        return null;
+        return mVideoFrameCacheNumber;
+    }
+
+    /**
+     * get the statistics registry shared with the encoder
+     */
+    public SrsStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * set the tracer that records how long frames wait and take to send
+     */
+    public void setLatencyTracer(SrsLatencyTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * set the probe that stamps every video frame with a wall clock SEI
+     */
+    public void setSeiProbe(SrsSeiProbe probe) {
+        mSeiProbe = probe;
+    }
+
+    /**
+     * set the probe that measures the uplink after publishing is accepted, the listener
+     * configures the encoder before the first frame is sent
+     *
+     * @param probe    Bandwidth probe, null to go live without probing
+     * @param listener Listener called on the muxer thread, also when connecting failed
+     */
+    public void setBandwidthProbe(SrsBandwidthProbe probe, SrsBandwidthProbe.Listener listener) {
+        mBandwidthProbe = probe;
+        mBandwidthProbeListener = listener;
+    }
+
+    /**
+     * Request a key frame from the encoder whenever video is dropped until the next key frame,
+     * after connecting and after flushing the send queue. With intra refresh, the start of the
+     * next refresh cycle is waited for instead.
+     *
+     * @param source Encoder, null to wait for its next GOP
+     */
+    public void setKeyFrameSource(SrsKeyFrameSource source) {
+        mKeyFrameSource = source;
+    }
+
+    private void requestKeyFrame() {
+        SrsKeyFrameSource source = mKeyFrameSource;
+        // An IDR frame would bring back the bitrate spike intra refresh spreads out
+        if (source != null && !flv.intra_refresh.isEnabled()) {
+            source.requestKeyFrame();
+            mStats.increment(SrsStats.Counter.KEY_FRAME_REQUESTS);
+        }
+    }
+
+    /**
+     * @param format Video format
+     * @return Temporal layers the encoder was asked for with {@link #KEY_TEMPORAL_LAYERING}, 1 without
+     */
+    static int getTemporalLayers(MediaFormat format) {
+        String schema = format.containsKey(KEY_TEMPORAL_LAYERING) ? format.getString(KEY_TEMPORAL_LAYERING) : null;
+        if (schema == null || !schema.startsWith("android.generic.")) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Math.min(Integer.parseInt(schema.substring("android.generic.".length())), MAX_TEMPORAL_LAYERS));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Enable or disable the Handler message for every published packet
+     *
+     * @param enabled Send streaming notifications
+     */
+    public void setStreamingNotifications(boolean enabled) {
+        publisher.setStreamingNotifications(enabled);
+    }
+
+    /**
+     * get the round trip time, throughput and write stall measurements of the connection
+     */
+    public RtmpMetrics getMetrics() {
+        return publisher.getMetrics();
     }
 
     /**
@@ -82,6 +220,21 @@ public class SrsFlvMuxer {
         this.password = password;
     }
 
+    /**
+     * Warm up the connection to the destination in the background, so {@link #start()} only
+     * has to create the stream and publish.
+     */
+    public void prepare() {
+        if (url == null) {
+            Log.e(TAG, "URL is not specified");
+            return;
+        }
+        if (!connected) {
+            Log.i(TAG, String.format("Preparing connection to RTMP server at %s...", url));
+            publisher.prepare(url, user, password);
+        }
+    }
+
     /**
      * Adds a track with the specified format.
      *
@@ -89,7 +242,8 @@ public class SrsFlvMuxer {
      * @return The track index for this newly added track.
      */
     public int addTrack(MediaFormat format) {
-        if (format.getString(MediaFormat.KEY_MIME).contentEquals(SrsEncoder.VCODEC)) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_AVC) || mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
             flv.setVideoTrack(format);
             publisher.setVideoFormat(format);
             return VIDEO_TRACK;
@@ -100,13 +254,27 @@ public class SrsFlvMuxer {
         }
     }
 
+    /**
+     * Describe the video with a new format while publishing, after the encoder was reconfigured
+     * for another rendition. The session is kept: the sequence header the encoder emits next
+     * carries the new parameter sets, the metadata is sent again along with it, and the
+     * decoding times carry on from the frames sent before.
+     *
+     * @param format Format the encoder was configured with
+     */
+    public void updateVideoTrack(MediaFormat format) {
+        flv.updateVideoTrack(format);
+        publisher.setVideoFormat(format);
+        mVideoFormatChanged = true;
+    }
+
     public void disconnect() {
         try {
             publisher.close();
         } catch (IllegalStateException e) {
             // Ignore illegal state.
         }
-        mFlvTagCache.clear();
+        clearCache();
 
         connected = false;
         mVideoSequenceHeader = null;
@@ -133,6 +301,7 @@ public class SrsFlvMuxer {
             }
             mVideoSequenceHeader = null;
             mAudioSequenceHeader = null;
+            if (connected) requestKeyFrame();
         }
         return connected;
     }
@@ -147,14 +316,50 @@ public class SrsFlvMuxer {
                 Log.d(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
                         frame.type, frame.dts, frame.flvTag.array().length));
             }
+            long sendStart = System.nanoTime();
+            if (mTracer != null) mTracer.beginSection(SrsLatencyTracer.Stage.SEND);
             publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
+            if (mTracer != null) {
+                mTracer.endSection();
+                mTracer.onSent(frame.pts, sendStart);
+            }
+            mStats.increment(SrsStats.Counter.VIDEO_FRAMES_SENT);
+            mStats.add(SrsStats.Counter.BYTES_SENT, frame.flvTag.size());
             mVideoAllocator.release(frame.flvTag);
         } else if (frame.isAudio()) {
             publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
+            mStats.increment(SrsStats.Counter.AUDIO_FRAMES_SENT);
+            mStats.add(SrsStats.Counter.BYTES_SENT, frame.flvTag.size());
+            mAudioAllocator.release(frame.flvTag);
+        }
+    }
+
+    private void releaseFrame(SrsFlvFrame frame) {
+        if (frame.isVideo()) {
+            mVideoAllocator.release(frame.flvTag);
+        } else if (frame.isAudio()) {
             mAudioAllocator.release(frame.flvTag);
         }
     }
 
+    /**
+     * Drop all cached frames
+     *
+     * @return Number of dropped frames
+     */
+    private int clearCache() {
+        int count = 0;
+        SrsFlvFrame frame;
+        while ((frame = mFlvTagCache.poll()) != null) {
+            releaseFrame(frame);
+            count++;
+        }
+        mVideoFrameCacheNumber.set(0);
+        mStats.set(SrsStats.Gauge.SEND_QUEUE_DEPTH, 0);
+        mStats.set(SrsStats.Gauge.VIDEO_QUEUE_DEPTH, 0);
+        return count;
+    }
+
     /**
      * Start RTMP muxer
      */
@@ -162,42 +367,76 @@ public class SrsFlvMuxer {
         if (worker != null) throw new RuntimeException("SrsFlvMuxer is already running");
 
         flv.reset();
-        mFlvTagCache.clear();
+        clearCache();
+        mTemporalLayerLimit = MAX_TEMPORAL_LAYERS;
+        mTemporalLayers = 1;
 
         worker = new Thread(() -> {
             Log.i(TAG, "SrsFlvMuxer started");
 
             if (!connect()) {
                 Log.e(TAG, "SrsFlvMuxer disconnected");
+                if (mBandwidthProbe != null) mBandwidthProbeListener.onBandwidthProbed(null, 0);
                 return;
             }
             Log.i(TAG, "SrsFlvMuxer connected");
 
+            if (mBandwidthProbe != null) {
+                SrsRendition rendition = mBandwidthProbe.probe(publisher);
+                mStats.set(SrsStats.Gauge.PROBED_BANDWIDTH, (long) mBandwidthProbe.getThroughput());
+                mBandwidthProbeListener.onBandwidthProbed(rendition, mBandwidthProbe.getThroughput());
+                // The encoder only now added its tracks with the probed format
+                publisher.sendMetaData();
+            }
+
             Log.i(TAG, "SrsFlvMuxer running");
             while (worker != null) {
                 try {
-                    SrsFlvFrame frame = mFlvTagCache.take();
-                    if (frame != null) {
-                        if (frame.isSequenceHeader()) {
-                            if (frame.isVideo()) {
-                                mVideoSequenceHeader = frame;
-                                sendFlvTag(mVideoSequenceHeader);
-                            } else if (frame.isAudio()) {
-                                mAudioSequenceHeader = frame;
-                                sendFlvTag(mAudioSequenceHeader);
+                    collectBatch(mFlvTagCache.take());
+                } catch (InterruptedException e) {
+                    for (SrsFlvFrame frame : mBatch) releaseFrame(frame);
+                    mBatch.clear();
+                    break;
+                }
+                adaptTemporalLayers();
+                publisher.beginBatch();
+                for (SrsFlvFrame frame : mBatch) {
+                    if (frame.isSequenceHeader()) {
+                        if (frame.isVideo()) {
+                            mVideoSequenceHeader = frame;
+                            SeqParameterSet sps = mSequenceParameterSet;
+                            // Players size and label the stream from the metadata
+                            boolean changed = sps != null && publisher.setSequenceParameterSet(sps);
+                            if (mVideoFormatChanged) {
+                                mVideoFormatChanged = false;
+                                changed = true;
                             }
-                        } else {
-                            if (frame.isVideo() && mVideoSequenceHeader != null) {
-                                sendFlvTag(frame);
-                            } else if (frame.isAudio() && mAudioSequenceHeader != null) {
-                                sendFlvTag(frame);
+                            if (changed) {
+                                publisher.sendMetaData();
                             }
+                            sendFlvTag(mVideoSequenceHeader);
+                        } else if (frame.isAudio()) {
+                            mAudioSequenceHeader = frame;
+                            sendFlvTag(mAudioSequenceHeader);
+                        }
+                    } else if (frame.isVideo() && isShed(frame)) {
+                        // Only frames of higher layers, also shed, refer to it
+                        mStats.increment(SrsStats.Counter.DROPPED_LAYER);
+                        releaseFrame(frame);
+                    } else {
+                        if (frame.isVideo() && mVideoSequenceHeader != null) {
+                            sendFlvTag(frame);
+                        } else if (frame.isAudio() && mAudioSequenceHeader != null) {
+                            sendFlvTag(frame);
+                        } else {
+                            mStats.increment(SrsStats.Counter.DROPPED_MUX);
+                            releaseFrame(frame);
                         }
                     }
-                    Thread.yield();
-                } catch (InterruptedException e) {
-                    break;
                 }
+                publisher.endBatch();
+                mBatch.clear();
+                Thread.yield();
             }
 
             disconnect();
@@ -209,6 +448,91 @@ public class SrsFlvMuxer {
         worker.start();
     }
 
+    /**
+     * Take everything queued behind the first frame, and wait up to the maximum batching delay
+     * for more while the batch is smaller than a TCP segment. A lone audio frame then goes out
+     * together with the frames right behind it instead of in a socket write of its own.
+     */
+    private void collectBatch(SrsFlvFrame first) throws InterruptedException {
+        mBatch.add(first);
+        mFlvTagCache.drainTo(mBatch);
+        long deadline = System.nanoTime() + mMaxBatchDelay * 1000000L;
+        int size = batchSize();
+        while (size < BATCH_MIN_SIZE) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) break;
+            SrsFlvFrame frame = mFlvTagCache.poll(wait, TimeUnit.NANOSECONDS);
+            if (frame == null) break;
+            mBatch.add(frame);
+            mFlvTagCache.drainTo(mBatch);
+            size = batchSize();
+        }
+
+        int videoFrames = 0;
+        for (int i = 0; i < mBatch.size(); i++) {
+            if (mBatch.get(i).isVideo()) videoFrames++;
+        }
+        mStats.set(SrsStats.Gauge.VIDEO_QUEUE_DEPTH, mVideoFrameCacheNumber.addAndGet(-videoFrames));
+        mStats.set(SrsStats.Gauge.SEND_QUEUE_DEPTH, mFlvTagCache.size());
+        // The encoders queue audio and video from their own threads, send them in timestamp
+        // order. The sort is stable, the frames of each track keep their order.
+        Collections.sort(mBatch, DTS_ORDER);
+    }
+
+    /**
+     * Shed the highest temporal layer left when the batch holds more video than the uplink
+     * keeps up with, which halves the frame rate of a dyadic layering right away. Nothing the
+     * lower layers decode refers to it, so the stream keeps decoding without a key frame.
+     */
+    private void adaptTemporalLayers() {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < mBatch.size(); i++) {
+            SrsFlvFrame frame = mBatch.get(i);
+            if (!frame.isVideo() || frame.isSequenceHeader()) continue;
+            if (first < 0) first = frame.dts;
+            last = frame.dts;
+            mTemporalLayers = Math.max(mTemporalLayers, Math.min(frame.temporal_id + 1, MAX_TEMPORAL_LAYERS));
+        }
+        mVideoBacklog = first < 0 ? 0 : last - first;
+        int limit = Math.min(mTemporalLayerLimit, mTemporalLayers);
+        if (mVideoBacklog > SHED_BACKLOG_MS && limit > 1) {
+            mTemporalLayerLimit = limit - 1;
+            Log.w(TAG, String.format("worker: %d ms of video queued, shedding temporal layer %d",
+                    mVideoBacklog, mTemporalLayerLimit));
+        }
+        mStats.set(SrsStats.Gauge.TEMPORAL_LAYERS_SENT, Math.min(mTemporalLayerLimit, mTemporalLayers));
+    }
+
+    /**
+     * @return Whether the video frame is of a shed temporal layer. A key frame restores a shed
+     * layer when the uplink caught up, the frames after it refer to nothing that was dropped.
+     */
+    private boolean isShed(SrsFlvFrame frame) {
+        if (frame.isKeyFrame() && mTemporalLayerLimit < mTemporalLayers && mVideoBacklog < RESTORE_BACKLOG_MS) {
+            mTemporalLayerLimit++;
+            Log.i(TAG, String.format("worker: restored temporal layer %d", mTemporalLayerLimit - 1));
+            if (mTemporalLayerLimit >= mTemporalLayers) mTemporalLayerLimit = MAX_TEMPORAL_LAYERS;
+            mStats.set(SrsStats.Gauge.TEMPORAL_LAYERS_SENT, Math.min(mTemporalLayerLimit, mTemporalLayers));
+        }
+        return frame.temporal_id >= mTemporalLayerLimit;
+    }
+
+    private int batchSize() {
+        int size = 0;
+        for (int i = 0; i < mBatch.size(); i++) size += mBatch.get(i).flvTag.size();
+        return size;
+    }
+
+    /**
+     * Set how long the sender may hold a small batch back to send it along with the next frames
+     *
+     * @param millis Maximum delay in milliseconds, 0 to only batch what is queued already
+     */
+    public void setMaxBatchDelay(int millis) {
+        mMaxBatchDelay = millis;
+    }
+
     /**
      * stop the muxer, disconnect RTMP connection.
      */
@@ -323,6 +647,26 @@ public class SrsFlvMuxer {
         public final static int AVC = 7;
     }
 
+    // Enhanced RTMP, ExVideoTagHeader
+    // IsExHeader UB [1], set for the FourCC video tags
+    // FrameType UB [3]
+    // PacketType UB [4]:
+    //     0 = sequence start, the decoder configuration record
+    //     1 = coded frames, after a SI24 composition time
+    //     2 = sequence end
+    //     3 = coded frames with a composition time of zero, which is left out
+    // VideoFourCc UI32
+    private class SrsCodecVideoEx {
+        public final static int IsExHeader = 0x80;
+
+        public final static int SequenceStart = 0;
+        public final static int CodedFrames = 1;
+        public final static int SequenceEnd = 2;
+        public final static int CodedFramesX = 3;
+
+        public final static int FourCcHevc = 0x68766331; // hvc1
+    }
+
     /**
      * the aac object type, for RTMP sequence header
      * for AudioSpecificConfig, @see aac-mp4a-format-ISO_IEC_14496-3+2001.pdf, page 33
@@ -439,6 +783,10 @@ public class SrsFlvMuxer {
         public int type;
         // the dts in ms, tbn is 1000.
         public int dts;
+        // the pts in ms, dts plus the composition time.
+        public int pts;
+        // the temporal layer of a video frame, 0 for the base layer.
+        public int temporal_id;
 
         public boolean isKeyFrame() {
             return isVideo() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
@@ -464,6 +812,7 @@ public class SrsFlvMuxer {
         private final static String TAG = "SrsFlvMuxer";
 
         private SrsFlvFrameBytes nalu_header = new SrsFlvFrameBytes();
+        private SrsFlvFrameBytes sei = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes seq_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
@@ -499,6 +848,17 @@ public class SrsFlvMuxer {
             return nalu_header;
         }
 
+        public SrsFlvFrameBytes muxSei(SrsSeiProbe probe, long ptsUs) {
+            if (sei.data == null) {
+                sei.data = ByteBuffer.allocate(SrsSeiProbe.MAX_SIZE);
+            }
+            probe.stamp(ptsUs);
+            sei.data.clear();
+            sei.size = probe.write(sei.data, probe.getWallClock(), probe.getSequence());
+            sei.data.rewind();
+            return sei;
+        }
+
         public void muxSequenceHeader(ByteBuffer sps, ByteBuffer pps,
                                       ArrayList<SrsFlvFrameBytes> frames) {
             // 5bytes sps/pps header:
@@ -629,6 +989,17 @@ public class SrsFlvMuxer {
             return allocation;
         }
 
+        /**
+         * @param nal Position of a prefix NAL unit, 7.3.1.1 NAL unit header SVC extension
+         * @return temporal_id of the slice after it, 0 for a truncated prefix
+         */
+        public int prefixTemporalId(ByteBuffer bb, int nal) {
+            // nal_unit_header_svc_extension: idr_flag, priority_id, no_inter_layer_pred_flag,
+            // dependency_id and quality_id ahead of the three temporal_id bits
+            if (nal + 3 >= bb.limit() || (bb.get(nal + 1) & 0x80) == 0) return 0;
+            return (bb.get(nal + 3) >> 5) & 0x07;
+        }
+
         private int searchAnnexb(ByteBuffer bb) {
             while (bb.position() < bb.capacity()) {
                 int offset = bb.position();
@@ -698,7 +1069,18 @@ public class SrsFlvMuxer {
         private ByteBuffer h264_sps;
         private ByteBuffer h264_pps;
         private boolean h264_sps_pps_sent;
+        private SrsDtsGenerator dts_generator = new SrsDtsGenerator(null);
+        private int last_video_dts;
         private boolean aac_specific_config_got;
+        private boolean hevc;
+        // Layers of the encoder, non-reference H.264 slices without a SVC prefix are the highest
+        private int temporal_layers = 1;
+        private SrsIntraRefresh intra_refresh = new SrsIntraRefresh(null);
+        private final SrsAnnexbReader nalus = new SrsAnnexbReader();
+        private byte[] hevc_vps;
+        private byte[] hevc_sps;
+        private byte[] hevc_pps;
+        private boolean hevc_config_sent;
 
         public SrsFlv() {
             reset();
@@ -709,10 +1091,26 @@ public class SrsFlvMuxer {
             h264_pps = null;
             h264_sps_pps_sent = false;
             aac_specific_config_got = false;
+            hevc_vps = null;
+            hevc_sps = null;
+            hevc_pps = null;
+            hevc_config_sent = false;
+            last_video_dts = 0;
+            dts_generator.reset();
         }
 
         public void setVideoTrack(MediaFormat format) {
             videoTrack = format;
+            hevc = format.getString(MediaFormat.KEY_MIME).contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC);
+            temporal_layers = getTemporalLayers(format);
+            intra_refresh = new SrsIntraRefresh(format);
+            dts_generator = new SrsDtsGenerator(format);
+        }
+
+        public void updateVideoTrack(MediaFormat format) {
+            SrsDtsGenerator previous = dts_generator;
+            setVideoTrack(format);
+            dts_generator.continueFrom(previous);
         }
 
         public void setAudioTrack(MediaFormat format) {
@@ -803,7 +1201,7 @@ public class SrsFlvMuxer {
             audio_tag.put(audio_header, 0);
             audio_tag.put(aac_packet_type, 1);
 
-            writeRtmpPacket(SrsCodecFlvTag.Audio, dts, 0, aac_packet_type, audio_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Audio, dts, dts, 0, aac_packet_type, audio_tag);
         }
 
         private void writeAdtsHeader(byte[] frame, int offset) {
@@ -843,6 +1241,10 @@ public class SrsFlvMuxer {
         }
 
         public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            if (hevc) {
+                writeHevcSample(bb, bi);
+                return;
+            }
             int pts = (int) (bi.presentationTimeUs / 1000);
             int dts = pts;
 
@@ -851,7 +1253,21 @@ public class SrsFlvMuxer {
                 Log.e(TAG, "Invalid frame, Annex B header missing");
                 return;
             }
-            int nal_unit_type = bb.get(offset) & 0x1f;
+            int nal_unit_type = bb.get(bb.position() + offset) & 0x1f;
+
+            // Encoders with temporal layers may put the SVC prefix with the temporal_id ahead of
+            // the slice, H.264 decoders ignore it
+            int temporal_id = 0;
+            if (nal_unit_type == SrsAvcNaluType.PrefixNALU) {
+                temporal_id = avc.prefixTemporalId(bb, bb.position() + offset);
+                bb.position(bb.position() + offset + 1);
+                offset = avc.searchAnnexb(bb);
+                if (offset < 0) {
+                    Log.e(TAG, "Invalid frame, slice after the prefix missing");
+                    return;
+                }
+                nal_unit_type = bb.get(bb.position() + offset) & 0x1f;
+            }
 
             // SPS/PPS
             if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
@@ -867,6 +1283,10 @@ public class SrsFlvMuxer {
                 // SPS
                 byte[] sps = new byte[frame_sps.size - frame_pps.size - 4];
                 frame_sps.data.get(sps);
+                if (h264_sps == null || !Arrays.equals(h264_sps.array(), sps)) {
+                    mSequenceParameterSet = parseSps(ByteBuffer.wrap(sps));
+                    dts_generator.setSequenceParameterSet(mSequenceParameterSet);
+                }
                 h264_sps = ByteBuffer.wrap(sps);
 
                 // PPS
@@ -880,18 +1300,160 @@ public class SrsFlvMuxer {
 
             // IDR/NonIDR
             if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
+                // nal_ref_idc 0, nothing refers to the frame
+                if (temporal_id == 0 && temporal_layers > 1 && (bb.get(bb.position() + offset) & 0x60) == 0) {
+                    temporal_id = temporal_layers - 1;
+                }
                 SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, offset);
 
+                // Frames arrive in decode order, with B-frames their presentation times do not
+                // increase. The tag timestamp is the decoding time, the composition time the rest.
+                dts = (int) Math.max(0, dts_generator.next(bi.presentationTimeUs) / 1000);
+
+                // Seekable at IDR frames and at the start of refresh cycles
                 int type = SrsCodecVideoAVCFrame.InterFrame;
-                if (nal_unit_type == SrsAvcNaluType.IDR) type = SrsCodecVideoAVCFrame.KeyFrame;
+                if (intra_refresh.next(nal_unit_type == SrsAvcNaluType.IDR)) type = SrsCodecVideoAVCFrame.KeyFrame;
 
+                // SEI must precede the first slice of the access unit
+                SrsSeiProbe probe = mSeiProbe;
+                if (probe != null && probe.isEnabled()) {
+                    ipbs.add(avc.muxSei(probe, bi.presentationTimeUs));
+                }
                 ipbs.add(avc.muxNaluHeader(frame));
                 ipbs.add(frame);
-                writeH264IpbFrame(ipbs, type, dts, pts);
+                writeH264IpbFrame(ipbs, type, dts, pts, temporal_id);
                 ipbs.clear();
             }
         }
 
+        /**
+         * Mux a H.265 access unit, or the VPS, SPS and PPS before the first one. The NAL units
+         * are length prefixed straight into the tag, all of them but the parameter sets and
+         * access unit delimiters.
+         */
+        private void writeHevcSample(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            int pts = (int) (bi.presentationTimeUs / 1000);
+            boolean config = false;
+            boolean irap = false;
+            boolean vcl = false;
+            int temporal_id = 0;
+            int size = 0;
+            nalus.reset(bb, bi.offset, bi.offset + bi.size);
+            while (nalus.next()) {
+                int type = nalus.hevcType();
+                if (type == H265NalUnitHeader.VPS_NUT) {
+                    hevc_vps = nalus.copy();
+                    config = true;
+                } else if (type == H265NalUnitHeader.SPS_NUT) {
+                    hevc_sps = nalus.copy();
+                    config = true;
+                } else if (type == H265NalUnitHeader.PPS_NUT) {
+                    hevc_pps = nalus.copy();
+                    config = true;
+                } else if (type >= 0 && type != H265NalUnitHeader.AUD_NUT) {
+                    if (H265NalUnitHeader.isVcl(type)) {
+                        temporal_id = H265NalUnitHeader.getTemporalId(bb, nalus.start());
+                    }
+                    vcl |= H265NalUnitHeader.isVcl(type);
+                    irap |= H265NalUnitHeader.isIrap(type);
+                    size += 4 + nalus.size();
+                }
+            }
+
+            if (config) {
+                if (hevc_vps == null || hevc_sps == null || hevc_pps == null) {
+                    Log.e(TAG, "Invalid frame, VPS, SPS or PPS missing");
+                    return;
+                }
+                H265SeqParameterSet sps;
+                try {
+                    sps = H265SeqParameterSet.read(ByteBuffer.wrap(hevc_sps));
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Invalid SPS", e);
+                    return;
+                }
+                dts_generator.setSequenceParameterSet(sps);
+                HevcDecoderConfigurationRecord record = new HevcDecoderConfigurationRecord(hevc_vps, sps, hevc_sps, hevc_pps);
+                ByteBuffer content = ByteBuffer.allocate(record.getContentSize());
+                record.getContent(content);
+                writeHevcSequenceStart(content.array(), pts);
+                hevc_config_sent = true;
+            }
+
+            // Refresh cycles are counted through the frames ignored too
+            boolean key = vcl && intra_refresh.next(irap);
+
+            // when the decoder configuration was not sent, ignore the frame.
+            if (!vcl || !hevc_config_sent) return;
+
+            int dts = (int) Math.max(0, dts_generator.next(bi.presentationTimeUs) / 1000);
+            int cts = pts - dts;
+            int packet_type = cts != 0 ? SrsCodecVideoEx.CodedFrames : SrsCodecVideoEx.CodedFramesX;
+            int frame_type = key ? SrsCodecVideoAVCFrame.KeyFrame : SrsCodecVideoAVCFrame.InterFrame;
+            video_tag = mVideoAllocator.allocate(5 + (cts != 0 ? 3 : 0) + size);
+            putExVideoTagHeader(video_tag, frame_type, packet_type);
+            if (cts != 0) {
+                video_tag.put((byte) (cts >> 16));
+                video_tag.put((byte) (cts >> 8));
+                video_tag.put((byte) cts);
+            }
+
+            int position = bb.position();
+            int limit = bb.limit();
+            nalus.reset(bb, bi.offset, bi.offset + bi.size);
+            while (nalus.next()) {
+                int type = nalus.hevcType();
+                if (type < 0 || H265NalUnitHeader.isParameterSet(type) || type == H265NalUnitHeader.AUD_NUT) {
+                    continue;
+                }
+                int nal_size = nalus.size();
+                video_tag.put((byte) (nal_size >> 24));
+                video_tag.put((byte) (nal_size >> 16));
+                video_tag.put((byte) (nal_size >> 8));
+                video_tag.put((byte) nal_size);
+                bb.limit(nalus.start() + nal_size);
+                bb.position(nalus.start());
+                bb.get(video_tag.array(), video_tag.size(), nal_size);
+                video_tag.appendOffset(nal_size);
+                bb.limit(limit);
+            }
+            bb.position(position);
+
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, pts, frame_type, SrsCodecVideoAVCType.NALU, temporal_id, video_tag);
+        }
+
+        private void writeHevcSequenceStart(byte[] record, int pts) {
+            int frame_type = SrsCodecVideoAVCFrame.KeyFrame;
+            video_tag = mVideoAllocator.allocate(5 + record.length);
+            putExVideoTagHeader(video_tag, frame_type, SrsCodecVideoEx.SequenceStart);
+            video_tag.put(record);
+
+            writeRtmpPacket(SrsCodecFlvTag.Video, pts, pts, frame_type, SrsCodecVideoAVCType.SequenceHeader, video_tag);
+            Log.i(TAG, String.format("flv: hevc vps/sps/pps sent, vps=%dB, sps=%dB, pps=%dB",
+                    hevc_vps.length, hevc_sps.length, hevc_pps.length));
+        }
+
+        private void putExVideoTagHeader(SrsAllocator.Allocation tag, int frame_type, int packet_type) {
+            tag.put((byte) (SrsCodecVideoEx.IsExHeader | frame_type << 4 | packet_type));
+            tag.put((byte) (SrsCodecVideoEx.FourCcHevc >> 24));
+            tag.put((byte) (SrsCodecVideoEx.FourCcHevc >> 16));
+            tag.put((byte) (SrsCodecVideoEx.FourCcHevc >> 8));
+            tag.put((byte) SrsCodecVideoEx.FourCcHevc);
+        }
+
+        /**
+         * @param sps SPS NAL unit
+         * @return the parsed SPS, null when it can not be parsed
+         */
+        private SeqParameterSet parseSps(ByteBuffer sps) {
+            try {
+                return SeqParameterSet.read(sps);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Invalid SPS, using the configured video format", e);
+                return null;
+            }
+        }
+
         private void writeH264SpsPps(int dts, int pts) {
             // h264 raw to h264 packet.
             ArrayList<SrsFlvFrameBytes> frames = new ArrayList<>();
@@ -903,12 +1465,12 @@ public class SrsFlvMuxer {
             video_tag = avc.muxFlvTag(frames, frame_type, avc_packet_type, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, avc_packet_type, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, pts, frame_type, avc_packet_type, video_tag);
             Log.i(TAG, String.format("flv: h264 sps/pps sent, sps=%dB, pps=%dB",
                     h264_sps.array().length, h264_pps.array().length));
         }
 
-        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int dts, int pts) {
+        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int dts, int pts, int temporal_id) {
             // when sps or pps not sent, ignore the packet.
             // @see https://github.com/simple-rtmp-server/srs/issues/203
             if (!h264_sps_pps_sent) return;
@@ -916,22 +1478,46 @@ public class SrsFlvMuxer {
             video_tag = avc.muxFlvTag(frames, frame_type, SrsCodecVideoAVCType.NALU, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, SrsCodecVideoAVCType.NALU, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, pts, frame_type, SrsCodecVideoAVCType.NALU, temporal_id, video_tag);
         }
 
-        private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+        private void writeRtmpPacket(int type, int dts, int pts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+            writeRtmpPacket(type, dts, pts, frame_type, avc_aac_type, 0, tag);
+        }
+
+        private void writeRtmpPacket(int type, int dts, int pts, int frame_type, int avc_aac_type, int temporal_id,
+                                     SrsAllocator.Allocation tag) {
             SrsFlvFrame frame = new SrsFlvFrame();
             frame.flvTag = tag;
             frame.type = type;
             frame.dts = dts;
+            frame.pts = pts;
             frame.frame_type = frame_type;
             frame.avc_aac_type = avc_aac_type;
+            frame.temporal_id = temporal_id;
 
             if (frame.isVideo()) {
-                if (needToFindKeyFrame) {
+                // Codec config buffers come at time 0. A sequence header mid-stream takes the time
+                // of the frame before it, or the batch sort would send it ahead of older frames.
+                if (frame.isSequenceHeader()) {
+                    frame.dts = frame.pts = Math.max(dts, last_video_dts);
+                } else {
+                    last_video_dts = dts;
+                }
+                // The sequence header is flagged as a key frame but decodes nothing by itself
+                if (needToFindKeyFrame && !frame.isSequenceHeader()) {
                     if (frame.isKeyFrame()) {
                         needToFindKeyFrame = false;
+                        mKeyFrameRequested = false;
                         flvTagCacheAdd(frame);
+                    } else {
+                        mStats.increment(SrsStats.Counter.DROPPED_MUX);
+                        mVideoAllocator.release(tag);
+                        // The encoder may not have been running when the connection asked
+                        if (!mKeyFrameRequested) {
+                            mKeyFrameRequested = true;
+                            requestKeyFrame();
+                        }
                     }
                 } else {
                     flvTagCacheAdd(frame);
@@ -942,10 +1528,19 @@ public class SrsFlvMuxer {
         }
 
         private void flvTagCacheAdd(SrsFlvFrame frame) {
-            if (!mFlvTagCache.offer(frame)) {
+            if (frame.isVideo()) {
+                // Count before offering, the worker may take it right away
+                mStats.set(SrsStats.Gauge.VIDEO_QUEUE_DEPTH, mVideoFrameCacheNumber.incrementAndGet());
+            }
+            if (mFlvTagCache.offer(frame)) {
+                mStats.set(SrsStats.Gauge.SEND_QUEUE_DEPTH, mFlvTagCache.size());
+            } else {
                 Log.w(TAG, "Network throughput too low, flushing the cache");
                 needToFindKeyFrame = true;
-                mFlvTagCache.clear();
+                releaseFrame(frame);
+                mStats.add(SrsStats.Counter.DROPPED_SEND, clearCache() + 1);
+                mKeyFrameRequested = true;
+                requestKeyFrame();
 //                publisher.close();
             }
         }
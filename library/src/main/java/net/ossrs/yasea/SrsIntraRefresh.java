@@ -0,0 +1,60 @@
+package net.ossrs.yasea;
+
+import android.media.MediaFormat;
+
+/**
+ * Recovery points of video the encoder codes with intra refresh instead of periodic IDR frames.
+ * <p>
+ * Each frame of a refresh cycle intra codes another part of the picture, so a decoder that
+ * starts at any frame shows a complete picture a cycle or two later. Encoders do not tell where
+ * their cycles start, they are counted a period apart from the last IDR frame on.
+ * <p>
+ * The muxers take the first frame of a cycle as a key frame, as x264 flags its recovery points:
+ * FLV tags it seekable, so the server starts new viewers there, the MP4 muxer lists it as a sync
+ * sample to seek to, and both start over there after connecting, flushing or resuming instead
+ * of asking the encoder for an IDR frame.
+ */
+final class SrsIntraRefresh {
+
+    private final int period;
+    // Frames since the last recovery point, 0 before the first IDR frame
+    private int frames;
+
+    /**
+     * @param format Format the encoder was configured with, intra refresh when it has a
+     *               {@link MediaFormat#KEY_INTRA_REFRESH_PERIOD}. Null for none.
+     */
+    SrsIntraRefresh(MediaFormat format) {
+        period = format != null && format.containsKey(MediaFormat.KEY_INTRA_REFRESH_PERIOD)
+                ? Math.max(format.getInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD), 0) : 0;
+    }
+
+    /**
+     * @return Whether the encoder refreshes the picture without periodic IDR frames
+     */
+    boolean isEnabled() {
+        return period > 0;
+    }
+
+    /**
+     * @return Frames of a refresh cycle, 0 without intra refresh
+     */
+    int getPeriod() {
+        return period;
+    }
+
+    /**
+     * @param isKeyFrame Whether the next frame in decode order is an IDR frame
+     * @return Whether the frame is an IDR frame or starts a refresh cycle
+     */
+    boolean next(boolean isKeyFrame) {
+        if (isKeyFrame || (period > 0 && frames == period)) {
+            frames = 1;
+            return true;
+        }
+        if (period > 0 && frames > 0) {
+            frames++;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,17 @@
+package net.ossrs.yasea;
+
+/**
+ * Encoder that can produce a key frame on demand.
+ * <p>
+ * The muxers drop video until a key frame after connecting, after flushing the send queue and
+ * when recording starts or resumes. They request one here instead of waiting up to a GOP for
+ * the next natural IDR.
+ */
+public interface SrsKeyFrameSource {
+
+    /**
+     * Make one of the next encoded frames a key frame, as soon as the encoder can. Called from
+     * the muxer and encoder threads, requests before the encoder started are ignored.
+     */
+    void requestKeyFrame();
+}
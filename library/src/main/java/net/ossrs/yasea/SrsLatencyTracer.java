@@ -0,0 +1,253 @@
+package net.ossrs.yasea;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces the latency of video frames from capture to the wire.
+ * <p>
+ * Frames carry their monotonic capture time through the camera view, the color conversion
+ * and the encoder input. The encoder output is matched to its input by presentation time,
+ * which the muxer keeps as FLV timestamp, so the send stage can be matched as well. Each
+ * stage is recorded into its own {@link SrsHistogram} in microseconds.
+ * <p>
+ * Tracing is off until {@link #setEnabled(boolean)}. The frames in flight are kept in a ring
+ * indexed by presentation time without locks: the capture, encoder and sender threads only
+ * pay for a few ordered writes per frame.
+ */
+public final class SrsLatencyTracer {
+
+    /**
+     * Pipeline stages
+     */
+    public enum Stage {
+        // Sensor timestamp until the frame is drawn
+        CAPTURE,
+        // GPU filter and read back
+        FILTER,
+        // libyuv color conversion
+        CONVERT,
+        // MediaCodec input until output
+        ENCODE,
+        // Encoder output until the sender picks up the FLV tag
+        MUX,
+        // Writing the RTMP packet
+        SEND,
+        // Capture until written
+        TOTAL
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // Slot of a frame by its presentation time in milliseconds, frames less than this far apart
+    // never share one, which covers a second of frames in flight between camera and socket
+    private static final int SLOTS = 1024;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final SrsHistogram[] histograms = new SrsHistogram[STAGES.length];
+    // Written last and read first, -1 for a free slot
+    private final AtomicLongArray slotPts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotCapture = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotEncodeIn = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotEncodeOut = new AtomicLongArray(SLOTS);
+
+    private volatile boolean enabled = false;
+    private volatile boolean systraceEnabled = false;
+    private volatile long currentCapture;
+
+    public SrsLatencyTracer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new SrsHistogram();
+        }
+        clearSlots();
+    }
+
+    /**
+     * Enable or disable tracing, off by default
+     *
+     * @param enabled Record latencies
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable android.os.Trace sections for each stage
+     *
+     * @param enabled Emit systrace sections
+     */
+    public void setSystraceEnabled(boolean enabled) {
+        systraceEnabled = enabled;
+    }
+
+    /**
+     * Record the duration of a stage
+     *
+     * @param stage      Stage
+     * @param startNanos Start in System.nanoTime() units
+     * @param endNanos   End in System.nanoTime() units
+     */
+    public void record(Stage stage, long startNanos, long endNanos) {
+        if (!enabled || startNanos <= 0) return;
+        histograms[stage.ordinal()].record((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Begin a synchronous section on the current thread
+     */
+    public void beginSection(Stage stage) {
+        if (systraceEnabled) Trace.beginSection(stage.name());
+    }
+
+    /**
+     * End the section begun last on the current thread
+     */
+    public void endSection() {
+        if (systraceEnabled) Trace.endSection();
+    }
+
+    /**
+     * Hand the capture time of the frame that is about to be delivered to the encoder, which
+     * runs on the same thread
+     *
+     * @param captureNanos Capture time in System.nanoTime() units
+     */
+    public void setCurrentCapture(long captureNanos) {
+        currentCapture = captureNanos;
+    }
+
+    /**
+     * @return Capture time of the frame being delivered
+     */
+    public long getCurrentCapture() {
+        return currentCapture;
+    }
+
+    /**
+     * A frame goes into the encoder
+     *
+     * @param ptsUs        Presentation time in microseconds
+     * @param captureNanos Capture time in System.nanoTime() units
+     */
+    public void onEncoderInput(long ptsUs, long captureNanos) {
+        if (!enabled) return;
+        long ptsMs = ptsUs / 1000;
+        int slot = slot(ptsMs);
+        // Taken over, readers of the frame before see another presentation time
+        slotPts.set(slot, -1);
+        slotCapture.set(slot, captureNanos);
+        slotEncodeIn.set(slot, System.nanoTime());
+        slotEncodeOut.set(slot, 0);
+        slotPts.set(slot, ptsMs);
+        if (systraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(Stage.ENCODE.name(), (int) (ptsUs / 1000));
+        }
+    }
+
+    /**
+     * A frame came out of the encoder
+     *
+     * @param ptsUs Presentation time in microseconds
+     */
+    public void onEncoderOutput(long ptsUs) {
+        if (!enabled) return;
+        long ptsMs = ptsUs / 1000;
+        int slot = slot(ptsMs);
+        if (slotPts.get(slot) != ptsMs) return;
+        long now = System.nanoTime();
+        long encodeIn = slotEncodeIn.get(slot);
+        slotEncodeOut.set(slot, now);
+        if (slotPts.get(slot) != ptsMs) return;
+        record(Stage.ENCODE, encodeIn, now);
+        if (systraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(Stage.ENCODE.name(), (int) (ptsUs / 1000));
+        }
+    }
+
+    /**
+     * The sender wrote the frame
+     *
+     * @param ptsMs      Presentation time in milliseconds, as carried by the FLV tag
+     * @param startNanos When the sender picked up the frame
+     */
+    public void onSent(long ptsMs, long startNanos) {
+        if (!enabled) return;
+        int slot = slot(ptsMs);
+        if (slotPts.get(slot) != ptsMs) return;
+        long now = System.nanoTime();
+        long encodeOut = slotEncodeOut.get(slot);
+        long capture = slotCapture.get(slot);
+        // Free the slot, unless the encoder took it over for a later frame meanwhile
+        if (!slotPts.compareAndSet(slot, ptsMs, -1)) return;
+        if (encodeOut != 0) record(Stage.MUX, encodeOut, startNanos);
+        record(Stage.SEND, startNanos, now);
+        record(Stage.TOTAL, capture, now);
+    }
+
+    /**
+     * @param ptsMs Presentation time in milliseconds
+     * @return Capture time of the frame in System.nanoTime() units, 0 when unknown
+     */
+    public long getCaptureNanos(long ptsMs) {
+        int slot = slot(ptsMs);
+        if (slotPts.get(slot) != ptsMs) return 0;
+        long capture = slotCapture.get(slot);
+        return slotPts.get(slot) == ptsMs ? capture : 0;
+    }
+
+    private static int slot(long ptsMs) {
+        return (int) (ptsMs & SLOT_MASK);
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < SLOTS; i++) {
+            slotPts.set(i, -1);
+        }
+    }
+
+    /**
+     * @param stage Stage
+     * @return Histogram of the stage latency in microseconds
+     */
+    public SrsHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @param stage      Stage
+     * @param percentile Percentile between 0 and 100
+     * @return Latency in microseconds
+     */
+    public long getPercentile(Stage stage, double percentile) {
+        return histograms[stage.ordinal()].getPercentile(percentile);
+    }
+
+    /**
+     * Forget all recorded latencies
+     */
+    public void reset() {
+        for (SrsHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        clearSlots();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("latency(us) p50/p95/p99");
+        for (Stage stage : STAGES) {
+            SrsHistogram h = histograms[stage.ordinal()];
+            sb.append(' ').append(stage.name().toLowerCase()).append('=')
+                    .append(h.getPercentile(50)).append('/')
+                    .append(h.getPercentile(95)).append('/')
+                    .append(h.getPercentile(99));
+        }
+        return sb.toString();
+    }
+}
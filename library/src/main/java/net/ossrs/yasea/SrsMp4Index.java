@@ -0,0 +1,323 @@
+package net.ossrs.yasea;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sidecar index of a recording in progress, next to the MP4 file with an ".idx" suffix.
+ * <p>
+ * The moov of a recording is only written when it stops. The index holds what is needed to
+ * build it anyway: the mdat offset, the codec configuration and, for every sample written to
+ * the mdat in order, its track, sync flag, size and presentation time. When the parameter sets
+ * change mid-recording, a record of the new ones precedes the first sample that refers to
+ * them. Records are buffered and written on every sync sample, so a crash loses at most the
+ * index of the last GOP.
+ * The index is deleted once the moov was written.
+ *
+ * @see SrsMp4Muxer#recover(File)
+ */
+final class SrsMp4Index {
+
+    private static final int MAGIC = 0x53524958; // SRIX
+    // Version 2 adds the VPS of H.265 recordings, version 3 parameter set records
+    private static final int VERSION = 3;
+    // Flags, size and presentation time
+    private static final int RECORD_SIZE = 1 + 4 + 8;
+    private static final int FLAG_AUDIO = 1;
+    private static final int FLAG_SYNC = 2;
+    // Flags, width, height, then SPS, PPS and VPS
+    private static final int FLAG_PARAMETER_SETS = 4;
+
+    private final File file;
+
+    // Writing
+    private FileOutputStream fos;
+    private FileChannel fc;
+    private ByteBuffer buffer;
+
+    // Reading
+    private long mdatOffset;
+    private int width;
+    private int height;
+    private byte[] sps;
+    private byte[] pps;
+    private byte[] vps;
+    private int sampleRate;
+    private int channelCount;
+    private ByteBuffer records;
+    // Position of every sample record
+    private int[] positions;
+    private int sampleCount;
+    private final List<ParameterSets> parameterSetsChanges = new ArrayList<>();
+
+    private SrsMp4Index(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param recording MP4 file
+     * @return Sidecar index of the file
+     */
+    static File sidecarOf(File recording) {
+        return new File(recording.getPath() + ".idx");
+    }
+
+    /**
+     * Start the index of a new recording, replacing any earlier one
+     *
+     * @param recording MP4 file
+     */
+    static SrsMp4Index create(File recording) throws IOException {
+        SrsMp4Index index = new SrsMp4Index(sidecarOf(recording));
+        index.fos = new FileOutputStream(index.file);
+        index.fc = index.fos.getChannel();
+        index.buffer = ByteBuffer.allocate(4096);
+        return index;
+    }
+
+    /**
+     * Write the header, once the first sample is about to be written
+     *
+     * @param mdatOffset   Offset of the mdat box in the MP4 file
+     * @param width        Video width
+     * @param height       Video height
+     * @param sps          SPS without start code
+     * @param pps          PPS without start code
+     * @param vps          VPS without start code, empty for H.264
+     * @param sampleRate   Audio sample rate, 0 without audio track
+     * @param channelCount Audio channel count
+     */
+    void writeHeader(long mdatOffset, int width, int height, byte[] sps, byte[] pps, byte[] vps,
+                     int sampleRate, int channelCount) throws IOException {
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(mdatOffset);
+        buffer.putInt(width).putInt(height);
+        buffer.putShort((short) sps.length).put(sps);
+        buffer.putShort((short) pps.length).put(pps);
+        buffer.putShort((short) vps.length).put(vps);
+        buffer.putInt(sampleRate).putInt(channelCount);
+        flush();
+    }
+
+    /**
+     * Append the record of a sample written to the mdat, in the order it was written
+     */
+    void append(boolean audio, boolean sync, int size, long presentationTimeUs) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) flush();
+        buffer.put((byte) ((audio ? FLAG_AUDIO : 0) | (sync ? FLAG_SYNC : 0)));
+        buffer.putInt(size);
+        buffer.putLong(presentationTimeUs);
+        if (sync) flush();
+    }
+
+    /**
+     * Append the record of parameter sets replacing those before, ahead of the first sample
+     * that refers to them
+     *
+     * @param width  Video width
+     * @param height Video height
+     * @param sps    SPS without start code
+     * @param pps    PPS without start code
+     * @param vps    VPS without start code, empty for H.264
+     */
+    void appendParameterSets(int width, int height, byte[] sps, byte[] pps, byte[] vps) throws IOException {
+        if (buffer.remaining() < 1 + 4 + 4 + 6 + sps.length + pps.length + vps.length) flush();
+        buffer.put((byte) FLAG_PARAMETER_SETS);
+        buffer.putInt(width).putInt(height);
+        buffer.putShort((short) sps.length).put(sps);
+        buffer.putShort((short) pps.length).put(pps);
+        buffer.putShort((short) vps.length).put(vps);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) fc.write(buffer);
+        buffer.clear();
+    }
+
+    void close() {
+        try {
+            if (fc != null) {
+                flush();
+                fc.close();
+                fos.close();
+            }
+        } catch (IOException e) {
+            // Nothing to recover from a closed recording
+        }
+        fc = null;
+        fos = null;
+    }
+
+    /**
+     * Close and remove the index, the recording no longer needs it
+     */
+    void delete() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * Read the index of an interrupted recording, memory mapped
+     *
+     * @param recording MP4 file
+     * @throws FileNotFoundException There is no index, the recording was finished or never started
+     * @throws IOException           The index has no header
+     */
+    static SrsMp4Index load(File recording) throws IOException {
+        SrsMp4Index index = new SrsMp4Index(sidecarOf(recording));
+        try (FileInputStream in = new FileInputStream(index.file)) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                int version = bb.getInt() == MAGIC ? bb.getInt() : -1;
+                if (version < 1 || version > VERSION) {
+                    throw new IOException("Not a recording index " + index.file);
+                }
+                index.mdatOffset = bb.getLong();
+                index.width = bb.getInt();
+                index.height = bb.getInt();
+                index.sps = new byte[bb.getShort()];
+                bb.get(index.sps);
+                index.pps = new byte[bb.getShort()];
+                bb.get(index.pps);
+                index.vps = new byte[version > 1 ? bb.getShort() : 0];
+                bb.get(index.vps);
+                index.sampleRate = bb.getInt();
+                index.channelCount = bb.getInt();
+            } catch (RuntimeException e) {
+                throw new IOException("Truncated recording index " + index.file, e);
+            }
+            index.records = bb.slice();
+            index.readRecords();
+        }
+        return index;
+    }
+
+    private void readRecords() {
+        positions = new int[records.limit() / RECORD_SIZE];
+        while (records.hasRemaining()) {
+            int position = records.position();
+            if ((records.get(position) & FLAG_PARAMETER_SETS) != 0) {
+                try {
+                    records.get();
+                    int width = records.getInt();
+                    int height = records.getInt();
+                    byte[] sps = new byte[records.getShort()];
+                    records.get(sps);
+                    byte[] pps = new byte[records.getShort()];
+                    records.get(pps);
+                    byte[] vps = new byte[records.getShort()];
+                    records.get(vps);
+                    parameterSetsChanges.add(new ParameterSets(sampleCount, width, height, sps, pps, vps));
+                } catch (BufferUnderflowException e) {
+                    // Cut short by the crash, no sample refers to it
+                    break;
+                }
+            } else if (records.remaining() >= RECORD_SIZE) {
+                positions[sampleCount++] = position;
+                records.position(position + RECORD_SIZE);
+            } else {
+                // A record cut short by the crash is ignored
+                break;
+            }
+        }
+        positions = Arrays.copyOf(positions, sampleCount);
+    }
+
+    long getMdatOffset() {
+        return mdatOffset;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    byte[] getSps() {
+        return sps;
+    }
+
+    byte[] getPps() {
+        return pps;
+    }
+
+    /**
+     * @return VPS of a H.265 recording, empty for H.264
+     */
+    byte[] getVps() {
+        return vps;
+    }
+
+    /**
+     * @return Audio sample rate, 0 when the recording has no audio track
+     */
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return Parameter sets that replaced those of the header, in the order of the samples
+     */
+    List<ParameterSets> getParameterSetsChanges() {
+        return parameterSetsChanges;
+    }
+
+    int getSampleCount() {
+        return sampleCount;
+    }
+
+    boolean isAudio(int sample) {
+        return (records.get(positions[sample]) & FLAG_AUDIO) != 0;
+    }
+
+    boolean isSync(int sample) {
+        return (records.get(positions[sample]) & FLAG_SYNC) != 0;
+    }
+
+    int getSize(int sample) {
+        return records.getInt(positions[sample] + 1);
+    }
+
+    long getPresentationTimeUs(int sample) {
+        return records.getLong(positions[sample] + 5);
+    }
+
+    /**
+     * Parameter sets of a recording from a sample on
+     */
+    static final class ParameterSets {
+        // First sample that refers to them
+        final int sample;
+        final int width;
+        final int height;
+        final byte[] sps;
+        final byte[] pps;
+        // Empty for H.264
+        final byte[] vps;
+
+        ParameterSets(int sample, int width, int height, byte[] sps, byte[] pps, byte[] vps) {
+            this.sample = sample;
+            this.width = width;
+            this.height = height;
+            this.sps = sps;
+            this.pps = pps;
+            this.vps = vps;
+        }
+    }
+}
@@ -8,6 +8,8 @@ import com.coremedia.iso.IsoFile;
 import com.coremedia.iso.IsoTypeWriter;
 import com.coremedia.iso.boxes.*;
 import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
+import com.coremedia.iso.boxes.h265.HevcConfigurationBox;
+import com.coremedia.iso.boxes.h265.HevcDecoderConfigurationRecord;
 import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
 import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
 import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
@@ -15,13 +17,18 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.AudioSpecificConfig;
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor;
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
 import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
+import com.googlecode.mp4parser.h265.H265NalUnitHeader;
+import com.googlecode.mp4parser.h265.H265SeqParameterSet;
 import com.googlecode.mp4parser.util.Math;
 import com.googlecode.mp4parser.util.Matrix;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
@@ -36,6 +43,10 @@ public class SrsMp4Muxer {
     private static final String TAG = "SrsMp4Muxer";
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
+    // Size, type and the large size or zeros, see InterleaveChunkMdat
+    private static final int MDAT_HEADER_SIZE = 16;
+    // Region of the recording mapped at a time while recovering
+    private static final long RECOVERY_WINDOW = 64 * 1024 * 1024;
 
     private final File mRecFile;
     private SrsRecordHandler mHandler;
@@ -51,6 +62,18 @@ public class SrsMp4Muxer {
     private ByteBuffer h264_pps = null;
     private ArrayList<byte[]> spsList = new ArrayList<>();
     private ArrayList<byte[]> ppsList = new ArrayList<>();
+    // H.265 only
+    private boolean hevc = false;
+    private ArrayList<byte[]> vpsList = new ArrayList<>();
+    // Parameter sets the frames queued last refer to, a new snapshot once they change. Built
+    // by the video thread, the writer only sees the snapshots the frames carry.
+    private volatile SrsParameterSets parameterSets;
+    private boolean parameterSetsChanged;
+    private SrsIntraRefresh intraRefresh = new SrsIntraRefresh(null);
+    // NAL units of the encoder buffers, and of the frames the writer writes
+    private final SrsAnnexbReader nalus = new SrsAnnexbReader();
+    private final SrsAnnexbReader sampleNalus = new SrsAnnexbReader();
+    private final ByteBuffer nalLength = ByteBuffer.allocateDirect(4);
 
     private Thread worker;
     private volatile boolean bRecording = false;
@@ -58,6 +81,10 @@ public class SrsMp4Muxer {
     private volatile boolean needToFindKeyFrame = true;
     private final Object writeLock = new Object();
     private ConcurrentLinkedQueue<SrsEsFrame> frameCache = new ConcurrentLinkedQueue<>();
+    private SrsSeiProbe seiProbe;
+    private volatile SrsKeyFrameSource keyFrameSource;
+    private boolean keyFrameRequested;
+    private final ByteBuffer seiBuffer = ByteBuffer.allocateDirect(SrsSeiProbe.MAX_SIZE);
 
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
 
@@ -87,6 +114,33 @@ public class SrsMp4Muxer {
         mHandler = handler;
     }
 
+    /**
+     * Set the probe that stamps every video sample with a wall clock SEI
+     *
+     * @param probe SEI probe, shared with the FLV muxer so both carry the same sequence
+     */
+    public void setSeiProbe(SrsSeiProbe probe) {
+        seiProbe = probe;
+    }
+
+    /**
+     * Request a key frame from the encoder when recording starts or resumes, instead of dropping
+     * video until its next GOP. With intra refresh, the start of the next refresh cycle is
+     * waited for instead.
+     *
+     * @param source Encoder, null to wait for its next GOP
+     */
+    public void setKeyFrameSource(SrsKeyFrameSource source) {
+        keyFrameSource = source;
+    }
+
+    private void requestKeyFrame() {
+        SrsKeyFrameSource source = keyFrameSource;
+        if (source != null && !intraRefresh.isEnabled()) {
+            source.requestKeyFrame();
+        }
+    }
+
     /**
      * start recording.
      */
@@ -98,14 +152,15 @@ public class SrsMp4Muxer {
         createMovie(mRecFile);
         mHandler.notifyRecordStarted(mRecFile.getPath());
 
+        // Set before the writer runs, frames written right after record() would be dropped
+        bRecording = true;
         worker = new Thread(() -> {
-            bRecording = true;
             while (bRecording) {
 
                 // Keep at least one audio and video frame in cache to ensure monotonically increasing.
                 while (!frameCache.isEmpty()) {
                     SrsEsFrame frame = frameCache.poll();
-                    writeSampleData(frame.bb, frame.bi, frame.is_audio());
+                    writeSampleData(frame);
                 }
 
                 // Waiting for next frame
@@ -126,6 +181,7 @@ public class SrsMp4Muxer {
             worker = null;
         });
         worker.start();
+        requestKeyFrame();
 
         return true;
     }
@@ -147,6 +203,7 @@ public class SrsMp4Muxer {
         if (bRecording) {
             bPaused = false;
             needToFindKeyFrame = true;
+            requestKeyFrame();
             mHandler.notifyRecordResume();
         }
     }
@@ -158,6 +215,7 @@ public class SrsMp4Muxer {
         bRecording = false;
         bPaused = false;
         needToFindKeyFrame = true;
+        keyFrameRequested = false;
         aacSpecConfig = false;
         frameCache.clear();
     }
@@ -169,8 +227,12 @@ public class SrsMp4Muxer {
      * @return The track index for this newly added track.
      */
     public int addTrack(MediaFormat format) {
-        if (format.getString(MediaFormat.KEY_MIME).contentEquals(SrsEncoder.VCODEC)) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_AVC) || mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
             videoFormat = format;
+            hevc = mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC);
+            intraRefresh = new SrsIntraRefresh(format);
+            parameterSetsChanged = true;
             return VIDEO_TRACK;
         } else {
             audioFormat = format;
@@ -229,6 +291,10 @@ public class SrsMp4Muxer {
      * @param bi Frame info
      */
     public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+        if (hevc) {
+            writeHevcSample(bb, bi);
+            return;
+        }
         int nal_unit_type = 0;
 
         while (bb.position() < bi.size) {
@@ -250,6 +316,7 @@ public class SrsMp4Muxer {
                     h264_sps = ByteBuffer.wrap(sps);
                     spsList.clear();
                     spsList.add(sps);
+                    parameterSetsChanged = true;
                 }
                 continue;
             }
@@ -261,6 +328,7 @@ public class SrsMp4Muxer {
                     h264_pps = ByteBuffer.wrap(pps);
                     ppsList.clear();
                     ppsList.add(pps);
+                    parameterSetsChanged = true;
                 }
                 continue;
             }
@@ -268,7 +336,40 @@ public class SrsMp4Muxer {
 
         if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
             bb.rewind();
-            writeFrameByte(VIDEO_TRACK, bb, bi, nal_unit_type == SrsAvcNaluType.IDR);
+            // A sync sample at IDR frames and at the start of refresh cycles
+            writeFrameByte(VIDEO_TRACK, bb, bi, intraRefresh.next(nal_unit_type == SrsAvcNaluType.IDR));
+        }
+    }
+
+    /**
+     * Keep the VPS, SPS and PPS of a H.265 buffer, and write the frame if it has slices. A frame
+     * is a key frame when its slices are IRAP pictures, or when it starts a refresh cycle.
+     */
+    private void writeHevcSample(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+        boolean vcl = false;
+        boolean irap = false;
+        nalus.reset(bb, bi.offset, bi.offset + bi.size);
+        while (nalus.next()) {
+            int type = nalus.hevcType();
+            if (H265NalUnitHeader.isParameterSet(type)) {
+                ArrayList<byte[]> list = type == H265NalUnitHeader.VPS_NUT ? vpsList
+                        : type == H265NalUnitHeader.SPS_NUT ? spsList : ppsList;
+                byte[] nal = nalus.copy();
+                if (list.isEmpty() || !Arrays.equals(list.get(0), nal)) {
+                    Log.i(TAG, String.format("annexb demux %dB, pts=%d, frame=%dB, nalu=%d",
+                            bi.size, bi.presentationTimeUs, nal.length, type));
+                    list.clear();
+                    list.add(nal);
+                    parameterSetsChanged = true;
+                }
+            } else if (type >= 0 && H265NalUnitHeader.isVcl(type)) {
+                vcl = true;
+                irap |= H265NalUnitHeader.isIrap(type);
+            }
+        }
+
+        if (vcl) {
+            writeFrameByte(VIDEO_TRACK, bb, bi, intraRefresh.next(irap));
         }
     }
 
@@ -292,15 +393,37 @@ public class SrsMp4Muxer {
         frame.bi = bi;
         frame.isKeyFrame = isKeyFrame;
         frame.track = track;
+        if (track == VIDEO_TRACK && parameterSetsChanged && !spsList.isEmpty() && !ppsList.isEmpty()
+                && (!hevc || !vpsList.isEmpty())) {
+            SrsParameterSets previous = parameterSets;
+            parameterSets = new SrsParameterSets(previous == null ? 1 : previous.version + 1, videoFormat,
+                    spsList.get(0), ppsList.get(0), hevc ? vpsList.get(0) : null);
+            parameterSetsChanged = false;
+        }
+        frame.parameterSets = parameterSets;
+
+        SrsSeiProbe probe = seiProbe;
+        // The SEI written is a H.264 NAL unit
+        if (track == VIDEO_TRACK && !hevc && probe != null && probe.isEnabled()) {
+            // Only the stamp is queued, the SEI is built by the writer
+            probe.stamp(bi.presentationTimeUs);
+            frame.seiSequence = probe.getSequence();
+            frame.seiWallClock = probe.getWallClock();
+        }
 
         if (bRecording && !bPaused) {
             if (needToFindKeyFrame) {
                 if (frame.isKeyFrame) {
                     needToFindKeyFrame = false;
+                    keyFrameRequested = false;
                     frameCache.add(frame);
                     synchronized (writeLock) {
                         writeLock.notifyAll();
                     }
+                } else if (track == VIDEO_TRACK && !keyFrameRequested) {
+                    // The encoder may not have been running when recording started
+                    keyFrameRequested = true;
+                    requestKeyFrame();
                 }
             } else {
                 frameCache.add(frame);
@@ -335,6 +458,11 @@ public class SrsMp4Muxer {
         public MediaCodec.BufferInfo bi;
         public int track;
         public boolean isKeyFrame;
+        // Parameter sets the frame refers to, null before the first
+        public SrsParameterSets parameterSets;
+        // SEI stamp, sequence -1 when the frame has none
+        public int seiSequence = -1;
+        public long seiWallClock;
 
         public boolean is_video() {
             return track == VIDEO_TRACK;
@@ -345,6 +473,28 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * Video format and parameter sets as they were when a frame was queued, the video thread
+     * replaces rather than changes them
+     */
+    private static final class SrsParameterSets {
+        // Increases with every change
+        final int version;
+        final MediaFormat format;
+        final byte[] sps;
+        final byte[] pps;
+        // H.265 only, null for H.264
+        final byte[] vps;
+
+        SrsParameterSets(int version, MediaFormat format, byte[] sps, byte[] pps, byte[] vps) {
+            this.version = version;
+            this.format = format;
+            this.sps = sps;
+            this.pps = pps;
+            this.vps = vps;
+        }
+    }
+
     /**
      * the raw h.264 stream, in annexb.
      */
@@ -442,6 +592,32 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * @param sps SPS NAL unit
+     * @return the parsed SPS, null when it can not be parsed
+     */
+    private static SeqParameterSet parseSps(ByteBuffer sps) {
+        try {
+            return SeqParameterSet.read(sps);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Invalid SPS, using the configured video format", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param sps H.265 SPS NAL unit
+     * @return the parsed SPS, null when it can not be parsed
+     */
+    private static H265SeqParameterSet parseHevcSps(ByteBuffer sps) {
+        try {
+            return H265SeqParameterSet.read(sps);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Invalid SPS, using the configured video format", e);
+            return null;
+        }
+    }
+
     private class Track {
         private int trackId = 0;
         private ArrayList<Sample> samples = new ArrayList<>();
@@ -459,6 +635,31 @@ public class SrsMp4Muxer {
         private boolean isAudio = false;
         private long lastPresentationTimeUs = 0;
         private boolean first = true;
+        // Video only, the decoding times of frames reordered by B-frames
+        private SrsDtsGenerator dtsGenerator = null;
+        private ArrayList<CompositionTimeToSample.Entry> compositionOffsets = new ArrayList<>();
+        private boolean reordered = false;
+        private int leastCompositionOffset;
+        private int greatestCompositionOffset;
+        // Video only, the parameter sets of the last sample entry and the samples from which
+        // each entry after the first describes them
+        private SrsParameterSets parameterSets;
+        private final ArrayList<Integer> sampleEntryStarts = new ArrayList<>();
+
+        /**
+         * Video track
+         *
+         * @param parameterSets Parameter sets of the first sample
+         */
+        public Track(int id, SrsParameterSets parameterSets) {
+            this(id, parameterSets.format, false);
+            this.parameterSets = parameterSets;
+            dtsGenerator = new SrsDtsGenerator(parameterSets.format);
+            VisualSampleEntry visualSampleEntry = createVisualSampleEntry();
+            width = visualSampleEntry.getWidth();
+            height = visualSampleEntry.getHeight();
+            sampleDescriptionBox.addBox(visualSampleEntry);
+        }
 
         public Track(int id, MediaFormat format, boolean audio) {
             trackId = id;
@@ -466,40 +667,11 @@ public class SrsMp4Muxer {
             if (!isAudio) {
                 sampleDurations.add((long) 3015);
                 duration = 3015;
-                width = format.getInteger(MediaFormat.KEY_WIDTH);
-                height = format.getInteger(MediaFormat.KEY_HEIGHT);
                 timeScale = 90000;
                 syncSamples = new LinkedList<>();
                 handler = "vide";
                 headerBox = new VideoMediaHeaderBox();
                 sampleDescriptionBox = new SampleDescriptionBox();
-                if (format.getString(MediaFormat.KEY_MIME).contentEquals(SrsEncoder.VCODEC)) {
-                    VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
-                    visualSampleEntry.setDataReferenceIndex(1);
-                    visualSampleEntry.setDepth(24);
-                    visualSampleEntry.setFrameCount(1);
-                    visualSampleEntry.setHorizresolution(72);
-                    visualSampleEntry.setVertresolution(72);
-                    visualSampleEntry.setWidth(width);
-                    visualSampleEntry.setHeight(height);
-                    visualSampleEntry.setCompressorname("AVC Coding");
-
-                    AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
-                    avcConfigurationBox.setConfigurationVersion(1);
-                    avcConfigurationBox.setAvcProfileIndication((int) h264_sps.get(1));
-                    avcConfigurationBox.setProfileCompatibility(0);
-                    avcConfigurationBox.setAvcLevelIndication((int) h264_sps.get(3));
-                    avcConfigurationBox.setLengthSizeMinusOne(3);
-                    avcConfigurationBox.setSequenceParameterSets(spsList);
-                    avcConfigurationBox.setPictureParameterSets(ppsList);
-                    avcConfigurationBox.setBitDepthLumaMinus8(-1);
-                    avcConfigurationBox.setBitDepthChromaMinus8(-1);
-                    avcConfigurationBox.setChromaFormat(-1);
-                    avcConfigurationBox.setHasExts(false);
-
-                    visualSampleEntry.addBox(avcConfigurationBox);
-                    sampleDescriptionBox.addBox(visualSampleEntry);
-                }
             } else {
                 sampleDurations.add((long) 1024);
                 duration = 1024;
@@ -545,19 +717,141 @@ public class SrsMp4Muxer {
             }
         }
 
-        public void addSample(long offset, MediaCodec.BufferInfo bi) {
-            long delta = bi.presentationTimeUs - lastPresentationTimeUs;
-            if (delta < 0) {
+        /**
+         * @return Sample entry for the parameter sets of the track, sized as the SPS tells
+         */
+        private VisualSampleEntry createVisualSampleEntry() {
+            MediaFormat format = parameterSets.format;
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            // The encoder may round the configured size up to whole macroblocks, or crop it
+            SeqParameterSet sps = null;
+            H265SeqParameterSet h265Sps = null;
+            int width;
+            int height;
+            if (mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+                h265Sps = parseHevcSps(ByteBuffer.wrap(parameterSets.sps));
+                width = h265Sps != null ? h265Sps.getWidth() : format.getInteger(MediaFormat.KEY_WIDTH);
+                height = h265Sps != null ? h265Sps.getHeight() : format.getInteger(MediaFormat.KEY_HEIGHT);
+                dtsGenerator.setSequenceParameterSet(h265Sps);
+            } else {
+                sps = parseSps(ByteBuffer.wrap(parameterSets.sps));
+                width = sps != null ? sps.getWidth() : format.getInteger(MediaFormat.KEY_WIDTH);
+                height = sps != null ? sps.getHeight() : format.getInteger(MediaFormat.KEY_HEIGHT);
+                dtsGenerator.setSequenceParameterSet(sps);
+            }
+
+            VisualSampleEntry visualSampleEntry = new VisualSampleEntry(
+                    mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC) ? "hvc1" : "avc1");
+            visualSampleEntry.setDataReferenceIndex(1);
+            visualSampleEntry.setDepth(24);
+            visualSampleEntry.setFrameCount(1);
+            visualSampleEntry.setHorizresolution(72);
+            visualSampleEntry.setVertresolution(72);
+            visualSampleEntry.setWidth(width);
+            visualSampleEntry.setHeight(height);
+            if (mime.contentEquals(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
+                // hvc1, the parameter sets are only in the hvcC
+                visualSampleEntry.setCompressorname("HEVC Coding");
+
+                HevcConfigurationBox hevcConfigurationBox = new HevcConfigurationBox();
+                hevcConfigurationBox.setHevcDecoderConfigurationRecord(new HevcDecoderConfigurationRecord(
+                        parameterSets.vps, h265Sps, parameterSets.sps, parameterSets.pps));
+                visualSampleEntry.addBox(hevcConfigurationBox);
+            } else {
+                visualSampleEntry.setCompressorname("AVC Coding");
+
+                AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
+                avcConfigurationBox.setConfigurationVersion(1);
+                avcConfigurationBox.setAvcProfileIndication(parameterSets.sps[1] & 0xff);
+                avcConfigurationBox.setProfileCompatibility(parameterSets.sps[2] & 0xff);
+                avcConfigurationBox.setAvcLevelIndication(parameterSets.sps[3] & 0xff);
+                avcConfigurationBox.setLengthSizeMinusOne(3);
+                avcConfigurationBox.setSequenceParameterSets(new ArrayList<>(Collections.singletonList(parameterSets.sps)));
+                avcConfigurationBox.setPictureParameterSets(new ArrayList<>(Collections.singletonList(parameterSets.pps)));
+                // Chroma format and bit depths are only written for the profiles whose SPS has them,
+                // the parser assumes 4:2:0 at 8 bits for the others
+                if (sps != null && SeqParameterSet.hasChromaFormat(sps.profile_idc)) {
+                    avcConfigurationBox.setBitDepthLumaMinus8(sps.bit_depth_luma_minus8);
+                    avcConfigurationBox.setBitDepthChromaMinus8(sps.bit_depth_chroma_minus8);
+                    avcConfigurationBox.setChromaFormat(sps.chroma_format_idc.getId());
+                    avcConfigurationBox.setHasExts(true);
+                } else {
+                    avcConfigurationBox.setBitDepthLumaMinus8(-1);
+                    avcConfigurationBox.setBitDepthChromaMinus8(-1);
+                    avcConfigurationBox.setChromaFormat(-1);
+                    avcConfigurationBox.setHasExts(false);
+                }
+                visualSampleEntry.addBox(avcConfigurationBox);
+            }
+            return visualSampleEntry;
+        }
+
+        /**
+         * Describe the video samples from the next on with a new sample entry when the
+         * parameter sets changed, as the encoder does when its resolution or frame rate is
+         * switched mid-stream
+         *
+         * @param parameterSets Parameter sets the next sample refers to
+         */
+        public void setParameterSets(SrsParameterSets parameterSets) {
+            if (isAudio || parameterSets == null || parameterSets.version <= this.parameterSets.version) {
                 return;
             }
-            boolean isSyncFrame = !isAudio && (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-            samples.add(new Sample(offset, bi.size));
-            if (syncSamples != null && isSyncFrame) {
+            this.parameterSets = parameterSets;
+            if (samples.isEmpty()) {
+                // Nothing refers to the entry the track was created with yet
+                sampleDescriptionBox.removeBox(sampleDescriptionBox.getBoxes().get(0));
+            } else {
+                sampleEntryStarts.add(samples.size());
+            }
+            sampleDescriptionBox.addBox(createVisualSampleEntry());
+        }
+
+        /**
+         * @return Whether a sample is the first a sample entry after the first describes
+         */
+        public boolean isSampleEntryStart(int sample) {
+            return sampleEntryStarts.contains(sample);
+        }
+
+        /**
+         * @return Index from 1 on of the sample entry describing a sample
+         */
+        public int getSampleEntryIndex(int sample) {
+            int index = 1;
+            for (int start : sampleEntryStarts) {
+                if (start <= sample) index++;
+            }
+            return index;
+        }
+
+        public void addSample(long offset, long size, MediaCodec.BufferInfo bi) {
+            addSample(offset, size, bi, (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        }
+
+        /**
+         * @param isSyncFrame Whether a video sample is listed in stss, an IDR frame or the start
+         *                    of a refresh cycle
+         */
+        public void addSample(long offset, long size, MediaCodec.BufferInfo bi, boolean isSyncFrame) {
+            // Video frames arrive in decode order, with B-frames their presentation times do not
+            // increase. Sample durations follow the decoding times, ctts holds the rest.
+            long decodingTimeUs = dtsGenerator != null ? dtsGenerator.next(bi.presentationTimeUs) : bi.presentationTimeUs;
+            long delta = decodingTimeUs - lastPresentationTimeUs;
+            // The first frame may be decoded before time zero
+            if (delta < 0 && !first) {
+                return;
+            }
+            samples.add(new Sample(offset, size));
+            if (syncSamples != null && !isAudio && isSyncFrame) {
                 syncSamples.add(samples.size());
             }
+            if (dtsGenerator != null) {
+                addCompositionOffset((int) toTimeScale(bi.presentationTimeUs - decodingTimeUs));
+            }
 
-            delta = (delta * timeScale + 500000L) / 1000000L;
-            lastPresentationTimeUs = bi.presentationTimeUs;
+            delta = toTimeScale(delta);
+            lastPresentationTimeUs = decodingTimeUs;
             if (!first) {
                 sampleDurations.add(sampleDurations.size() - 1, delta);
                 duration += delta;
@@ -565,11 +859,65 @@ public class SrsMp4Muxer {
             first = false;
         }
 
+        /**
+         * @param us Time or duration, negative for a frame decoded after it is presented
+         * @return Rounded to the nearest unit of the time scale, the same either side of zero
+         */
+        private long toTimeScale(long us) {
+            long units = ((us < 0 ? -us : us) * timeScale + 500000L) / 1000000L;
+            return us < 0 ? -units : units;
+        }
+
+        private void addCompositionOffset(int offset) {
+            CompositionTimeToSample.Entry last = compositionOffsets.isEmpty() ? null
+                    : compositionOffsets.get(compositionOffsets.size() - 1);
+            if (last != null && last.getOffset() == offset) {
+                last.setCount(last.getCount() + 1);
+            } else {
+                compositionOffsets.add(new CompositionTimeToSample.Entry(1, offset));
+            }
+            reordered |= offset != 0;
+            if (offset < leastCompositionOffset) {
+                leastCompositionOffset = offset;
+            }
+            if (offset > greatestCompositionOffset) {
+                greatestCompositionOffset = offset;
+            }
+        }
+
         public void clearSample() {
             first = true;
             samples.clear();
             syncSamples.clear();
             sampleDurations.clear();
+            compositionOffsets.clear();
+            reordered = false;
+            leastCompositionOffset = 0;
+            greatestCompositionOffset = 0;
+            sampleEntryStarts.clear();
+            if (dtsGenerator != null) {
+                dtsGenerator.reset();
+            }
+        }
+
+        /**
+         * @return run length encoded presentation minus decoding times, null when every sample
+         * is presented as it is decoded
+         */
+        public List<CompositionTimeToSample.Entry> getCompositionOffsets() {
+            return reordered ? compositionOffsets : null;
+        }
+
+        /**
+         * @return Smallest composition offset, negative when a frame is decoded after its
+         * presentation time
+         */
+        public int getLeastCompositionOffset() {
+            return leastCompositionOffset;
+        }
+
+        public int getGreatestCompositionOffset() {
+            return greatestCompositionOffset;
         }
 
         public ArrayList<Sample> getSamples() {
@@ -648,21 +996,26 @@ public class SrsMp4Muxer {
             return tracks;
         }
 
-        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi) {
+        public void addSample(int trackIndex, long offset, long size, MediaCodec.BufferInfo bi) {
+            Track track = tracks.get(trackIndex);
+            track.addSample(offset, size, bi);
+        }
+
+        public void addSample(int trackIndex, long offset, long size, MediaCodec.BufferInfo bi, boolean isSyncFrame) {
             Track track = tracks.get(trackIndex);
-            track.addSample(offset, bi);
+            track.addSample(offset, size, bi, isSyncFrame);
         }
 
         public void addTrack(MediaFormat format, boolean isAudio) {
-            if (format != null) {
-                if (isAudio) {
-                    tracks.put(AUDIO_TRACK, new Track(tracks.size(), format, true));
-                } else {
-                    tracks.put(VIDEO_TRACK, new Track(tracks.size(), format, false));
-                }
+            if (format != null && isAudio) {
+                tracks.put(AUDIO_TRACK, new Track(tracks.size(), format, true));
             }
         }
 
+        public void addVideoTrack(SrsParameterSets parameterSets) {
+            tracks.put(VIDEO_TRACK, new Track(tracks.size(), parameterSets));
+        }
+
         public void removeTrack(int trackIndex) {
             tracks.remove(trackIndex);
         }
@@ -706,7 +1059,7 @@ public class SrsMp4Muxer {
             return (contentSize + header.limit()) < 4294967296L;
         }
 
-        public void getBox(WritableByteChannel writableByteChannel) {
+        public void getBox(WritableByteChannel writableByteChannel) throws IOException {
             header.rewind();
             long size = getSize();
             if (isSmallBox(size)) {
@@ -722,11 +1075,7 @@ public class SrsMp4Muxer {
             }
             header.rewind();
 
-            try {
-                writableByteChannel.write(header);
-            } catch (IOException e) {
-                mHandler.notifyRecordIOException(e);
-            }
+            writableByteChannel.write(header);
         }
 
         @Override
@@ -742,6 +1091,9 @@ public class SrsMp4Muxer {
     private volatile long mdatOffset = 0;
     private volatile long flushBytes = 0;
     private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
+    private SrsMp4Index index = null;
+    // Version of the parameter sets the index has last
+    private int indexedParameterSetsVersion;
 
     private void createMovie(File outputFile) {
         try {
@@ -757,22 +1109,246 @@ public class SrsMp4Muxer {
             e.printStackTrace();
             mHandler.notifyRecordIOException(e);
         }
+
+        try {
+            index = SrsMp4Index.create(outputFile);
+        } catch (IOException e) {
+            Log.w(TAG, "No recording index, an interrupted recording can not be recovered", e);
+        }
+    }
+
+    private void indexHeader(SrsParameterSets parameterSets) {
+        if (index == null) return;
+        indexedParameterSetsVersion = parameterSets.version;
+        try {
+            MediaFormat videoFormat = parameterSets.format;
+            index.writeHeader(mdatOffset, videoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    videoFormat.getInteger(MediaFormat.KEY_HEIGHT), parameterSets.sps, parameterSets.pps,
+                    parameterSets.vps == null ? new byte[0] : parameterSets.vps,
+                    audioFormat == null ? 0 : audioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    audioFormat == null ? 0 : audioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        } catch (IOException e) {
+            indexFailed(e);
+        }
     }
 
-    private void writeSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, boolean isAudio) {
+    private void indexParameterSets(SrsParameterSets parameterSets) {
+        if (index == null || parameterSets.version <= indexedParameterSetsVersion) return;
+        indexedParameterSetsVersion = parameterSets.version;
+        try {
+            MediaFormat videoFormat = parameterSets.format;
+            index.appendParameterSets(videoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    videoFormat.getInteger(MediaFormat.KEY_HEIGHT), parameterSets.sps, parameterSets.pps,
+                    parameterSets.vps == null ? new byte[0] : parameterSets.vps);
+        } catch (IOException e) {
+            indexFailed(e);
+        }
+    }
+
+    private void indexSample(boolean isAudio, boolean isKeyFrame, int size, long presentationTimeUs) {
+        if (index == null) return;
+        try {
+            index.append(isAudio, isKeyFrame, size, presentationTimeUs);
+        } catch (IOException e) {
+            indexFailed(e);
+        }
+    }
+
+    private void indexFailed(IOException e) {
+        // The recording itself goes on
+        Log.w(TAG, "Recording index failed, an interrupted recording can not be recovered", e);
+        index.delete();
+        index = null;
+    }
+
+    /**
+     * Rebuild the moov of a recording that was interrupted before {@link #stop()} finished it,
+     * like when the app was killed. The sidecar index written while recording gives the codec
+     * configuration, with the parameter sets of every rendition switched to, and the track, size
+     * and time of every sample. The mdat is memory mapped
+     * and every video sample is checked to be a run of length prefixed NAL units. Recovery
+     * stops at the first sample the file is too short for, the file is truncated after the
+     * last good one and the moov appended. Samples written after the last index flush are
+     * lost, except video samples of recordings without audio, which are found by their length
+     * prefixes.
+     *
+     * @param file Interrupted recording, with its sidecar index
+     * @return Number of samples recovered
+     * @throws java.io.FileNotFoundException There is no index, the recording was finished or
+     *                                       never got its first sample
+     * @throws IOException                   The recording can not be read or written
+     */
+    public static int recover(File file) throws IOException {
+        SrsMp4Index index = SrsMp4Index.load(file);
+        int samples = new SrsMp4Muxer(file, null).rebuild(index);
+        index.delete();
+        return samples;
+    }
+
+    private int rebuild(SrsMp4Index index) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mRecFile, "rw")) {
+            fc = raf.getChannel();
+            long length = fc.size();
+            mdatOffset = index.getMdatOffset();
+            MappedReader reader = new MappedReader(fc, length);
+            if (mdatOffset + MDAT_HEADER_SIZE > length || reader.getInt(mdatOffset + 4) != 0x6d646174) {
+                throw new IOException("No mdat at " + mdatOffset + " in " + mRecFile);
+            }
+
+            hevc = index.getVps().length > 0;
+            videoFormat = MediaFormat.createVideoFormat(hevc ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC,
+                    index.getWidth(), index.getHeight());
+            if (index.getSampleRate() > 0) {
+                audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                        index.getSampleRate(), index.getChannelCount());
+                mp4Movie.addTrack(audioFormat, true);
+            }
+            mp4Movie.addVideoTrack(new SrsParameterSets(1, videoFormat, index.getSps(), index.getPps(),
+                    hevc ? index.getVps() : null));
+            Track videoTrack = mp4Movie.getTracks().get(VIDEO_TRACK);
+            List<SrsMp4Index.ParameterSets> changes = index.getParameterSetsChanges();
+            int change = 0;
+
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            long offset = mdatOffset + MDAT_HEADER_SIZE;
+            long lastVideoUs = -1;
+            // Until two indexed video samples give the frame interval
+            long frameUs = 1000000 / 30;
+            int samples = 0;
+            int count = index.getSampleCount();
+            for (int i = 0; i < count; i++) {
+                while (change < changes.size() && changes.get(change).sample == i) {
+                    SrsMp4Index.ParameterSets next = changes.get(change++);
+                    videoFormat = MediaFormat.createVideoFormat(videoFormat.getString(MediaFormat.KEY_MIME),
+                            next.width, next.height);
+                    videoTrack.setParameterSets(new SrsParameterSets(change + 1, videoFormat, next.sps, next.pps,
+                            hevc ? next.vps : null));
+                }
+                boolean isAudio = index.isAudio(i);
+                int size = index.getSize(i);
+                if (offset + size > length || (!isAudio && !isNalUnits(reader, offset, size))) {
+                    break;
+                }
+                long pts = index.getPresentationTimeUs(i);
+                if (!isAudio) {
+                    if (lastVideoUs >= 0 && pts > lastVideoUs) frameUs = pts - lastVideoUs;
+                    lastVideoUs = pts;
+                }
+                bi.set(0, size, pts, index.isSync(i) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                mp4Movie.addSample(isAudio ? AUDIO_TRACK : VIDEO_TRACK, offset, size, bi);
+                offset += size;
+                samples++;
+            }
+
+            if (audioFormat == null) {
+                // Video only, a sample ends with its slice
+                long sampleStart = offset;
+                long position = offset;
+                while (position + 5 <= length) {
+                    long nalSize = reader.getInt(position) & 0xffffffffL;
+                    if (nalSize == 0 || position + 4 + nalSize > length) break;
+                    int nalType = hevc ? (reader.get(position + 4) & 0x7e) >> 1 : reader.get(position + 4) & 0x1f;
+                    position += 4 + nalSize;
+                    boolean slice = hevc ? H265NalUnitHeader.isVcl(nalType)
+                            : nalType == SrsAvcNaluType.IDR || nalType == SrsAvcNaluType.NonIDR;
+                    boolean key = hevc ? H265NalUnitHeader.isIrap(nalType) : nalType == SrsAvcNaluType.IDR;
+                    if (slice) {
+                        lastVideoUs += frameUs;
+                        bi.set(0, (int) (position - sampleStart), lastVideoUs,
+                                key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                        mp4Movie.addSample(VIDEO_TRACK, sampleStart, position - sampleStart, bi);
+                        sampleStart = offset = position;
+                        samples++;
+                    }
+                }
+            }
+            if (offset < length) {
+                Log.w(TAG, String.format("recover: dropped %dB after the last complete sample", length - offset));
+            }
+
+            fc.truncate(offset);
+            fc.position(offset);
+            recFileSize = offset;
+            mdat = new InterleaveChunkMdat();
+            mdat.first = false;
+            writeMovie();
+            fc.force(false);
+            Log.i(TAG, String.format("recover: %d samples in %s", samples, mRecFile));
+            return samples;
+        } finally {
+            fc = null;
+        }
+    }
+
+    /**
+     * @return Whether the bytes are length prefixed NAL units, as written by writeSampleData
+     */
+    private static boolean isNalUnits(MappedReader reader, long offset, int size) throws IOException {
+        long end = offset + size;
+        long position = offset;
+        while (position + 5 <= end) {
+            long nalSize = reader.getInt(position) & 0xffffffffL;
+            // forbidden_zero_bit
+            if (nalSize == 0 || (reader.get(position + 4) & 0x80) != 0) return false;
+            position += 4 + nalSize;
+        }
+        return position == end;
+    }
+
+    /**
+     * Reads a file of any size through mapped windows of {@link #RECOVERY_WINDOW} bytes
+     */
+    private static final class MappedReader {
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedReader(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        int getInt(long position) throws IOException {
+            return map(position, 4).getInt((int) (position - windowStart));
+        }
+
+        byte get(long position) throws IOException {
+            return map(position, 1).get((int) (position - windowStart));
+        }
+
+        private MappedByteBuffer map(long position, int bytes) throws IOException {
+            if (window == null || position < windowStart || position + bytes > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        java.lang.Math.min(RECOVERY_WINDOW, length - position));
+            }
+            return window;
+        }
+    }
+
+    private void writeSampleData(SrsEsFrame frame) {
+        ByteBuffer byteBuf = frame.bb;
+        MediaCodec.BufferInfo bi = frame.bi;
+        boolean isAudio = frame.is_audio();
         int trackIndex = isAudio ? AUDIO_TRACK : VIDEO_TRACK;
         if (!mp4Movie.getTracks().containsKey(AUDIO_TRACK)) {
             mp4Movie.addTrack(audioFormat, true);
         }
 
         if (!mp4Movie.getTracks().containsKey(VIDEO_TRACK)) {
-            if (!spsList.isEmpty() && !ppsList.isEmpty()) {
-                mp4Movie.addTrack(videoFormat, false);
+            if (frame.parameterSets != null) {
+                mp4Movie.addVideoTrack(frame.parameterSets);
             } else {
                 return;
             }
         }
 
+        Track videoTrack = mp4Movie.getTracks().get(VIDEO_TRACK);
+        if (!isAudio) {
+            videoTrack.setParameterSets(frame.parameterSets);
+        }
+
         try {
             if (mdat.first) {
                 mdat.setContentSize(0);
@@ -780,22 +1356,42 @@ public class SrsMp4Muxer {
                 mdatOffset = recFileSize;
                 recFileSize += mdat.getHeaderSize();
                 mdat.first = false;
+                indexHeader(videoTrack.parameterSets);
+            }
+            if (!isAudio) {
+                indexParameterSets(videoTrack.parameterSets);
+            }
+
+            int seiSize = 0;
+            SrsSeiProbe probe = seiProbe;
+            if (frame.seiSequence >= 0 && probe != null) {
+                seiBuffer.clear();
+                seiSize = probe.write(seiBuffer, frame.seiWallClock, frame.seiSequence);
+                seiBuffer.flip();
+            }
+
+            if (!isAudio && hevc) {
+                writeHevcSampleData(byteBuf, bi, frame.isKeyFrame);
+                return;
             }
 
-            mp4Movie.addSample(trackIndex, recFileSize, bi);
+            mp4Movie.addSample(trackIndex, recFileSize, bi.size + seiSize, bi, frame.isKeyFrame);
+            if (seiSize > 0) {
+                recFileSize += fc.write(seiBuffer);
+            }
             byteBuf.position(bi.offset + (isAudio ? 0 : 4));
             byteBuf.limit(bi.offset + bi.size);
             if (!isAudio) {
-                ByteBuffer size = ByteBuffer.allocateDirect(4);
-                size.position(0);
-                size.putInt(bi.size - 4);
-                size.position(0);
-                recFileSize += fc.write(size);
+                nalLength.clear();
+                nalLength.putInt(bi.size - 4);
+                nalLength.flip();
+                recFileSize += fc.write(nalLength);
             }
             int writeBytes = fc.write(byteBuf);
 
             recFileSize += writeBytes;
             flushBytes += writeBytes;
+            indexSample(isAudio, !isAudio && frame.isKeyFrame, bi.size + seiSize, bi.presentationTimeUs);
             if (flushBytes > 64 * 1024) {
                 fos.flush();
                 flushBytes = 0;
@@ -806,38 +1402,60 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * Write the NAL units of a H.265 frame length prefixed, all but the parameter sets and
+     * access unit delimiters
+     */
+    private void writeHevcSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, boolean isKeyFrame) throws IOException {
+        int size = 0;
+        byteBuf.limit(bi.offset + bi.size);
+        sampleNalus.reset(byteBuf, bi.offset, bi.offset + bi.size);
+        while (sampleNalus.next()) {
+            if (isHevcSampleNalu(sampleNalus.hevcType())) size += 4 + sampleNalus.size();
+        }
+
+        mp4Movie.addSample(VIDEO_TRACK, recFileSize, size, bi, isKeyFrame);
+        sampleNalus.reset(byteBuf, bi.offset, bi.offset + bi.size);
+        while (sampleNalus.next()) {
+            if (!isHevcSampleNalu(sampleNalus.hevcType())) continue;
+            nalLength.clear();
+            nalLength.putInt(sampleNalus.size());
+            nalLength.flip();
+            recFileSize += fc.write(nalLength);
+            byteBuf.limit(sampleNalus.start() + sampleNalus.size());
+            byteBuf.position(sampleNalus.start());
+            int writeBytes = fc.write(byteBuf);
+            byteBuf.limit(bi.offset + bi.size);
+            recFileSize += writeBytes;
+            flushBytes += 4 + writeBytes;
+        }
+
+        indexSample(false, isKeyFrame, size, bi.presentationTimeUs);
+        if (flushBytes > 64 * 1024) {
+            fos.flush();
+            flushBytes = 0;
+        }
+    }
+
+    private static boolean isHevcSampleNalu(int type) {
+        return type >= 0 && !H265NalUnitHeader.isParameterSet(type) && type != H265NalUnitHeader.AUD_NUT;
+    }
+
     private void finishMovie() {
         try {
             if (flushBytes > 0) {
                 fos.flush();
                 flushBytes = 0;
             }
-            if (mdat.getSize() != 0) {
-                // flush cached mdat box
-                long oldPosition = fc.position();
-                fc.position(mdatOffset);
-                mdat.setContentSize(recFileSize - mdat.getHeaderSize() - mdatOffset);
-                mdat.getBox(fc);
-                fc.position(oldPosition);
-                mdat.setContentSize(0);
-                fos.flush();
-            }
-
-            for (Track track : mp4Movie.getTracks().values()) {
-                List<Sample> samples = track.getSamples();
-                long[] sizes = new long[samples.size()];
-                for (int i = 0; i < sizes.length; i++) {
-                    sizes[i] = samples.get(i).getSize();
-                }
-                track2SampleSizes.put(track, sizes);
-            }
-
-            Box moov = createMovieBox(mp4Movie);
-            moov.getBox(fc);
+            writeMovie();
             fos.flush();
 
             fc.close();
             fos.close();
+            if (index != null) {
+                index.delete();
+                index = null;
+            }
             mp4Movie.getTracks().clear();
             track2SampleSizes.clear();
             recFileSize = 0;
@@ -847,6 +1465,33 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * Write the size of the mdat and append the moov at the current position
+     */
+    private void writeMovie() throws IOException {
+        if (mdat.getSize() != 0) {
+            // flush cached mdat box
+            long oldPosition = fc.position();
+            fc.position(mdatOffset);
+            mdat.setContentSize(recFileSize - mdat.getHeaderSize() - mdatOffset);
+            mdat.getBox(fc);
+            fc.position(oldPosition);
+            mdat.setContentSize(0);
+        }
+
+        for (Track track : mp4Movie.getTracks().values()) {
+            List<Sample> samples = track.getSamples();
+            long[] sizes = new long[samples.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = samples.get(i).getSize();
+            }
+            track2SampleSizes.put(track, sizes);
+        }
+
+        Box moov = createMovieBox(mp4Movie);
+        moov.getBox(fc);
+    }
+
     private FileTypeBox createFileTypeBox() {
         LinkedList<String> minorBrands = new LinkedList<>();
         minorBrands.add("isom");
@@ -955,6 +1600,7 @@ public class SrsMp4Muxer {
         SampleTableBox stbl = new SampleTableBox();
         createStsd(track, stbl);
         createStts(track, stbl);
+        createCtts(track, stbl);
         createStss(track, stbl);
         createStsc(track, stbl);
         createStsz(track, stbl);
@@ -983,6 +1629,51 @@ public class SrsMp4Muxer {
         stbl.addBox(stts);
     }
 
+    private void createCtts(Track track, SampleTableBox stbl) {
+        List<CompositionTimeToSample.Entry> entries = track.getCompositionOffsets();
+        if (entries == null) {
+            return;
+        }
+        CompositionTimeToSample ctts = new CompositionTimeToSample();
+        ctts.setEntries(entries);
+        stbl.addBox(ctts);
+        // A frame reordered deeper than the decoding times assumed is decoded after its
+        // presentation time. Version 0 offsets are unsigned, version 1 ones signed with cslg.
+        if (track.getLeastCompositionOffset() < 0) {
+            ctts.setVersion(1);
+            stbl.addBox(createCslg(track, entries));
+        }
+    }
+
+    private CompositionShiftLeastGreatestAtom createCslg(Track track, List<CompositionTimeToSample.Entry> entries) {
+        // Composition times of the samples, from the decoding times the durations add up to
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        long decodingTime = 0;
+        Iterator<Long> durations = track.getSampleDurations().iterator();
+        for (CompositionTimeToSample.Entry entry : entries) {
+            for (int i = 0; i < entry.getCount() && durations.hasNext(); i++) {
+                long duration = durations.next();
+                long compositionTime = decodingTime + entry.getOffset();
+                if (compositionTime < start) {
+                    start = compositionTime;
+                }
+                if (compositionTime + duration > end) {
+                    end = compositionTime + duration;
+                }
+                decodingTime += duration;
+            }
+        }
+
+        CompositionShiftLeastGreatestAtom cslg = new CompositionShiftLeastGreatestAtom();
+        cslg.setCompositionOffsetToDisplayOffsetShift(-track.getLeastCompositionOffset());
+        cslg.setLeastDisplayOffset(track.getLeastCompositionOffset());
+        cslg.setGreatestDisplayOffset(track.getGreatestCompositionOffset());
+        cslg.setDisplayStartTime((int) start);
+        cslg.setDisplayEndTime((int) end);
+        return cslg;
+    }
+
     private void createStss(Track track, SampleTableBox stbl) {
         long[] syncSamples = track.getSyncSamples();
         if (syncSamples != null && syncSamples.length > 0) {
@@ -1001,6 +1692,7 @@ public class SrsMp4Muxer {
         int lastSampleCount = 0;
 
         int previousWritedChunkCount = -1;
+        int previousSampleEntryIndex = -1;
 
         int samplesCount = track.getSamples().size();
         for (int a = 0; a < samplesCount; a++) {
@@ -1014,16 +1706,19 @@ public class SrsMp4Muxer {
             boolean write = false;
             if (a != samplesCount - 1) {
                 Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
+                // A chunk is contiguous and described by a single sample entry
+                if (lastOffset != nextSample.getOffset() || track.isSampleEntryStart(a + 1)) {
                     write = true;
                 }
             } else {
                 write = true;
             }
             if (write) {
-                if (previousWritedChunkCount != lastSampleCount) {
-                    stsc.getEntries().add(new SampleToChunkBox.Entry(lastChunkNumber, lastSampleCount, 1));
+                int sampleEntryIndex = track.getSampleEntryIndex(a);
+                if (previousWritedChunkCount != lastSampleCount || previousSampleEntryIndex != sampleEntryIndex) {
+                    stsc.getEntries().add(new SampleToChunkBox.Entry(lastChunkNumber, lastSampleCount, sampleEntryIndex));
                     previousWritedChunkCount = lastSampleCount;
+                    previousSampleEntryIndex = sampleEntryIndex;
                 }
                 lastSampleCount = 0;
                 lastChunkNumber++;
@@ -1041,9 +1736,11 @@ public class SrsMp4Muxer {
     private void createStco(Track track, SampleTableBox stbl) {
         ArrayList<Long> chunksOffsets = new ArrayList<>();
         long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
+        ArrayList<Sample> samples = track.getSamples();
+        for (int a = 0; a < samples.size(); a++) {
+            Sample sample = samples.get(a);
             long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
+            if (lastOffset != -1 && (lastOffset != offset || track.isSampleEntryStart(a))) {
                 lastOffset = -1;
             }
             if (lastOffset == -1) {
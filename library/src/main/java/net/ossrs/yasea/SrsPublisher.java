@@ -28,9 +28,15 @@ public class SrsPublisher {
     private SrsFlvMuxer mFlvMuxer;
     private SrsMp4Muxer mMp4Muxer;
     private SrsEncoder mEncoder;
+    private SrsBandwidthProbe mBandwidthProbe;
+    private volatile boolean mPublishing;
+    private final SrsLatencyTracer mTracer = new SrsLatencyTracer();
+    private final SrsSeiProbe mSeiProbe = new SrsSeiProbe();
 
     public SrsPublisher(SrsCameraView view) {
+        mSeiProbe.setLatencyTracer(mTracer);
         mCameraView = view;
+        mCameraView.setLatencyTracer(mTracer);
         mCameraView.setPreviewCallback(new SrsCameraView.PreviewCallback() {
             @Override
             public void onGetRgbaFrame(byte[] data, int width, int height) {
@@ -157,22 +163,58 @@ public class SrsPublisher {
         mEncoder.stop();
     }
 
+    public void preparePublish(String rtmpUrl) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setDestination(rtmpUrl, null, null);
+            mFlvMuxer.prepare();
+        }
+    }
+
     public void startPublish(String rtmpUrl) {
         if (mFlvMuxer != null) {
+            mPublishing = true;
             mFlvMuxer.setDestination(rtmpUrl, null, null);
             mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
-            mFlvMuxer.start();
-            startEncode();
+            if (mBandwidthProbe != null) {
+                // The encoder starts once the probe picked its rendition
+                mFlvMuxer.setBandwidthProbe(mBandwidthProbe, new SrsBandwidthProbe.Listener() {
+                    @Override
+                    public void onBandwidthProbed(SrsRendition rendition, double throughput) {
+                        if (!mPublishing) return;
+                        if (rendition != null) {
+                            mEncoder.setRendition(rendition);
+                            mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
+                        }
+                        startEncode();
+                    }
+                });
+                mFlvMuxer.start();
+            } else {
+                mFlvMuxer.setBandwidthProbe(null, null);
+                mFlvMuxer.start();
+                startEncode();
+            }
         }
     }
 
     public void stopPublish() {
         if (mFlvMuxer != null) {
+            mPublishing = false;
             stopEncode();
             mFlvMuxer.stop();
         }
     }
 
+    /**
+     * Release the hardware encoders kept for the next session, call it when the activity pauses
+     * or goes away. The encoder of a session still publishing is not affected. They are released
+     * after a while without a session anyway. Calling it on every pause gives up the warm start
+     * of a session published after returning from the background.
+     */
+    public void releaseEncoders() {
+        SrsCodecPool.clear();
+    }
+
     public boolean startRecord(String recPath) {
         return mMp4Muxer != null && mMp4Muxer.record();
     }
@@ -249,6 +291,20 @@ public class SrsPublisher {
         mEncoder.setVideoSmoothMode();
     }
 
+    public void setVideoLowLatencyMode(boolean enabled) {
+        mEncoder.setVideoLowLatencyMode(enabled);
+    }
+
+    /**
+     * Step to another rendition while publishing, e.g. down under sustained congestion
+     *
+     * @param rendition Rendition, in the current orientation
+     * @return False when the encoder can not switch, with the soft encoder or while not encoding
+     */
+    public boolean switchRendition(SrsRendition rendition) {
+        return mEncoder.switchRendition(rendition);
+    }
+
     public void setSendVideoOnly(boolean flag) {
         if (mic != null) {
             if (flag) {
@@ -283,19 +339,62 @@ public class SrsPublisher {
         mCameraView.startCamera();
     }
 
+    /**
+     * Probe the uplink when publishing starts and start with the rendition of the ladder it
+     * selects, instead of the configured resolution and bitrate
+     *
+     * @param probe Bandwidth probe, null to go live right away
+     */
+    public void setBandwidthProbe(SrsBandwidthProbe probe) {
+        mBandwidthProbe = probe;
+    }
+
+    public SrsBandwidthProbe getBandwidthProbe() {
+        return mBandwidthProbe;
+    }
+
+    public SrsStats getStats() {
+        return mFlvMuxer == null ? null : mFlvMuxer.getStats();
+    }
+
+    public void setStreamingNotifications(boolean enabled) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setStreamingNotifications(enabled);
+        }
+    }
+
+    public SrsLatencyTracer getLatencyTracer() {
+        return mTracer;
+    }
+
+    public void setSeiEnabled(boolean enabled) {
+        mSeiProbe.setEnabled(enabled);
+    }
+
+    public SrsSeiProbe getSeiProbe() {
+        return mSeiProbe;
+    }
+
     public void setRtmpHandler(RtmpHandler handler) {
         mFlvMuxer = new SrsFlvMuxer(handler);
+        mFlvMuxer.setLatencyTracer(mTracer);
+        mFlvMuxer.setSeiProbe(mSeiProbe);
         if (mEncoder != null) {
+            mFlvMuxer.setKeyFrameSource(mEncoder);
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
     }
 
     public void setEncodeHandler(SrsEncodeHandler handler) {
         mEncoder = new SrsEncoder(handler);
+        mEncoder.setLatencyTracer(mTracer);
         if (mFlvMuxer != null) {
+            mFlvMuxer.setKeyFrameSource(mEncoder);
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
         if (mMp4Muxer != null) {
+            mMp4Muxer.setSeiProbe(mSeiProbe);
+            mMp4Muxer.setKeyFrameSource(mEncoder);
             mEncoder.setMp4Muxer(mMp4Muxer);
         }
     }
@@ -0,0 +1,51 @@
+package net.ossrs.yasea;
+
+/**
+ * Output resolution, frame rate and video bitrate the encoder can be configured with.
+ * <p>
+ * The resolution is given in landscape, the encoder swaps width and height in portrait.
+ */
+public final class SrsRendition {
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final int bitrate;
+
+    /**
+     * @param width   Landscape width
+     * @param height  Landscape height
+     * @param fps     Frames per second, at most {@link SrsEncoder#VFPS}
+     * @param bitrate Video bitrate in bits per second
+     */
+    public SrsRendition(int width, int height, int fps, int bitrate) {
+        this.width = Math.max(width, height);
+        this.height = Math.min(width, height);
+        this.fps = fps;
+        this.bitrate = bitrate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    /**
+     * @return Video bitrate in bits per second
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "@" + fps + " " + bitrate / 1024 + "kbps";
+    }
+}
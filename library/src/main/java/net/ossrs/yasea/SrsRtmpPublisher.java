@@ -12,6 +12,7 @@ import com.github.faucamp.simplertmp.RtmpHandler;
 import com.github.faucamp.simplertmp.amf.AmfMap;
 import com.github.faucamp.simplertmp.io.RtmpConnection;
 import com.github.faucamp.simplertmp.packets.Data;
+import com.googlecode.mp4parser.h264.model.SeqParameterSet;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -26,11 +27,21 @@ public class SrsRtmpPublisher extends RtmpConnection {
      */
     public final static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+    /**
+     * Video codec id of H.265/hevc in the metadata, the FourCC 'hvc1'
+     */
+    private final static int VIDEO_FOURCC_HEVC = 0x68766331;
+
     /**
      * Video media format
      */
     private MediaFormat videoFormat;
 
+    /**
+     * Sequence parameter set of the video, once the encoder emitted it
+     */
+    private SeqParameterSet sps;
+
     /**
      * Audio media format
      */
@@ -59,13 +70,17 @@ public class SrsRtmpPublisher extends RtmpConnection {
 
         // Video info
         if (videoFormat != null) {
-            ecmaArray.setProperty("videocodecid", 7);
-            ecmaArray.setProperty("width", videoFormat.getInteger(MediaFormat.KEY_WIDTH));
-            ecmaArray.setProperty("height", videoFormat.getInteger(MediaFormat.KEY_HEIGHT));
+            boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(videoFormat.getString(MediaFormat.KEY_MIME));
+            // Enhanced RTMP identifies the codec by its FourCC
+            ecmaArray.setProperty("videocodecid", hevc ? VIDEO_FOURCC_HEVC : 7);
+            ecmaArray.setProperty("width", getVideoWidth());
+            ecmaArray.setProperty("height", getVideoHeight());
             ecmaArray.setProperty("videodatarate", videoFormat.getInteger(MediaFormat.KEY_BIT_RATE) / 1024);
-            ecmaArray.setProperty("framerate", videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE));
-            ecmaArray.setProperty("avcprofile", 66);
-            ecmaArray.setProperty("avclevel", 31);
+            ecmaArray.setProperty("framerate", getVideoFrameRate());
+            if (!hevc) {
+                ecmaArray.setProperty("avcprofile", getAvcProfile());
+                ecmaArray.setProperty("avclevel", getAvcLevel());
+            }
 
             ecmaArray.setProperty("audioonly", false);
         } else {
@@ -99,6 +114,52 @@ public class SrsRtmpPublisher extends RtmpConnection {
      */
     public void setVideoFormat(MediaFormat format) {
         videoFormat = format;
+        updateTargetBitrate();
+    }
+
+    /**
+     * Describe the video with the SPS the encoder emitted, rather than the format it was
+     * configured with
+     *
+     * @param sps Sequence parameter set
+     * @return Whether the metadata changed and should be sent again
+     */
+    public boolean setSequenceParameterSet(SeqParameterSet sps) {
+        if (videoFormat == null) {
+            this.sps = sps;
+            return false;
+        }
+        int width = getVideoWidth();
+        int height = getVideoHeight();
+        double frameRate = getVideoFrameRate();
+        int profile = getAvcProfile();
+        int level = getAvcLevel();
+        this.sps = sps;
+        return width != getVideoWidth() || height != getVideoHeight() || frameRate != getVideoFrameRate()
+                || profile != getAvcProfile() || level != getAvcLevel();
+    }
+
+    private int getVideoWidth() {
+        return sps != null ? sps.getWidth() : videoFormat.getInteger(MediaFormat.KEY_WIDTH);
+    }
+
+    private int getVideoHeight() {
+        return sps != null ? sps.getHeight() : videoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    private double getVideoFrameRate() {
+        // Encoders do not always signal timing in the VUI
+        if (sps != null && sps.getFrameRate() > 0) return sps.getFrameRate();
+        return videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+    }
+
+    private int getAvcProfile() {
+        // Baseline until the encoder tells
+        return sps != null ? sps.profile_idc : 66;
+    }
+
+    private int getAvcLevel() {
+        return sps != null ? sps.level_idc : 31;
     }
 
     /**
@@ -108,5 +169,20 @@ public class SrsRtmpPublisher extends RtmpConnection {
      */
     public void setAudioFormat(MediaFormat format) {
         audioFormat = format;
+        updateTargetBitrate();
+    }
+
+    /**
+     * Size the socket send buffer for the combined bitrate of both tracks
+     */
+    private void updateTargetBitrate() {
+        int bitrate = 0;
+        if (videoFormat != null && videoFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            bitrate += videoFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        if (audioFormat != null && audioFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            bitrate += audioFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        setTargetBitrate(bitrate);
     }
 }
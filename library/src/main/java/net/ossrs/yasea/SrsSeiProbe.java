@@ -0,0 +1,146 @@
+package net.ossrs.yasea;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stamps video access units with an H.264 user_data_unregistered SEI carrying the capture
+ * wall clock and a frame sequence number, so viewers can measure glass-to-glass latency and
+ * frame loss.
+ * <p>
+ * The SEI is built into a small reusable buffer and written in front of the slice when the
+ * muxer assembles the tag or sample, the frame data itself is never copied for it.
+ * <p>
+ * Payload, all big endian:
+ * <pre>
+ *   uuid           16 bytes  {@link #UUID}
+ *   wall clock      8 bytes  capture time in milliseconds since the epoch
+ *   sequence        4 bytes  frame number, starting at 0
+ * </pre>
+ */
+public final class SrsSeiProbe {
+
+    /**
+     * Identifies our SEI among other user_data_unregistered messages
+     */
+    public static final byte[] UUID = {
+            (byte) 0x6c, (byte) 0x61, (byte) 0x74, (byte) 0x65, (byte) 0x6e, (byte) 0x63, (byte) 0x79, (byte) 0x2d,
+            (byte) 0x70, (byte) 0x72, (byte) 0x6f, (byte) 0x62, (byte) 0x65, (byte) 0x2d, (byte) 0x76, (byte) 0x31
+    };
+
+    private static final int NAL_TYPE_SEI = 6;
+    private static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+    private static final int PAYLOAD_SIZE = 16 + 8 + 4;
+
+    /**
+     * Upper bound of an encoded SEI: length prefix, NAL header, payload type and size,
+     * payload, trailing bits and room for emulation prevention bytes
+     */
+    public static final int MAX_SIZE = 4 + 3 + PAYLOAD_SIZE + 1 + 16;
+
+    private final byte[] rbsp = new byte[3 + PAYLOAD_SIZE + 1];
+    private volatile boolean enabled = false;
+    private SrsLatencyTracer tracer;
+    private long lastPts = -1;
+    private int sequence = -1;
+    private long wallClock;
+
+    /**
+     * Enable or disable SEI injection
+     *
+     * @param enabled Inject SEI
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Use the capture time recorded by the tracer instead of the time the frame is muxed
+     *
+     * @param tracer Latency tracer
+     */
+    public void setLatencyTracer(SrsLatencyTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Assign a sequence number and wall clock to the frame, calling it again for the same
+     * frame keeps them, so the FLV and MP4 muxer stamp a frame alike
+     *
+     * @param ptsUs Presentation time in microseconds
+     */
+    public synchronized void stamp(long ptsUs) {
+        if (ptsUs == lastPts) return;
+        lastPts = ptsUs;
+        sequence++;
+        long now = System.currentTimeMillis();
+        long captureNanos = tracer != null ? tracer.getCaptureNanos(ptsUs / 1000) : 0;
+        wallClock = captureNanos > 0 ? now - (System.nanoTime() - captureNanos) / 1000000 : now;
+    }
+
+    /**
+     * @return Sequence number of the last stamped frame
+     */
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Wall clock of the last stamped frame in milliseconds
+     */
+    public synchronized long getWallClock() {
+        return wallClock;
+    }
+
+    /**
+     * Start again at sequence 0
+     */
+    public synchronized void reset() {
+        lastPts = -1;
+        sequence = -1;
+    }
+
+    /**
+     * Write the SEI NAL unit with a 4 byte length prefix, as used in FLV and MP4
+     *
+     * @param out       Buffer with at least {@link #MAX_SIZE} bytes remaining
+     * @param wallClock Capture time in milliseconds since the epoch
+     * @param sequence  Frame sequence number
+     * @return Number of bytes written
+     */
+    public synchronized int write(ByteBuffer out, long wallClock, int sequence) {
+        int n = 0;
+        rbsp[n++] = NAL_TYPE_SEI;
+        rbsp[n++] = PAYLOAD_TYPE_USER_DATA_UNREGISTERED;
+        rbsp[n++] = PAYLOAD_SIZE;
+        System.arraycopy(UUID, 0, rbsp, n, UUID.length);
+        n += UUID.length;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            rbsp[n++] = (byte) (wallClock >>> shift);
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            rbsp[n++] = (byte) (sequence >>> shift);
+        }
+        // rbsp_trailing_bits
+        rbsp[n++] = (byte) 0x80;
+
+        int start = out.position();
+        out.position(start + 4);
+        int zeros = 0;
+        for (int i = 0; i < n; i++) {
+            // 7.4.1 emulation prevention, no 00 00 0x with x <= 3 inside the NAL unit
+            if (zeros >= 2 && (rbsp[i] & 0xff) <= 3) {
+                out.put((byte) 0x03);
+                zeros = 0;
+            }
+            out.put(rbsp[i]);
+            zeros = rbsp[i] == 0 ? zeros + 1 : 0;
+        }
+        int size = out.position() - start;
+        out.putInt(start, size - 4);
+        return size;
+    }
+}
@@ -0,0 +1,257 @@
+package net.ossrs.yasea;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free statistics registry shared by the encoder, muxer and publisher.
+ * <p>
+ * The hot path only touches plain atomics. Apps either poll {@link #snapshot()} or subscribe
+ * to snapshots delivered on the main thread at an interval of their choice, instead of
+ * receiving a Handler message for every packet.
+ */
+public final class SrsStats {
+
+    /**
+     * Monotonic counters
+     */
+    public enum Counter {
+        VIDEO_FRAMES_IN,
+        VIDEO_FRAMES_ENCODED,
+        VIDEO_BYTES_ENCODED,
+        VIDEO_FRAMES_SENT,
+        AUDIO_FRAMES_IN,
+        AUDIO_FRAMES_ENCODED,
+        AUDIO_BYTES_ENCODED,
+        AUDIO_FRAMES_SENT,
+        BYTES_SENT,
+        // Frames skipped because the send queue was backed up
+        DROPPED_CAPTURE,
+        // Frames lost in color conversion
+        DROPPED_CONVERT,
+        // Frames the encoder had no input buffer for
+        DROPPED_ENCODE,
+        // Frames discarded while waiting for a key frame or sequence header
+        DROPPED_MUX,
+        // Frames flushed from the send queue
+        DROPPED_SEND,
+        // Frames of temporal layers shed from the send queue
+        DROPPED_LAYER,
+        // Key frames requested from the encoder instead of waiting for the next GOP
+        KEY_FRAME_REQUESTS
+    }
+
+    /**
+     * Last known values
+     */
+    public enum Gauge {
+        SEND_QUEUE_DEPTH,
+        VIDEO_QUEUE_DEPTH,
+        VIDEO_TARGET_BITRATE,
+        AUDIO_TARGET_BITRATE,
+        // Uplink throughput measured before going live
+        PROBED_BANDWIDTH,
+        // Temporal layers of the video sent, fewer while the uplink is congested
+        TEMPORAL_LAYERS_SENT
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final Gauge[] GAUGES = Gauge.values();
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+    private final AtomicLongArray gauges = new AtomicLongArray(GAUGES.length);
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private Handler handler;
+
+    /**
+     * Increment a counter by one
+     *
+     * @param counter Counter
+     */
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param counter Counter
+     * @param delta   Amount to add
+     */
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * Set a gauge
+     *
+     * @param gauge Gauge
+     * @param value Value
+     */
+    public void set(Gauge gauge, long value) {
+        gauges.set(gauge.ordinal(), value);
+    }
+
+    /**
+     * @param counter Counter
+     * @return Current counter value
+     */
+    public long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * @param gauge Gauge
+     * @return Current gauge value
+     */
+    public long get(Gauge gauge) {
+        return gauges.get(gauge.ordinal());
+    }
+
+    /**
+     * Reset all counters and gauges
+     */
+    public void reset() {
+        for (int i = 0; i < COUNTERS.length; i++) counters.set(i, 0);
+        for (int i = 0; i < GAUGES.length; i++) gauges.set(i, 0);
+    }
+
+    /**
+     * @return Copy of all counters and gauges
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[COUNTERS.length];
+        long[] g = new long[GAUGES.length];
+        for (int i = 0; i < c.length; i++) c[i] = counters.get(i);
+        for (int i = 0; i < g.length; i++) g[i] = gauges.get(i);
+        return new Snapshot(SystemClock.elapsedRealtime(), c, g);
+    }
+
+    /**
+     * Deliver snapshots to the listener on the main thread
+     *
+     * @param listener Listener
+     * @param interval Interval in milliseconds
+     */
+    public synchronized void subscribe(SrsStatsListener listener, long interval) {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        Subscription subscription = new Subscription(listener, interval);
+        subscriptions.add(subscription);
+        handler.postDelayed(subscription, interval);
+    }
+
+    /**
+     * Stop delivering snapshots to the listener
+     *
+     * @param listener Listener
+     */
+    public synchronized void unsubscribe(SrsStatsListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                handler.removeCallbacks(subscription);
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private class Subscription implements Runnable {
+        private final SrsStatsListener listener;
+        private final long interval;
+        private Snapshot previous;
+
+        Subscription(SrsStatsListener listener, long interval) {
+            this.listener = listener;
+            this.interval = interval;
+        }
+
+        @Override  // runs on UI thread
+        public void run() {
+            Snapshot current = snapshot();
+            listener.onStats(current, previous);
+            previous = current;
+            if (subscriptions.contains(this)) {
+                handler.postDelayed(this, interval);
+            }
+        }
+    }
+
+    /**
+     * Immutable copy of the registry
+     */
+    public static final class Snapshot {
+        private final long time;
+        private final long[] counters;
+        private final long[] gauges;
+
+        Snapshot(long time, long[] counters, long[] gauges) {
+            this.time = time;
+            this.counters = counters;
+            this.gauges = gauges;
+        }
+
+        /**
+         * @return Time of the snapshot in milliseconds since boot
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        public long get(Gauge gauge) {
+            return gauges[gauge.ordinal()];
+        }
+
+        /**
+         * Rate of a counter between two snapshots
+         *
+         * @param counter  Counter
+         * @param previous Earlier snapshot
+         * @return Increase per second
+         */
+        public double getRate(Counter counter, Snapshot previous) {
+            if (previous == null || time <= previous.time) return 0;
+            return (get(counter) - previous.get(counter)) * 1000d / (time - previous.time);
+        }
+
+        /**
+         * @return Total number of dropped frames over all stages
+         */
+        public long getDroppedFrames() {
+            return get(Counter.DROPPED_CAPTURE) + get(Counter.DROPPED_CONVERT) + get(Counter.DROPPED_ENCODE)
+                    + get(Counter.DROPPED_MUX) + get(Counter.DROPPED_SEND) + get(Counter.DROPPED_LAYER);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("SrsStats{");
+            for (Counter counter : COUNTERS) {
+                sb.append(counter.name().toLowerCase()).append('=').append(get(counter)).append(", ");
+            }
+            for (Gauge gauge : GAUGES) {
+                sb.append(gauge.name().toLowerCase()).append('=').append(get(gauge)).append(", ");
+            }
+            sb.setLength(sb.length() - 2);
+            return sb.append('}').toString();
+        }
+    }
+
+    public interface SrsStatsListener {
+
+        /**
+         * Called on the main thread at the subscribed interval
+         *
+         * @param current  Current snapshot
+         * @param previous Previous snapshot, null the first time
+         */
+        void onStats(Snapshot current, Snapshot previous);
+    }
+}
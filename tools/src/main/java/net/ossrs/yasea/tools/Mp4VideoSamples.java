@@ -0,0 +1,151 @@
+package net.ossrs.yasea.tools;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Locates the samples of the first video track in a MP4 file from its sample tables.
+ */
+final class Mp4VideoSamples {
+
+    long[] offsets = new long[0];
+    int[] sizes = new int[0];
+    int nalLengthSize = 4;
+
+    private Mp4VideoSamples() {
+    }
+
+    /**
+     * @param file MP4 file
+     * @return Video samples, none when the file has no moov box or no video track
+     */
+    static Mp4VideoSamples read(RandomAccessFile file) throws IOException {
+        Mp4VideoSamples samples = new Mp4VideoSamples();
+        long pos = 0;
+        long length = file.length();
+        while (pos + 8 <= length) {
+            file.seek(pos);
+            long size = file.readInt() & 0xffffffffL;
+            int type = file.readInt();
+            int header = 8;
+            if (size == 1) {
+                size = file.readLong();
+                header = 16;
+            } else if (size == 0) {
+                size = length - pos;
+            }
+            if (size < header) break;
+            if (type == fourcc("moov")) {
+                byte[] moov = new byte[(int) (size - header)];
+                file.readFully(moov);
+                samples.parseContainer(ByteBuffer.wrap(moov));
+                break;
+            }
+            pos += size;
+        }
+        return samples;
+    }
+
+    private static int fourcc(String s) {
+        return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+    }
+
+    // Returns true once a video track was found
+    private boolean parseContainer(ByteBuffer bb) {
+        while (bb.remaining() >= 8) {
+            int start = bb.position();
+            int size = bb.getInt();
+            int type = bb.getInt();
+            if (size < 8 || start + size > bb.limit()) return false;
+            ByteBuffer box = (ByteBuffer) bb.slice().limit(size - 8);
+            bb.position(start + size);
+
+            if (type == fourcc("trak")) {
+                if (parseTrak(box)) return true;
+            } else if (type == fourcc("moov")) {
+                if (parseContainer(box)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean parseTrak(ByteBuffer trak) {
+        ByteBuffer stbl = find(find(find(trak, "mdia"), "minf"), "stbl");
+        ByteBuffer hdlr = find(find(trak, "mdia"), "hdlr");
+        if (stbl == null || hdlr == null || hdlr.remaining() < 12 || hdlr.getInt(8) != fourcc("vide")) {
+            return false;
+        }
+
+        ByteBuffer stsz = find(stbl, "stsz");
+        ByteBuffer stsc = find(stbl, "stsc");
+        ByteBuffer stco = find(stbl, "stco");
+        ByteBuffer co64 = find(stbl, "co64");
+        if (stsz == null || stsc == null || (stco == null && co64 == null)) {
+            return false;
+        }
+
+        int fixedSize = stsz.getInt(4);
+        int count = stsz.getInt(8);
+        sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : stsz.getInt(12 + 4 * i);
+        }
+
+        long[] chunks;
+        if (stco != null) {
+            chunks = new long[stco.getInt(4)];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = stco.getInt(8 + 4 * i) & 0xffffffffL;
+        } else {
+            chunks = new long[co64.getInt(4)];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = co64.getLong(8 + 8 * i);
+        }
+
+        // Expand sample-to-chunk runs into absolute sample offsets
+        offsets = new long[count];
+        int entries = stsc.getInt(4);
+        int sample = 0;
+        for (int e = 0; e < entries && sample < count; e++) {
+            int firstChunk = stsc.getInt(8 + 12 * e) - 1;
+            int perChunk = stsc.getInt(12 + 12 * e);
+            int lastChunk = e + 1 < entries ? stsc.getInt(8 + 12 * (e + 1)) - 1 : chunks.length;
+            for (int c = firstChunk; c < lastChunk && c < chunks.length; c++) {
+                long offset = chunks[c];
+                for (int s = 0; s < perChunk && sample < count; s++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+
+        ByteBuffer stsd = find(stbl, "stsd");
+        if (stsd != null) {
+            for (int i = 0; i + 12 < stsd.limit(); i++) {
+                if (stsd.getInt(i) == fourcc("avcC")) {
+                    nalLengthSize = (stsd.get(i + 8) & 0x03) + 1;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Payload of the first child box of the given type
+    private static ByteBuffer find(ByteBuffer parent, String type) {
+        if (parent == null) return null;
+        int wanted = fourcc(type);
+        int pos = 0;
+        while (pos + 8 <= parent.limit()) {
+            int size = parent.getInt(pos);
+            if (size < 8 || pos + size > parent.limit()) return null;
+            if (parent.getInt(pos + 4) == wanted) {
+                ByteBuffer dup = parent.duplicate();
+                dup.position(pos + 8).limit(pos + size);
+                return dup.slice();
+            }
+            pos += size;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,195 @@
+package net.ossrs.yasea.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Extracts the latency probe SEI from a published stream and reports the latency and frame
+ * loss distributions.
+ * <p>
+ * Usage:
+ * <pre>
+ *   SeiLatencyReport recording.mp4
+ *   SeiLatencyReport recording.flv
+ *   ffmpeg -i rtmp://host/live/stream -c copy -f flv - | SeiLatencyReport -
+ * </pre>
+ * FLV read from stdin is taken to be a live pull, the latency is the arrival time minus the
+ * capture wall clock in the SEI, so sender and viewer clocks must be synchronized. Files
+ * carry no arrival time, for them the capture interval is reported instead, use --live to
+ * treat a growing FLV file as live anyway.
+ */
+public final class SeiLatencyReport {
+
+    private static final int FLV_TAG_VIDEO = 9;
+    private static final int FLV_CODEC_AVC = 7;
+
+    private final boolean live;
+    private long[] values = new long[1024];
+    private int count;
+    private long previousWallClock = -1;
+    private int firstSequence = -1;
+    private int lastSequence = -1;
+    private long received;
+    private long lost;
+    private long reordered;
+    private long duplicates;
+    private long framesWithoutSei;
+    private final long[] gapBursts = new long[5];
+
+    private SeiLatencyReport(boolean live) {
+        this.live = live;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean live = false;
+        String input = null;
+        for (String arg : args) {
+            if (arg.equals("--live")) {
+                live = true;
+            } else {
+                input = arg;
+            }
+        }
+        if (input == null) {
+            System.err.println("usage: SeiLatencyReport [--live] <file.flv|file.mp4|->");
+            System.exit(2);
+        }
+
+        SeiLatencyReport report;
+        if (input.equals("-")) {
+            report = new SeiLatencyReport(true);
+            report.readFlv(new BufferedInputStream(System.in));
+        } else if (input.toLowerCase(Locale.US).endsWith(".mp4")) {
+            report = new SeiLatencyReport(live);
+            try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+                report.readMp4(file);
+            }
+        } else {
+            report = new SeiLatencyReport(live);
+            try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+                report.readFlv(in);
+            }
+        }
+        report.print();
+    }
+
+    private void readFlv(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte[] header = new byte[9];
+        in.readFully(header);
+        if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+            throw new IOException("Not a FLV stream");
+        }
+        int dataOffset = (header[5] & 0xff) << 24 | (header[6] & 0xff) << 16 | (header[7] & 0xff) << 8 | (header[8] & 0xff);
+        // Rest of the header and PreviousTagSize0
+        in.skipBytes(dataOffset - header.length + 4);
+
+        int nalLengthSize = 4;
+        byte[] data = new byte[64 * 1024];
+        try {
+            while (true) {
+                int type = in.readUnsignedByte() & 0x1f;
+                int size = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                in.skipBytes(3 + 1 + 3);
+                if (data.length < size) data = new byte[size * 2];
+                in.readFully(data, 0, size);
+                in.skipBytes(4);
+                long arrival = System.currentTimeMillis();
+
+                if (type != FLV_TAG_VIDEO || size < 5 || (data[0] & 0x0f) != FLV_CODEC_AVC) continue;
+                if (data[1] == 0) {
+                    // AVCDecoderConfigurationRecord, lengthSizeMinusOne in the fifth byte
+                    if (size > 9) nalLengthSize = (data[9] & 0x03) + 1;
+                    continue;
+                }
+                if (data[1] == 1) {
+                    onFrame(SeiParser.parse(data, 5, size - 5, nalLengthSize), arrival);
+                }
+            }
+        } catch (EOFException e) {
+            // end of stream
+        }
+    }
+
+    private void readMp4(RandomAccessFile file) throws IOException {
+        Mp4VideoSamples samples = Mp4VideoSamples.read(file);
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < samples.sizes.length; i++) {
+            int size = samples.sizes[i];
+            if (data.length < size) data = new byte[size * 2];
+            file.seek(samples.offsets[i]);
+            file.readFully(data, 0, size);
+            onFrame(SeiParser.parse(data, 0, size, samples.nalLengthSize), 0);
+        }
+    }
+
+    private void onFrame(SeiParser.Stamp stamp, long arrival) {
+        if (stamp == null) {
+            framesWithoutSei++;
+            return;
+        }
+        received++;
+
+        if (live) {
+            add(arrival - stamp.wallClock);
+        } else if (previousWallClock >= 0) {
+            add(stamp.wallClock - previousWallClock);
+        }
+        previousWallClock = stamp.wallClock;
+
+        if (firstSequence < 0) {
+            firstSequence = stamp.sequence;
+        } else if (stamp.sequence == lastSequence) {
+            duplicates++;
+            return;
+        } else if (stamp.sequence < lastSequence) {
+            // Late frame, it was counted as lost before
+            reordered++;
+            lost--;
+            return;
+        } else if (stamp.sequence > lastSequence + 1) {
+            int gap = stamp.sequence - lastSequence - 1;
+            lost += gap;
+            gapBursts[Math.min(gap, gapBursts.length) - 1]++;
+        }
+        lastSequence = stamp.sequence;
+    }
+
+    private void add(long value) {
+        if (count == values.length) values = Arrays.copyOf(values, count * 2);
+        values[count++] = value;
+    }
+
+    private long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void print() {
+        System.out.println(String.format(Locale.US, "frames: %d with SEI, %d without", received, framesWithoutSei));
+        if (received == 0) return;
+
+        long expected = lastSequence - firstSequence + 1;
+        System.out.println(String.format(Locale.US, "sequence: %d..%d, lost %d (%.2f%%), reordered %d, duplicates %d",
+                firstSequence, lastSequence, lost, lost * 100d / expected, reordered, duplicates));
+        System.out.println(String.format(Locale.US, "loss bursts: 1=%d 2=%d 3=%d 4=%d 5+=%d",
+                gapBursts[0], gapBursts[1], gapBursts[2], gapBursts[3], gapBursts[4]));
+
+        if (count == 0) return;
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long v : sorted) sum += v;
+        System.out.println(String.format(Locale.US, "%s (ms): min=%d mean=%.1f p50=%d p90=%d p95=%d p99=%d max=%d",
+                live ? "latency" : "capture interval", sorted[0], (double) sum / count,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 95),
+                percentile(sorted, 99), sorted[count - 1]));
+    }
+}
@@ -0,0 +1,126 @@
+package net.ossrs.yasea.tools;
+
+import java.util.Arrays;
+
+/**
+ * Finds the latency probe SEI written by SrsSeiProbe in length prefixed H.264 access units.
+ */
+public final class SeiParser {
+
+    /**
+     * Must match SrsSeiProbe.UUID in the library
+     */
+    public static final byte[] UUID = {
+            (byte) 0x6c, (byte) 0x61, (byte) 0x74, (byte) 0x65, (byte) 0x6e, (byte) 0x63, (byte) 0x79, (byte) 0x2d,
+            (byte) 0x70, (byte) 0x72, (byte) 0x6f, (byte) 0x62, (byte) 0x65, (byte) 0x2d, (byte) 0x76, (byte) 0x31
+    };
+
+    private static final int NAL_TYPE_SEI = 6;
+    private static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+
+    /**
+     * A decoded probe
+     */
+    public static final class Stamp {
+        public final long wallClock;
+        public final int sequence;
+
+        Stamp(long wallClock, int sequence) {
+            this.wallClock = wallClock;
+            this.sequence = sequence;
+        }
+    }
+
+    private SeiParser() {
+    }
+
+    /**
+     * Scan an access unit for the probe
+     *
+     * @param data             Buffer
+     * @param offset           Start of the access unit
+     * @param length           Length of the access unit
+     * @param nalLengthSize    Size of the NAL unit length prefix, 4 unless avcC says otherwise
+     * @return Stamp or null when the access unit has none
+     */
+    public static Stamp parse(byte[] data, int offset, int length, int nalLengthSize) {
+        int end = offset + length;
+        int pos = offset;
+        while (pos + nalLengthSize < end) {
+            int size = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                size = (size << 8) | (data[pos + i] & 0xff);
+            }
+            pos += nalLengthSize;
+            if (size <= 0 || pos + size > end) {
+                return null;
+            }
+            if ((data[pos] & 0x1f) == NAL_TYPE_SEI) {
+                Stamp stamp = parseSei(unescape(data, pos + 1, size - 1));
+                if (stamp != null) {
+                    return stamp;
+                }
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    private static Stamp parseSei(byte[] rbsp) {
+        int pos = 0;
+        // Stop at the trailing bits
+        while (pos < rbsp.length && (rbsp[pos] & 0xff) != 0x80) {
+            int type = 0;
+            while (pos < rbsp.length && (rbsp[pos] & 0xff) == 0xff) {
+                type += 255;
+                pos++;
+            }
+            if (pos >= rbsp.length) return null;
+            type += rbsp[pos++] & 0xff;
+
+            int size = 0;
+            while (pos < rbsp.length && (rbsp[pos] & 0xff) == 0xff) {
+                size += 255;
+                pos++;
+            }
+            if (pos >= rbsp.length) return null;
+            size += rbsp[pos++] & 0xff;
+            if (pos + size > rbsp.length) return null;
+
+            if (type == PAYLOAD_TYPE_USER_DATA_UNREGISTERED && size >= UUID.length + 12
+                    && Arrays.equals(Arrays.copyOfRange(rbsp, pos, pos + UUID.length), UUID)) {
+                int p = pos + UUID.length;
+                long wallClock = 0;
+                for (int i = 0; i < 8; i++) {
+                    wallClock = (wallClock << 8) | (rbsp[p++] & 0xff);
+                }
+                int sequence = 0;
+                for (int i = 0; i < 4; i++) {
+                    sequence = (sequence << 8) | (rbsp[p++] & 0xff);
+                }
+                return new Stamp(wallClock, sequence);
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the emulation prevention bytes, 7.4.1 of the H.264 spec
+     */
+    static byte[] unescape(byte[] data, int offset, int length) {
+        byte[] out = new byte[length];
+        int n = 0;
+        int zeros = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            if (zeros >= 2 && b == 0x03) {
+                zeros = 0;
+                continue;
+            }
+            out[n++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return Arrays.copyOf(out, n);
+    }
+}